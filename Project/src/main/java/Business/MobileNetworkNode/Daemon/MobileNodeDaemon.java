@@ -1,17 +1,31 @@
 package Business.MobileNetworkNode.Daemon;
 
+import Business.MobileNetworkNode.DataCache.ByteRange;
+import Business.MobileNetworkNode.DataCache.ChunkMap;
+import Business.MobileNetworkNode.DataCache.CodedSymbol;
 import Business.MobileNetworkNode.DataCache.FileFragment;
 import Business.MobileNetworkNode.DataCache.FileFragmentTable;
 import Business.MobileNetworkNode.MobileNode;
+import Business.MobileNetworkNode.RoutingInfo.NeighbourTable;
 import Business.MobileNetworkNode.RoutingInfo.PeerKeepaliveTable;
+import Business.MobileNetworkNode.RoutingInfo.RequestRateTable;
 import Business.MobileNetworkNode.RoutingInfo.RoutingTable;
 import Business.MobileNetworkNode.RoutingInfo.RoutingTableEntry;
+import Business.MobileNetworkNode.RoutingInfo.RoundTripTimeTable;
+import Business.MobileNetworkNode.Transfer.DistributionSessionTable;
+import Business.MobileNetworkNode.Transfer.FileDownload;
+import Business.MobileNetworkNode.Transfer.FileDownloadTable;
+import Business.MobileNetworkNode.Transfer.FragmentRequest;
 import Business.PDU.DataRequestMobileNetworkPDU;
 import Business.PDU.DataResponseMobileNetworkPDU;
 import Business.PDU.MobileNetworkPDU;
+import Business.Utils;
 import org.apache.log4j.Logger;
 
+import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -51,6 +65,21 @@ public abstract class MobileNodeDaemon implements Runnable {
     // Map a file hash to a list of gathered fragments
     private final FileFragmentTable<String> cacheOfFragmentedFiles;
 
+    // Map a direct neighbour to the address it can be unicast to
+    private final NeighbourTable neighbourTable;
+
+    // Map a file hash to the state of its download
+    private final FileDownloadTable fileDownloadTable;
+
+    // Map a neighbour to how long it takes to answer pings
+    private final RoundTripTimeTable roundTripTimeTable;
+
+    // Map a file hash to how often it's asked for, and from which neighbour
+    private final RequestRateTable requestRateTable;
+
+    // Map a file hash to the neighbours downloading it at the same time, and the fragments of it multicast lately
+    private final DistributionSessionTable distributionSessionTable;
+
     // Log in behalf of the representative node
     private final Logger LOGGER;
 
@@ -72,6 +101,11 @@ public abstract class MobileNodeDaemon implements Runnable {
         this.contentRoutingTable = representativeNode.getRoutingTable();
         this.hashOfPeersMostRecentContentTable = representativeNode.getHashOfPeersMostRecentContentTable();
         this.cacheOfFragmentedFiles = representativeNode.getCachefFragmentedFiles();
+        this.neighbourTable = representativeNode.getNeighbourTable();
+        this.fileDownloadTable = representativeNode.getFileDownloadTable();
+        this.roundTripTimeTable = representativeNode.getRoundTripTimeTable();
+        this.requestRateTable = representativeNode.getRequestRateTable();
+        this.distributionSessionTable = representativeNode.getDistributionSessionTable();
         this.LOGGER = representativeNode.getLogger();
         this.NODE_MAC_ADDRESS = representativeNode.getMacAddr();
         this.isFinished = false;
@@ -109,8 +143,8 @@ public abstract class MobileNodeDaemon implements Runnable {
         representativeNode.closeReceiveSocket();
     }
 
-    MobileNetworkPDU capturePDU() throws IOException, ClassNotFoundException {
-        return representativeNode.capturePDU();
+    List<MobileNetworkPDU> capturePDUs() throws IOException {
+        return representativeNode.capturePDUs();
     }
 
     /**
@@ -149,12 +183,52 @@ public abstract class MobileNodeDaemon implements Runnable {
         representativeNode.sendResponseFileMessage(requestItRespondsTo, fragment, params);
     }
 
+    void sendMulticastFileMessage(String fileHash, FileFragment fragment, String[] params) {
+        representativeNode.sendMulticastFileMessage(fileHash, fragment, params);
+    }
+
+    void sendResponseCodedFileMessage(DataRequestMobileNetworkPDU requestItRespondsTo, CodedSymbol symbol, String[] params) {
+        representativeNode.sendResponseCodedFileMessage(requestItRespondsTo, symbol, params);
+    }
+
+    void sendResponseChunkMapMessage(DataRequestMobileNetworkPDU requestItRespondsTo, ChunkMap chunkMap, String[] params) {
+        representativeNode.sendResponseChunkMapMessage(requestItRespondsTo, chunkMap, params);
+    }
+
     void sendErrorMessage(DataRequestMobileNetworkPDU requestPDU, MobileNetworkPDU.MobileNetworkErrorType errorToSend) {
         representativeNode.sendErrorMessage(requestPDU, errorToSend);
     }
 
-    void requestContentFromSingleNode(String requestedFileHash, int initByteToAsk) {
-        representativeNode.requestContentFromSingleNode(requestedFileHash, initByteToAsk);
+    void requestNextFragments(String fileHash) {
+        representativeNode.requestNextFragments(fileHash);
+    }
+
+    void sendFragmentRequests(String fileHash, List<FragmentRequest> requests) {
+        representativeNode.sendFragmentRequests(fileHash, requests);
+    }
+
+    void resumeInterruptedDownloads() {
+        representativeNode.resumeInterruptedDownloads();
+    }
+
+    File getSharingDirectory() {
+        return representativeNode.getSharingDirectory();
+    }
+
+    List<File> getSharedFiles() {
+        return representativeNode.getSharedFiles();
+    }
+
+    void shareChangedFile(File file) {
+        representativeNode.shareChangedFile(file);
+    }
+
+    void unshareFile(File path) {
+        representativeNode.unshareFile(path);
+    }
+
+    void saveContentIndex() {
+        representativeNode.saveContentIndex();
     }
 
     void forwardResponsePacket(DataResponseMobileNetworkPDU responsePDU) {
@@ -225,6 +299,22 @@ public abstract class MobileNodeDaemon implements Runnable {
             keepaliveTable.removePeer(peerID);
         }
 
+        synchronized (neighbourTable) {
+            neighbourTable.removeNeighbour(peerID);
+        }
+
+        synchronized (roundTripTimeTable) {
+            roundTripTimeTable.removePeer(peerID);
+        }
+
+        synchronized (requestRateTable) {
+            requestRateTable.removePeer(peerID);
+        }
+
+        synchronized (distributionSessionTable) {
+            distributionSessionTable.removePeer(peerID);
+        }
+
         synchronized (contentRoutingTable) {
             return contentRoutingTable.removeEntriesWithNextHop(peerID);
         }
@@ -259,35 +349,298 @@ public abstract class MobileNodeDaemon implements Runnable {
      * =================== Functionalities: Operating on the local storage of file fragments
      */
 
-    int addFragmentToCache(String key, FileFragment fragmentToAdd) throws IOException {
+    int addFragmentToCache(String key, FileFragment fragmentToAdd, String sourceMAC) throws IOException {
         synchronized (cacheOfFragmentedFiles) {
-            return cacheOfFragmentedFiles.putFragment(key, fragmentToAdd);
+            return cacheOfFragmentedFiles.putFragment(key, fragmentToAdd, sourceMAC);
         }
     }
 
-    FileFragment getFragment(String key, int requestedInitByte) {
+    /**
+     * Keep a fragment being relayed to someone else, to answer for it next time (if it checks out
+     * against the root of its file's Merkle tree, as advertised)
+     * @param key Hash of the file
+     * @param relayedFragment Fragment going through
+     */
+    void cacheRelayedFragment(String key, FileFragment relayedFragment) {
+        byte[] merkleRoot = getAdvertisedMerkleRoot(key);
+
+        if (merkleRoot != null) {
+            synchronized (cacheOfFragmentedFiles) {
+                cacheOfFragmentedFiles.putRelayedFragment(key, relayedFragment, merkleRoot);
+            }
+        }
+    }
+
+    /**
+     * Keep a fragment overheard, multicast to the neighbours downloading its file (if it checks out against
+     * the root of its file's Merkle tree, as advertised)
+     * @param key Hash of the file
+     * @param overheardFragment Fragment overheard
+     */
+    void cacheOverheardFragment(String key, FileFragment overheardFragment) {
+        byte[] merkleRoot = getAdvertisedMerkleRoot(key);
+
+        if (merkleRoot != null) {
+            synchronized (cacheOfFragmentedFiles) {
+                cacheOfFragmentedFiles.putOverheardFragment(key, overheardFragment, merkleRoot);
+            }
+        }
+    }
+
+    // Root of a file's Merkle tree, as advertised in the routing table (null if unknown)
+    private byte[] getAdvertisedMerkleRoot(String key) {
+        String merkleRoot;
+        synchronized (contentRoutingTable) {
+            merkleRoot = contentRoutingTable.getMerkleRoot(key);
+        }
+
+        if (merkleRoot == null) {
+            return null;
+        }
+
+        try {
+            return Utils.hexStringToBytes(merkleRoot);
+        } catch (NumberFormatException e) {
+            LOGGER.error("Malformed Merkle root advertised for " + key + ": " + merkleRoot);
+            return null;
+        }
+    }
+
+    boolean isPromiscuous() {
+        return representativeNode.isPromiscuous();
+    }
+
+    FileFragment getFragment(String key, ByteRange requestedRange) {
+        synchronized (cacheOfFragmentedFiles) {
+            return cacheOfFragmentedFiles.getFragment(key, requestedRange);
+        }
+    }
+
+    ChunkMap getChunkMap(String key, ByteRange requestedRange) {
         synchronized (cacheOfFragmentedFiles) {
-            return cacheOfFragmentedFiles.getFragment(key, requestedInitByte);
+            return cacheOfFragmentedFiles.getChunkMap(key, requestedRange);
         }
     }
 
-    boolean hasFragmentStored(String[] params) {
+    List<ByteRange> getStoredRanges(String fileHash, List<ByteRange> requestedRanges) {
+        List<ByteRange> storedRanges = new ArrayList<>();
+
         synchronized (cacheOfFragmentedFiles) {
-            if (params.length == 0) {
-                return false;
+            for (ByteRange range : requestedRanges) {
+                if (cacheOfFragmentedFiles.hasFragment(fileHash, range)) {
+                    storedRanges.add(range);
+                }
             }
+        }
 
-            String fileHash = params[0];
+        return storedRanges;
+    }
+
+    int getFileChunkSizeBytes() {
+        return representativeNode.getFileChunkSizeBytes();
+    }
 
-            int initByteRequested = params.length == 2 ? Integer.parseInt(params[1]) : 0;
+    /**
+     * Ranges of a file request, with the length filled in where the requester left it to us
+     * @param requestPDU File request
+     * @return Requested ranges, or null if any of them is malformed
+     */
+    List<ByteRange> getRequestedRanges(DataRequestMobileNetworkPDU requestPDU) {
+        List<ByteRange> requestedRanges = new ArrayList<>();
 
-            return cacheOfFragmentedFiles.hasFragment(fileHash, initByteRequested);
+        try {
+            for (ByteRange range : requestPDU.getRequestedRanges()) {
+                requestedRanges.add(range.withDefaultLength(representativeNode.getFileChunkSizeBytes()));
+            }
+        } catch (NumberFormatException e) {
+            return null;
         }
+
+        return requestedRanges;
     }
 
-    int getNextNeededInitByteToRequest(String key) {
-        synchronized (cacheOfFragmentedFiles) {
-            return cacheOfFragmentedFiles.getNextNonExistingInitByte(key);
+    /**
+     * =================== Functionalities: Discovering the MTU of paths
+     */
+
+    int getInterfaceMtu() {
+        return representativeNode.getInterfaceMtu();
+    }
+
+    void sendPathMtuResponse(DataRequestMobileNetworkPDU probePDU, int pathMtu) {
+        representativeNode.sendPathMtuResponse(probePDU, pathMtu);
+    }
+
+    void updatePathMtu(String dstMAC, int pathMtu) {
+        representativeNode.updatePathMtu(dstMAC, pathMtu);
+    }
+
+    /**
+     * =================== Functionalities: Operating on the downloads in progress
+     */
+
+    boolean markFragmentAsReceived(String fileHash, FileFragment fragment, String responderMAC) {
+        synchronized (fileDownloadTable) {
+            FileDownload download = fileDownloadTable.getDownload(fileHash);
+
+            return download != null && download.markAsReceived(fragment, responderMAC, System.currentTimeMillis());
+        }
+    }
+
+    /**
+     * Take a coded symbol into account, in the download it belongs to
+     * @param fileHash Hash of the file being downloaded
+     * @param symbol Received symbol
+     * @return Fragment with a whole generation, if the symbol completed one, null otherwise
+     */
+    FileFragment addCodedSymbol(String fileHash, CodedSymbol symbol) {
+        synchronized (fileDownloadTable) {
+            FileDownload download = fileDownloadTable.getDownload(fileHash);
+
+            return download != null ? download.addCodedSymbol(symbol) : null;
+        }
+    }
+
+    /**
+     * Ask again, at once, for what a fragment that didn't check out was meant to bring
+     * @param fileHash Hash of the file being downloaded
+     * @param fragment Fragment that was rejected
+     */
+    void rejectCorruptFragment(String fileHash, FileFragment fragment) {
+        List<FragmentRequest> requests;
+        synchronized (fileDownloadTable) {
+            FileDownload download = fileDownloadTable.getDownload(fileHash);
+
+            if (download == null) {
+                return;
+            }
+
+            requests = download.onCorruptFragment(fragment, System.currentTimeMillis());
+        }
+
+        representativeNode.sendFragmentRequests(fileHash, requests);
+    }
+
+    void addChunkMap(String fileHash, ChunkMap chunkMap, String responderMAC) {
+        representativeNode.addChunkMap(fileHash, chunkMap, responderMAC);
+    }
+
+    void finishDownload(String fileHash) {
+        synchronized (fileDownloadTable) {
+            fileDownloadTable.finishDownload(fileHash);
+        }
+    }
+
+    void seedDownloadedFile(String fileHash) {
+        representativeNode.seedDownloadedFile(fileHash);
+    }
+
+    void countFileRequests(DataRequestMobileNetworkPDU requestPDU, int numberOfFragments) {
+        representativeNode.countFileRequests(requestPDU, numberOfFragments);
+    }
+
+    /**
+     * Count the neighbour a file request came straight from as downloading the file
+     * @param requestPDU Request of a file
+     * @return True if the fragments asked for are to be multicast (enough neighbours are downloading the file)
+     */
+    boolean joinDistributionSession(DataRequestMobileNetworkPDU requestPDU) {
+        if (requestPDU.getNodePath().size() != 2) {
+            // Came from further away, multicasting wouldn't reach it
+            return false;
+        }
+
+        synchronized (distributionSessionTable) {
+            return distributionSessionTable.addReceiver(requestPDU.getRequestedFileHash(), requestPDU.getSrcMAC(), System.currentTimeMillis());
+        }
+    }
+
+    /**
+     * Take note that a fragment is about to be multicast, unless the neighbour's request for it crossed it moments ago
+     * @param fileHash Hash of the file
+     * @param range Bytes of the fragment
+     * @param neighbourMAC Neighbour that asked for it
+     * @return True if it's to be multicast, false if the neighbour's request crossed it
+     */
+    boolean markAsMulticast(String fileHash, ByteRange range, String neighbourMAC) {
+        synchronized (distributionSessionTable) {
+            return distributionSessionTable.markAsSent(fileHash, range, neighbourMAC, System.currentTimeMillis());
+        }
+    }
+
+    void offerHotFiles() {
+        representativeNode.offerHotFiles();
+    }
+
+    void acceptReplicaOffer(String fileHash, int totalSizeBytes, String offererMAC) {
+        representativeNode.acceptReplicaOffer(fileHash, totalSizeBytes, offererMAC);
+    }
+
+    void releaseReplica(String fileHash) {
+        representativeNode.releaseReplica(fileHash);
+    }
+
+    /**
+     * @param fileHash Hash of a file
+     * @return True if the file is being downloaded plainly (not coded), so fragments of it multicast to everyone are kept
+     */
+    boolean acceptsMulticastFragments(String fileHash) {
+        synchronized (fileDownloadTable) {
+            FileDownload download = fileDownloadTable.getDownload(fileHash);
+
+            return download != null && !download.isCoded();
+        }
+    }
+
+    List<String> getFileHashesBeingDownloaded() {
+        synchronized (fileDownloadTable) {
+            List<String> fileHashes = new ArrayList<>();
+            fileDownloadTable.getDownloads().forEach(download -> fileHashes.add(download.getFileHash()));
+
+            return fileHashes;
+        }
+    }
+
+    Map<String, List<FragmentRequest>> getExpiredFragmentRequests() {
+        Map<String, List<FragmentRequest>> expiredRequests = new HashMap<>();
+        long now = System.currentTimeMillis();
+
+        synchronized (fileDownloadTable) {
+            for (FileDownload download : fileDownloadTable.getDownloads()) {
+                List<FragmentRequest> expired = download.expiredRequests(now);
+
+                if (!expired.isEmpty()) {
+                    expiredRequests.put(download.getFileHash(), expired);
+                }
+            }
+        }
+
+        return expiredRequests;
+    }
+
+    /**
+     * Stop the downloads that gave up (a fragment was asked for too many times)
+     * @return Hashes of the files whose download was stopped
+     */
+    List<String> removeAbortedDownloads() {
+        List<String> abortedFileHashes = new ArrayList<>();
+
+        synchronized (fileDownloadTable) {
+            for (FileDownload download : fileDownloadTable.getDownloads()) {
+                if (download.isAborted()) {
+                    abortedFileHashes.add(download.getFileHash());
+                }
+            }
+
+            abortedFileHashes.forEach(fileDownloadTable::finishDownload);
+        }
+
+        return abortedFileHashes;
+    }
+
+    void addRoundTripTimeSample(String peerID, long rttMs) {
+        synchronized (roundTripTimeTable) {
+            roundTripTimeTable.addSample(peerID, rttMs);
         }
     }
 }
@@ -0,0 +1,206 @@
+package Business.MobileNetworkNode.Daemon;
+
+import Business.MobileNetworkNode.MobileNode;
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.*;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+/**
+ * Daemon responsible for, in behalf of a mobile node, watching its sharing directory. Files created
+ * or changed whilst the node runs are hashed in the background and shared, and deleted ones stop being
+ * shared. Every change is sent out to the neighbours as an update of the entries it touches, so the
+ * rest of the network learns about it without the node having to restart (and send its whole table)
+ */
+public class MobileNodeDirectoryWatchDaemon extends MobileNodeDaemon {
+    // How long the daemon waits for changes before checking if it has to stop
+    private final int POLL_TIMEOUT_MS = 500;
+
+    // A changed file is only hashed once it's left alone for this long
+    // (a file being copied in changes many times, it's only hashed once the copy is done)
+    private final int SETTLE_TIME_MS = 1000;
+
+    // Log in behalf of the representative node
+    private final Logger LOGGER;
+
+    private WatchService watchService;
+
+    // Directories watched (the sharing directory and every directory inside it)
+    private Map<WatchKey, Path> watchedDirectories;
+
+    // Files created or changed, and when they last changed, until they're hashed
+    private Map<Path, Long> changedFiles;
+
+    // True if files were shared or unshared since the content index was last saved
+    // (it's saved once per poll, however many files changed)
+    private boolean isContentIndexChanged;
+
+    /**
+     * Constructor
+     * @param representativeNode Node that this daemon works in behalf of
+     */
+    public MobileNodeDirectoryWatchDaemon(MobileNode representativeNode) {
+        super(representativeNode); // Init all services
+        this.LOGGER = super.getLogger();
+        this.watchedDirectories = new HashMap<>();
+        this.changedFiles = new HashMap<>();
+        this.isContentIndexChanged = false;
+    }
+
+    @Override
+    public void run() {
+        LOGGER.debug("Starting directory watch daemon");
+
+        try (WatchService service = FileSystems.getDefault().newWatchService()) {
+            this.watchService = service;
+            watchRecursively(super.getSharingDirectory().toPath());
+            watchSharingDirectory();
+        } catch (IOException e) {
+            LOGGER.error("Couldn't watch the sharing directory: " + e.getMessage());
+        }
+
+        LOGGER.debug("Terminating directory watch daemon");
+    }
+
+    private void watchSharingDirectory() {
+        try {
+            while (!super.isFinished()) {
+                WatchKey key = watchService.poll(POLL_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+
+                // Take every change that piled up, not just the first
+                while (key != null) {
+                    processChanges(key);
+                    key = watchService.poll();
+                }
+
+                shareSettledFiles();
+
+                if (isContentIndexChanged) {
+                    super.saveContentIndex();
+                    isContentIndexChanged = false;
+                }
+            }
+        } catch (InterruptedException e) {
+            LOGGER.error("Prematurely terminated");
+        }
+    }
+
+    private void processChanges(WatchKey key) {
+        Path directory = watchedDirectories.get(key);
+
+        for (WatchEvent<?> event : key.pollEvents()) {
+            WatchEvent.Kind<?> kind = event.kind();
+
+            if (kind == OVERFLOW || directory == null) {
+                // Changes were lost, look at everything again
+                rescanSharingDirectory();
+                continue;
+            }
+
+            Path path = directory.resolve((Path) event.context());
+
+            if (kind == ENTRY_DELETE) {
+                changedFiles.remove(path);
+                super.unshareFile(path.toFile());
+                isContentIndexChanged = true;
+            } else if (Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+                if (kind == ENTRY_CREATE) {
+                    // Files may have been put in it before it was watched
+                    watchRecursively(path);
+                }
+            } else {
+                changedFiles.put(path, System.currentTimeMillis());
+            }
+        }
+
+        if (!key.reset()) {
+            // The directory is gone
+            watchedDirectories.remove(key);
+        }
+    }
+
+    private void shareSettledFiles() {
+        long now = System.currentTimeMillis();
+
+        Iterator<Map.Entry<Path, Long>> it = changedFiles.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Path, Long> changedFile = it.next();
+
+            if (now - changedFile.getValue() < SETTLE_TIME_MS) {
+                continue;
+            }
+
+            it.remove();
+
+            if (Files.isRegularFile(changedFile.getKey())) {
+                super.shareChangedFile(changedFile.getKey().toFile());
+                isContentIndexChanged = true;
+            }
+        }
+    }
+
+    // Watch a directory and every directory inside it, taking the files already in them as changed
+    private void watchRecursively(Path root) {
+        try (Stream<Path> paths = Files.walk(root)) {
+            long now = System.currentTimeMillis();
+
+            paths.forEach(path -> {
+                if (Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+                    try {
+                        watchedDirectories.put(path.register(watchService, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE), path);
+                    } catch (IOException e) {
+                        LOGGER.error("Couldn't watch " + path + ": " + e.getMessage());
+                    }
+                } else if (!root.equals(super.getSharingDirectory().toPath())) {
+                    // Files of the sharing directory itself were shared when the node started
+                    changedFiles.put(path, now);
+                }
+            });
+        } catch (IOException | UncheckedIOException e) {
+            LOGGER.error("Couldn't watch " + root + ": " + e.getMessage());
+        }
+    }
+
+    // Share every file that is in the sharing directory (those that didn't change are found in the content
+    // index, and aren't announced again) and stop sharing those that are gone
+    private void rescanSharingDirectory() {
+        LOGGER.info("Changes to the sharing directory were lost, looking at all of it again");
+
+        for (File sharedFile : super.getSharedFiles()) {
+            if (!sharedFile.exists()) {
+                super.unshareFile(sharedFile);
+            }
+        }
+
+        try (Stream<Path> paths = Files.walk(super.getSharingDirectory().toPath())) {
+            long now = System.currentTimeMillis();
+
+            paths.forEach(path -> {
+                if (Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+                    if (!watchedDirectories.containsValue(path)) {
+                        try {
+                            watchedDirectories.put(path.register(watchService, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE), path);
+                        } catch (IOException e) {
+                            LOGGER.error("Couldn't watch " + path + ": " + e.getMessage());
+                        }
+                    }
+                } else {
+                    changedFiles.put(path, now);
+                }
+            });
+        } catch (IOException | UncheckedIOException e) {
+            LOGGER.error("Couldn't look at the sharing directory: " + e.getMessage());
+        }
+
+        isContentIndexChanged = true;
+    }
+}
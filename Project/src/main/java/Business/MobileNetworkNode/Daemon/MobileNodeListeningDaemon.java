@@ -1,6 +1,12 @@
 package Business.MobileNetworkNode.Daemon;
 
+import Business.MobileNetworkNode.DataCache.ByteRange;
+import Business.MobileNetworkNode.DataCache.ChunkMap;
+import Business.MobileNetworkNode.DataCache.CodedSymbol;
+import Business.MobileNetworkNode.DataCache.CodedSymbolRange;
 import Business.MobileNetworkNode.DataCache.FileFragment;
+import Business.MobileNetworkNode.DataCache.FountainCode;
+import Business.MobileNetworkNode.DataCache.MerkleTree;
 import Business.MobileNetworkNode.MobileNode;
 import Business.MobileNetworkNode.RoutingInfo.RoutingTable;
 import Business.MobileNetworkNode.RoutingInfo.RoutingTableEntry;
@@ -12,10 +18,12 @@ import Business.PDU.MobileNetworkPDU.ContentType;
 import org.apache.log4j.Logger;
 
 import java.io.IOException;
+import java.sql.Timestamp;
 import java.util.*;
 
 import static Business.MobileNetworkNode.MobileNode.AddressType.LINK_BROADCAST;
 import static Business.PDU.MobileNetworkPDU.ContentType.FILE;
+import static Business.PDU.MobileNetworkPDU.ContentType.PATH_MTU;
 import static Business.PDU.MobileNetworkPDU.MobileNetworkErrorType.CONTENT_NOT_FOUND;
 import static Business.PDU.MobileNetworkPDU.MobileNetworkErrorType.INSUFFICIENT_PARAMS;
 import static Business.PDU.MobileNetworkPDU.MobileNetworkErrorType.NO_SUCH_CONTENT_TYPE;
@@ -51,13 +59,13 @@ public class MobileNodeListeningDaemon extends MobileNodeDaemon {
 
         while(!super.isFinished()) {
             try {
-                // Await for a connection to be made, and parse it as a PDU object
-                MobileNetworkPDU pdu = super.capturePDU();
+                // Await for packets to arrive, and parse them as PDU objects
+                List<MobileNetworkPDU> pdus = super.capturePDUs();
 
-                // Figure out what to do with it
-                parsePacket(pdu);
-            } catch (ClassNotFoundException e) {
-                LOGGER.error("Object captured in socket was not of type MobileNetworkPDU");
+                // Figure out what to do with each of them
+                for (MobileNetworkPDU pdu : pdus) {
+                    parsePacket(pdu);
+                }
             } catch (IOException e) {
                 if (super.isFinished()) {
                     LOGGER.info("Signaled to stop listening");
@@ -109,23 +117,44 @@ public class MobileNodeListeningDaemon extends MobileNodeDaemon {
 
         boolean isFileRequest = pdu.getContentType().equals(FILE);
 
-        boolean canGiveFileInBehalfOfDestination = false;
-
         Stack<String> nodePath = pdu.getNodePath();
 
         boolean amIIntermediate = isIntermediate(nodePath);
 
-        if (isFileRequest) {
-            String[] params = pdu.getParams();
-            canGiveFileInBehalfOfDestination = super.hasFragmentStored(params);
+        // Fragments asked for (parsed once, null if malformed), and those I could give in behalf of the destination
+        List<ByteRange> requestedRanges = Collections.emptyList();
+        List<ByteRange> storedRanges = Collections.emptyList();
+
+        if (isFileRequest && pdu.getParams().length > 0) {
+            requestedRanges = super.getRequestedRanges(pdu);
+
+            if (requestedRanges != null) {
+                storedRanges = super.getStoredRanges(pdu.getRequestedFileHash(), requestedRanges);
+            }
         }
 
-        if ((amIRoutingDestination && amIIntermediate) || canGiveFileInBehalfOfDestination) {
+        boolean canGiveFileInBehalfOfDestination = !storedRanges.isEmpty();
+
+        if (amIRoutingDestination && amIIntermediate) {
             // I am the final destination of this request
-            respondToDataRequest(pdu);
+            respondToDataRequest(pdu, requestedRanges);
+        } else if (canGiveFileInBehalfOfDestination) {
+            // Give what I have, and let the destination give the rest
+            respondToFileRequest(pdu, requestedRanges);
+
+            if (amIIntermediate && storedRanges.size() < requestedRanges.size()) {
+                List<ByteRange> missingRanges = new ArrayList<>(requestedRanges);
+                missingRanges.removeAll(storedRanges);
+
+                super.forwardRequestPacket(pdu.withRequestedRanges(missingRanges));
+            }
         } else {
             if (amIIntermediate) {
                 // The destination is somebody else, I am simply an intermediate
+                if (pdu.getContentType().equals(PATH_MTU)) {
+                    lowerPathMtu(pdu);
+                }
+
                 super.forwardRequestPacket(pdu);
             }
         }
@@ -148,6 +177,11 @@ public class MobileNodeListeningDaemon extends MobileNodeDaemon {
 
             if (amIIntermediate) {
                 // I am an intermediate hop to the final destination
+                if (responsePDU.getContentType().equals(FILE) && responsePDU.getParams().length > 0) {
+                    // Kept, so the next one to ask for it is answered from here
+                    super.cacheRelayedFragment(responsePDU.getParams()[0], (FileFragment) responsePDU.getContent());
+                }
+
                 super.forwardResponsePacket(responsePDU);
             }
         }
@@ -157,7 +191,12 @@ public class MobileNodeListeningDaemon extends MobileNodeDaemon {
      *  ======================== Responding to request messages
      */
 
-    private void respondToDataRequest(DataRequestMobileNetworkPDU requestPDU) {
+    /**
+     * Answer a request addressed to me
+     * @param requestPDU Request
+     * @param requestedRanges Ranges asked for, if it's a file request (null if they're malformed)
+     */
+    private void respondToDataRequest(DataRequestMobileNetworkPDU requestPDU, List<ByteRange> requestedRanges) {
         ContentType contentType = requestPDU.getContentType();
 
         switch (contentType) {
@@ -169,7 +208,19 @@ public class MobileNodeListeningDaemon extends MobileNodeDaemon {
                 respondToRoutingTableRequest(requestPDU);
                 break;
             case FILE:
-                respondToFileRequest(requestPDU);
+                respondToFileRequest(requestPDU, requestedRanges);
+                break;
+            case CODED_FILE:
+                respondToCodedFileRequest(requestPDU);
+                break;
+            case CHUNK_MAP:
+                respondToChunkMapRequest(requestPDU);
+                break;
+            case REPLICA:
+                respondToReplicaOffer(requestPDU);
+                break;
+            case PATH_MTU:
+                respondToPathMtuProbe(requestPDU);
                 break;
             default:
                 super.sendErrorMessage(requestPDU, NO_SUCH_CONTENT_TYPE);
@@ -198,7 +249,7 @@ public class MobileNodeListeningDaemon extends MobileNodeDaemon {
         super.sendHelloMessage(requestPDU.getSrcMAC(), getTimestampOfNow());
     }
 
-    private void respondToFileRequest(DataRequestMobileNetworkPDU requestPDU) {
+    private void respondToFileRequest(DataRequestMobileNetworkPDU requestPDU, List<ByteRange> requestedRanges) {
         LOGGER.debug("Received(REQUEST_FILE): " + requestPDU.toString());
 
         String[] params = requestPDU.getParams();
@@ -208,21 +259,195 @@ public class MobileNodeListeningDaemon extends MobileNodeDaemon {
             return;
         }
 
+        if (requestedRanges == null) {
+            LOGGER.error("Malformed file request: " + requestPDU.toString());
+            super.sendErrorMessage(requestPDU, INSUFFICIENT_PARAMS);
+            return;
+        }
 
-        String fileHashRequested = params[0];
 
-        // If the user doesn't explicitly use the second param to ask for a specific byte, we assume he asks for the first one (index 0)
-        int initByteRequested = params.length == 2 ? Integer.parseInt(params[1]) : 0;
+        String fileHashRequested = requestPDU.getRequestedFileHash();
 
-        FileFragment requestedFragment = super.getFragment(fileHashRequested, initByteRequested);
+        // Several neighbours downloading the file at the same time get each fragment multicast once, to all of them
+        boolean isMulticast = super.joinDistributionSession(requestPDU);
 
-        if (requestedFragment != null) {
-            super.sendResponseFileMessage(requestPDU, requestedFragment, params);
-        } else {
+        // A request may ask for several fragments at once, each goes back in its own response
+        // If the user doesn't explicitly ask for a specific byte, we assume he asks for the first one (index 0)
+        int numberOfFragmentsSent = 0;
+
+        for (ByteRange rangeRequested : requestedRanges) {
+            if (isMulticast && multicastFragment(fileHashRequested, rangeRequested, requestPDU.getSrcMAC())) {
+                numberOfFragmentsSent++;
+                continue;
+            }
+
+            FileFragment requestedFragment = super.getFragment(fileHashRequested, rangeRequested);
+
+            if (requestedFragment != null) {
+                String[] responseParams = { fileHashRequested, String.valueOf(rangeRequested.getInitByte()) };
+                super.sendResponseFileMessage(requestPDU, requestedFragment, responseParams);
+                numberOfFragmentsSent++;
+            }
+        }
+
+        if (numberOfFragmentsSent == 0) {
+            super.sendErrorMessage(requestPDU, CONTENT_NOT_FOUND);
+        }
+
+        super.countFileRequests(requestPDU, numberOfFragmentsSent);
+    }
+
+    /**
+     * Multicast a fragment to every neighbour downloading its file (unless it just was, and the neighbour's
+     * request crossed it on the way)
+     * @param fileHash Hash of the file
+     * @param range Bytes asked for
+     * @param neighbourMAC Neighbour that asked for it
+     * @return True if the fragment was (or just had been) multicast, false if it has to be answered on its own
+     */
+    private boolean multicastFragment(String fileHash, ByteRange range, String neighbourMAC) {
+        // Each neighbour knows a different part of the tree, but they all know its root
+        FileFragment fragment = super.getFragment(fileHash, range.withProofLevel(MerkleTree.ROOT_LEVEL));
+
+        if (fragment == null) {
+            return false;
+        }
+
+        if (super.markAsMulticast(fileHash, range, neighbourMAC)) {
+            String[] responseParams = { fileHash, String.valueOf(range.getInitByte()) };
+            super.sendMulticastFileMessage(fileHash, fragment, responseParams);
+        }
+
+        return true;
+    }
+
+    private void respondToCodedFileRequest(DataRequestMobileNetworkPDU requestPDU) {
+        LOGGER.debug("Received(REQUEST_CODED_FILE): " + requestPDU.toString());
+
+        if (requestPDU.getParams().length == 0) {
+            super.sendErrorMessage(requestPDU, INSUFFICIENT_PARAMS);
+            return;
+        }
+
+        List<CodedSymbolRange> symbolRanges;
+        try {
+            symbolRanges = requestPDU.getRequestedSymbolRanges();
+        } catch (NumberFormatException e) {
+            LOGGER.error("Malformed coded file request: " + requestPDU.toString());
+            super.sendErrorMessage(requestPDU, INSUFFICIENT_PARAMS);
+            return;
+        }
+
+        String fileHashRequested = requestPDU.getRequestedFileHash();
+        int blockSize = super.getFileChunkSizeBytes();
+        int numberOfSymbolsSent = 0;
+        int numberOfGenerationsSent = 0;
+
+        for (CodedSymbolRange symbolRange : symbolRanges) {
+            FileFragment generation = super.getFragment(fileHashRequested, symbolRange.getGeneration());
+
+            if (generation == null) {
+                continue;
+            }
+
+            // Never more than twice the blocks of the generation, whatever is asked for
+            int numberOfBlocks = FountainCode.numberOfBlocks(generation.getChunk().length, blockSize);
+            int numberOfSymbols = Math.min(symbolRange.getNumberOfSymbols(), 2 * numberOfBlocks);
+
+            String[] responseParams = { fileHashRequested, String.valueOf(generation.getInitbyte()) };
+            numberOfGenerationsSent++;
+
+            for (int i = 0; i < numberOfSymbols; i++) {
+                CodedSymbol symbol = FountainCode.encode(generation, symbolRange.getFirstSeed() + i, blockSize);
+                super.sendResponseCodedFileMessage(requestPDU, symbol, responseParams);
+                numberOfSymbolsSent++;
+            }
+        }
+
+        if (numberOfSymbolsSent == 0) {
+            super.sendErrorMessage(requestPDU, CONTENT_NOT_FOUND);
+        }
+
+        super.countFileRequests(requestPDU, numberOfGenerationsSent);
+    }
+
+    private void respondToChunkMapRequest(DataRequestMobileNetworkPDU requestPDU) {
+        LOGGER.debug("Received(REQUEST_CHUNK_MAP): " + requestPDU.toString());
+
+        if (requestPDU.getParams().length == 0) {
+            super.sendErrorMessage(requestPDU, INSUFFICIENT_PARAMS);
+            return;
+        }
+
+        List<ByteRange> requestedRanges = super.getRequestedRanges(requestPDU);
+
+        if (requestedRanges == null) {
+            LOGGER.error("Malformed chunk map request: " + requestPDU.toString());
+            super.sendErrorMessage(requestPDU, INSUFFICIENT_PARAMS);
+            return;
+        }
+
+        String fileHashRequested = requestPDU.getRequestedFileHash();
+        int numberOfMapsSent = 0;
+
+        // The map of each range goes back in its own response
+        for (ByteRange rangeRequested : requestedRanges) {
+            ChunkMap chunkMap = super.getChunkMap(fileHashRequested, rangeRequested);
+
+            if (chunkMap != null) {
+                String[] responseParams = { fileHashRequested, String.valueOf(rangeRequested.getInitByte()) };
+                super.sendResponseChunkMapMessage(requestPDU, chunkMap, responseParams);
+                numberOfMapsSent++;
+            }
+        }
+
+        if (numberOfMapsSent == 0) {
             super.sendErrorMessage(requestPDU, CONTENT_NOT_FOUND);
         }
     }
 
+    private void respondToReplicaOffer(DataRequestMobileNetworkPDU offerPDU) {
+        LOGGER.debug("Received(REQUEST_REPLICA): " + offerPDU.toString());
+
+        String[] params = offerPDU.getParams();
+
+        try {
+            super.acceptReplicaOffer(params[0], Integer.parseInt(params[1]), offerPDU.getSrcMAC());
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            LOGGER.error("Malformed replica offer: " + offerPDU.toString());
+        }
+    }
+
+    private void respondToPathMtuProbe(DataRequestMobileNetworkPDU probePDU) {
+        LOGGER.debug("Received(REQUEST_PATH_MTU): " + probePDU.toString());
+
+        // The last link of the path is mine
+        if (!lowerPathMtu(probePDU)) {
+            super.sendErrorMessage(probePDU, INSUFFICIENT_PARAMS);
+            return;
+        }
+
+        super.sendPathMtuResponse(probePDU, Integer.parseInt(probePDU.getParams()[0]));
+    }
+
+    /**
+     * Lower the MTU a probe carries to the MTU of my own link, if it's smaller
+     * @param probePDU Path MTU probe going through me
+     * @return True if the probe carries an MTU, false if it's malformed (and was left as it was)
+     */
+    private boolean lowerPathMtu(DataRequestMobileNetworkPDU probePDU) {
+        String[] params = probePDU.getParams();
+
+        try {
+            int pathMtu = Integer.parseInt(params[0]);
+            params[0] = String.valueOf(Math.min(pathMtu, super.getInterfaceMtu()));
+            return true;
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            LOGGER.error("Malformed path MTU probe: " + probePDU.toString());
+            return false;
+        }
+    }
+
     /**
      *  ======================== Processing responses
      */
@@ -288,6 +513,15 @@ public class MobileNodeListeningDaemon extends MobileNodeDaemon {
             case FILE:
                 processFileResponse(responsePDU);
                 break;
+            case CODED_FILE:
+                processCodedFileResponse(responsePDU);
+                break;
+            case CHUNK_MAP:
+                processChunkMapResponse(responsePDU);
+                break;
+            case PATH_MTU:
+                processPathMtuResponse(responsePDU);
+                break;
             case ROUTING_TABLE_DELETION_UPDATE:
                 processDeletionUpdate(responsePDU);
                 break;
@@ -375,6 +609,14 @@ public class MobileNodeListeningDaemon extends MobileNodeDaemon {
 
             if (isPingRecent) {
                 LOGGER.debug("Marked peer " + peerID + " as alive (received updated PONG)");
+
+                // The session of a ping is the moment it was sent, so the pong also times the peer
+                try {
+                    super.addRoundTripTimeSample(peerID, System.currentTimeMillis() - Timestamp.valueOf(sessionID).getTime());
+                } catch (IllegalArgumentException e) {
+                    LOGGER.error("PONG session is not a timestamp: " + sessionID);
+                }
+
                 String tableVersion = (String) responsePDU.getContent();
                 String cachedVersion = super.getMostRecentPeerReferenceOrDefault(peerID, "-1");
 
@@ -402,20 +644,88 @@ public class MobileNodeListeningDaemon extends MobileNodeDaemon {
 
         String fileHash = responsePDU.getParams()[0];
 
+        if (responsePDU.getDstMAC().equals(LINK_BROADCAST.toString())) {
+            // Multicast to every neighbour downloading the file, asked for by me or not (if I'm not
+            // downloading it, it's overheard, and kept if I'm promiscuous)
+            if (super.acceptsMulticastFragments(fileHash)) {
+                storeReceivedFragment(fileHash, fileFragment, responsePDU.getSrcMAC(), true);
+            } else if (super.isPromiscuous()) {
+                super.cacheOverheardFragment(fileHash, fileFragment);
+            }
+
+            return;
+        }
+
+        storeReceivedFragment(fileHash, fileFragment, responsePDU.getSrcMAC(), false);
+    }
+
+    private void processCodedFileResponse(DataResponseMobileNetworkPDU responsePDU) {
+        LOGGER.debug("Received (CODED_FILE_RESPONSE): " + responsePDU.toString());
+        CodedSymbol symbol = (CodedSymbol) responsePDU.getContent();
+
+        String fileHash = responsePDU.getParams()[0];
+
+        // Symbols are of no use on their own, only once there's enough of them to decode a whole generation
+        FileFragment generation = super.addCodedSymbol(fileHash, symbol);
+
+        if (generation != null) {
+            storeReceivedFragment(fileHash, generation, responsePDU.getSrcMAC(), false);
+        }
+    }
+
+    private void processChunkMapResponse(DataResponseMobileNetworkPDU responsePDU) {
+        LOGGER.debug("Received (CHUNK_MAP_RESPONSE): " + responsePDU.toString());
+        ChunkMap chunkMap = (ChunkMap) responsePDU.getContent();
+
+        if (chunkMap == null || responsePDU.getParams().length == 0) {
+            return;
+        }
+
+        super.addChunkMap(responsePDU.getParams()[0], chunkMap, responsePDU.getSrcMAC());
+    }
+
+    /**
+     * Save a received fragment, and keep its download going (or finish it)
+     * @param fileHash Hash of the file the fragment belongs to
+     * @param fileFragment Received fragment
+     * @param responderMAC Node that sent it
+     * @param isMulticast True if it was multicast in a distribution session (and maybe never asked for by me)
+     */
+    private void storeReceivedFragment(String fileHash, FileFragment fileFragment, String responderMAC, boolean isMulticast) {
         try {
 
-            int res = super.addFragmentToCache(fileHash, fileFragment);
+            int res = super.addFragmentToCache(fileHash, fileFragment, responderMAC);
+
+            if (res == -2) {
+                // Corrupt or stale, it's asked for again (to someone else, if there's anyone)
+                LOGGER.error("Fragment " + fileFragment.toString() + " from " + responderMAC + " didn't check out against the Merkle tree of " + fileHash);
+
+                // Unless it was multicast, the requests it answers (if any) simply time out
+                if (!isMulticast) {
+                    super.rejectCorruptFragment(fileHash, fileFragment);
+                }
+
+                return;
+            }
+
+            // The fragment no longer needs to be waited for (unless it was discarded, for overlapping
+            // with fragments cut at another size, in which case the smaller ones are still awaited)
+            if (res != -1) {
+                super.markFragmentAsReceived(fileHash, fileFragment, responderMAC);
+            }
 
             if (res == 1) {
                 System.out.println("Requested file received fully");
-            } else if (res == 0) {
-                String msg = String.format("(init=%d,len=%d) received (total_needed=%d)", fileFragment.getInitbyte(), fileFragment.getChunk().length, fileFragment.getTotalSizeBytes());
-                System.out.println(msg);
-
-                // We got a fragment... What fragment do we need next?
-                int nextByteToAskFor = super.getNextNeededInitByteToRequest(fileHash);
+                super.finishDownload(fileHash);
+                super.seedDownloadedFile(fileHash);
+            } else {
+                if (res == 0) {
+                    String msg = String.format("(init=%d,len=%d) received (total_needed=%d)", fileFragment.getInitbyte(), fileFragment.getChunk().length, fileFragment.getTotalSizeBytes());
+                    System.out.println(msg);
+                }
 
-                super.requestContentFromSingleNode(fileHash, nextByteToAskFor);
+                // A place in the window was freed, ask for what's next
+                super.requestNextFragments(fileHash);
             }
 
 
@@ -424,6 +734,18 @@ public class MobileNodeListeningDaemon extends MobileNodeDaemon {
         }
     }
 
+    private void processPathMtuResponse(DataResponseMobileNetworkPDU responsePDU) {
+        LOGGER.debug("Received(PATH_MTU): " + responsePDU.toString());
+
+        String[] params = responsePDU.getParams();
+
+        try {
+            super.updatePathMtu(responsePDU.getSrcMAC(), Integer.parseInt(params[0]));
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            LOGGER.error("Malformed path MTU response: " + responsePDU.toString());
+        }
+    }
+
     private boolean isIntermediate(Stack<String> nodePath) {
         String nextHop = nodePath.peek();
 
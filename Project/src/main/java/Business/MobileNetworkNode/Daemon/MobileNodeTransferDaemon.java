@@ -0,0 +1,94 @@
+package Business.MobileNetworkNode.Daemon;
+
+import Business.MobileNetworkNode.MobileNode;
+import Business.MobileNetworkNode.Transfer.FragmentRequest;
+import org.apache.log4j.Logger;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Daemon responsible for, in behalf of a mobile node, looking after the downloads in progress
+ * and asking again for the fragments that were not delivered in time. Downloads whose fragments
+ * keep not arriving are given up on. Downloads left incomplete when the node last stopped are
+ * carried on as soon as someone holding them is known. Files asked for a lot are offered to the
+ * neighbours they're asked for through
+ */
+public class MobileNodeTransferDaemon extends MobileNodeDaemon {
+    // How often are the downloads checked for fragments that took too long
+    // (retransmission timeouts can be as short as 200ms, so this is the precision they get)
+    private final int CHECK_INTERVAL_MS = 50;
+
+    // How often are hot files offered to the neighbours they're asked for through
+    private final int REPLICA_OFFER_CHECK_INTERVAL_MS = 5000;
+
+    // Log in behalf of the representative node
+    private final Logger LOGGER;
+
+    /**
+     * Constructor
+     * @param representativeNode Node that this daemon works in behalf of
+     */
+    public MobileNodeTransferDaemon(MobileNode representativeNode) {
+        super(representativeNode); // Init all services
+        this.LOGGER = super.getLogger();
+    }
+
+    @Override
+    public void run() {
+        LOGGER.debug("Starting transfer daemon");
+        monitorDownloads();
+        LOGGER.debug("Terminating transfer daemon");
+    }
+
+    private void monitorDownloads() {
+        long lastReplicaOfferCheck = System.currentTimeMillis();
+
+        try {
+            while (!super.isFinished()) {
+                Thread.sleep(CHECK_INTERVAL_MS);
+                retransmitExpiredRequests();
+                giveUpOnAbortedDownloads();
+                refillDownloadWindows();
+                resumeInterruptedDownloads();
+
+                if (System.currentTimeMillis() - lastReplicaOfferCheck >= REPLICA_OFFER_CHECK_INTERVAL_MS) {
+                    super.offerHotFiles();
+                    lastReplicaOfferCheck = System.currentTimeMillis();
+                }
+            }
+        } catch (InterruptedException e) {
+            LOGGER.error("Prematurely terminated");
+        }
+    }
+
+    private void retransmitExpiredRequests() {
+        Map<String, List<FragmentRequest>> expiredRequests = super.getExpiredFragmentRequests();
+
+        for (Map.Entry<String, List<FragmentRequest>> expiredRequestsOfFile : expiredRequests.entrySet()) {
+            String fileHash = expiredRequestsOfFile.getKey();
+            List<FragmentRequest> requests = expiredRequestsOfFile.getValue();
+
+            LOGGER.info("Fragments of " + fileHash + " not received in time, asking again: " + requests.toString());
+            super.sendFragmentRequests(fileHash, requests);
+        }
+    }
+
+    private void giveUpOnAbortedDownloads() {
+        for (String fileHash : super.removeAbortedDownloads()) {
+            LOGGER.error("Giving up on downloading " + fileHash + ", fragments were asked for too many times");
+            System.out.println("Download failed, no one is answering");
+
+            // If it was a replica, the room it took is free again
+            super.releaseReplica(fileHash);
+        }
+    }
+
+    private void refillDownloadWindows() {
+        // Windows are refilled as fragments arrive, but a download whose sources all went
+        // away gets nothing back. Pick up new sources the routing table may have learned since
+        for (String fileHash : super.getFileHashesBeingDownloaded()) {
+            super.requestNextFragments(fileHash);
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package Business.MobileNetworkNode.DataCache;
+
+/**
+ * A range of bytes of a file, as asked for in a file request.
+ * In the params of a request it goes as "init:length", or simply "init" when the length is left to the responder.
+ * When the requester wants a Merkle proof along with the fragment, the level of the node it's to be
+ * anchored at follows: "init:length:proofLevel"
+ */
+public class ByteRange {
+
+    // Length used when the range leaves it up to whoever answers
+    public static final int UNSPECIFIED_LENGTH = -1;
+
+    // Proof level of a range that doesn't ask for a proof
+    public static final int NO_PROOF = -1;
+
+    private final int initByte; // The byte where the range begins
+    private final int length; // Number of bytes in the range (or UNSPECIFIED_LENGTH)
+    private final int proofLevel; // Level of the Merkle tree node the proof is anchored at (or NO_PROOF)
+
+    public ByteRange(int initByte, int length) {
+        this(initByte, length, NO_PROOF);
+    }
+
+    public ByteRange(int initByte, int length, int proofLevel) {
+        this.initByte = initByte;
+        this.length = length;
+        this.proofLevel = proofLevel;
+    }
+
+    public int getInitByte() {
+        return initByte;
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    public int getProofLevel() {
+        return proofLevel;
+    }
+
+    public boolean hasLength() {
+        return length != UNSPECIFIED_LENGTH;
+    }
+
+    public boolean hasProofLevel() {
+        return proofLevel != NO_PROOF;
+    }
+
+    /**
+     * Same range, with the length filled in if it was left unspecified
+     * @param defaultLength Length to use if none was given
+     * @return Range with a length
+     */
+    public ByteRange withDefaultLength(int defaultLength) {
+        return hasLength() ? this : new ByteRange(initByte, defaultLength, proofLevel);
+    }
+
+    /**
+     * Same range, asking for a proof anchored at a given level
+     * @param proofLevel Level of the node the proof is to be anchored at (or NO_PROOF)
+     * @return Range asking for the proof
+     */
+    public ByteRange withProofLevel(int proofLevel) {
+        return new ByteRange(initByte, length, proofLevel);
+    }
+
+    /**
+     * Parse a range, as it goes in the params of a request
+     * @param param "init:length:proofLevel", "init:length" or "init"
+     * @return Range (NumberFormatException if malformed)
+     */
+    public static ByteRange parse(String param) {
+        String[] fields = param.split(":");
+
+        switch (fields.length) {
+            case 1:
+                return new ByteRange(Integer.parseInt(fields[0]), UNSPECIFIED_LENGTH);
+            case 2:
+                return new ByteRange(Integer.parseInt(fields[0]), Integer.parseInt(fields[1]));
+            case 3:
+                return new ByteRange(Integer.parseInt(fields[0]), Integer.parseInt(fields[1]), Integer.parseInt(fields[2]));
+            default:
+                throw new NumberFormatException("Malformed byte range: " + param);
+        }
+    }
+
+    // Ranges are the same if they hold the same bytes, whatever proof they ask for
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+
+        if (!(o instanceof ByteRange)) {
+            return false;
+        }
+
+        ByteRange other = (ByteRange) o;
+
+        return initByte == other.initByte && length == other.length;
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * initByte + length;
+    }
+
+    @Override
+    public String toString() {
+        if (!hasLength()) {
+            return String.valueOf(initByte);
+        }
+
+        return hasProofLevel() ? initByte + ":" + length + ":" + proofLevel : initByte + ":" + length;
+    }
+}
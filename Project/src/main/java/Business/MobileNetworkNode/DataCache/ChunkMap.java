@@ -0,0 +1,87 @@
+package Business.MobileNetworkNode.DataCache;
+
+import java.io.Serializable;
+import java.util.List;
+
+/**
+ * Map of a range of a file, as its owner gives it to whoever is about to download it: the leaves of
+ * the file's Merkle tree over the range, and the content-defined chunks that begin in it.
+ *
+ * The leaves come with a proof, so each map is checked against the advertised root on its own, whatever
+ * other maps of the file got lost. With every leaf, the downloader has the whole tree. With the
+ * content-defined chunks, it can tell which bytes it already holds, in files of its own, and copy them
+ * rather than download them. What's copied is checked against the leaves like anything downloaded
+ */
+public class ChunkMap implements Serializable {
+
+    // Bytes a content-defined chunk takes up in a map (init byte, length and hash)
+    public static final int CONTENT_CHUNK_SIZE_BYTES = 8 + MerkleTree.HASH_SIZE_BYTES;
+
+    private final int initByte; // The byte where the mapped range begins (the start of a leaf)
+    private final int length; // Number of bytes mapped (fewer, if the file ends before)
+    private final int totalSizeBytes; // Total number of bytes in the complete file
+    private final String fileName; // Name of the file
+    private final byte[] leaves; // Hashes of the leaves of the range, one after the other
+    private final List<ContentChunk> contentChunks; // Content-defined chunks beginning in the range, in order
+    private MerkleProof proof; // Proof of the leaves, against the root of the tree (or a node the downloader knows)
+
+    public ChunkMap(int initByte, int length, int totalSizeBytes, String fileName, byte[] leaves, List<ContentChunk> contentChunks) {
+        this.initByte = initByte;
+        this.length = length;
+        this.totalSizeBytes = totalSizeBytes;
+        this.fileName = fileName;
+        this.leaves = leaves;
+        this.contentChunks = contentChunks;
+    }
+
+    /**
+     * Biggest range whose map surely fits in some room, however its content is chunked
+     * @param roomBytes Room for the map
+     * @param leafSizeBytes Size of the leaves of the tree
+     * @return Length of the range, as a multiple of the leaf size (and never smaller than one leaf)
+     */
+    public static int getMaxRangeLength(int roomBytes, int leafSizeBytes) {
+        // Every leaf brings its hash, and as many content-defined chunks as fit it at their smallest (plus one, cut short by the range)
+        double bytesPerLeaf = MerkleTree.HASH_SIZE_BYTES + (double) CONTENT_CHUNK_SIZE_BYTES * leafSizeBytes / ContentChunker.MIN_CHUNK_SIZE_BYTES;
+        int numberOfLeaves = (int) ((roomBytes - CONTENT_CHUNK_SIZE_BYTES) / bytesPerLeaf);
+
+        return Math.max(1, numberOfLeaves) * leafSizeBytes;
+    }
+
+    public int getInitByte() {
+        return initByte;
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    public int getTotalSizeBytes() {
+        return totalSizeBytes;
+    }
+
+    public String getFileName() {
+        return fileName;
+    }
+
+    public byte[] getLeaves() {
+        return leaves;
+    }
+
+    public List<ContentChunk> getContentChunks() {
+        return contentChunks;
+    }
+
+    public MerkleProof getProof() {
+        return proof;
+    }
+
+    public void setProof(MerkleProof proof) {
+        this.proof = proof;
+    }
+
+    @Override
+    public String toString() {
+        return fileName + ": (" + initByte + "," + length + ") [total= " + totalSizeBytes + ", leaves=" + leaves.length / MerkleTree.HASH_SIZE_BYTES + ", chunks=" + contentChunks.size() + "]";
+    }
+}
@@ -0,0 +1,65 @@
+package Business.MobileNetworkNode.DataCache;
+
+import java.io.Serializable;
+
+/**
+ * Piece of a coded file transfer: the XOR of some of the blocks of a generation (a range of the file).
+ * Which blocks went into it follows from its seed, so any set of symbols of a generation that's big
+ * enough (and independent enough) rebuilds it, no matter who sent them or in what order they arrived
+ */
+public class CodedSymbol implements Serializable {
+
+    private byte[] payload; // XOR of the blocks picked by the seed, one block long
+    private int generationInitByte; // The byte where the generation begins
+    private int generationLength; // Number of bytes in the generation (the last one of a file may be shorter)
+    private int seed; // Picks the blocks that went into the payload
+    private int totalSizeBytes; // Total number of bytes in the complete file
+    private String fileName; // Name of the full file this symbol refers to
+    private MerkleProof proof; // Hashes to check the decoded generation against the file's Merkle tree (null if none came along)
+
+    public CodedSymbol(byte[] payload, int generationInitByte, int generationLength, int seed, int totalSizeBytes, String fileName) {
+        this.payload = payload;
+        this.generationInitByte = generationInitByte;
+        this.generationLength = generationLength;
+        this.seed = seed;
+        this.totalSizeBytes = totalSizeBytes;
+        this.fileName = fileName;
+    }
+
+    public byte[] getPayload() {
+        return payload;
+    }
+
+    public int getGenerationInitByte() {
+        return generationInitByte;
+    }
+
+    public int getGenerationLength() {
+        return generationLength;
+    }
+
+    public int getSeed() {
+        return seed;
+    }
+
+    public int getTotalSizeBytes() {
+        return totalSizeBytes;
+    }
+
+    public String getFileName() {
+        return fileName;
+    }
+
+    public MerkleProof getProof() {
+        return proof;
+    }
+
+    public void setProof(MerkleProof proof) {
+        this.proof = proof;
+    }
+
+    @Override
+    public String toString() {
+        return (this.fileName + ": (" + this.generationInitByte + "," + this.generationLength + ",seed=" + this.seed + ") [total= " + this.totalSizeBytes + "]");
+    }
+}
@@ -0,0 +1,65 @@
+package Business.MobileNetworkNode.DataCache;
+
+/**
+ * Coded symbols asked for in a coded file request: a number of them, of a generation, with consecutive seeds.
+ * In the params of a request it goes as "init:length:firstSeed:count", followed by ":proofLevel" when a
+ * Merkle proof of the generation is wanted along with the symbols
+ */
+public class CodedSymbolRange {
+
+    private final ByteRange generation; // Bytes of the file the symbols are coded from
+    private final int firstSeed; // Seed of the first symbol asked for
+    private final int numberOfSymbols; // Number of symbols asked for
+
+    public CodedSymbolRange(ByteRange generation, int firstSeed, int numberOfSymbols) {
+        this.generation = generation;
+        this.firstSeed = firstSeed;
+        this.numberOfSymbols = numberOfSymbols;
+    }
+
+    public ByteRange getGeneration() {
+        return generation;
+    }
+
+    public int getFirstSeed() {
+        return firstSeed;
+    }
+
+    public int getNumberOfSymbols() {
+        return numberOfSymbols;
+    }
+
+    /**
+     * Same symbols, asking for a proof of the generation anchored at a given level
+     * @param proofLevel Level of the node the proof is to be anchored at (or ByteRange.NO_PROOF)
+     * @return Range asking for the proof
+     */
+    public CodedSymbolRange withProofLevel(int proofLevel) {
+        return new CodedSymbolRange(generation.withProofLevel(proofLevel), firstSeed, numberOfSymbols);
+    }
+
+    /**
+     * Parse a range of symbols, as it goes in the params of a request
+     * @param param "init:length:firstSeed:count" or "init:length:firstSeed:count:proofLevel"
+     * @return Range (NumberFormatException if malformed)
+     */
+    public static CodedSymbolRange parse(String param) {
+        String[] fields = param.split(":");
+
+        if (fields.length != 4 && fields.length != 5) {
+            throw new NumberFormatException("Malformed coded symbol range: " + param);
+        }
+
+        int proofLevel = fields.length == 5 ? Integer.parseInt(fields[4]) : ByteRange.NO_PROOF;
+        ByteRange generation = new ByteRange(Integer.parseInt(fields[0]), Integer.parseInt(fields[1]), proofLevel);
+
+        return new CodedSymbolRange(generation, Integer.parseInt(fields[2]), Integer.parseInt(fields[3]));
+    }
+
+    @Override
+    public String toString() {
+        String symbols = generation.getInitByte() + ":" + generation.getLength() + ":" + firstSeed + ":" + numberOfSymbols;
+
+        return generation.hasProofLevel() ? symbols + ":" + generation.getProofLevel() : symbols;
+    }
+}
@@ -0,0 +1,37 @@
+package Business.MobileNetworkNode.DataCache;
+
+import java.io.Serializable;
+
+/**
+ * A chunk of a file, cut where its content says so (see ContentChunker), and the hash of its bytes.
+ * The same bytes give the same chunk (and hash) whatever file they're in, and wherever in it
+ */
+public class ContentChunk implements Serializable {
+
+    private final int initByte; // The byte of the file where the chunk begins
+    private final int length; // Number of bytes in the chunk
+    private final byte[] hash; // Hash of the bytes of the chunk
+
+    public ContentChunk(int initByte, int length, byte[] hash) {
+        this.initByte = initByte;
+        this.length = length;
+        this.hash = hash;
+    }
+
+    public int getInitByte() {
+        return initByte;
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    public byte[] getHash() {
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        return "(" + initByte + "," + length + ")";
+    }
+}
@@ -0,0 +1,88 @@
+package Business.MobileNetworkNode.DataCache;
+
+import java.nio.ByteBuffer;
+import java.util.*;
+
+/**
+ * Content-defined chunks of the files this node holds, addressed by their hash, so the bytes of a
+ * chunk can be found in whichever file has them (whatever the file, and wherever in it)
+ * @param <A> Key of the files
+ */
+public class ContentChunkTable<A> {
+
+    // Chunks of each file, in order
+    private Map<A, List<ContentChunk>> chunksPerFile;
+
+    // Map the hash of a chunk to the files that have it, and where
+    private Map<ByteBuffer, Map<A, ContentChunk>> locations;
+
+    public ContentChunkTable() {
+        this.chunksPerFile = new HashMap<>();
+        this.locations = new HashMap<>();
+    }
+
+    /**
+     * Add the chunks of a file (replacing those it had, if any)
+     * @param key Key of the file
+     * @param chunks Chunks of the file, in order
+     */
+    public void insertFile(A key, List<ContentChunk> chunks) {
+        removeFile(key);
+        chunksPerFile.put(key, chunks);
+
+        for (ContentChunk chunk : chunks) {
+            // A chunk repeated within the file is found at its first place
+            locations.computeIfAbsent(ByteBuffer.wrap(chunk.getHash()), hash -> new HashMap<>()).putIfAbsent(key, chunk);
+        }
+    }
+
+    /**
+     * Forget the chunks of a file
+     * @param key Key of the file
+     */
+    public void removeFile(A key) {
+        List<ContentChunk> chunks = chunksPerFile.remove(key);
+
+        if (chunks == null) {
+            return;
+        }
+
+        for (ContentChunk chunk : chunks) {
+            ByteBuffer hash = ByteBuffer.wrap(chunk.getHash());
+            Map<A, ContentChunk> filesWithChunk = locations.get(hash);
+
+            if (filesWithChunk != null) {
+                filesWithChunk.remove(key);
+
+                if (filesWithChunk.isEmpty()) {
+                    locations.remove(hash);
+                }
+            }
+        }
+    }
+
+    /**
+     * @param key Key of the file
+     * @return Chunks of the file, in order, or null if they're not known
+     */
+    public List<ContentChunk> getChunks(A key) {
+        return chunksPerFile.get(key);
+    }
+
+    /**
+     * @param hash Hash of a chunk
+     * @return Map each file that has the chunk to where it is in it (empty if none has it)
+     */
+    public Map<A, ContentChunk> getLocations(byte[] hash) {
+        return locations.getOrDefault(ByteBuffer.wrap(hash), Collections.emptyMap());
+    }
+
+    public boolean isEmpty() {
+        return chunksPerFile.isEmpty();
+    }
+
+    @Override
+    public String toString() {
+        return "(files=" + chunksPerFile.size() + ",chunks=" + locations.size() + ")";
+    }
+}
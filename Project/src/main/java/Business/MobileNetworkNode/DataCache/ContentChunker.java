@@ -0,0 +1,123 @@
+package Business.MobileNetworkNode.DataCache;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Cut a file into chunks where its content says so, rather than every so many bytes (content-defined
+ * chunking, as in FastCDC). A rolling hash of the last bytes is kept, and a chunk ends wherever it
+ * matches a mask. Bytes inserted or removed somewhere in a file only change the chunks around them,
+ * the ones after are cut just like before, so files that are near copies of each other share most chunks.
+ *
+ * Chunks are never smaller than MIN_CHUNK_SIZE_BYTES (the hash isn't even looked at before) nor bigger
+ * than MAX_CHUNK_SIZE_BYTES. The mask is harder to match before NORMAL_CHUNK_SIZE_BYTES and easier after,
+ * so most chunks are close to it.
+ *
+ * The file is fed in order, a piece at a time, so it can be chunked on the same read that builds its Merkle tree
+ */
+public class ContentChunker {
+
+    public static final int MIN_CHUNK_SIZE_BYTES = 2 * 1024;
+    public static final int NORMAL_CHUNK_SIZE_BYTES = 8 * 1024;
+    public static final int MAX_CHUNK_SIZE_BYTES = 64 * 1024;
+
+    // Chunks are only looked up by their hash, whatever they're later checked against, so a fast one does
+    private static final String HASH_ALGORITHM = "MD5";
+
+    // Bits of the rolling hash that must be zero to end a chunk, before and after the normal size (13 bits would be 8 KB on average)
+    private static final long HARD_MASK = 0xFFFE000000000000L; // 15 bits
+    private static final long EASY_MASK = 0xFFE0000000000000L; // 11 bits
+
+    // Random number per byte value that the rolling hash adds in. Fixed, so every node cuts the same bytes the same way
+    private static final long GEAR_SEED = 0x5EED0FC0DEL;
+    private static final long[] GEAR = new long[256];
+
+    static {
+        Random random = new Random(GEAR_SEED);
+
+        for (int i = 0; i < GEAR.length; i++) {
+            GEAR[i] = random.nextLong();
+        }
+    }
+
+    private MessageDigest digest;
+
+    // Chunks cut so far
+    private List<ContentChunk> chunks;
+
+    // Chunk being cut: where it begins, how many bytes it has so far, and the rolling hash of them
+    private int chunkInitByte;
+    private int chunkLength;
+    private long rollingHash;
+
+    public ContentChunker() {
+        this.chunks = new ArrayList<>();
+        this.chunkInitByte = 0;
+        this.chunkLength = 0;
+        this.rollingHash = 0;
+
+        try {
+            this.digest = MessageDigest.getInstance(HASH_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            // Every JVM has to provide it
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Feed the next bytes of the file
+     * @param bytes Bytes to feed
+     * @param offset First of them
+     * @param length Number of bytes
+     */
+    public void update(byte[] bytes, int offset, int length) {
+        int end = offset + length;
+
+        // Bytes of the current chunk not yet fed to the digest
+        int unhashedOffset = offset;
+
+        for (int i = offset; i < end; i++) {
+            chunkLength++;
+
+            if (chunkLength <= MIN_CHUNK_SIZE_BYTES) {
+                continue;
+            }
+
+            rollingHash = (rollingHash << 1) + GEAR[bytes[i] & 0xFF];
+
+            long mask = chunkLength < NORMAL_CHUNK_SIZE_BYTES ? HARD_MASK : EASY_MASK;
+
+            if ((rollingHash & mask) == 0 || chunkLength >= MAX_CHUNK_SIZE_BYTES) {
+                digest.update(bytes, unhashedOffset, i + 1 - unhashedOffset);
+                unhashedOffset = i + 1;
+                endChunk();
+            }
+        }
+
+        digest.update(bytes, unhashedOffset, end - unhashedOffset);
+    }
+
+    /**
+     * End the last chunk, once the whole file was fed
+     * @return Chunks of the file, in order (none if the file is empty)
+     */
+    public List<ContentChunk> finish() {
+        if (chunkLength > 0) {
+            endChunk();
+        }
+
+        return chunks;
+    }
+
+    private void endChunk() {
+        chunks.add(new ContentChunk(chunkInitByte, chunkLength, Arrays.copyOf(digest.digest(), MerkleTree.HASH_SIZE_BYTES)));
+
+        chunkInitByte += chunkLength;
+        chunkLength = 0;
+        rollingHash = 0;
+    }
+}
@@ -0,0 +1,486 @@
+package Business.MobileNetworkNode.DataCache;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+
+/**
+ * What was learned of each shared file the last time it was hashed: its hash, the leaves of its
+ * Merkle tree and its content-defined chunks, kept on disk between runs. A file whose path, size and last modification time are the
+ * same as when it was indexed is taken to be unchanged, so restarting a node only hashes the files
+ * that are new or were changed since.
+ *
+ * Only the path, size, last modification time and hash of each file are kept in memory. Its leaves and
+ * chunks are written to the index as soon as it's hashed, and read back from there when they're asked for.
+ * Files indexed again (or forgotten) leave their old entries behind, until saving writes the live ones to
+ * a temporary file that then replaces the old one. A node stopping halfway through either never leaves
+ * the index corrupted: a half-written entry at the end is dropped when it's loaded.
+ *
+ * Replicas (files offered by neighbours, downloaded and shared outside the sharing directory) are
+ * indexed too, under the name they're shared by, so they're shared again on the next run
+ */
+public class ContentIndex {
+
+    private static final int INDEX_VERSION = 4;
+
+    private final File indexFile;
+
+    // Indexed files, by canonical path
+    private Map<String, IndexedFile> indexedFiles;
+
+    // Files indexed again or forgotten since it was last saved, whose old entries are still on disk
+    private List<IndexedFile> forgottenFiles;
+
+    // Open index file, where entries are added and read from (null until it's needed)
+    private RandomAccessFile indexAccess;
+
+    // True if it holds entries of files indexed again (or forgotten) since it was last saved
+    private boolean isModified;
+
+    private ContentIndex(File indexFile, Map<String, IndexedFile> indexedFiles) {
+        this.indexFile = indexFile;
+        this.indexedFiles = indexedFiles;
+        this.forgottenFiles = new ArrayList<>();
+        this.isModified = false;
+    }
+
+    /**
+     * Load the index saved on disk (only what tells whether each file changed, the rest is read as it's needed)
+     * @param indexFile Where the index is kept
+     * @return Index (empty if it was never saved)
+     * @throws IOException When reading it, or if it's not an index this version knows how to read
+     */
+    public static ContentIndex load(File indexFile) throws IOException {
+        Map<String, IndexedFile> indexedFiles = new HashMap<>();
+        ContentIndex contentIndex = new ContentIndex(indexFile, indexedFiles);
+
+        if (!indexFile.exists()) {
+            return contentIndex;
+        }
+
+        CountingInputStream counter = new CountingInputStream(new BufferedInputStream(new FileInputStream(indexFile)));
+        long indexLength = indexFile.length();
+        long endOfLastEntry;
+
+        try (DataInputStream in = new DataInputStream(counter)) {
+            if (in.readInt() != INDEX_VERSION) {
+                throw new IOException("Unknown index version: " + indexFile.getPath());
+            }
+
+            endOfLastEntry = counter.position;
+
+            try {
+                while (counter.position < indexLength) {
+                    long entryOffset = counter.position;
+
+                    String path = in.readUTF();
+                    long sizeBytes = in.readLong();
+                    long lastModified = in.readLong();
+                    String fileHash = in.readUTF();
+                    String replicaName = in.readUTF();
+                    int chunkSizeBytes = in.readInt();
+
+                    int numberOfLeafBytes = in.readInt();
+                    int leavesOffset = (int) (counter.position - entryOffset);
+                    skipFully(in, numberOfLeafBytes);
+
+                    int numberOfContentChunks = in.readInt();
+                    int contentChunksOffset = (int) (counter.position - entryOffset);
+                    skipFully(in, numberOfContentChunks * (8 + MerkleTree.HASH_SIZE_BYTES));
+
+                    // Skipping may go past the end of the file
+                    if (counter.position > indexLength) {
+                        throw new EOFException();
+                    }
+
+                    IndexedFile indexedFile = contentIndex.new IndexedFile(sizeBytes, lastModified, fileHash,
+                            replicaName.isEmpty() ? null : replicaName, chunkSizeBytes,
+                            leavesOffset, numberOfLeafBytes, contentChunksOffset, numberOfContentChunks);
+                    indexedFile.entryOffset = entryOffset;
+                    indexedFile.entryLength = (int) (counter.position - entryOffset);
+
+                    // Later entries of a file are from when it was indexed again
+                    contentIndex.forget(indexedFiles.put(path, indexedFile));
+
+                    endOfLastEntry = counter.position;
+                }
+            } catch (EOFException e) {
+                // The node stopped whilst adding the last entry
+            }
+        }
+
+        if (endOfLastEntry < indexLength) {
+            try (RandomAccessFile truncatedFile = new RandomAccessFile(indexFile, "rw")) {
+                truncatedFile.setLength(endOfLastEntry);
+            }
+        }
+
+        return contentIndex;
+    }
+
+    /**
+     * Start an empty index (e.g. when the one on disk can't be read), throwing away the one on disk
+     * @param indexFile Where the index is to be kept
+     * @return Index, with no files
+     */
+    public static ContentIndex empty(File indexFile) {
+        indexFile.delete();
+
+        return new ContentIndex(indexFile, new HashMap<>());
+    }
+
+    /**
+     * What was learned of a file, if it didn't change since
+     * @param file File to look for
+     * @param chunkSizeBytes Size of the chunks its tree must have been built over
+     * @return Indexed file, or null if it wasn't indexed (or it changed since, or its tree had other chunks)
+     * @throws IOException When resolving the file's path
+     */
+    public IndexedFile lookup(File file, int chunkSizeBytes) throws IOException {
+        IndexedFile indexedFile = indexedFiles.get(file.getCanonicalPath());
+
+        if (indexedFile == null || indexedFile.sizeBytes != file.length() || indexedFile.lastModified != file.lastModified()
+                || indexedFile.chunkSizeBytes != chunkSizeBytes) {
+            return null;
+        }
+
+        return indexedFile;
+    }
+
+    /**
+     * Remember a file that was just hashed, adding its entry to the index on disk
+     * @param file File hashed
+     * @param fileHash Hash of the file
+     * @param merkleTree Whole Merkle tree of the file
+     * @param contentChunks Content-defined chunks of the file, in order
+     * @return Indexed file
+     * @throws IOException When resolving the file's path, or writing the entry
+     */
+    public IndexedFile put(File file, String fileHash, MerkleTree merkleTree, List<ContentChunk> contentChunks) throws IOException {
+        return put(file, fileHash, merkleTree, contentChunks, null);
+    }
+
+    /**
+     * Remember a file that was just hashed (or downloaded), adding its entry to the index on disk
+     * @param file File hashed
+     * @param fileHash Hash of the file
+     * @param merkleTree Whole Merkle tree of the file
+     * @param contentChunks Content-defined chunks of the file, in order
+     * @param replicaName Name a replica is shared by (null if it's a file of the sharing directory)
+     * @return Indexed file
+     * @throws IOException When resolving the file's path, or writing the entry
+     */
+    public IndexedFile put(File file, String fileHash, MerkleTree merkleTree, List<ContentChunk> contentChunks, String replicaName) throws IOException {
+        String path = file.getCanonicalPath();
+        byte[] leaves = merkleTree.getLeaves();
+
+        ByteArrayOutputStream entry = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(entry);
+
+        out.writeUTF(path);
+        out.writeLong(file.length());
+        out.writeLong(file.lastModified());
+        out.writeUTF(fileHash);
+        out.writeUTF(replicaName != null ? replicaName : "");
+        out.writeInt(merkleTree.getChunkSizeBytes());
+        out.writeInt(leaves.length);
+        int leavesOffset = out.size();
+        out.write(leaves);
+
+        out.writeInt(contentChunks.size());
+        int contentChunksOffset = out.size();
+        for (ContentChunk chunk : contentChunks) {
+            out.writeInt(chunk.getInitByte());
+            out.writeInt(chunk.getLength());
+            out.write(chunk.getHash());
+        }
+
+        IndexedFile indexedFile = new IndexedFile(file.length(), file.lastModified(), fileHash, replicaName, merkleTree.getChunkSizeBytes(),
+                leavesOffset, leaves.length, contentChunksOffset, contentChunks.size());
+
+        RandomAccessFile index = getIndexAccess();
+        indexedFile.entryOffset = index.length();
+        indexedFile.entryLength = entry.size();
+
+        index.seek(indexedFile.entryOffset);
+        index.write(entry.toByteArray());
+
+        forget(indexedFiles.put(path, indexedFile));
+
+        return indexedFile;
+    }
+
+    /**
+     * Forget a file that is no longer shared
+     * @param file File to forget
+     * @throws IOException When resolving the file's path
+     */
+    public void remove(File file) throws IOException {
+        forget(indexedFiles.remove(file.getCanonicalPath()));
+    }
+
+    /**
+     * Forget the files of the sharing directory that are no longer shared (replicas are kept)
+     * @param sharedFiles Files shared now
+     * @throws IOException When resolving their paths
+     */
+    public void retainAll(Collection<File> sharedFiles) throws IOException {
+        Set<String> sharedPaths = new HashSet<>();
+        for (File file : sharedFiles) {
+            sharedPaths.add(file.getCanonicalPath());
+        }
+
+        Iterator<Map.Entry<String, IndexedFile>> it = indexedFiles.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, IndexedFile> entry = it.next();
+
+            if (entry.getValue().replicaName == null && !sharedPaths.contains(entry.getKey())) {
+                it.remove();
+                forget(entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * Save the index to disk: make sure the entries added are written, and if files were indexed again
+     * (or forgotten) since it was loaded (or last saved), leave out their old entries
+     * @throws IOException When writing it
+     */
+    public void save() throws IOException {
+        if (!isModified) {
+            if (indexAccess != null) {
+                indexAccess.getChannel().force(false);
+            }
+
+            return;
+        }
+
+        File snapshotFile = new File(indexFile.getPath() + ".tmp");
+        Map<IndexedFile, Long> snapshotOffsets = new HashMap<>();
+
+        try (RandomAccessFile snapshot = new RandomAccessFile(snapshotFile, "rw")) {
+            snapshot.setLength(0);
+            snapshot.writeInt(INDEX_VERSION);
+
+            // Entries are copied as they are, only where they begin changes
+            FileChannel from = getIndexAccess().getChannel();
+            FileChannel to = snapshot.getChannel();
+
+            for (IndexedFile indexedFile : indexedFiles.values()) {
+                snapshotOffsets.put(indexedFile, to.position());
+
+                long copiedBytes = 0;
+                while (copiedBytes < indexedFile.entryLength) {
+                    copiedBytes += from.transferTo(indexedFile.entryOffset + copiedBytes, indexedFile.entryLength - copiedBytes, to);
+                }
+            }
+
+            to.force(false);
+        }
+
+        indexAccess.close();
+        indexAccess = null;
+
+        Files.move(snapshotFile.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        for (Map.Entry<IndexedFile, Long> snapshotOffset : snapshotOffsets.entrySet()) {
+            snapshotOffset.getKey().entryOffset = snapshotOffset.getValue();
+        }
+
+        // Their old entries are gone
+        for (IndexedFile forgottenFile : forgottenFiles) {
+            forgottenFile.entryOffset = -1;
+        }
+
+        forgottenFiles.clear();
+        isModified = false;
+    }
+
+    /**
+     * @return Replicas indexed, by canonical path
+     */
+    public Map<String, IndexedFile> getReplicas() {
+        Map<String, IndexedFile> replicas = new HashMap<>();
+
+        for (Map.Entry<String, IndexedFile> entry : indexedFiles.entrySet()) {
+            if (entry.getValue().replicaName != null) {
+                replicas.put(entry.getKey(), entry.getValue());
+            }
+        }
+
+        return replicas;
+    }
+
+    public int size() {
+        return indexedFiles.size();
+    }
+
+    @Override
+    public String toString() {
+        return indexFile.getPath() + " (" + indexedFiles.size() + " files)";
+    }
+
+    // Open the index file, starting it if there's none
+    private RandomAccessFile getIndexAccess() throws IOException {
+        if (indexAccess == null) {
+            indexAccess = new RandomAccessFile(indexFile, "rw");
+
+            if (indexAccess.length() == 0) {
+                indexAccess.writeInt(INDEX_VERSION);
+            }
+        }
+
+        return indexAccess;
+    }
+
+    // Take note that the entry of a file on disk is no longer the one in use
+    private void forget(IndexedFile indexedFile) {
+        if (indexedFile != null) {
+            forgottenFiles.add(indexedFile);
+            isModified = true;
+        }
+    }
+
+    // Read part of the entry of a file
+    private synchronized byte[] read(IndexedFile indexedFile, int offsetInEntry, int length) throws IOException {
+        if (indexedFile.entryOffset < 0) {
+            throw new IOException("No longer in the content index");
+        }
+
+        byte[] bytes = new byte[length];
+
+        RandomAccessFile index = getIndexAccess();
+        index.seek(indexedFile.entryOffset + offsetInEntry);
+        index.readFully(bytes);
+
+        return bytes;
+    }
+
+    private static void skipFully(DataInputStream in, int numberOfBytes) throws IOException {
+        if (in.skipBytes(numberOfBytes) != numberOfBytes) {
+            throw new EOFException();
+        }
+    }
+
+    // Counts the bytes read, so where each entry begins is known without reading it all
+    private static class CountingInputStream extends FilterInputStream {
+        private long position = 0;
+
+        private CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                position++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) {
+                position += n;
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            position += skipped;
+            return skipped;
+        }
+    }
+
+    /**
+     * A file as it was when it was indexed. Only what tells whether the file changed is kept in memory,
+     * its leaves and chunks are read from the index when they're asked for (so it's where the tree of
+     * a shared file reads the levels it doesn't keep in memory from)
+     */
+    public class IndexedFile implements LeafSource {
+        private final long sizeBytes;
+        private final long lastModified;
+        private final String fileHash;
+        private final String replicaName;
+        private final int chunkSizeBytes;
+
+        // Where the leaves and the chunks are, within the entry of the file
+        private final int leavesOffset;
+        private final int numberOfLeafBytes;
+        private final int contentChunksOffset;
+        private final int numberOfContentChunks;
+
+        // Where the entry of the file is in the index (-1 once it's gone)
+        private long entryOffset;
+        private int entryLength;
+
+        private IndexedFile(long sizeBytes, long lastModified, String fileHash, String replicaName, int chunkSizeBytes,
+                            int leavesOffset, int numberOfLeafBytes, int contentChunksOffset, int numberOfContentChunks) {
+            this.sizeBytes = sizeBytes;
+            this.lastModified = lastModified;
+            this.fileHash = fileHash;
+            this.replicaName = replicaName;
+            this.chunkSizeBytes = chunkSizeBytes;
+            this.leavesOffset = leavesOffset;
+            this.numberOfLeafBytes = numberOfLeafBytes;
+            this.contentChunksOffset = contentChunksOffset;
+            this.numberOfContentChunks = numberOfContentChunks;
+        }
+
+        public String getFileHash() {
+            return fileHash;
+        }
+
+        /**
+         * @return Name a replica is shared by, or null if it's a file of the sharing directory
+         */
+        public String getReplicaName() {
+            return replicaName;
+        }
+
+        /**
+         * @return Whole Merkle tree of the file, rebuilt from its leaves
+         * @throws IOException When reading the leaves from the index
+         */
+        public MerkleTree getMerkleTree() throws IOException {
+            return MerkleTree.fromLeaves(read(this, leavesOffset, numberOfLeafBytes), (int) sizeBytes, chunkSizeBytes);
+        }
+
+        @Override
+        public byte[] readLeaves(int firstLeaf, int endLeaf) throws IOException {
+            if (firstLeaf < 0 || firstLeaf > endLeaf || endLeaf * MerkleTree.HASH_SIZE_BYTES > numberOfLeafBytes) {
+                throw new IOException("Leaves " + firstLeaf + "-" + endLeaf + " aren't in the content index");
+            }
+
+            return read(this, leavesOffset + firstLeaf * MerkleTree.HASH_SIZE_BYTES, (endLeaf - firstLeaf) * MerkleTree.HASH_SIZE_BYTES);
+        }
+
+        /**
+         * @return Content-defined chunks of the file, in order
+         * @throws IOException When reading them from the index
+         */
+        public List<ContentChunk> getContentChunks() throws IOException {
+            int chunkEntrySize = 8 + MerkleTree.HASH_SIZE_BYTES;
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(
+                    read(this, contentChunksOffset, numberOfContentChunks * chunkEntrySize)));
+
+            List<ContentChunk> contentChunks = new ArrayList<>(numberOfContentChunks);
+            for (int i = 0; i < numberOfContentChunks; i++) {
+                int initByte = in.readInt();
+                int length = in.readInt();
+                byte[] hash = new byte[MerkleTree.HASH_SIZE_BYTES];
+                in.readFully(hash);
+
+                contentChunks.add(new ContentChunk(initByte, length, hash));
+            }
+
+            return contentChunks;
+        }
+    }
+}
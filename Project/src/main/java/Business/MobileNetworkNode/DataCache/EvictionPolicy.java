@@ -0,0 +1,34 @@
+package Business.MobileNetworkNode.DataCache;
+
+/**
+ * Decides what a bounded cache lets go of once it's full. The cache tells the policy about every
+ * entry it inserts, looks up and removes, and asks it for a victim whenever it's over its budget
+ * @param <K> Key of the cached entries
+ */
+public interface EvictionPolicy<K> {
+
+    /**
+     * An entry was looked up
+     * @param key Key of the entry
+     * @param hit True if it was cached
+     */
+    void onAccess(K key, boolean hit);
+
+    /**
+     * An entry was added to the cache
+     * @param key Key of the entry
+     */
+    void onInsert(K key);
+
+    /**
+     * An entry was removed from the cache by something other than eviction
+     * @param key Key of the entry
+     */
+    void onRemove(K key);
+
+    /**
+     * Pick an entry to evict, and stop tracking it. It may be the one just inserted, if it isn't deemed worth keeping
+     * @return Key of the entry to evict, or null if nothing is cached
+     */
+    K victim();
+}
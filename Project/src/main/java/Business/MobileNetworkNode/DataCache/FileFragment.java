@@ -15,6 +15,7 @@ public class FileFragment implements Serializable {
     private int initbyte; // The byte where this chunk begins
     private int totalSizeBytes; // Total number of bytes in the complete file, useful to see when its the last chunk
     private String fileName; // Name of the full file this chunk refers to
+    private MerkleProof proof; // Hashes to check the chunk against the file's Merkle tree (null if none came along)
 
     public FileFragment(byte[] chunk, int initbyte, int totalSizeBytes, String fileName) {
         this.chunk = chunk;
@@ -55,6 +56,14 @@ public class FileFragment implements Serializable {
         this.fileName = fileName;
     }
 
+    public MerkleProof getProof() {
+        return proof;
+    }
+
+    public void setProof(MerkleProof proof) {
+        this.proof = proof;
+    }
+
     @Override
     public String toString() {
         return (this.fileName + ": (" + this.initbyte + "," + this.chunk.length + ") [total= " + this.totalSizeBytes + "]");
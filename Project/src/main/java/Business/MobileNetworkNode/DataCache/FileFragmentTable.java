@@ -1,265 +1,732 @@
 package Business.MobileNetworkNode.DataCache;
 
-import org.apache.commons.io.FileUtils;
-
+import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.util.*;
 
 /**
- * Map files into a list of fragments, thus making it possible to split a file and retrieve it as a whole
+ * Map files into their fragments, thus making it possible to split a file and retrieve it as a whole.
+ * Shared files are read from disk as fragments are asked for, and files being downloaded are
+ * written to disk as fragments arrive.
+ *
+ * Fragments are checked against the Merkle tree of their file before they're stored, and go out with
+ * a proof when they're asked for with one, so corrupt or stale fragments never make it into a file.
+ * Fragments of other files that this node relays are kept in a bounded cache, and given as well (and so
+ * are those it overhears multicast, if it's promiscuous, in a cache of their own).
+ *
+ * Files held whole are also cut into content-defined chunks, addressed by their hash. A file about to be
+ * downloaded can be mapped (see ChunkMap) by its owner, and every chunk of it already held in another file
+ * is copied from there rather than downloaded.
+ *
+ * A completed download whose every byte checked out against its tree is held whole from then on, and
+ * given to others like a file of this node's own
  */
 public class FileFragmentTable<A> {
 
-    // Why LinkedList instead of a byte array? If the later is chosen, we'd need to have maybe gigabytes of an array pre-allocated
-    // and taking up ram space until all chunks get written. With a link list, the structure slowly grows and takes as much
-    // space as it needs to. The choice is thus space versus speed, but do consider that the linked alternative is fast enough (nextByte = (initByteOfFragment + sizeOfFragment)) per interation
-    private Map<A, LinkedList<FileFragment>> fileFragmentsMap;
+    // Files being downloaded. Fragments go straight to disk, only a bitmap of which chunks arrived is kept in
+    // memory (a file of gigabytes is only a few hundred kilobytes of it), so storing, finding and checking
+    // for a fragment costs the same however many were received before
+    private Map<A, PartialFile> partialFiles;
+
+    // Files this node shares (and downloads it completed). They're never loaded, fragments are read from disk as they're asked for
+    private Map<A, MappedFile> ownedFiles;
+
+    // Merkle trees of the files shared and of those being downloaded (with the nodes known so far)
+    private Map<A, MerkleTree> merkleTrees;
+
+    // Roots of the files being downloaded whose tree can't be started yet, as their size isn't known
+    private Map<A, byte[]> expectedMerkleRoots;
+
+    // Fragments of files neither shared nor downloaded by this node, kept as they're relayed
+    private RelayCache<A> relayCache;
+
+    // Fragments of files neither shared nor downloaded by this node, kept as they're overheard (multicast to
+    // the neighbours downloading them). Apart, so they never push out the fragments actually relayed
+    private RelayCache<A> overheardCache;
+
+    // Content-defined chunks of the files held whole, by hash
+    private ContentChunkTable<A> contentChunkTable;
+
+    // Content-defined chunks of the files being downloaded, by where they begin, as their maps arrive
+    private Map<A, TreeMap<Integer, ContentChunk>> mappedContentChunks;
+
+    // Size of the chunks whose arrival is tracked. Fragments are always a multiple of it
+    private final int CHUNK_SIZE_BYTES;
+
+    /**
+     * Constructor
+     * @param chunkSizeBytes Size of the chunks whose arrival is tracked (fragments are a multiple of it)
+     * @param relayCache Cache of the fragments relayed to other nodes
+     * @param overheardCache Cache of the fragments overheard on their way to other nodes
+     */
+    public FileFragmentTable(int chunkSizeBytes, RelayCache<A> relayCache, RelayCache<A> overheardCache) {
+        this.partialFiles = new HashMap<>();
+        this.ownedFiles = new HashMap<>();
+        this.merkleTrees = new HashMap<>();
+        this.expectedMerkleRoots = new HashMap<>();
+        this.relayCache = relayCache;
+        this.overheardCache = overheardCache;
+        this.contentChunkTable = new ContentChunkTable<>();
+        this.mappedContentChunks = new HashMap<>();
+        this.CHUNK_SIZE_BYTES = chunkSizeBytes;
+    }
+
+    /**
+     * Share a whole file. Nothing is read until fragments of it are asked for, at whatever size they're asked for
+     * @param file File to share
+     * @param merkleTree Merkle tree of the file, to prove the fragments sent
+     * @param contentChunks Content-defined chunks of the file, in order
+     */
+    public void insertFile(A key, File file, MerkleTree merkleTree, List<ContentChunk> contentChunks) {
+        insertFile(key, file, file.getName(), merkleTree, contentChunks);
+    }
+
+    /**
+     * Share a whole file under another name than its own (e.g. a replica, downloaded before)
+     * @param file File to share
+     * @param fileName Name the file is shared by
+     * @param merkleTree Merkle tree of the file, to prove the fragments sent
+     * @param contentChunks Content-defined chunks of the file, in order
+     */
+    public void insertFile(A key, File file, String fileName, MerkleTree merkleTree, List<ContentChunk> contentChunks) {
+        relayCache.removeFile(key);
+        overheardCache.removeFile(key);
+        ownedFiles.put(key, new MappedFile(file, fileName));
+        merkleTrees.put(key, merkleTree);
+        contentChunkTable.insertFile(key, contentChunks);
+    }
+
+    /**
+     * Stop sharing a file
+     * @param key Key the file's fragments are mapped into
+     */
+    public void removeFile(A key) {
+        if (ownedFiles.remove(key) != null) {
+            merkleTrees.remove(key);
+            contentChunkTable.removeFile(key);
+        }
+    }
+
+    /**
+     * Check the fragments of a file about to be downloaded against the root of its Merkle tree
+     * @param key Key the file's fragments are mapped into
+     * @param merkleRoot Root of the file's tree
+     */
+    public void expectMerkleRoot(A key, byte[] merkleRoot) {
+        // It's downloaded for real, so it's no longer relayed
+        relayCache.removeFile(key);
+        overheardCache.removeFile(key);
 
-    public FileFragmentTable() {
-        this.fileFragmentsMap = new HashMap<>();
+        if (!merkleTrees.containsKey(key)) {
+            expectedMerkleRoots.put(key, merkleRoot);
+        }
+    }
+
+    /**
+     * Carry on with a download that was left incomplete (when the node last stopped)
+     * @param key Key the file's fragments are mapped into
+     * @param partialFile Incomplete file, with the chunks it had received
+     */
+    public void insertPartialFile(A key, PartialFile partialFile) {
+        relayCache.removeFile(key);
+        overheardCache.removeFile(key);
+        partialFiles.put(key, partialFile);
     }
 
     /**
-     * Splits a file and save its chunks
-     * @param file File to split
+     * Keep a fragment relayed to another node, to answer for it the next time it's asked for
+     * @param key Key the file's fragments are mapped into
+     * @param fragmentToAdd Relayed fragment, with the proof it was sent with
+     * @param merkleRoot Root of the file's tree, as advertised (null if unknown)
+     * @return True if it was kept (files this node shares or is downloading are never relayed, and
+     *         fragments that don't check out against the tree aren't kept)
      */
-    public void insertFile(A key, File file, int chunkSize) throws IOException {
-        LinkedList<FileFragment> fileFragments = splitIntoFragments(file, chunkSize);
-        fileFragmentsMap.put(key, fileFragments);
+    public boolean putRelayedFragment(A key, FileFragment fragmentToAdd, byte[] merkleRoot) {
+        if (ownedFiles.containsKey(key) || partialFiles.containsKey(key) || merkleTrees.containsKey(key)
+                || expectedMerkleRoots.containsKey(key)) {
+            return false;
+        }
+
+        return relayCache.put(key, fragmentToAdd, merkleRoot);
+    }
+
+    /**
+     * Keep a fragment overheard (multicast to the neighbours downloading its file), to answer for it if it's ever asked for here
+     * @param key Key the file's fragments are mapped into
+     * @param fragmentToAdd Overheard fragment, with the proof it was sent with
+     * @param merkleRoot Root of the file's tree, as advertised (null if unknown)
+     * @return True if it was kept (same as relayed fragments)
+     */
+    public boolean putOverheardFragment(A key, FileFragment fragmentToAdd, byte[] merkleRoot) {
+        if (ownedFiles.containsKey(key) || partialFiles.containsKey(key) || merkleTrees.containsKey(key)
+                || expectedMerkleRoots.containsKey(key)) {
+            return false;
+        }
+
+        return overheardCache.put(key, fragmentToAdd, merkleRoot);
+    }
+
+    public int putFragment(A key, FileFragment fragmentToAdd) throws IOException {
+        return putFragment(key, fragmentToAdd, null);
     }
 
     /**
      * Save a file fragment
      * @param key Key that the file's fragments are to be mapped into
-     * @param fragmentToAdd Fragment to include in the list of fragments regarding a file
+     * @param fragmentToAdd Fragment to write to the file it belongs to
+     * @param sourceMAC Node that sent the fragment, kept in case the download has to be resumed (null if unknown)
      * @throws IOException When trying to write to file
      * @return 1 if all the files were gathered into a single file, False if more are still missing
      *         0 if its a new chunk
      *         -1 if its a repeated chunk
+     *         -2 if it didn't check out against the file's Merkle tree (nothing was stored)
      */
-    public int putFragment(A key, FileFragment fragmentToAdd) throws IOException {
-        LinkedList<FileFragment> existingFragments;
+    public int putFragment(A key, FileFragment fragmentToAdd, String sourceMAC) throws IOException {
+        if (ownedFiles.containsKey(key)) {
+            // We have it all already
+            return -1;
+        }
 
-        if (!fileFragmentsMap.containsKey(key)) {
-            existingFragments = new LinkedList<>();
-            existingFragments.addLast(fragmentToAdd);
-        } else {
-            existingFragments = fileFragmentsMap.get(key);
+        if (!verifyFragment(key, fragmentToAdd)) {
+            return -2;
+        }
 
-            int initByteOfFragment = fragmentToAdd.getInitbyte();
+        PartialFile partialFile = partialFiles.get(key);
 
-            int i = 0;
+        try {
+            if (partialFile == null) {
+                // First fragment to arrive, it tells how big the file is
+                File targetFile = new File("transfered_" + fragmentToAdd.getFileName());
+                partialFile = new PartialFile(targetFile, key.toString(), fragmentToAdd.getFileName(), fragmentToAdd.getTotalSizeBytes(), CHUNK_SIZE_BYTES);
+                partialFiles.put(key, partialFile);
+            }
 
-            while ((i < existingFragments.size()) && (existingFragments.get(i).getInitbyte() - initByteOfFragment <= 0)) {
-                if (existingFragments.get(i).getInitbyte() == initByteOfFragment) {
-                    // We already have this chunk
-                    return -1;
-                }
-                i++;
+            if (partialFile.write(fragmentToAdd, sourceMAC, merkleTrees.get(key)) == 0) {
+                return -1;
+            }
+
+            if (partialFile.isComplete()) {
+                // Download complete, the file gets its final name and is no longer tracked (its tree is
+                // completed first, with the leaves in its journal, as the journal goes away with it)
+                MerkleTree completedTree = completeMerkleTree(key, partialFile);
+                partialFile.complete();
+                partialFiles.remove(key);
+                seedCompletedFile(key, partialFile, completedTree);
+
+                return 1;
             }
+        } catch (IOException e) {
+            // Something went horribly wrong, delete everything and abort
+            if (partialFile != null) {
+                partialFile.discard();
+            }
+
+            partialFiles.remove(key);
+            merkleTrees.remove(key);
+            mappedContentChunks.remove(key);
 
-            existingFragments.add(i, fragmentToAdd);
+            throw e;
         }
 
-        // Update table with the newly added fragment to the list of fragments associated with that filehash
-        fileFragmentsMap.put(key, existingFragments);
+        return 0;
+    }
 
-        // Only save to file if the now new fragment list constitutes a new file
-        if (isFragmentsCompleteFile(existingFragments)) {
-            // Save all the fragments into a usable file (thus download complete)
-            turnChunksToFile(key);
+    /**
+     * @param key Key the file's fragments are mapped into
+     * @return Name a file held whole is shared under, or null if it isn't held whole
+     */
+    public String getOwnedFileName(A key) {
+        MappedFile ownedFile = ownedFiles.get(key);
 
-            // Since the job is done, remove the chunks from memory
-            fileFragmentsMap.remove(key);
+        return ownedFile != null ? ownedFile.getFileName() : null;
+    }
 
-            return 1;
-        } else {
-            return 0;
-        }
+    /**
+     * @param key Key the file's fragments are mapped into
+     * @return File held whole (where it is on disk), or null if it isn't held whole
+     */
+    public File getOwnedFile(A key) {
+        MappedFile ownedFile = ownedFiles.get(key);
+
+        return ownedFile != null ? ownedFile.getFile() : null;
+    }
+
+    /**
+     * @param key Key the file's fragments are mapped into
+     * @return Merkle tree of a file held whole, or null if it isn't held whole
+     */
+    public MerkleTree getOwnedMerkleTree(A key) {
+        return ownedFiles.containsKey(key) ? merkleTrees.get(key) : null;
+    }
+
+    /**
+     * @param key Key the file's fragments are mapped into
+     * @return Content-defined chunks of a file held whole, in order (null if it isn't held whole)
+     */
+    public List<ContentChunk> getOwnedContentChunks(A key) {
+        return ownedFiles.containsKey(key) ? contentChunkTable.getChunks(key) : null;
+    }
+
+    /**
+     * @param key Key the file's fragments are mapped into
+     * @return Root of the Merkle tree of a file held whole, or null if it isn't held whole
+     */
+    public byte[] getOwnedMerkleRoot(A key) {
+        MerkleTree merkleTree = ownedFiles.containsKey(key) ? merkleTrees.get(key) : null;
 
+        return merkleTree != null ? merkleTree.getRoot() : null;
     }
 
-    public FileFragment getFragment(A key, int requestedInitByte) {
-        LinkedList<FileFragment> fragments = fileFragmentsMap.get(key);
+    /**
+     * @return True if any file is held whole, whose chunks a download could copy rather than download
+     */
+    public boolean hasContentChunks() {
+        return !contentChunkTable.isEmpty();
+    }
 
-        if (fragments == null) {
+    /**
+     * Map a range of a file held whole, for whoever is about to download it
+     * @param key Key the file's fragments are mapped into
+     * @param requestedRange Bytes to map (the range must have a length), starting at a chunk
+     * @return Map of the range (fewer bytes, if the file ends before), or null if the file isn't held whole
+     *         (or the range is outside it)
+     */
+    public ChunkMap getChunkMap(A key, ByteRange requestedRange) {
+        MappedFile ownedFile = ownedFiles.get(key);
+        MerkleTree merkleTree = merkleTrees.get(key);
+        List<ContentChunk> contentChunks = contentChunkTable.getChunks(key);
+
+        if (ownedFile == null || merkleTree == null || contentChunks == null || !ownedFile.hasRange(requestedRange)
+                || requestedRange.getInitByte() % CHUNK_SIZE_BYTES != 0) {
             return null;
         }
 
-        for (FileFragment fragment : fragments) {
-            int byteFragmentStartsAt = fragment.getInitbyte();
-            if (byteFragmentStartsAt == requestedInitByte) {
-                return fragment;
+        int totalSizeBytes = (int) ownedFile.getSizeBytes();
+        int initByte = requestedRange.getInitByte();
+        int endByte = (int) Math.min((long) initByte + requestedRange.getLength(), totalSizeBytes);
 
-                // We can do this only because the linked list is ordered by initial byte of fragment!!
-            } else if (byteFragmentStartsAt > requestedInitByte) {
-                // We know we won't find it in the rest of the list
-                return null;
+        byte[] leaves = merkleTree.getLeaves(initByte / CHUNK_SIZE_BYTES, (endByte + CHUNK_SIZE_BYTES - 1) / CHUNK_SIZE_BYTES);
+        if (leaves == null) {
+            return null;
+        }
+
+        // Chunks are in order, the first one in the range is searched for
+        int low = 0;
+        int high = contentChunks.size();
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+
+            if (contentChunks.get(middle).getInitByte() < initByte) {
+                low = middle + 1;
+            } else {
+                high = middle;
             }
+        }
 
+        List<ContentChunk> chunksInRange = new ArrayList<>();
+        for (int i = low; i < contentChunks.size() && contentChunks.get(i).getInitByte() < endByte; i++) {
+            chunksInRange.add(contentChunks.get(i));
         }
 
-        // Didnt find it...
-        throw null;
-    }
+        ChunkMap chunkMap = new ChunkMap(initByte, endByte - initByte, totalSizeBytes, ownedFile.getFileName(), leaves, chunksInRange);
+        chunkMap.setProof(merkleTree.getProof(initByte, endByte - initByte, MerkleTree.ROOT_LEVEL));
 
-    public boolean hasFragment(A key, int requestedInitByte) {
-        LinkedList<FileFragment> fragments = fileFragmentsMap.get(key);
+        return chunkMap;
+    }
 
-        if (fragments == null) {
-            return false;
+    /**
+     * Take in the map of a range of a file about to be downloaded. Its leaves are checked against the
+     * file's Merkle tree (or the expected root, if it's the first thing to arrive) with the proof that
+     * came along, so each map stands on its own, whatever other maps of the file got lost
+     * @param key Key the file's fragments are mapped into
+     * @param chunkMap Map of the range
+     * @return 1 if every leaf of the file is now known
+     *         0 if leaves of it are still missing
+     *         -2 if it didn't check out against the file's Merkle tree (the map is thrown away)
+     */
+    public int putChunkMap(A key, ChunkMap chunkMap) {
+        if (ownedFiles.containsKey(key) || chunkMap.getInitByte() % CHUNK_SIZE_BYTES != 0) {
+            return -2;
         }
 
-        for (FileFragment fragment : fragments) {
-            int byteFragmentStartsAt = fragment.getInitbyte();
-            if (byteFragmentStartsAt == requestedInitByte) {
-                return true;
+        MerkleTree merkleTree = merkleTrees.get(key);
+        boolean isNewTree = merkleTree == null;
 
-                // We can do this only because the linked list is ordered by initial byte of fragment!!
-            } else if (byteFragmentStartsAt > requestedInitByte) {
-                // We know we won't find it in the rest of the list
-                return false;
+        if (isNewTree) {
+            byte[] merkleRoot = expectedMerkleRoots.get(key);
+
+            if (merkleRoot == null) {
+                // There's nothing to check it against
+                return -2;
             }
 
+            // First thing to arrive, it tells how big the file (and so the tree) is. Only kept if it checks out
+            merkleTree = MerkleTree.fromRoot(merkleRoot, chunkMap.getTotalSizeBytes(), CHUNK_SIZE_BYTES);
+        }
+
+        if (chunkMap.getTotalSizeBytes() != merkleTree.getTotalSizeBytes()
+                || !merkleTree.verifyLeaves(chunkMap.getInitByte() / CHUNK_SIZE_BYTES, chunkMap.getLeaves(), chunkMap.getProof())) {
+            return -2;
         }
 
-        // Didnt find it...
-        return false;
+        if (isNewTree) {
+            merkleTrees.put(key, merkleTree);
+            expectedMerkleRoots.remove(key);
+        }
+
+        TreeMap<Integer, ContentChunk> contentChunks = mappedContentChunks.computeIfAbsent(key, k -> new TreeMap<>());
+        for (ContentChunk chunk : chunkMap.getContentChunks()) {
+            if (chunk.getLength() > 0) {
+                contentChunks.put(chunk.getInitByte(), chunk);
+            }
+        }
+
+        return merkleTree.hasEveryLeaf() ? 1 : 0;
     }
 
-    private boolean isFragmentsCompleteFile(LinkedList<FileFragment> fileFragments) {
-        // Start by the assumption that the file IS complete, and look for conditions
-        // where this would not be true
-        boolean isFileComplete = true;
-        int currByte = 0;
+    /**
+     * Copy the chunks of a range of a file about to be downloaded that are already held in other files.
+     * Runs of chunks copied are stored as fragments, checked against the leaves known of the file's tree
+     * @param key Key the file's fragments are mapped into
+     * @param chunkMap Map of the range, already taken in (see putChunkMap)
+     * @return Number of bytes copied, or -1 if they completed the file
+     * @throws IOException When writing to the file
+     */
+    public int copyLocalChunks(A key, ChunkMap chunkMap) throws IOException {
+        TreeMap<Integer, ContentChunk> contentChunks = mappedContentChunks.get(key);
+        MerkleTree merkleTree = merkleTrees.get(key);
+
+        if (contentChunks == null || merkleTree == null) {
+            return 0;
+        }
+
+        // Chunks beginning in the range, and the one it begins in (mapped by an earlier range)
+        int initByte = chunkMap.getInitByte();
+        Integer firstChunkInitByte = contentChunks.floorKey(initByte);
+        Collection<ContentChunk> chunksInRange = contentChunks.subMap(
+                firstChunkInitByte != null ? firstChunkInitByte : initByte, initByte + chunkMap.getLength()).values();
+
+        int copiedBytes = 0;
+
+        // Run of bytes copied so far, with no gaps, and where it begins
+        ByteArrayOutputStream run = new ByteArrayOutputStream();
+        int runInitByte = initByte;
 
-        // This variable is repeated in every fragment, so we retrieve from the first fragment for no
-        // particular reason (The redundancy makes it easier for the receiver to know on a per packet
-        // basis how far he is from finishing)
-        int fullFileSize = fileFragments.getFirst().getTotalSizeBytes();
+        for (ContentChunk chunk : chunksInRange) {
+            byte[] bytes = readLocalChunk(key, chunk);
+
+            if (bytes == null || runInitByte + run.size() != chunk.getInitByte()) {
+                int res = storeLocalRun(key, chunkMap, merkleTree, runInitByte, run.toByteArray());
+                if (res < 0) {
+                    return res;
+                }
+
+                copiedBytes += res;
+                run.reset();
+                runInitByte = chunk.getInitByte();
+            }
+
+            if (bytes != null) {
+                run.write(bytes, 0, bytes.length);
+            }
+        }
 
-        // Reminder that fileFragments linkedList is sorted by initByte
-        for (FileFragment fragment : fileFragments) {
-            int initByteOfFragment = fragment.getInitbyte();
+        int res = storeLocalRun(key, chunkMap, merkleTree, runInitByte, run.toByteArray());
 
-            if (currByte != initByteOfFragment) {
-                isFileComplete = false;
-                break;
+        return res < 0 ? res : copiedBytes + res;
+    }
+
+    /**
+     * Get the fragment of a file that starts at a given byte. Bytes are read from disk, be it a
+     * shared file or one still being downloaded
+     * @param key Key the file's fragments are mapped into
+     * @param requestedRange Bytes to get (the range must have a length), and the level of the proof to go along, if any
+     * @return Fragment with the requested bytes (fewer, if the file ends before), or null if they're not all stored
+     *         (or if a proof was asked for and can't be given)
+     */
+    public FileFragment getFragment(A key, ByteRange requestedRange) {
+        FileFragment fragment;
+
+        try {
+            MappedFile ownedFile = ownedFiles.get(key);
+            PartialFile partialFile = partialFiles.get(key);
+
+            if (ownedFile != null) {
+                fragment = ownedFile.getFragment(requestedRange);
+            } else if (partialFile != null) {
+                fragment = partialFile.read(requestedRange);
             } else {
-                // Fragments are in synch so far
-                int sizeOfFragment = fragment.getChunk().length;
+                // Relayed (and overheard) fragments always go with a proof
+                fragment = relayCache.get(key, requestedRange);
 
-                currByte += sizeOfFragment;
+                return fragment != null ? fragment : overheardCache.get(key, requestedRange);
             }
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
         }
 
-        // When the looped ended, currByte is the last byte of the file
-        // If the chunks are indeed all there, then this variable should
-        // be the size of the file
-        if (currByte != fullFileSize) {
-            isFileComplete = false;
+        if (fragment != null && requestedRange.hasProofLevel()) {
+            MerkleTree merkleTree = merkleTrees.get(key);
+            MerkleProof proof = merkleTree != null
+                    ? merkleTree.getProof(fragment.getInitbyte(), fragment.getChunk().length, requestedRange.getProofLevel())
+                    : null;
+
+            if (proof == null) {
+                return null;
+            }
+
+            fragment.setProof(proof);
         }
 
-        return isFileComplete;
+        return fragment;
     }
 
-    public int getNextNonExistingInitByte(A key) {
-        LinkedList<FileFragment> sortedFragments = fileFragmentsMap.get(key);
+    public boolean hasFragment(A key, ByteRange requestedRange) {
+        MappedFile ownedFile = ownedFiles.get(key);
+        PartialFile partialFile = partialFiles.get(key);
 
-        if (sortedFragments == null) {
-            // We have not a single fragment, aka you should ask for byte 0 next
-
-            return 0;
+        if (ownedFile == null && partialFile == null) {
+            return relayCache.hasRange(key, requestedRange) || overheardCache.hasRange(key, requestedRange);
         }
 
-        // the fragments are ordered by initByte order, thus the next one follows the last fragment
-        FileFragment lastFragment = sortedFragments.getLast();
+        boolean isStored = ownedFile != null ? ownedFile.hasRange(requestedRange) : partialFile.hasRange(requestedRange);
+
+        if (!isStored || !requestedRange.hasProofLevel()) {
+            return isStored;
+        }
 
-        int initByteLastChunk = lastFragment.getInitbyte();
-        int lengthOfLastChunk = lastFragment.getChunk().length;
+        // Asked for with a proof, which can only be given for chunks the tree knows of
+        MerkleTree merkleTree = merkleTrees.get(key);
 
-        return initByteLastChunk + lengthOfLastChunk;
+        return merkleTree != null && merkleTree.getProof(requestedRange.getInitByte(), requestedRange.getLength(), requestedRange.getProofLevel()) != null;
     }
 
-    private void turnChunksToFile(A key) throws IOException {
-        List<FileFragment> sortedFragments = fileFragmentsMap.get(key);
+    /**
+     * Level of the proof to ask for along with a range of a file being downloaded
+     * @param key Key the file's fragments are mapped into
+     * @param initByte First byte of the range
+     * @param length Number of bytes in the range
+     * @return Level of the lowest node known that holds the whole range, or ByteRange.NO_PROOF if there's
+     *         no tree to check the fragment against
+     */
+    public int getProofLevel(A key, int initByte, int length) {
+        MerkleTree merkleTree = merkleTrees.get(key);
 
-        FileFragment anyFragment = sortedFragments.get(0);
+        if (merkleTree != null) {
+            return merkleTree.getProofLevel(initByte, length);
+        }
 
-        int fullFileSize = anyFragment.getTotalSizeBytes();
-        String fullFileName = anyFragment.getFileName();
+        return expectedMerkleRoots.containsKey(key) ? MerkleTree.ROOT_LEVEL : ByteRange.NO_PROOF;
+    }
 
-        byte[] fullBytes = new byte[fullFileSize];
+    /**
+     * First run of bytes of a file still missing, at or after a given byte
+     * @param key Key the file's fragments are mapped into
+     * @param fromByte Byte to start looking at
+     * @return Range of the missing bytes, or null if none are missing (or nothing of the file is stored
+     *         yet, so its size isn't known)
+     */
+    public ByteRange getNextMissingRange(A key, int fromByte) {
+        if (ownedFiles.containsKey(key)) {
+            return null;
+        }
 
-        sortedFragments.forEach(
-                fragment ->  {
-                    byte[] dataChunk = fragment.getChunk();
-                    System.arraycopy(dataChunk,
-                            0,
-                            fullBytes,
-                            fragment.getInitbyte(),
-                            dataChunk.length);
-                }
-        );
+        PartialFile partialFile = partialFiles.get(key);
 
-        File file = new File("transfered_" + fullFileName);
+        return partialFile != null ? partialFile.getNextMissingRange(fromByte) : null;
+    }
 
-        try {
-            FileUtils.writeByteArrayToFile(file, fullBytes);
-        } catch (IOException e) {
-            // Something went horribly wrong, delete everything and abort
-            fileFragmentsMap.remove(key);
+    /**
+     * Every run of bytes of a file still missing
+     * @param key Key the file's fragments are mapped into
+     * @return Ranges of the missing bytes, in order, or null if nothing of the file is stored yet (or all of it is)
+     */
+    public List<ByteRange> getMissingRanges(A key) {
+        PartialFile partialFile = partialFiles.get(key);
+
+        return partialFile != null ? partialFile.getMissingRanges() : null;
+    }
 
-            throw new IOException();
+    /**
+     * @param key Key the file's fragments are mapped into
+     * @return Size of the complete file, or -1 if nothing of it is stored yet
+     */
+    public int getTotalSizeBytes(A key) {
+        MappedFile ownedFile = ownedFiles.get(key);
+
+        if (ownedFile != null) {
+            return (int) ownedFile.getSizeBytes();
         }
+
+        PartialFile partialFile = partialFiles.get(key);
+
+        return partialFile != null ? partialFile.getTotalSizeBytes() : -1;
     }
 
     /**
-     * Split a file into a list of correspondant fragments, making it possible to rebuilid
-     *
-     * @param file      File to split
-     * @param chunkSize Max size of each chunk (try to use it as long as its possible)
-     * @return List of chunks, ordered by initialByte of chunk (although order is not needed since each fragment has the initByte variable, so you can reconstruct either way)
-     * @throws IOException On reading inputstream
+     * @param key Key the file's fragments are mapped into
+     * @return Nodes that sent fragments of a file still being downloaded (empty if none)
      */
-    public static LinkedList<FileFragment> splitIntoFragments(File file, int chunkSize) throws IOException {
-        LinkedList<FileFragment> fragments = new LinkedList<>();
+    public Set<String> getKnownSources(A key) {
+        PartialFile partialFile = partialFiles.get(key);
+
+        return partialFile != null ? new LinkedHashSet<>(partialFile.getKnownSources()) : new LinkedHashSet<>();
+    }
 
-        FileInputStream inputStream = null;
-        int totalSize = (int) file.length();
-        String fileName = file.getName();
+    // Bytes of a chunk, read from another file held whole that has it (null if none does)
+    private byte[] readLocalChunk(A key, ContentChunk chunk) throws IOException {
+        PartialFile partialFile = partialFiles.get(key);
 
+        if (partialFile != null && partialFile.hasRange(new ByteRange(chunk.getInitByte(), chunk.getLength()))) {
+            // Already there
+            return null;
+        }
 
-        byte[] byteStream = new byte[totalSize];
+        for (Map.Entry<A, ContentChunk> location : contentChunkTable.getLocations(chunk.getHash()).entrySet()) {
+            MappedFile ownedFile = ownedFiles.get(location.getKey());
 
-        inputStream = new FileInputStream(file);
-        inputStream.read(byteStream);
-        inputStream.close();
+            if (location.getKey().equals(key) || ownedFile == null || location.getValue().getLength() != chunk.getLength()) {
+                continue;
+            }
 
-        int sizeLeft = totalSize;
+            FileFragment fragment = ownedFile.getFragment(new ByteRange(location.getValue().getInitByte(), chunk.getLength()));
 
-        int index = 0;
-        while (sizeLeft > 0) {
-            int currChunkSize;
+            if (fragment != null && fragment.getChunk().length == chunk.getLength()) {
+                return fragment.getChunk();
+            }
+        }
 
-            if (sizeLeft >= chunkSize) {
-                currChunkSize = chunkSize;
-                sizeLeft -= chunkSize;
-            } else {
-                currChunkSize = sizeLeft;
-                sizeLeft = 0;
+        return null;
+    }
+
+    // Store the leaves of a run of copied bytes that are known (the others can't be checked yet), a stretch
+    // of them at a time. Returns the number of bytes stored, or -1 if they completed the file
+    private int storeLocalRun(A key, ChunkMap chunkMap, MerkleTree merkleTree, int runInitByte, byte[] runBytes) throws IOException {
+        int totalSizeBytes = chunkMap.getTotalSizeBytes();
+        int runEndByte = runInitByte + runBytes.length;
+
+        // Only whole leaves (or the last one, if the run ends the file)
+        int firstLeaf = (runInitByte + CHUNK_SIZE_BYTES - 1) / CHUNK_SIZE_BYTES;
+        int endLeaf = runEndByte == totalSizeBytes
+                ? (runEndByte + CHUNK_SIZE_BYTES - 1) / CHUNK_SIZE_BYTES
+                : runEndByte / CHUNK_SIZE_BYTES;
+
+        int storedBytes = 0;
+        int leaf = merkleTree.getNextKnownLeaf(firstLeaf);
+
+        while (leaf < endLeaf) {
+            int stretchEndLeaf = Math.min(endLeaf, merkleTree.getNextUnknownLeaf(leaf));
+            int stretchInitByte = leaf * CHUNK_SIZE_BYTES;
+            int stretchEndByte = Math.min(stretchEndLeaf * CHUNK_SIZE_BYTES, totalSizeBytes);
+
+            byte[] bytes = Arrays.copyOfRange(runBytes, stretchInitByte - runInitByte, stretchEndByte - runInitByte);
+
+            // Bytes that don't check out (a file changed since it was chunked) are simply downloaded
+            int res = putFragment(key, new FileFragment(bytes, stretchInitByte, totalSizeBytes, chunkMap.getFileName()));
+
+            if (res == 1) {
+                return -1;
+            }
+
+            if (res == 0) {
+                storedBytes += bytes.length;
+            }
+
+            leaf = merkleTree.getNextKnownLeaf(stretchEndLeaf);
+        }
+
+        return storedBytes;
+    }
+
+    // Whole tree of a download about to be completed, from the leaves checked since it started and those in
+    // its journal (checked before the node last stopped). Null if a leaf was never checked, or if they don't add up
+    // to the root (nothing was read from the file itself)
+    private MerkleTree completeMerkleTree(A key, PartialFile partialFile) {
+        MerkleTree merkleTree = merkleTrees.remove(key);
+
+        if (merkleTree == null) {
+            return null;
+        }
+
+        int numberOfLeaves = Math.max(1, (merkleTree.getTotalSizeBytes() + CHUNK_SIZE_BYTES - 1) / CHUNK_SIZE_BYTES);
+        byte[] leaves = merkleTree.getLeaves();
+
+        if (!merkleTree.hasEveryLeaf()) {
+            byte[] journaledLeaves = new byte[leaves.length];
+            BitSet knownLeaves = new BitSet(numberOfLeaves);
+
+            try {
+                partialFile.readJournaledLeaves(journaledLeaves, knownLeaves);
+            } catch (IOException e) {
+                e.printStackTrace();
+                return null;
+            }
+
+            // The leaves checked since it started are taken over those in the journal
+            for (int leaf = merkleTree.getNextKnownLeaf(0); leaf < numberOfLeaves; ) {
+                int endLeaf = merkleTree.getNextUnknownLeaf(leaf);
+
+                System.arraycopy(leaves, leaf * MerkleTree.HASH_SIZE_BYTES, journaledLeaves, leaf * MerkleTree.HASH_SIZE_BYTES,
+                        (endLeaf - leaf) * MerkleTree.HASH_SIZE_BYTES);
+                knownLeaves.set(leaf, endLeaf);
+
+                leaf = merkleTree.getNextKnownLeaf(endLeaf);
             }
 
-            byte[] chunk = Arrays.copyOfRange(byteStream, index * chunkSize, (index * chunkSize) + currChunkSize);
+            if (knownLeaves.cardinality() < numberOfLeaves) {
+                return null;
+            }
 
-            FileFragment fragment = new FileFragment(chunk, index * chunkSize, totalSize, fileName);
-            fragments.addLast(fragment);
-            index++;
+            leaves = journaledLeaves;
         }
 
-        return fragments;
+        // Every node is rebuilt from the leaves, so any fragment of it can be proven
+        MerkleTree completedTree = MerkleTree.fromLeaves(leaves, merkleTree.getTotalSizeBytes(), CHUNK_SIZE_BYTES);
+
+        return Arrays.equals(completedTree.getRoot(), merkleTree.getRoot()) ? completedTree : null;
     }
 
+    // Share a download that was just completed, as long as every byte of it checked out against the tree
+    // of the file (if it was never checked, it isn't given to anyone else)
+    private void seedCompletedFile(A key, PartialFile partialFile, MerkleTree merkleTree) {
+        TreeMap<Integer, ContentChunk> mappedChunks = mappedContentChunks.remove(key);
+        List<ContentChunk> contentChunks = mappedChunks != null ? new ArrayList<>(mappedChunks.values()) : new ArrayList<>();
+
+        if (merkleTree == null) {
+            return;
+        }
+
+        ownedFiles.put(key, new MappedFile(partialFile.getTargetFile(), partialFile.getFileName()));
+        merkleTrees.put(key, merkleTree);
+        contentChunkTable.insertFile(key, contentChunks);
+    }
+
+    // Check a fragment against the tree of its file (if there's none to check it against, it's taken as it is)
+    private boolean verifyFragment(A key, FileFragment fragment) {
+        MerkleTree merkleTree = merkleTrees.get(key);
+
+        if (merkleTree != null) {
+            return fragment.getTotalSizeBytes() == merkleTree.getTotalSizeBytes() && merkleTree.verify(fragment);
+        }
+
+        byte[] merkleRoot = expectedMerkleRoots.get(key);
+
+        if (merkleRoot == null) {
+            return true;
+        }
+
+        // First fragment to arrive, it tells how big the file (and so the tree) is. Only kept if it checks out
+        merkleTree = MerkleTree.fromRoot(merkleRoot, fragment.getTotalSizeBytes(), CHUNK_SIZE_BYTES);
+
+        if (!merkleTree.verify(fragment)) {
+            return false;
+        }
+
+        merkleTrees.put(key, merkleTree);
+        expectedMerkleRoots.remove(key);
+
+        return true;
+    }
 }
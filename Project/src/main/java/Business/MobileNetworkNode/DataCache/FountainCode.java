@@ -0,0 +1,112 @@
+package Business.MobileNetworkNode.DataCache;
+
+/**
+ * Rateless (fountain) code over GF(2) used by coded transfers.
+ *
+ * A generation (a range of the file) is cut into blocks of the same size, the last one padded with
+ * zeroes. Every coded symbol is the XOR of a subset of those blocks, picked by the symbol's seed, so
+ * there's no end to the symbols that can be made and no symbol is worth more than another.
+ * The first seeds (one per block) pick a single block each, which makes the code systematic: when
+ * nothing is lost, the plain blocks are what's sent and decoding costs nothing. Every seed after
+ * that picks each block with a probability of one half, so a handful of symbols more than the number
+ * of blocks is almost always enough to rebuild the generation
+ */
+public final class FountainCode {
+
+    // Step of the generator of the blocks of a seed (SplitMix64). Not java.util.Random, whose first outputs
+    // for seeds that only differ in their high bits share the same low bits, and so would pick the same blocks
+    private static final long GOLDEN_GAMMA = 0x9E3779B97F4A7C15L;
+
+    private FountainCode() {
+    }
+
+    /**
+     * @param generationLength Number of bytes in the generation
+     * @param blockSize Number of bytes in each block
+     * @return Number of blocks the generation is cut into
+     */
+    public static int numberOfBlocks(int generationLength, int blockSize) {
+        return Math.max(1, (generationLength + blockSize - 1) / blockSize);
+    }
+
+    /**
+     * Blocks that go into the symbol of a seed
+     * @param seed Seed of the symbol
+     * @param numberOfBlocks Number of blocks in the generation
+     * @return Bit set (one bit per block, as 64 bit words) with the blocks to XOR, never empty
+     */
+    public static long[] coefficients(int seed, int numberOfBlocks) {
+        long[] coefficients = new long[(numberOfBlocks + 63) / 64];
+
+        if (seed >= 0 && seed < numberOfBlocks) {
+            // Systematic symbol, the block itself
+            coefficients[seed / 64] |= 1L << (seed % 64);
+            return coefficients;
+        }
+
+        // Every node must come up with the same blocks for the same seed
+        long state = seed * GOLDEN_GAMMA + numberOfBlocks;
+        boolean isEmpty = true;
+
+        for (int i = 0; i < coefficients.length; i++) {
+            state += GOLDEN_GAMMA;
+            coefficients[i] = mix(state);
+
+            int bitsInWord = Math.min(64, numberOfBlocks - i * 64);
+            if (bitsInWord < 64) {
+                coefficients[i] &= (1L << bitsInWord) - 1;
+            }
+
+            isEmpty &= (coefficients[i] == 0);
+        }
+
+        if (isEmpty) {
+            int block = Math.floorMod(seed, numberOfBlocks);
+            coefficients[block / 64] |= 1L << (block % 64);
+        }
+
+        return coefficients;
+    }
+
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+
+        return z ^ (z >>> 31);
+    }
+
+    /**
+     * Make the symbol of a seed
+     * @param generation Fragment holding the whole generation (and its proof, if any)
+     * @param seed Seed of the symbol
+     * @param blockSize Number of bytes in each block
+     * @return Coded symbol, one block long
+     */
+    public static CodedSymbol encode(FileFragment generation, int seed, int blockSize) {
+        byte[] bytes = generation.getChunk();
+        int numberOfBlocks = numberOfBlocks(bytes.length, blockSize);
+        long[] coefficients = coefficients(seed, numberOfBlocks);
+
+        byte[] payload = new byte[blockSize];
+
+        for (int block = 0; block < numberOfBlocks; block++) {
+            if ((coefficients[block / 64] & (1L << (block % 64))) == 0) {
+                continue;
+            }
+
+            int offset = block * blockSize;
+            int end = Math.min(bytes.length, offset + blockSize);
+
+            for (int i = offset; i < end; i++) {
+                payload[i - offset] ^= bytes[i];
+            }
+        }
+
+        CodedSymbol symbol = new CodedSymbol(payload, generation.getInitbyte(), bytes.length, seed, generation.getTotalSizeBytes(), generation.getFileName());
+
+        // Every symbol carries the proof of the whole generation, any of them may be the one that completes it
+        symbol.setProof(generation.getProof());
+
+        return symbol;
+    }
+}
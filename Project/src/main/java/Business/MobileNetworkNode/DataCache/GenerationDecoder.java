@@ -0,0 +1,128 @@
+package Business.MobileNetworkNode.DataCache;
+
+import java.util.Arrays;
+
+/**
+ * Rebuild a generation of a coded transfer from the symbols received so far.
+ *
+ * Symbols are reduced as they arrive (Gaussian elimination over GF(2), where adding is XOR-ing), so
+ * each one is kept only if it tells something the previous ones didn't. Once there are as many
+ * independent symbols as blocks, the generation is solved
+ */
+public class GenerationDecoder {
+
+    private final int generationLength;
+    private final int blockSize;
+    private final int numberOfBlocks;
+
+    // Row i (if any) is a received symbol, reduced so that its lowest block is block i
+    private long[][] rows;
+    private byte[][] payloads;
+
+    // Number of independent symbols received
+    private int rank;
+
+    /**
+     * Constructor
+     * @param generationLength Number of bytes in the generation
+     * @param blockSize Number of bytes in each block (the size of every symbol)
+     */
+    public GenerationDecoder(int generationLength, int blockSize) {
+        this.generationLength = generationLength;
+        this.blockSize = blockSize;
+        this.numberOfBlocks = FountainCode.numberOfBlocks(generationLength, blockSize);
+        this.rows = new long[numberOfBlocks][];
+        this.payloads = new byte[numberOfBlocks][];
+        this.rank = 0;
+    }
+
+    public boolean isComplete() {
+        return rank == numberOfBlocks;
+    }
+
+    /**
+     * @return Number of independent symbols still needed to solve the generation
+     */
+    public int getMissingSymbols() {
+        return numberOfBlocks - rank;
+    }
+
+    /**
+     * Take a received symbol into account
+     * @param seed Seed of the symbol
+     * @param payload Payload of the symbol
+     * @return True if it was independent from the ones received before (and so brought the generation closer to solved)
+     */
+    public boolean addSymbol(int seed, byte[] payload) {
+        if (isComplete() || payload.length != blockSize) {
+            return false;
+        }
+
+        long[] row = FountainCode.coefficients(seed, numberOfBlocks);
+        byte[] data = payload.clone();
+
+        for (int block = 0; block < numberOfBlocks; block++) {
+            if (!hasBlock(row, block)) {
+                continue;
+            }
+
+            if (rows[block] == null) {
+                rows[block] = row;
+                payloads[block] = data;
+                rank++;
+
+                return true;
+            }
+
+            xor(row, rows[block]);
+            xor(data, payloads[block]);
+        }
+
+        // Made of symbols already received
+        return false;
+    }
+
+    /**
+     * Solve the generation (back substitution, from the last block to the first)
+     * @return Bytes of the generation, or null if there are not enough symbols yet
+     */
+    public byte[] decode() {
+        if (!isComplete()) {
+            return null;
+        }
+
+        for (int block = numberOfBlocks - 1; block >= 0; block--) {
+            for (int other = block + 1; other < numberOfBlocks; other++) {
+                if (hasBlock(rows[block], other)) {
+                    xor(rows[block], rows[other]);
+                    xor(payloads[block], payloads[other]);
+                }
+            }
+        }
+
+        byte[] bytes = new byte[numberOfBlocks * blockSize];
+
+        for (int block = 0; block < numberOfBlocks; block++) {
+            System.arraycopy(payloads[block], 0, bytes, block * blockSize, blockSize);
+        }
+
+        // Drop the padding of the last block
+        return Arrays.copyOf(bytes, generationLength);
+    }
+
+    private static boolean hasBlock(long[] row, int block) {
+        return (row[block / 64] & (1L << (block % 64))) != 0;
+    }
+
+    private static void xor(long[] target, long[] source) {
+        for (int i = 0; i < target.length; i++) {
+            target[i] ^= source[i];
+        }
+    }
+
+    private static void xor(byte[] target, byte[] source) {
+        for (int i = 0; i < target.length; i++) {
+            target[i] ^= source[i];
+        }
+    }
+}
@@ -0,0 +1,19 @@
+package Business.MobileNetworkNode.DataCache;
+
+import java.io.IOException;
+
+/**
+ * Where a Merkle tree that doesn't keep its lower levels in memory reads its leaves from (e.g. the
+ * content index, for the files a node shares)
+ */
+public interface LeafSource {
+
+    /**
+     * Read a run of leaves
+     * @param firstLeaf First leaf to read
+     * @param endLeaf Leaf after the last one to read
+     * @return Hashes of the leaves in between, one after the other
+     * @throws IOException When reading them
+     */
+    byte[] readLeaves(int firstLeaf, int endLeaf) throws IOException;
+}
@@ -0,0 +1,50 @@
+package Business.MobileNetworkNode.DataCache;
+
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+
+/**
+ * Evict the entry that was used the longest time ago
+ * @param <K> Key of the cached entries
+ */
+public class LruEvictionPolicy<K> implements EvictionPolicy<K> {
+
+    // Least recently used first
+    private LinkedHashSet<K> recency;
+
+    public LruEvictionPolicy() {
+        this.recency = new LinkedHashSet<>();
+    }
+
+    @Override
+    public void onAccess(K key, boolean hit) {
+        if (hit && recency.remove(key)) {
+            recency.add(key);
+        }
+    }
+
+    @Override
+    public void onInsert(K key) {
+        recency.remove(key);
+        recency.add(key);
+    }
+
+    @Override
+    public void onRemove(K key) {
+        recency.remove(key);
+    }
+
+    @Override
+    public K victim() {
+        Iterator<K> it = recency.iterator();
+
+        if (!it.hasNext()) {
+            return null;
+        }
+
+        K victim = it.next();
+        it.remove();
+
+        return victim;
+    }
+}
@@ -0,0 +1,128 @@
+package Business.MobileNetworkNode.DataCache;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A file this node shares, read straight from disk as its fragments are asked for.
+ *
+ * The file is memory mapped in regions, each mapped the first time a fragment falls in it. Mapped
+ * regions live outside the heap and are paged in (and out) by the OS, so the heap only ever holds the
+ * fragments being sent, however big the shared files are
+ */
+public class MappedFile {
+
+    // Size of each mapped region (the last one may be smaller)
+    private static final int REGION_SIZE_BYTES = 64 * 1024 * 1024;
+
+    // Largest file that can be shared (offsets and sizes of fragments are ints, on the wire too)
+    public static final long MAX_SIZE_BYTES = Integer.MAX_VALUE;
+
+    private final File file;
+    private final String fileName; // Name the file is shared under
+    private final long sizeBytes;
+
+    // Regions mapped so far (null until needed)
+    private MappedByteBuffer[] regions;
+
+    public MappedFile(File file) {
+        this(file, file.getName());
+    }
+
+    /**
+     * Constructor
+     * @param file File to share
+     * @param fileName Name to share it under (e.g. the name it was downloaded with, rather than the one it was saved with)
+     * @throws IllegalArgumentException If the file is bigger than MAX_SIZE_BYTES
+     */
+    public MappedFile(File file, String fileName) {
+        this.file = file;
+        this.fileName = fileName;
+        this.sizeBytes = file.length();
+
+        if (sizeBytes > MAX_SIZE_BYTES) {
+            throw new IllegalArgumentException(fileName + " is bigger than " + MAX_SIZE_BYTES + " bytes");
+        }
+
+        this.regions = new MappedByteBuffer[(int) ((sizeBytes + REGION_SIZE_BYTES - 1) / REGION_SIZE_BYTES)];
+    }
+
+    public long getSizeBytes() {
+        return sizeBytes;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public String getFileName() {
+        return fileName;
+    }
+
+    /**
+     * @param range Bytes to look for (the range must have a length)
+     * @return True if the range starts within the file
+     */
+    public boolean hasRange(ByteRange range) {
+        return range.getLength() > 0 && range.getInitByte() >= 0 && range.getInitByte() < sizeBytes;
+    }
+
+    /**
+     * Cut a fragment with a copy of some bytes of the file
+     * @param range Bytes to get (the range must have a length)
+     * @return Fragment with the requested bytes (fewer, if the file ends before), or null if the range is outside the file
+     * @throws IOException When mapping the file
+     */
+    public FileFragment getFragment(ByteRange range) throws IOException {
+        if (!hasRange(range)) {
+            return null;
+        }
+
+        long initByte = range.getInitByte();
+        int length = (int) Math.min(range.getLength(), sizeBytes - initByte);
+        byte[] chunk = new byte[length];
+
+        // A fragment may span two regions
+        int copied = 0;
+        while (copied < length) {
+            long position = initByte + copied;
+            int regionIndex = (int) (position / REGION_SIZE_BYTES);
+            int offsetInRegion = (int) (position % REGION_SIZE_BYTES);
+
+            MappedByteBuffer region = getRegion(regionIndex);
+            int bytesFromRegion = Math.min(length - copied, region.capacity() - offsetInRegion);
+
+            // Positioned on a view, so the mapped region itself is left untouched
+            ByteBuffer view = region.duplicate();
+            view.position(offsetInRegion);
+            view.get(chunk, copied, bytesFromRegion);
+
+            copied += bytesFromRegion;
+        }
+
+        return new FileFragment(chunk, (int) initByte, (int) sizeBytes, fileName);
+    }
+
+    private MappedByteBuffer getRegion(int regionIndex) throws IOException {
+        if (regions[regionIndex] == null) {
+            long regionStart = (long) regionIndex * REGION_SIZE_BYTES;
+            long regionSize = Math.min(REGION_SIZE_BYTES, sizeBytes - regionStart);
+
+            // The mapping stays valid once the channel is closed
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                regions[regionIndex] = channel.map(FileChannel.MapMode.READ_ONLY, regionStart, regionSize);
+            }
+        }
+
+        return regions[regionIndex];
+    }
+
+    @Override
+    public String toString() {
+        return fileName + " (" + sizeBytes + " bytes, mapped)";
+    }
+}
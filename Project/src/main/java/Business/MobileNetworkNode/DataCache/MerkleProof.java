@@ -0,0 +1,36 @@
+package Business.MobileNetworkNode.DataCache;
+
+import java.io.Serializable;
+
+/**
+ * Hashes that come along with a fragment so it can be checked against the Merkle tree of its file:
+ * those of the nodes outside the fragment that are needed to hash it up to a node the receiver
+ * already knows (the anchor), in the order they're met going down the tree, left to right
+ */
+public class MerkleProof implements Serializable {
+
+    private int anchorLevel; // Level of the node the fragment is hashed up to
+    private byte[] hashes; // Hashes of the nodes, one after the other
+
+    public MerkleProof(int anchorLevel, byte[] hashes) {
+        this.anchorLevel = anchorLevel;
+        this.hashes = hashes;
+    }
+
+    public int getAnchorLevel() {
+        return anchorLevel;
+    }
+
+    public byte[] getHashes() {
+        return hashes;
+    }
+
+    public int getNumberOfHashes() {
+        return hashes.length / MerkleTree.HASH_SIZE_BYTES;
+    }
+
+    @Override
+    public String toString() {
+        return "(anchor=" + anchorLevel + ",hashes=" + getNumberOfHashes() + ")";
+    }
+}
@@ -0,0 +1,754 @@
+package Business.MobileNetworkNode.DataCache;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+/**
+ * Merkle tree over the chunks of a file, so that each fragment can be checked as soon as it arrives
+ * (rather than the whole file, once it's complete).
+ *
+ * Leaves (level 0) are the hashes of the chunks, and every other node is the hash of its two children.
+ * A node without a right child (at the end of a level) is its left child, moved up. Leaves and nodes
+ * are hashed with a different prefix, so that one can't be passed off as the other.
+ *
+ * Whoever shares the file knows the whole tree, whoever downloads it starts knowing only the root
+ * (advertised alongside the file hash). A fragment is checked by hashing its chunks up to a node that
+ * is already known (its anchor), with the hashes of the nodes outside the fragment that are needed
+ * on the way (its proof). Once a fragment checks out, every node on the way is known too, so the
+ * further a download goes, the closer to the chunks the anchors are and the shorter the proofs.
+ *
+ * Nodes are kept in pages, each one allocated once a node of it is known, so a tree only takes memory
+ * for what it knows (e.g. the tree of a file being relayed, of which only a few fragments go through).
+ *
+ * A tree that knows every node can let go of its lower levels, and read its leaves from elsewhere
+ * (e.g. the content index) whenever a proof or a run of leaves needs them. Only the subtrees under the
+ * range asked for are hashed up again, and checked against the lowest level still in memory
+ */
+public class MerkleTree {
+
+    // Hashes are SHA-256, cut to 128 bits
+    public static final int HASH_SIZE_BYTES = 16;
+    private static final String HASH_ALGORITHM = "SHA-256";
+
+    // Anchor level that means the root, whatever the height of the tree
+    public static final int ROOT_LEVEL = 31;
+
+    // Size of the buffer files are read through when the tree is built
+    private static final int READ_BUFFER_SIZE_BYTES = 64 * 1024;
+
+    // Number of nodes of a level in each page (a power of two, fewer if the level is smaller)
+    private static final int PAGE_SHIFT = 5;
+    private static final int PAGE_SIZE_NODES = 1 << PAGE_SHIFT;
+
+    // Memory a page takes besides its hashes (the page, the bits of the nodes known and its entry in the map), roughly
+    private static final int PAGE_OVERHEAD_BYTES = 128;
+
+    private static final byte LEAF_PREFIX = 0;
+    private static final byte NODE_PREFIX = 1;
+
+    private final int totalSizeBytes;
+    private final int chunkSizeBytes;
+    private final int numberOfLeaves;
+
+    // Level of the root (0 if the file is a single chunk)
+    private final int topLevel;
+
+    // Pages of nodes known, by level and index of the page (level in the upper 32 bits)
+    private Map<Long, Page> pages;
+
+    // Number of nodes known of each level
+    private int[] numberOfKnownNodes;
+
+    // Memory taken by the pages, roughly
+    private long sizeBytes;
+
+    // Levels below this one aren't in memory (every node of them is known, and hashed up from the leaf source as needed)
+    private int lowestLevelInMemory;
+    private LeafSource leafSource;
+
+    private MessageDigest digest;
+
+    private MerkleTree(int totalSizeBytes, int chunkSizeBytes) {
+        this.totalSizeBytes = totalSizeBytes;
+        this.chunkSizeBytes = chunkSizeBytes;
+        this.numberOfLeaves = Math.max(1, (totalSizeBytes + chunkSizeBytes - 1) / chunkSizeBytes);
+
+        int level = 0;
+        while (levelSize(level) > 1) {
+            level++;
+        }
+        this.topLevel = level;
+
+        this.pages = new HashMap<>();
+        this.numberOfKnownNodes = new int[topLevel + 1];
+        this.sizeBytes = 0;
+        this.lowestLevelInMemory = 0;
+        this.leafSource = null;
+
+        try {
+            this.digest = MessageDigest.getInstance(HASH_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            // Every JVM has to provide it
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Build the whole tree of a file, reading it a chunk at a time
+     * @param file File to build the tree of
+     * @param chunkSizeBytes Size of the chunks (leaves)
+     * @return Tree, with every node known
+     * @throws IOException When reading the file
+     */
+    public static MerkleTree build(File file, int chunkSizeBytes) throws IOException {
+        return build(file, chunkSizeBytes, null);
+    }
+
+    /**
+     * Build the whole tree of a file, reading it a chunk at a time, and digest the whole file on the same read
+     * @param file File to build the tree of
+     * @param chunkSizeBytes Size of the chunks (leaves)
+     * @param fileDigest Digest fed every byte of the file, in order (null if none)
+     * @return Tree, with every node known
+     * @throws IOException When reading the file
+     */
+    public static MerkleTree build(File file, int chunkSizeBytes, MessageDigest fileDigest) throws IOException {
+        return build(file, chunkSizeBytes, fileDigest, null);
+    }
+
+    /**
+     * Build the whole tree of a file, reading it a chunk at a time, and digest and cut the whole file
+     * into content-defined chunks on the same read
+     * @param file File to build the tree of
+     * @param chunkSizeBytes Size of the chunks (leaves)
+     * @param fileDigest Digest fed every byte of the file, in order (null if none)
+     * @param contentChunker Chunker fed every byte of the file, in order (null if none)
+     * @return Tree, with every node known
+     * @throws IOException When reading the file
+     * @throws IllegalArgumentException If the file is bigger than MappedFile.MAX_SIZE_BYTES
+     */
+    public static MerkleTree build(File file, int chunkSizeBytes, MessageDigest fileDigest, ContentChunker contentChunker) throws IOException {
+        if (file.length() > MappedFile.MAX_SIZE_BYTES) {
+            throw new IllegalArgumentException(file.getName() + " is bigger than " + MappedFile.MAX_SIZE_BYTES + " bytes");
+        }
+
+        MerkleTree tree = new MerkleTree((int) file.length(), chunkSizeBytes);
+        byte[] chunk = new byte[chunkSizeBytes];
+
+        try (InputStream in = new BufferedInputStream(new FileInputStream(file), READ_BUFFER_SIZE_BYTES)) {
+            for (int leaf = 0; leaf < tree.numberOfLeaves; leaf++) {
+                int chunkLength = Math.min(chunkSizeBytes, tree.totalSizeBytes - leaf * chunkSizeBytes);
+                int bytesRead = 0;
+
+                while (bytesRead < chunkLength) {
+                    int n = in.read(chunk, bytesRead, chunkLength - bytesRead);
+
+                    if (n < 0) {
+                        throw new IOException(file.getName() + " ended before its chunk " + leaf);
+                    }
+
+                    bytesRead += n;
+                }
+
+                if (fileDigest != null) {
+                    fileDigest.update(chunk, 0, Math.max(0, chunkLength));
+                }
+
+                if (contentChunker != null) {
+                    contentChunker.update(chunk, 0, Math.max(0, chunkLength));
+                }
+
+                tree.setNode(0, leaf, tree.hashLeaf(chunk, 0, Math.max(0, chunkLength)));
+            }
+        }
+
+        tree.hashInnerNodes();
+
+        return tree;
+    }
+
+    /**
+     * Rebuild the whole tree of a file from its leaves (e.g. as they were saved the last time it was built)
+     * @param leaves Hashes of the chunks, one after the other
+     * @param totalSizeBytes Size of the file
+     * @param chunkSizeBytes Size of the chunks (leaves)
+     * @return Tree, with every node known
+     * @throws IllegalArgumentException If there aren't as many leaves as chunks in the file
+     */
+    public static MerkleTree fromLeaves(byte[] leaves, int totalSizeBytes, int chunkSizeBytes) {
+        MerkleTree tree = new MerkleTree(totalSizeBytes, chunkSizeBytes);
+
+        if (leaves.length != (long) tree.numberOfLeaves * HASH_SIZE_BYTES) {
+            throw new IllegalArgumentException("Expected " + tree.numberOfLeaves + " leaves, got " + leaves.length / HASH_SIZE_BYTES);
+        }
+
+        for (int leaf = 0; leaf < tree.numberOfLeaves; leaf++) {
+            tree.setNode(0, leaf, leaves, leaf * HASH_SIZE_BYTES);
+        }
+
+        tree.hashInnerNodes();
+
+        return tree;
+    }
+
+    /**
+     * Start the tree of a file being downloaded, of which only the root is known
+     * @param root Hash of the root
+     * @param totalSizeBytes Size of the file
+     * @param chunkSizeBytes Size of the chunks (leaves)
+     * @return Tree, knowing only its root
+     */
+    public static MerkleTree fromRoot(byte[] root, int totalSizeBytes, int chunkSizeBytes) {
+        MerkleTree tree = new MerkleTree(totalSizeBytes, chunkSizeBytes);
+        tree.setNode(tree.topLevel, 0, root);
+
+        return tree;
+    }
+
+    public byte[] getRoot() {
+        return getNode(topLevel, 0);
+    }
+
+    public int getTotalSizeBytes() {
+        return totalSizeBytes;
+    }
+
+    public int getChunkSizeBytes() {
+        return chunkSizeBytes;
+    }
+
+    /**
+     * @return Memory taken by the nodes in memory, roughly (pages of nodes known, and what it takes to keep them)
+     */
+    public long getSizeBytes() {
+        return sizeBytes;
+    }
+
+    /**
+     * Let go of the lower levels of a tree that knows every node, reading its leaves whenever they're needed
+     * @param numberOfLevels Number of levels to let go of, from the leaves up (the root is always kept)
+     * @param leafSource Where the leaves are read from
+     */
+    public void dropLowerLevels(int numberOfLevels, LeafSource leafSource) {
+        if (!hasEveryLeaf() || numberOfLevels <= lowestLevelInMemory) {
+            return;
+        }
+
+        this.lowestLevelInMemory = Math.min(numberOfLevels, topLevel);
+        this.leafSource = leafSource;
+
+        Iterator<Map.Entry<Long, Page>> it = pages.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Long, Page> page = it.next();
+
+            if ((page.getKey() >>> 32) < lowestLevelInMemory) {
+                sizeBytes -= page.getValue().getSizeBytes();
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * @return Hashes of the chunks, one after the other (only meaningful on a tree that knows every leaf, null
+     * if they can't be read)
+     */
+    public byte[] getLeaves() {
+        return getLeaves(0, numberOfLeaves);
+    }
+
+    /**
+     * @param firstLeaf First leaf to get
+     * @param endLeaf Leaf after the last one to get
+     * @return Hashes of the chunks in between, one after the other (only meaningful on a tree that knows them,
+     * null if they can't be read)
+     */
+    public byte[] getLeaves(int firstLeaf, int endLeaf) {
+        if (lowestLevelInMemory == 0) {
+            byte[] leaves = new byte[(endLeaf - firstLeaf) * HASH_SIZE_BYTES];
+
+            // Leaves not known are left zeroed
+            for (int leaf = firstLeaf; leaf < endLeaf; leaf++) {
+                Page page = pages.get(pageKey(0, leaf));
+
+                if (page != null) {
+                    System.arraycopy(page.hashes, offsetInPage(leaf), leaves, (leaf - firstLeaf) * HASH_SIZE_BYTES, HASH_SIZE_BYTES);
+                }
+            }
+
+            return leaves;
+        }
+
+        Map<Long, byte[]> lowerNodes = readLowerNodes(firstLeaf, endLeaf);
+        if (lowerNodes == null) {
+            return null;
+        }
+
+        byte[] leaves = new byte[(endLeaf - firstLeaf) * HASH_SIZE_BYTES];
+        for (int leaf = firstLeaf; leaf < endLeaf; leaf++) {
+            System.arraycopy(lowerNodes.get((long) leaf), 0, leaves, (leaf - firstLeaf) * HASH_SIZE_BYTES, HASH_SIZE_BYTES);
+        }
+
+        return leaves;
+    }
+
+    /**
+     * Level of the anchor to ask a proof for, along with a range: the lowest node known that holds all of it
+     * @param initByte First byte of the range
+     * @param length Number of bytes in the range
+     * @return Level of the anchor
+     */
+    public int getProofLevel(int initByte, int length) {
+        int firstLeaf = initByte / chunkSizeBytes;
+        int endLeaf = Math.min(numberOfLeaves, (initByte + length + chunkSizeBytes - 1) / chunkSizeBytes);
+
+        if (length <= 0 || firstLeaf >= endLeaf) {
+            return ROOT_LEVEL;
+        }
+
+        int level = getCommonAncestorLevel(firstLeaf, endLeaf);
+
+        while (level < topLevel && !isKnown(level, firstLeaf >> level)) {
+            level++;
+        }
+
+        return level;
+    }
+
+    /**
+     * Proof of a range of the file, for whoever knows the node it's anchored at
+     * @param initByte First byte of the range (the start of a chunk)
+     * @param length Number of bytes in the range
+     * @param anchorLevel Level of the node the receiver knows (raised to the lowest that holds the whole range)
+     * @return Proof, or null if it needs nodes this tree doesn't know
+     */
+    public MerkleProof getProof(int initByte, int length, int anchorLevel) {
+        int firstLeaf = initByte / chunkSizeBytes;
+        int endLeaf = Math.min(numberOfLeaves, (initByte + length + chunkSizeBytes - 1) / chunkSizeBytes);
+
+        if (initByte < 0 || length <= 0 || firstLeaf >= endLeaf) {
+            return null;
+        }
+
+        int level = Math.max(Math.min(anchorLevel, topLevel), getCommonAncestorLevel(firstLeaf, endLeaf));
+
+        Map<Long, byte[]> lowerNodes = readLowerNodes(firstLeaf, endLeaf);
+        if (lowerNodes == null) {
+            return null;
+        }
+
+        List<byte[]> hashes = new ArrayList<>();
+        if (!collectProof(level, firstLeaf >> level, firstLeaf, endLeaf, hashes, lowerNodes)) {
+            return null;
+        }
+
+        byte[] proofHashes = new byte[hashes.size() * HASH_SIZE_BYTES];
+        for (int i = 0; i < hashes.size(); i++) {
+            System.arraycopy(hashes.get(i), 0, proofHashes, i * HASH_SIZE_BYTES, HASH_SIZE_BYTES);
+        }
+
+        return new MerkleProof(level, proofHashes);
+    }
+
+    /**
+     * Check a fragment against the tree, with the proof that came along with it. If it checks out,
+     * every node hashed on the way is known from then on
+     * @param fragment Fragment to check, starting at a chunk and ending at one (or at the end of the file)
+     * @return True if the fragment belongs to the file
+     */
+    public boolean verify(FileFragment fragment) {
+        int initByte = fragment.getInitbyte();
+        byte[] bytes = fragment.getChunk();
+        int endByte = initByte + bytes.length;
+
+        if (initByte < 0 || initByte % chunkSizeBytes != 0 || endByte > totalSizeBytes
+                || (endByte % chunkSizeBytes != 0 && endByte != totalSizeBytes)
+                || (bytes.length == 0 && totalSizeBytes != 0)) {
+            return false;
+        }
+
+        int firstLeaf = initByte / chunkSizeBytes;
+        int endLeaf = Math.max(firstLeaf + 1, (endByte + chunkSizeBytes - 1) / chunkSizeBytes);
+
+        byte[][] leafHashes = new byte[endLeaf - firstLeaf][];
+        for (int leaf = firstLeaf; leaf < endLeaf; leaf++) {
+            int offset = (leaf - firstLeaf) * chunkSizeBytes;
+            leafHashes[leaf - firstLeaf] = hashLeaf(bytes, offset, Math.min(chunkSizeBytes, bytes.length - offset));
+        }
+
+        return verifyLeaves(firstLeaf, leafHashes, fragment.getProof());
+    }
+
+    /**
+     * Check the hashes of a run of leaves (e.g. as a file's owner maps it) against the tree, with the
+     * proof that came along with them. If they check out, they're known from then on (and so is every
+     * node on the way)
+     * @param firstLeaf First leaf of the run
+     * @param leaves Hashes of the leaves, one after the other
+     * @param proof Proof of the run (null if the nodes outside it have to be known already)
+     * @return True if the leaves belong to the tree
+     */
+    public boolean verifyLeaves(int firstLeaf, byte[] leaves, MerkleProof proof) {
+        int numberOfLeavesInRun = leaves.length / HASH_SIZE_BYTES;
+
+        if (firstLeaf < 0 || numberOfLeavesInRun == 0 || leaves.length % HASH_SIZE_BYTES != 0
+                || firstLeaf + numberOfLeavesInRun > numberOfLeaves) {
+            return false;
+        }
+
+        byte[][] leafHashes = new byte[numberOfLeavesInRun][];
+        for (int i = 0; i < numberOfLeavesInRun; i++) {
+            leafHashes[i] = Arrays.copyOfRange(leaves, i * HASH_SIZE_BYTES, (i + 1) * HASH_SIZE_BYTES);
+        }
+
+        return verifyLeaves(firstLeaf, leafHashes, proof);
+    }
+
+    /**
+     * @return True if every leaf is known
+     */
+    public boolean hasEveryLeaf() {
+        return lowestLevelInMemory > 0 || numberOfKnownNodes[0] == numberOfLeaves;
+    }
+
+    /**
+     * @param fromLeaf Leaf to start looking at
+     * @return First known leaf from there on (the number of leaves if there's none)
+     */
+    public int getNextKnownLeaf(int fromLeaf) {
+        if (lowestLevelInMemory > 0) {
+            return Math.min(fromLeaf, numberOfLeaves);
+        }
+
+        // Pages not allocated have no leaf known
+        for (int leaf = Math.max(0, fromLeaf); leaf < numberOfLeaves; leaf = (leaf | (PAGE_SIZE_NODES - 1)) + 1) {
+            Page page = pages.get(pageKey(0, leaf));
+
+            int known = page != null ? page.knownNodes.nextSetBit(leaf & (PAGE_SIZE_NODES - 1)) : -1;
+            if (known >= 0) {
+                return Math.min((leaf & ~(PAGE_SIZE_NODES - 1)) + known, numberOfLeaves);
+            }
+        }
+
+        return numberOfLeaves;
+    }
+
+    /**
+     * @param fromLeaf Leaf to start looking at
+     * @return First leaf not known from there on (the number of leaves if there's none)
+     */
+    public int getNextUnknownLeaf(int fromLeaf) {
+        if (lowestLevelInMemory > 0) {
+            return numberOfLeaves;
+        }
+
+        for (int leaf = Math.max(0, fromLeaf); leaf < numberOfLeaves; leaf = (leaf | (PAGE_SIZE_NODES - 1)) + 1) {
+            Page page = pages.get(pageKey(0, leaf));
+
+            if (page == null) {
+                return leaf;
+            }
+
+            int unknown = page.knownNodes.nextClearBit(leaf & (PAGE_SIZE_NODES - 1));
+            if (unknown < PAGE_SIZE_NODES) {
+                return Math.min((leaf & ~(PAGE_SIZE_NODES - 1)) + unknown, numberOfLeaves);
+            }
+        }
+
+        return numberOfLeaves;
+    }
+
+    // Hash leaves up to their anchor, and keep every node on the way if it matches
+    private boolean verifyLeaves(int firstLeaf, byte[][] leafHashes, MerkleProof proof) {
+        int endLeaf = firstLeaf + leafHashes.length;
+
+        if (lowestLevelInMemory > 0) {
+            // Every leaf is known already, they only have to be the same
+            byte[] knownLeaves = getLeaves(firstLeaf, endLeaf);
+
+            for (int i = 0; knownLeaves != null && i < leafHashes.length; i++) {
+                if (!Arrays.equals(leafHashes[i], Arrays.copyOfRange(knownLeaves, i * HASH_SIZE_BYTES, (i + 1) * HASH_SIZE_BYTES))) {
+                    return false;
+                }
+            }
+
+            return knownLeaves != null;
+        }
+
+        // Without a proof, the nodes outside the leaves have to be known already
+        int anchorLevel = proof != null
+                ? Math.min(proof.getAnchorLevel(), topLevel)
+                : getProofLevel(firstLeaf * chunkSizeBytes, (endLeaf - firstLeaf) * chunkSizeBytes);
+        int anchorIndex = firstLeaf >> anchorLevel;
+
+        if (anchorLevel < getCommonAncestorLevel(firstLeaf, endLeaf) || !isKnown(anchorLevel, anchorIndex)) {
+            return false;
+        }
+
+        // Nodes hashed (or taken from the proof) on the way, only kept if the leaves check out
+        Map<Long, byte[]> nodesOnTheWay = new HashMap<>();
+        int[] nextProofHash = { 0 };
+
+        byte[] anchor = hashUpTo(anchorLevel, anchorIndex, firstLeaf, endLeaf, leafHashes, proof, nextProofHash, nodesOnTheWay);
+
+        if (anchor == null || !Arrays.equals(anchor, getNode(anchorLevel, anchorIndex))
+                || (proof != null && nextProofHash[0] != proof.getNumberOfHashes())) {
+            return false;
+        }
+
+        for (Map.Entry<Long, byte[]> node : nodesOnTheWay.entrySet()) {
+            setNode((int) (node.getKey() >>> 32), (int) (long) node.getKey(), node.getValue());
+        }
+
+        return true;
+    }
+
+    // Every node above the leaves, from the leaves (which must all be known)
+    private void hashInnerNodes() {
+        for (int level = 1; level <= topLevel; level++) {
+            for (int index = 0; index < levelSize(level); index++) {
+                setNode(level, index, hashChildren(level, index));
+            }
+        }
+    }
+
+    // Nodes outside the range, under a node, left to right (false if one isn't known)
+    private boolean collectProof(int level, int index, int firstLeaf, int endLeaf, List<byte[]> hashes, Map<Long, byte[]> lowerNodes) {
+        if (isOutside(level, index, firstLeaf, endLeaf)) {
+            if (!isKnown(level, index)) {
+                return false;
+            }
+
+            hashes.add(level < lowestLevelInMemory ? lowerNodes.get(((long) level << 32) | index) : getNode(level, index));
+            return true;
+        }
+
+        if (level == 0) {
+            return true;
+        }
+
+        if (!collectProof(level - 1, 2 * index, firstLeaf, endLeaf, hashes, lowerNodes)) {
+            return false;
+        }
+
+        return 2 * index + 1 >= levelSize(level - 1) || collectProof(level - 1, 2 * index + 1, firstLeaf, endLeaf, hashes, lowerNodes);
+    }
+
+    // Nodes below the levels in memory, of the subtrees the range is in, hashed up from their leaves
+    // (null if they can't be read, or don't add up to the nodes in memory)
+    private Map<Long, byte[]> readLowerNodes(int firstLeaf, int endLeaf) {
+        Map<Long, byte[]> lowerNodes = new HashMap<>();
+
+        if (lowestLevelInMemory == 0 || firstLeaf >= endLeaf) {
+            return lowerNodes;
+        }
+
+        int firstSubtree = firstLeaf >> lowestLevelInMemory;
+        int endSubtree = ((endLeaf - 1) >> lowestLevelInMemory) + 1;
+        int firstLeafRead = firstSubtree << lowestLevelInMemory;
+        int endLeafRead = (int) Math.min((long) endSubtree << lowestLevelInMemory, numberOfLeaves);
+
+        byte[] leaves;
+        try {
+            leaves = leafSource.readLeaves(firstLeafRead, endLeafRead);
+        } catch (IOException e) {
+            return null;
+        }
+
+        if (leaves.length != (endLeafRead - firstLeafRead) * HASH_SIZE_BYTES) {
+            return null;
+        }
+
+        for (int leaf = firstLeafRead; leaf < endLeafRead; leaf++) {
+            lowerNodes.put((long) leaf, Arrays.copyOfRange(leaves, (leaf - firstLeafRead) * HASH_SIZE_BYTES, (leaf - firstLeafRead + 1) * HASH_SIZE_BYTES));
+        }
+
+        for (int level = 1; level <= lowestLevelInMemory; level++) {
+            for (int index = firstLeafRead >> level; index <= (endLeafRead - 1) >> level; index++) {
+                byte[] hash = lowerNodes.get(((long) (level - 1) << 32) | (2 * index));
+
+                if (2 * index + 1 < levelSize(level - 1)) {
+                    hash = hashNode(hash, lowerNodes.get(((long) (level - 1) << 32) | (2 * index + 1)));
+                }
+
+                if (level < lowestLevelInMemory) {
+                    lowerNodes.put(((long) level << 32) | index, hash);
+                } else if (!Arrays.equals(hash, getNode(level, index))) {
+                    // The leaves read aren't those of this tree
+                    return null;
+                }
+            }
+        }
+
+        return lowerNodes;
+    }
+
+    // Hash of a node, from the leaves of the range and the nodes outside it (null if one is missing)
+    private byte[] hashUpTo(int level, int index, int firstLeaf, int endLeaf, byte[][] leafHashes, MerkleProof proof, int[] nextProofHash, Map<Long, byte[]> nodesOnTheWay) {
+        byte[] hash;
+
+        if (isOutside(level, index, firstLeaf, endLeaf)) {
+            if (proof == null) {
+                hash = isKnown(level, index) ? getNode(level, index) : null;
+            } else if (nextProofHash[0] < proof.getNumberOfHashes()) {
+                hash = Arrays.copyOfRange(proof.getHashes(), nextProofHash[0] * HASH_SIZE_BYTES, (nextProofHash[0] + 1) * HASH_SIZE_BYTES);
+                nextProofHash[0]++;
+            } else {
+                hash = null;
+            }
+        } else if (level == 0) {
+            hash = leafHashes[index - firstLeaf];
+        } else {
+            byte[] left = hashUpTo(level - 1, 2 * index, firstLeaf, endLeaf, leafHashes, proof, nextProofHash, nodesOnTheWay);
+
+            if (left == null) {
+                return null;
+            }
+
+            if (2 * index + 1 < levelSize(level - 1)) {
+                byte[] right = hashUpTo(level - 1, 2 * index + 1, firstLeaf, endLeaf, leafHashes, proof, nextProofHash, nodesOnTheWay);
+                hash = right != null ? hashNode(left, right) : null;
+            } else {
+                hash = left;
+            }
+        }
+
+        if (hash != null) {
+            nodesOnTheWay.put(((long) level << 32) | index, hash);
+        }
+
+        return hash;
+    }
+
+    // True if none of the leaves under a node are in the range
+    private boolean isOutside(int level, int index, int firstLeaf, int endLeaf) {
+        long firstLeafUnder = (long) index << level;
+        long endLeafUnder = Math.min((long) (index + 1) << level, numberOfLeaves);
+
+        return endLeafUnder <= firstLeaf || firstLeafUnder >= endLeaf;
+    }
+
+    // Lowest level at which a single node holds every leaf of the range
+    private int getCommonAncestorLevel(int firstLeaf, int endLeaf) {
+        int level = 0;
+
+        while ((firstLeaf >> level) != ((endLeaf - 1) >> level)) {
+            level++;
+        }
+
+        return level;
+    }
+
+    private boolean isKnown(int level, int index) {
+        if (level < lowestLevelInMemory) {
+            return true;
+        }
+
+        Page page = pages.get(pageKey(level, index));
+
+        return page != null && page.knownNodes.get(index & (PAGE_SIZE_NODES - 1));
+    }
+
+    private int levelSize(int level) {
+        return ((numberOfLeaves - 1) >> level) + 1;
+    }
+
+    // Hash of a node (zeroed if it isn't known)
+    private byte[] getNode(int level, int index) {
+        Page page = pages.get(pageKey(level, index));
+
+        if (page == null) {
+            return new byte[HASH_SIZE_BYTES];
+        }
+
+        return Arrays.copyOfRange(page.hashes, offsetInPage(index), offsetInPage(index) + HASH_SIZE_BYTES);
+    }
+
+    private void setNode(int level, int index, byte[] hash) {
+        setNode(level, index, hash, 0);
+    }
+
+    private void setNode(int level, int index, byte[] hashes, int offset) {
+        Page page = pages.get(pageKey(level, index));
+
+        if (page == null) {
+            // The last page of a level (or the only one, of the upper levels) only has room for the nodes in it
+            int firstIndex = index & ~(PAGE_SIZE_NODES - 1);
+            page = new Page(Math.min(PAGE_SIZE_NODES, levelSize(level) - firstIndex));
+
+            pages.put(pageKey(level, index), page);
+            sizeBytes += page.getSizeBytes();
+        }
+
+        System.arraycopy(hashes, offset, page.hashes, offsetInPage(index), HASH_SIZE_BYTES);
+
+        int indexInPage = index & (PAGE_SIZE_NODES - 1);
+        if (!page.knownNodes.get(indexInPage)) {
+            page.knownNodes.set(indexInPage);
+            numberOfKnownNodes[level]++;
+        }
+    }
+
+    private static long pageKey(int level, int index) {
+        return ((long) level << 32) | (index >>> PAGE_SHIFT);
+    }
+
+    private static int offsetInPage(int index) {
+        return (index & (PAGE_SIZE_NODES - 1)) * HASH_SIZE_BYTES;
+    }
+
+    private byte[] hashChildren(int level, int index) {
+        byte[] left = getNode(level - 1, 2 * index);
+
+        if (2 * index + 1 >= levelSize(level - 1)) {
+            return left;
+        }
+
+        return hashNode(left, getNode(level - 1, 2 * index + 1));
+    }
+
+    private byte[] hashLeaf(byte[] bytes, int offset, int length) {
+        digest.update(LEAF_PREFIX);
+        digest.update(bytes, offset, length);
+
+        return Arrays.copyOf(digest.digest(), HASH_SIZE_BYTES);
+    }
+
+    private byte[] hashNode(byte[] left, byte[] right) {
+        digest.update(NODE_PREFIX);
+        digest.update(left);
+        digest.update(right);
+
+        return Arrays.copyOf(digest.digest(), HASH_SIZE_BYTES);
+    }
+
+    @Override
+    public String toString() {
+        int known = 0;
+        for (int level = 0; level <= topLevel; level++) {
+            known += level < lowestLevelInMemory ? levelSize(level) : numberOfKnownNodes[level];
+        }
+
+        return "(leaves=" + numberOfLeaves + ",height=" + topLevel + ",known=" + known + ")";
+    }
+
+    // A run of nodes of a level, and which of them are known
+    private static class Page {
+        private final byte[] hashes;
+        private final BitSet knownNodes;
+
+        private Page(int numberOfNodes) {
+            this.hashes = new byte[numberOfNodes * HASH_SIZE_BYTES];
+            this.knownNodes = new BitSet(numberOfNodes);
+        }
+
+        private long getSizeBytes() {
+            return hashes.length + PAGE_OVERHEAD_BYTES;
+        }
+    }
+}
@@ -0,0 +1,503 @@
+package Business.MobileNetworkNode.DataCache;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ * A file being downloaded, written straight to disk as its fragments arrive.
+ *
+ * The file is preallocated (sparse, where the file system allows it) under a temporary name, and
+ * every fragment is written at its own position. Only a bitmap of which chunks arrived is kept in
+ * memory, so files bigger than the heap can be downloaded (up to MappedFile.MAX_SIZE_BYTES, as fragments
+ * only have 32-bit offsets and sizes). Once every chunk is there, the file is renamed to its final name.
+ *
+ * Which chunks arrived, and from whom, is also appended to a journal next to the file (a few bytes
+ * per fragment, written after the fragment itself), so a download can be picked up where it was left
+ * if the node stops before it's complete. So are the leaves of the Merkle tree the chunks were checked
+ * against, so the file's tree is whole once it's complete without reading it all again
+ */
+public class PartialFile {
+
+    // Suffix of the file whilst it's incomplete
+    private static final String PARTIAL_SUFFIX = ".part";
+
+    // Suffix of the journal, next to the incomplete file
+    public static final String JOURNAL_SUFFIX = ".part.resume";
+
+    // Journal layout: version, file hash, file name, total size, chunk size. Then records, one per
+    // fragment (first and end chunk written, and then the leaves of those chunks, if they were checked)
+    // or per node that sent one (its MAC address). Version 1 journals have no leaves
+    private static final int JOURNAL_VERSION = 2;
+    private static final byte CHUNKS_RECORD = 'C';
+    private static final byte LEAVES_RECORD = 'L';
+    private static final byte SOURCE_RECORD = 'S';
+
+    private final String fileHash;
+    private final String fileName;
+    private final int totalSizeBytes;
+
+    // Size of the chunks the bitmap tracks
+    private final int chunkSizeBytes;
+
+    // File being written, and where it goes once complete
+    private final File partialFile;
+    private final File targetFile;
+    private FileChannel channel;
+
+    // Journal of the chunks written, and its channel (appends only)
+    private final File journalFile;
+    private FileChannel journalChannel;
+
+    // Nodes that sent fragments of the file
+    private Set<String> knownSources;
+
+    // Bit i is set once chunk i (bytes i*chunkSize up to (i+1)*chunkSize) is written
+    private BitSet receivedChunks;
+    private final int numberOfChunks;
+
+    // Number of bits set, kept so that checking for completion doesn't count them all on every fragment
+    private int numberOfReceivedChunks;
+
+    /**
+     * Constructor, preallocates the file on disk and starts its journal
+     * @param targetFile Where the file goes once complete
+     * @param fileHash Hash of the file being downloaded
+     * @param fileName Name of the file being downloaded
+     * @param totalSizeBytes Size of the complete file
+     * @param chunkSizeBytes Size of the chunks tracked
+     * @throws IOException When creating the file, or if the sizes make no sense
+     */
+    public PartialFile(File targetFile, String fileHash, String fileName, int totalSizeBytes, int chunkSizeBytes) throws IOException {
+        this(targetFile, fileHash, fileName, totalSizeBytes, chunkSizeBytes, new BitSet(), new LinkedHashSet<>(), null, new BitSet());
+    }
+
+    // The leaves journaled are only written anew, they aren't kept
+    private PartialFile(File targetFile, String fileHash, String fileName, int totalSizeBytes, int chunkSizeBytes, BitSet receivedChunks,
+                        Set<String> knownSources, byte[] journaledLeaves, BitSet journaledLeafSet) throws IOException {
+        checkSizes(totalSizeBytes, chunkSizeBytes, targetFile.getPath());
+
+        this.fileHash = fileHash;
+        this.fileName = fileName;
+        this.totalSizeBytes = totalSizeBytes;
+        this.chunkSizeBytes = chunkSizeBytes;
+        this.targetFile = targetFile;
+        this.partialFile = new File(targetFile.getPath() + PARTIAL_SUFFIX);
+        this.journalFile = new File(targetFile.getPath() + JOURNAL_SUFFIX);
+        this.numberOfChunks = numberOfChunks(totalSizeBytes, chunkSizeBytes);
+        this.receivedChunks = receivedChunks;
+        this.numberOfReceivedChunks = receivedChunks.cardinality();
+        this.knownSources = knownSources;
+
+        RandomAccessFile file = new RandomAccessFile(partialFile, "rw");
+        file.setLength(totalSizeBytes);
+        this.channel = file.getChannel();
+
+        // Whatever was in the journal is written anew, as a single record per run of chunks
+        writeJournalSnapshot(journaledLeaves, journaledLeafSet);
+        this.journalChannel = FileChannel.open(journalFile.toPath(), StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    /**
+     * Pick up a download from its journal, as it was when the node stopped
+     * @param journalFile Journal of the download
+     * @return The download, with the chunks it had received
+     * @throws IOException When the journal can't be read, or its file is gone
+     */
+    public static PartialFile resume(File journalFile) throws IOException {
+        String journalPath = journalFile.getPath();
+
+        if (!journalPath.endsWith(JOURNAL_SUFFIX)) {
+            throw new IOException("Not a journal: " + journalPath);
+        }
+
+        File targetFile = new File(journalPath.substring(0, journalPath.length() - JOURNAL_SUFFIX.length()));
+
+        if (!new File(targetFile.getPath() + PARTIAL_SUFFIX).exists()) {
+            throw new IOException("Incomplete file of " + journalPath + " is gone");
+        }
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(journalFile)))) {
+            int version = in.readInt();
+            if (version < 1 || version > JOURNAL_VERSION) {
+                throw new IOException("Unknown journal version: " + journalPath);
+            }
+
+            String fileHash = in.readUTF();
+            String fileName = in.readUTF();
+            int totalSizeBytes = in.readInt();
+            int chunkSizeBytes = in.readInt();
+            checkSizes(totalSizeBytes, chunkSizeBytes, journalPath);
+            int numberOfChunks = numberOfChunks(totalSizeBytes, chunkSizeBytes);
+
+            BitSet receivedChunks = new BitSet(numberOfChunks);
+            Set<String> knownSources = new LinkedHashSet<>();
+            byte[] journaledLeaves = new byte[numberOfChunks * MerkleTree.HASH_SIZE_BYTES];
+            BitSet journaledLeafSet = new BitSet(numberOfChunks);
+
+            readRecords(in, journalPath, numberOfChunks, receivedChunks, knownSources, journaledLeaves, journaledLeafSet);
+
+            return new PartialFile(targetFile, fileHash, fileName, totalSizeBytes, chunkSizeBytes, receivedChunks, knownSources,
+                    journaledLeaves, journaledLeafSet);
+        }
+    }
+
+    /**
+     * Pick up every download whose journal is in a directory
+     * @param directory Where downloads are written to
+     * @return Downloads picked up (those whose journal couldn't be read are left out)
+     */
+    public static List<PartialFile> resumeAll(File directory) {
+        List<PartialFile> partialFiles = new ArrayList<>();
+        File[] journalFiles = directory.listFiles((dir, name) -> name.endsWith(JOURNAL_SUFFIX));
+
+        if (journalFiles == null) {
+            return partialFiles;
+        }
+
+        for (File journalFile : journalFiles) {
+            try {
+                partialFiles.add(resume(journalFile));
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        return partialFiles;
+    }
+
+    // A size that's negative, or a chunk size too small to keep a leaf per chunk, comes from a corrupted
+    // journal or a bogus fragment
+    private static void checkSizes(int totalSizeBytes, int chunkSizeBytes, String path) throws IOException {
+        if (totalSizeBytes < 0 || chunkSizeBytes <= 0
+                || (long) numberOfChunks(totalSizeBytes, chunkSizeBytes) * MerkleTree.HASH_SIZE_BYTES > Integer.MAX_VALUE) {
+            throw new IOException("Bad sizes (" + totalSizeBytes + " bytes, chunks of " + chunkSizeBytes + "): " + path);
+        }
+    }
+
+    private static int numberOfChunks(int totalSizeBytes, int chunkSizeBytes) {
+        return (int) (((long) totalSizeBytes + chunkSizeBytes - 1) / chunkSizeBytes);
+    }
+
+    public String getFileHash() {
+        return fileHash;
+    }
+
+    public String getFileName() {
+        return fileName;
+    }
+
+    public File getTargetFile() {
+        return targetFile;
+    }
+
+    public int getTotalSizeBytes() {
+        return totalSizeBytes;
+    }
+
+    public int getNumberOfReceivedChunks() {
+        return numberOfReceivedChunks;
+    }
+
+    public Set<String> getKnownSources() {
+        return knownSources;
+    }
+
+    public boolean isComplete() {
+        return numberOfReceivedChunks == numberOfChunks;
+    }
+
+    /**
+     * First run of chunks not yet received, at or after a given byte
+     * @param fromByte Byte to start looking at
+     * @return Range of the missing bytes (up to the next chunk received, or the end of the file), or null if none are missing
+     */
+    public ByteRange getNextMissingRange(int fromByte) {
+        int firstMissingChunk = receivedChunks.nextClearBit(Math.max(0, fromByte) / chunkSizeBytes);
+
+        // Past the end of the file, the last chunk may still be missing but has nothing left to ask for
+        if (firstMissingChunk >= numberOfChunks || fromByte >= totalSizeBytes) {
+            return null;
+        }
+
+        int nextReceivedChunk = receivedChunks.nextSetBit(firstMissingChunk);
+        int initByte = Math.max(fromByte, firstMissingChunk * chunkSizeBytes);
+        int endByte = nextReceivedChunk < 0 ? totalSizeBytes : Math.min(totalSizeBytes, nextReceivedChunk * chunkSizeBytes);
+
+        return new ByteRange(initByte, endByte - initByte);
+    }
+
+    /**
+     * Every run of chunks not yet received
+     * @return Ranges of the missing bytes, in order
+     */
+    public List<ByteRange> getMissingRanges() {
+        List<ByteRange> missingRanges = new ArrayList<>();
+
+        for (ByteRange range = getNextMissingRange(0); range != null; range = getNextMissingRange(range.getInitByte() + range.getLength())) {
+            missingRanges.add(range);
+        }
+
+        return missingRanges;
+    }
+
+    /**
+     * Read back the leaves journaled so far
+     * @param leaves Where the hashes of the leaves go, one after the other (as many as chunks)
+     * @param journaledLeafSet Where the leaves read are set
+     * @throws IOException When reading the journal
+     */
+    public void readJournaledLeaves(byte[] leaves, BitSet journaledLeafSet) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(journalFile)))) {
+            // The header is known already
+            in.readInt();
+            in.readUTF();
+            in.readUTF();
+            in.readInt();
+            in.readInt();
+
+            readRecords(in, journalFile.getPath(), numberOfChunks, new BitSet(), new HashSet<>(), leaves, journaledLeafSet);
+        }
+    }
+
+    /**
+     * Write a fragment to disk. Fragments may overlap chunks already written (they can be cut at
+     * different sizes), those bytes are simply written again
+     * @param fragment Fragment to write
+     * @param sourceMAC Node that sent the fragment (null if unknown)
+     * @param merkleTree Tree the fragment was checked against, whose leaves of its chunks are journaled (null if none)
+     * @return Number of chunks that weren't written before
+     * @throws IOException When writing to the file
+     */
+    public int write(FileFragment fragment, String sourceMAC, MerkleTree merkleTree) throws IOException {
+        byte[] chunk = fragment.getChunk();
+        int initByte = fragment.getInitbyte();
+        int endByte = (int) Math.min((long) initByte + chunk.length, totalSizeBytes);
+
+        if (initByte < 0 || initByte >= endByte) {
+            return 0;
+        }
+
+        int firstChunk = firstChunkCoveredFrom(initByte);
+        int endChunk = endChunkCoveredUntil(endByte);
+
+        // Only the gaps are walked, chunks already there are skipped a word at a time
+        int newChunks = 0;
+        for (int i = receivedChunks.nextClearBit(firstChunk); i < endChunk; i = receivedChunks.nextClearBit(i + 1)) {
+            newChunks++;
+        }
+
+        if (newChunks == 0) {
+            return 0;
+        }
+
+        ByteBuffer buffer = ByteBuffer.wrap(chunk, 0, endByte - initByte);
+        long position = initByte;
+
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+
+        receivedChunks.set(firstChunk, endChunk);
+        numberOfReceivedChunks += newChunks;
+
+        // Journaled only once written, so the journal never claims bytes that aren't in the file
+        ByteArrayOutputStream record = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(record);
+        writeChunksRecord(out, firstChunk, endChunk);
+
+        byte[] leaves = merkleTree != null && merkleTree.getChunkSizeBytes() == chunkSizeBytes ? merkleTree.getLeaves(firstChunk, endChunk) : null;
+        if (leaves != null) {
+            writeLeavesRecord(out, firstChunk, endChunk, leaves);
+        }
+
+        if (sourceMAC != null && knownSources.add(sourceMAC)) {
+            writeSourceRecord(out, sourceMAC);
+        }
+
+        ByteBuffer recordBuffer = ByteBuffer.wrap(record.toByteArray());
+        while (recordBuffer.hasRemaining()) {
+            journalChannel.write(recordBuffer);
+        }
+
+        return newChunks;
+    }
+
+    /**
+     * @param range Bytes to look for (the range must have a length)
+     * @return True if every chunk the range touches was received
+     */
+    public boolean hasRange(ByteRange range) {
+        int initByte = range.getInitByte();
+        int endByte = (int) Math.min((long) initByte + range.getLength(), totalSizeBytes);
+
+        if (range.getLength() <= 0 || initByte < 0 || initByte >= endByte) {
+            return false;
+        }
+
+        int firstChunk = initByte / chunkSizeBytes;
+        int endChunk = numberOfChunks(endByte, chunkSizeBytes);
+
+        return receivedChunks.nextClearBit(firstChunk) >= endChunk;
+    }
+
+    /**
+     * Read back a fragment that was already received
+     * @param range Bytes to get (the range must have a length)
+     * @return Fragment with the requested bytes (fewer, if the file ends before), or null if they weren't all received
+     * @throws IOException When reading the file
+     */
+    public FileFragment read(ByteRange range) throws IOException {
+        if (!hasRange(range)) {
+            return null;
+        }
+
+        int initByte = range.getInitByte();
+        int length = Math.min(range.getLength(), totalSizeBytes - initByte);
+
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        long position = initByte;
+
+        while (buffer.hasRemaining()) {
+            int bytesRead = channel.read(buffer, position);
+
+            if (bytesRead < 0) {
+                throw new IOException("Partial file ended before " + position);
+            }
+
+            position += bytesRead;
+        }
+
+        return new FileFragment(buffer.array(), initByte, totalSizeBytes, fileName);
+    }
+
+    /**
+     * Close the file and give it its final name. Its journal is no longer needed
+     * @throws IOException When renaming it
+     */
+    public void complete() throws IOException {
+        channel.close();
+        journalChannel.close();
+        Files.move(partialFile.toPath(), targetFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        journalFile.delete();
+    }
+
+    /**
+     * Close and delete the incomplete file, and its journal
+     */
+    public void discard() {
+        try {
+            channel.close();
+
+            if (journalChannel != null) {
+                journalChannel.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
+        partialFile.delete();
+        journalFile.delete();
+    }
+
+    // Write the whole journal from scratch (to a temporary file first, so a journal is never left half written)
+    private void writeJournalSnapshot(byte[] journaledLeaves, BitSet journaledLeafSet) throws IOException {
+        File snapshotFile = new File(journalFile.getPath() + ".tmp");
+
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(snapshotFile)))) {
+            out.writeInt(JOURNAL_VERSION);
+            out.writeUTF(fileHash);
+            out.writeUTF(fileName);
+            out.writeInt(totalSizeBytes);
+            out.writeInt(chunkSizeBytes);
+
+            for (int first = receivedChunks.nextSetBit(0); first >= 0; first = receivedChunks.nextSetBit(receivedChunks.nextClearBit(first))) {
+                writeChunksRecord(out, first, receivedChunks.nextClearBit(first));
+            }
+
+            for (int first = journaledLeafSet.nextSetBit(0); first >= 0; first = journaledLeafSet.nextSetBit(journaledLeafSet.nextClearBit(first))) {
+                int end = journaledLeafSet.nextClearBit(first);
+                writeLeavesRecord(out, first, end, Arrays.copyOfRange(journaledLeaves, first * MerkleTree.HASH_SIZE_BYTES, end * MerkleTree.HASH_SIZE_BYTES));
+            }
+
+            for (String sourceMAC : knownSources) {
+                writeSourceRecord(out, sourceMAC);
+            }
+        }
+
+        Files.move(snapshotFile.toPath(), journalFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static void writeChunksRecord(DataOutputStream out, int firstChunk, int endChunk) throws IOException {
+        out.writeByte(CHUNKS_RECORD);
+        out.writeInt(firstChunk);
+        out.writeInt(endChunk);
+    }
+
+    private static void writeLeavesRecord(DataOutputStream out, int firstChunk, int endChunk, byte[] leaves) throws IOException {
+        out.writeByte(LEAVES_RECORD);
+        out.writeInt(firstChunk);
+        out.writeInt(endChunk);
+        out.write(leaves);
+    }
+
+    // Read the records of a journal, after its header, into what they tell
+    private static void readRecords(DataInputStream in, String journalPath, int numberOfChunks, BitSet receivedChunks,
+                                    Set<String> knownSources, byte[] leaves, BitSet journaledLeafSet) throws IOException {
+        try {
+            while (true) {
+                byte recordType = in.readByte();
+
+                if (recordType == CHUNKS_RECORD || recordType == LEAVES_RECORD) {
+                    int firstChunk = in.readInt();
+                    int endChunk = in.readInt();
+
+                    if (firstChunk < 0 || firstChunk > endChunk || endChunk > numberOfChunks) {
+                        throw new IOException("Corrupted journal: " + journalPath);
+                    }
+
+                    if (recordType == CHUNKS_RECORD) {
+                        receivedChunks.set(firstChunk, endChunk);
+                    } else {
+                        byte[] leavesRead = new byte[(endChunk - firstChunk) * MerkleTree.HASH_SIZE_BYTES];
+                        in.readFully(leavesRead);
+
+                        System.arraycopy(leavesRead, 0, leaves, firstChunk * MerkleTree.HASH_SIZE_BYTES, leavesRead.length);
+                        journaledLeafSet.set(firstChunk, endChunk);
+                    }
+                } else if (recordType == SOURCE_RECORD) {
+                    knownSources.add(in.readUTF());
+                } else {
+                    // What's left was being written when the node stopped
+                    break;
+                }
+            }
+        } catch (EOFException e) {
+            // End of the journal (the last record may have been cut short, it's left out)
+        }
+    }
+
+    private static void writeSourceRecord(DataOutputStream out, String sourceMAC) throws IOException {
+        out.writeByte(SOURCE_RECORD);
+        out.writeUTF(sourceMAC);
+    }
+
+    // First chunk that starts at (or after) a byte
+    private int firstChunkCoveredFrom(int initByte) {
+        return numberOfChunks(initByte, chunkSizeBytes);
+    }
+
+    // Chunk after the last one that ends at (or before) a byte. The last chunk of the file ends with it
+    private int endChunkCoveredUntil(int endByte) {
+        return endByte == totalSizeBytes ? numberOfChunks : endByte / chunkSizeBytes;
+    }
+
+    @Override
+    public String toString() {
+        return fileName + " (" + numberOfReceivedChunks + "/" + numberOfChunks + " chunks)";
+    }
+}
@@ -0,0 +1,308 @@
+package Business.MobileNetworkNode.DataCache;
+
+import java.util.*;
+
+/**
+ * Fragments of other nodes' files that went through this node on their way to someone else, kept so
+ * that the next request for them can be answered here instead of crossing the same hops again.
+ *
+ * Fragments are only kept once they check out against the Merkle tree of their file (whose root is
+ * advertised along with it), and only given with a proof, so a relay never passes on bytes it can't vouch for.
+ * They're kept a chunk at a time, within a budget of bytes, and the eviction policy decides which go first.
+ * The trees of the files count against the budget too (a tree only takes memory for the nodes it knows),
+ * and a file goes, tree and all, once its last chunk does
+ * @param <A> Key of the files
+ */
+public class RelayCache<A> {
+
+    // Max number of files whose trees are kept
+    private static final int MAX_RELAYED_FILES = 64;
+
+    private final long capacityBytes;
+    private final int chunkSizeBytes;
+    private long sizeBytes;
+
+    // Files relayed lately (their trees, and which of their chunks are cached), least recently used first
+    private LinkedHashMap<A, RelayedFile> relayedFiles;
+
+    // Cached chunks of every file
+    private Map<CachedChunk<A>, byte[]> chunks;
+
+    private EvictionPolicy<CachedChunk<A>> evictionPolicy;
+
+    /**
+     * Constructor
+     * @param capacityBytes Max number of bytes of chunks and trees kept
+     * @param chunkSizeBytes Size of the chunks (the leaves of the trees)
+     * @param evictionPolicy Decides which chunks go once the cache is full
+     */
+    public RelayCache(long capacityBytes, int chunkSizeBytes, EvictionPolicy<CachedChunk<A>> evictionPolicy) {
+        this.capacityBytes = capacityBytes;
+        this.chunkSizeBytes = chunkSizeBytes;
+        this.sizeBytes = 0;
+        this.relayedFiles = new LinkedHashMap<>(16, 0.75f, true);
+        this.chunks = new HashMap<>();
+        this.evictionPolicy = evictionPolicy;
+    }
+
+    /**
+     * Keep a fragment that's being relayed, if it checks out
+     * @param key Key of the file
+     * @param fragment Fragment, with the proof it was sent with
+     * @param merkleRoot Root of the file's tree (null if unknown, in which case nothing is kept)
+     * @return True if the fragment was kept
+     */
+    public boolean put(A key, FileFragment fragment, byte[] merkleRoot) {
+        if (merkleRoot == null || fragment.getChunk().length == 0 || fragment.getTotalSizeBytes() <= 0) {
+            return false;
+        }
+
+        RelayedFile relayedFile = relayedFiles.get(key);
+
+        if (relayedFile == null || relayedFile.merkleTree.getTotalSizeBytes() != fragment.getTotalSizeBytes()
+                || !Arrays.equals(relayedFile.merkleTree.getRoot(), merkleRoot)) {
+            // First time the file goes through (or its root changed). What's cached of it is only let go of once
+            // the fragment checks out against the new root, so a stale or forged fragment can't wipe it
+            MerkleTree merkleTree = MerkleTree.fromRoot(merkleRoot, fragment.getTotalSizeBytes(), chunkSizeBytes);
+
+            if (!merkleTree.verify(fragment)) {
+                return false;
+            }
+
+            removeFile(key);
+
+            relayedFile = new RelayedFile(merkleTree, fragment.getFileName());
+            relayedFiles.put(key, relayedFile);
+
+            if (relayedFiles.size() > MAX_RELAYED_FILES) {
+                removeFile(relayedFiles.keySet().iterator().next());
+            }
+        } else if (!relayedFile.merkleTree.verify(fragment)) {
+            // A proof anchored at a node this relay doesn't know can't be checked (it's only kept by whoever asked)
+            return false;
+        }
+
+        // The nodes verified on the way take memory too
+        long treeSizeBytes = relayedFile.merkleTree.getSizeBytes();
+        sizeBytes += treeSizeBytes - relayedFile.treeSizeBytes;
+        relayedFile.treeSizeBytes = treeSizeBytes;
+
+        byte[] bytes = fragment.getChunk();
+        int firstChunk = fragment.getInitbyte() / chunkSizeBytes;
+
+        for (int offset = 0; offset < bytes.length; offset += chunkSizeBytes) {
+            int chunkIndex = firstChunk + offset / chunkSizeBytes;
+
+            if (relayedFiles.get(key) != relayedFile) {
+                // Evicted whilst its chunks were being kept (e.g. its tree alone took the whole budget)
+                return false;
+            }
+
+            if (relayedFile.cachedChunks.get(chunkIndex)) {
+                continue;
+            }
+
+            CachedChunk<A> chunk = new CachedChunk<>(key, chunkIndex);
+            byte[] chunkBytes = Arrays.copyOfRange(bytes, offset, Math.min(bytes.length, offset + chunkSizeBytes));
+
+            chunks.put(chunk, chunkBytes);
+            relayedFile.cachedChunks.set(chunkIndex);
+            sizeBytes += chunkBytes.length;
+            evictionPolicy.onInsert(chunk);
+
+            while (sizeBytes > capacityBytes && !chunks.isEmpty()) {
+                evict();
+            }
+        }
+
+        // A file with no chunks left is gone
+        if (relayedFile.cachedChunks.isEmpty()) {
+            removeFile(key);
+            return false;
+        }
+
+        return relayedFiles.get(key) == relayedFile;
+    }
+
+    /**
+     * @param key Key of the file
+     * @param range Bytes to look for (the range must have a length), starting at a chunk
+     * @return True if every chunk of the range is cached (and can be proven, if a proof is asked for)
+     */
+    public boolean hasRange(A key, ByteRange range) {
+        RelayedFile relayedFile = relayedFiles.get(key);
+
+        if (relayedFile == null || !isCached(relayedFile, range)) {
+            return false;
+        }
+
+        return !range.hasProofLevel() || relayedFile.merkleTree.getProof(range.getInitByte(), range.getLength(), range.getProofLevel()) != null;
+    }
+
+    /**
+     * Get a fragment out of the cached chunks
+     * @param key Key of the file
+     * @param range Bytes to get (the range must have a length), starting at a chunk, and the level of the proof to go along
+     * @return Fragment with the requested bytes (fewer, if the file ends before), or null if some aren't cached
+     *         (or the proof can't be given)
+     */
+    public FileFragment get(A key, ByteRange range) {
+        RelayedFile relayedFile = relayedFiles.get(key);
+
+        if (relayedFile == null) {
+            return null;
+        }
+
+        int totalSizeBytes = relayedFile.merkleTree.getTotalSizeBytes();
+        int initByte = range.getInitByte();
+
+        if (initByte < 0 || initByte >= totalSizeBytes || range.getLength() <= 0) {
+            return null;
+        }
+
+        boolean isCached = isCached(relayedFile, range);
+        int length = Math.min(range.getLength(), totalSizeBytes - initByte);
+        int firstChunk = initByte / chunkSizeBytes;
+        int endChunk = (initByte + length + chunkSizeBytes - 1) / chunkSizeBytes;
+
+        for (int chunkIndex = firstChunk; chunkIndex < endChunk; chunkIndex++) {
+            evictionPolicy.onAccess(new CachedChunk<>(key, chunkIndex), relayedFile.cachedChunks.get(chunkIndex));
+        }
+
+        if (!isCached) {
+            return null;
+        }
+
+        byte[] bytes = new byte[length];
+        for (int chunkIndex = firstChunk; chunkIndex < endChunk; chunkIndex++) {
+            byte[] chunkBytes = chunks.get(new CachedChunk<>(key, chunkIndex));
+            System.arraycopy(chunkBytes, 0, bytes, (chunkIndex - firstChunk) * chunkSizeBytes, chunkBytes.length);
+        }
+
+        FileFragment fragment = new FileFragment(bytes, initByte, totalSizeBytes, relayedFile.fileName);
+
+        // Without a proof, whoever asked couldn't check it either
+        MerkleProof proof = relayedFile.merkleTree.getProof(initByte, length, range.hasProofLevel() ? range.getProofLevel() : MerkleTree.ROOT_LEVEL);
+
+        if (proof == null) {
+            return null;
+        }
+
+        fragment.setProof(proof);
+
+        return fragment;
+    }
+
+    /**
+     * Forget a file (e.g. when this node gets to hold it itself)
+     * @param key Key of the file
+     */
+    public void removeFile(A key) {
+        RelayedFile relayedFile = relayedFiles.remove(key);
+
+        if (relayedFile == null) {
+            return;
+        }
+
+        sizeBytes -= relayedFile.treeSizeBytes;
+
+        BitSet cachedChunks = relayedFile.cachedChunks;
+        for (int chunkIndex = cachedChunks.nextSetBit(0); chunkIndex >= 0; chunkIndex = cachedChunks.nextSetBit(chunkIndex + 1)) {
+            CachedChunk<A> chunk = new CachedChunk<>(key, chunkIndex);
+
+            sizeBytes -= chunks.remove(chunk).length;
+            evictionPolicy.onRemove(chunk);
+        }
+    }
+
+    public long getSizeBytes() {
+        return sizeBytes;
+    }
+
+    private boolean isCached(RelayedFile relayedFile, ByteRange range) {
+        int totalSizeBytes = relayedFile.merkleTree.getTotalSizeBytes();
+        int initByte = range.getInitByte();
+
+        if (initByte < 0 || initByte >= totalSizeBytes || initByte % chunkSizeBytes != 0 || range.getLength() <= 0) {
+            return false;
+        }
+
+        int firstChunk = initByte / chunkSizeBytes;
+        int endChunk = (int) ((Math.min((long) initByte + range.getLength(), totalSizeBytes) + chunkSizeBytes - 1) / chunkSizeBytes);
+
+        return relayedFile.cachedChunks.nextClearBit(firstChunk) >= endChunk;
+    }
+
+    private void evict() {
+        CachedChunk<A> victim = evictionPolicy.victim();
+
+        RelayedFile relayedFile = relayedFiles.get(victim.key);
+        relayedFile.cachedChunks.clear(victim.chunkIndex);
+        sizeBytes -= chunks.remove(victim).length;
+
+        // The file's tree stays as long as some of its chunks do, so the nodes verified so far aren't lost
+        if (relayedFile.cachedChunks.isEmpty()) {
+            removeFile(victim.key);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "(files=" + relayedFiles.size() + ",chunks=" + chunks.size() + ",bytes=" + sizeBytes + "/" + capacityBytes + ")";
+    }
+
+    // What's known of a file going through: its tree (with the nodes verified so far) and which chunks are cached
+    private static class RelayedFile {
+        private final MerkleTree merkleTree;
+        private final String fileName;
+        private final BitSet cachedChunks;
+
+        // Memory of the tree, as last counted against the budget
+        private long treeSizeBytes;
+
+        private RelayedFile(MerkleTree merkleTree, String fileName) {
+            this.merkleTree = merkleTree;
+            this.fileName = fileName;
+            this.cachedChunks = new BitSet();
+        }
+    }
+
+    /**
+     * A chunk of a file, as tracked by the eviction policy
+     * @param <A> Key of the file
+     */
+    public static class CachedChunk<A> {
+        private final A key;
+        private final int chunkIndex;
+
+        public CachedChunk(A key, int chunkIndex) {
+            this.key = key;
+            this.chunkIndex = chunkIndex;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+
+            if (!(o instanceof CachedChunk)) {
+                return false;
+            }
+
+            CachedChunk<?> other = (CachedChunk<?>) o;
+
+            return chunkIndex == other.chunkIndex && key.equals(other.key);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * key.hashCode() + chunkIndex;
+        }
+
+        @Override
+        public String toString() {
+            return key + "#" + chunkIndex;
+        }
+    }
+}
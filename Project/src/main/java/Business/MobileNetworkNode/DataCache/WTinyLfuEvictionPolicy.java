@@ -0,0 +1,210 @@
+package Business.MobileNetworkNode.DataCache;
+
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+
+/**
+ * Window TinyLFU: entries go in through a small LRU window, and only make it into the main cache if
+ * they're asked for more often than what they'd push out. How often an entry is asked for is estimated
+ * by a count-min sketch (a few bytes per cached entry) that ages over time, so entries popular long ago
+ * don't stay forever.
+ *
+ * The main cache is a segmented LRU: entries start in probation and are promoted to the protected
+ * segment when hit again, so a burst of one-off entries (a single download going through) never
+ * flushes the ones that keep being asked for
+ * @param <K> Key of the cached entries
+ */
+public class WTinyLfuEvictionPolicy<K> implements EvictionPolicy<K> {
+
+    // Share of the entries kept in the window, and share of the main cache that is protected (in percentage)
+    private static final int WINDOW_PERCENTAGE = 1;
+    private static final int PROTECTED_PERCENTAGE = 80;
+
+    // Counters of the sketch stop at this value, and are halved once this many times the capacity was counted
+    private static final int MAX_FREQUENCY = 15;
+    private static final int SAMPLE_SIZE_FACTOR = 10;
+
+    // Hash functions of the sketch (one per row)
+    private static final int[] SEEDS = { 0x97cb3127, 0x5a6e3dc1, 0x2c9fd1b7, 0x1b873593 };
+
+    private final int windowCapacity;
+    private final int protectedCapacity;
+
+    // Least recently used first, on every segment
+    private LinkedHashSet<K> window;
+    private LinkedHashSet<K> probation;
+    private LinkedHashSet<K> protectedSegment;
+
+    // Last entry to leave the window, to be weighed against the victim of the main cache
+    private K candidate;
+
+    // Count-min sketch, a row per seed
+    private byte[][] frequencies;
+    private final int sketchMask;
+    private final int sampleSize;
+    private int numberOfSamples;
+
+    /**
+     * Constructor
+     * @param capacity Number of entries the cache is expected to hold when full
+     */
+    public WTinyLfuEvictionPolicy(int capacity) {
+        capacity = Math.max(1, capacity);
+
+        this.windowCapacity = Math.max(1, capacity * WINDOW_PERCENTAGE / 100);
+        this.protectedCapacity = (capacity - windowCapacity) * PROTECTED_PERCENTAGE / 100;
+        this.window = new LinkedHashSet<>();
+        this.probation = new LinkedHashSet<>();
+        this.protectedSegment = new LinkedHashSet<>();
+        this.candidate = null;
+
+        int sketchWidth = Integer.highestOneBit(Math.max(16, capacity - 1) << 1);
+        this.frequencies = new byte[SEEDS.length][sketchWidth];
+        this.sketchMask = sketchWidth - 1;
+        this.sampleSize = SAMPLE_SIZE_FACTOR * capacity;
+        this.numberOfSamples = 0;
+    }
+
+    @Override
+    public void onAccess(K key, boolean hit) {
+        increment(key);
+
+        if (!hit) {
+            return;
+        }
+
+        if (window.remove(key)) {
+            window.add(key);
+        } else if (probation.remove(key)) {
+            // Asked for again, it's promoted (pushing the oldest protected one back to probation, if it's full)
+            if (key.equals(candidate)) {
+                candidate = null;
+            }
+
+            protectedSegment.add(key);
+
+            if (protectedSegment.size() > protectedCapacity) {
+                K demoted = removeFirst(protectedSegment);
+                probation.add(demoted);
+            }
+        } else if (protectedSegment.remove(key)) {
+            protectedSegment.add(key);
+        }
+    }
+
+    @Override
+    public void onInsert(K key) {
+        increment(key);
+        window.add(key);
+
+        if (window.size() > windowCapacity) {
+            // The oldest entry of the window tries its luck in the main cache
+            candidate = removeFirst(window);
+            probation.add(candidate);
+        }
+    }
+
+    @Override
+    public void onRemove(K key) {
+        if (!window.remove(key) && !probation.remove(key)) {
+            protectedSegment.remove(key);
+        }
+
+        if (key.equals(candidate)) {
+            candidate = null;
+        }
+    }
+
+    @Override
+    public K victim() {
+        K victim = null;
+
+        // Whoever is at the end of the main cache (never the candidate itself)
+        for (K key : probation) {
+            if (!key.equals(candidate)) {
+                victim = key;
+                break;
+            }
+        }
+
+        if (victim == null && !protectedSegment.isEmpty()) {
+            victim = protectedSegment.iterator().next();
+        }
+
+        if (candidate != null) {
+            // Admission: the candidate only stays if it's asked for more often than the victim
+            K loser = (victim != null && frequency(candidate) > frequency(victim)) ? victim : candidate;
+            candidate = null;
+
+            onRemove(loser);
+            return loser;
+        }
+
+        if (victim == null && !window.isEmpty()) {
+            victim = window.iterator().next();
+        }
+
+        if (victim != null) {
+            onRemove(victim);
+        }
+
+        return victim;
+    }
+
+    private void increment(K key) {
+        int hash = spread(key.hashCode());
+
+        for (int row = 0; row < SEEDS.length; row++) {
+            int index = indexOf(hash, row);
+
+            if (frequencies[row][index] < MAX_FREQUENCY) {
+                frequencies[row][index]++;
+            }
+        }
+
+        // Age the sketch, so that old popularity fades away
+        if (++numberOfSamples >= sampleSize) {
+            for (byte[] row : frequencies) {
+                for (int i = 0; i < row.length; i++) {
+                    row[i] >>= 1;
+                }
+            }
+
+            numberOfSamples /= 2;
+        }
+    }
+
+    // Estimated number of times a key was asked for (the smallest of its counters)
+    private int frequency(K key) {
+        int hash = spread(key.hashCode());
+        int frequency = MAX_FREQUENCY;
+
+        for (int row = 0; row < SEEDS.length; row++) {
+            frequency = Math.min(frequency, frequencies[row][indexOf(hash, row)]);
+        }
+
+        return frequency;
+    }
+
+    private int indexOf(int hash, int row) {
+        int h = hash * SEEDS[row];
+        h ^= h >>> 17;
+
+        return h & sketchMask;
+    }
+
+    private static int spread(int hash) {
+        hash ^= hash >>> 16;
+        hash *= 0x45d9f3b;
+
+        return hash ^ (hash >>> 16);
+    }
+
+    private static <K> K removeFirst(LinkedHashSet<K> segment) {
+        Iterator<K> it = segment.iterator();
+        K first = it.next();
+        it.remove();
+
+        return first;
+    }
+}
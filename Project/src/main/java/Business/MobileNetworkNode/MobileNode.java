@@ -2,15 +2,51 @@ package Business.MobileNetworkNode;
 
 import java.io.*;
 import java.net.*;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.security.MessageDigest;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
 
+import Business.MobileNetworkNode.Daemon.MobileNodeDirectoryWatchDaemon;
 import Business.MobileNetworkNode.Daemon.MobileNodeKeepaliveDaemon;
 import Business.MobileNetworkNode.Daemon.MobileNodeListeningDaemon;
+import Business.MobileNetworkNode.Daemon.MobileNodeTransferDaemon;
+import Business.MobileNetworkNode.DataCache.ByteRange;
+import Business.MobileNetworkNode.DataCache.ChunkMap;
+import Business.MobileNetworkNode.DataCache.CodedSymbol;
+import Business.MobileNetworkNode.DataCache.CodedSymbolRange;
+import Business.MobileNetworkNode.DataCache.ContentChunk;
+import Business.MobileNetworkNode.DataCache.ContentChunker;
+import Business.MobileNetworkNode.DataCache.ContentIndex;
 import Business.MobileNetworkNode.DataCache.FileFragment;
 import Business.MobileNetworkNode.DataCache.FileFragmentTable;
+import Business.MobileNetworkNode.DataCache.MappedFile;
+import Business.MobileNetworkNode.DataCache.MerkleProof;
+import Business.MobileNetworkNode.DataCache.MerkleTree;
+import Business.MobileNetworkNode.DataCache.PartialFile;
+import Business.MobileNetworkNode.DataCache.RelayCache;
+import Business.MobileNetworkNode.DataCache.WTinyLfuEvictionPolicy;
+import Business.MobileNetworkNode.Network.ByteBufferPool;
+import Business.MobileNetworkNode.RoutingInfo.NeighbourTable;
+import Business.MobileNetworkNode.RoutingInfo.PathMtuTable;
 import Business.MobileNetworkNode.RoutingInfo.PeerKeepaliveTable;
+import Business.MobileNetworkNode.RoutingInfo.ReplicaManager;
+import Business.MobileNetworkNode.RoutingInfo.RequestRateTable;
 import Business.MobileNetworkNode.RoutingInfo.RoutingTable;
 import Business.MobileNetworkNode.RoutingInfo.RoutingTableEntry;
+import Business.MobileNetworkNode.RoutingInfo.RoundTripTimeTable;
+import Business.MobileNetworkNode.Transfer.DistributionSessionTable;
+import Business.MobileNetworkNode.Transfer.FileDownload;
+import Business.MobileNetworkNode.Transfer.FileDownloadTable;
+import Business.MobileNetworkNode.Transfer.FragmentRequest;
+import Business.MobileNetworkNode.Transfer.TransferSource;
 import Business.PDU.*;
 
 import Business.Utils;
@@ -22,6 +58,7 @@ import org.apache.log4j.xml.DOMConfigurator;
 
 import static Business.MobileNetworkNode.MobileNode.AddressType.LINK_BROADCAST;
 import static Business.PDU.MobileNetworkPDU.ContentType.*;
+import static Business.PDU.MobileNetworkPDU.MobileNetworkMessageType.REQUEST_CONTENT;
 import static Business.PDU.MobileNetworkPDU.MobileNetworkErrorType.UNROUTABLE;
 import static Business.PDU.MobileNetworkPDU.MobileNetworkErrorType.VALID;
 import static Business.PDU.MobileNetworkPDU.STANDARD_TTL;
@@ -56,18 +93,115 @@ public class MobileNode {
         }
     }
 
-    // Sockets to receive and send messages
-    private MulticastSocket receiveServerSocket;
+    // Channel to receive messages (non-blocking, woken up by the selector) and socket to send them
+    // The sending socket is bound to an ephemeral port, so datagrams unicast to the listening port
+    // can only ever be delivered to the receiving channel
+    private DatagramChannel receiveChannel;
+    private Selector receiveSelector;
     private MulticastSocket sendServerSocket;
 
     // Connection-related variables
     private String macAddr;
     private InetAddress group;
     private Integer port;
+    private int interfaceMtu;
 
-    // If dividing a file into UDP-sendable chunks, this is the size of each chunk
+    // Keep the file fragments multicast to the neighbours downloading a file this node isn't downloading, to answer
+    // for them later (off by default). Fragments unicast to other nodes are never overheard
+    private boolean isPromiscuous;
+
+    // If dividing a file into UDP-sendable chunks, this is the size of each chunk.
+    // Fragments are asked for at a multiple of it, as big as the path to the source allows
     private final int FILE_CHUNK_SIZE_BYTES = 1000;
 
+    // IP and UDP headers, ahead of the PDU in every datagram
+    private final int IP_UDP_HEADER_BYTES = 28;
+
+    // File the hashes of shared files are kept in between runs (in the working directory)
+    private final String CONTENT_INDEX_FILE_NAME = "content.index";
+
+    // Lower levels of the Merkle trees of shared files that aren't kept in memory (they're hashed up from the
+    // leaves in the content index as proofs need them). 6 levels leave 1/64th of each tree, ~0.5 bytes per KB shared
+    private final int MERKLE_TREE_LEVELS_ON_DISK = 6;
+
+    // Max number of bytes of relayed fragments (and the Merkle trees of their files) kept to answer for other nodes' files
+    private final int RELAY_CACHE_SIZE_BYTES = 16 * 1024 * 1024;
+
+    // Max number of bytes of overheard (multicast) fragments, and their files' trees, kept (only when promiscuous)
+    private final int OVERHEARD_CACHE_SIZE_BYTES = 8 * 1024 * 1024;
+
+    // Time a discovered path MTU is trusted for, and min time between probes to the same node
+    private final long PATH_MTU_EXPIRY_MS = 60000;
+    private final long PATH_MTU_PROBE_INTERVAL_MS = 5000;
+
+    // Max number of fragment requests a download keeps in flight at the same time (its congestion window grows up to it)
+    private final int DOWNLOAD_WINDOW_SIZE = 32;
+
+    // Max number of fragments asked for in a single request PDU
+    private final int MAX_FRAGMENTS_PER_REQUEST = 16;
+
+    // A download only asks for more fragments once this many have room in its window (so requests go out in batches)
+    private final int DOWNLOAD_REFILL_BATCH_SIZE = 8;
+
+    // Max number of times a download asks for the same fragment again before giving up
+    // (the time waited for it is estimated from round trip times, and doubles on every try)
+    private final int MAX_FRAGMENT_RETRANSMISSIONS = 6;
+
+    // Max number of nodes a download fetches from at the same time (1 means always a single source)
+    private final int MAX_SOURCES_PER_DOWNLOAD = 8;
+
+    // Max time a download waits for the map of its file (to copy what's already held in other files) before asking for it all
+    private final long CHUNK_MAP_TIMEOUT_MS = 1000;
+
+    // Time over which the rate of requests for each file is averaged
+    private final long REQUEST_RATE_DECAY_TIME_MS = 60000;
+
+    // Fragments of a file asked for per minute, to this node or through it, for the file to be hot. A hot file
+    // held whole is offered to the neighbour most requests come from, to download and share too
+    private final double HOT_FILE_MIN_REQUESTS_PER_MINUTE = 600;
+
+    // Min time between offers of the same file (whether the neighbour took it or not)
+    private final long REPLICA_OFFER_INTERVAL_MS = 30000;
+
+    // Max number of bytes of files offered by neighbours that a node downloads and shares (downloads asked for by the user don't count)
+    private final long REPLICA_STORAGE_BUDGET_BYTES = 256L * 1024 * 1024;
+
+    // Min number of neighbours downloading the same file at the same time for its fragments to be multicast to all of them
+    private final int DISTRIBUTION_MIN_RECEIVERS = 2;
+
+    // Time a neighbour is still counted as downloading a file after its last request for it
+    private final long DISTRIBUTION_RECEIVER_TIMEOUT_MS = 2000;
+
+    // Time after a fragment is multicast during which a neighbour that hadn't asked for it yet asking for it is taken
+    // as a request that crossed it on the way, and isn't answered (about a round trip). A neighbour asking again for
+    // a fragment it already asked for missed it, and always gets it multicast again, however soon it asks
+    private final long MULTICAST_REPEAT_SUPPRESSION_MS = 100;
+
+    // Biggest datagram a node is willing to receive
+    private final int MAX_DATAGRAM_SIZE_BYTES = 10000;
+
+    // Turns PDUs into datagram payloads and vice versa (every node in the network must use the same one)
+    private MobileNetworkPDUCodec pduCodec;
+
+    // Max number of datagrams read from the channel each time the listener wakes up
+    private final int MAX_DATAGRAMS_PER_WAKEUP = 32;
+
+    // Reusable buffers for encoding and decoding datagrams
+    private ByteBuffer sendBuffer;
+    private ByteBufferPool receiveBufferPool;
+    private ByteBuffer[] receivedDatagrams;
+    private InetSocketAddress[] receivedDatagramSenders;
+
+    // Reusable header, filled when peeking a datagram to see if it's worth decoding
+    private MobileNetworkPDUHeader receivedHeader;
+
+    // Addresses as they travel in a datagram, to compare against peeked headers
+    private byte[] macAddrBytes;
+    private final byte[] LINK_BROADCAST_BYTES = Utils.macStringToByteArr(LINK_BROADCAST.toString());
+
+    // Number of datagrams dropped by only looking at their header
+    private long numberOfEarlyDroppedDatagrams;
+
     // Logger to log information into a file
     private final Logger LOGGER = Logger.getLogger(MobileNode.class);
 
@@ -92,243 +226,1311 @@ public class MobileNode {
     // Map a file hash to a list of gathered fragments
     private FileFragmentTable<String> cacheOfFragmentedFiles;
 
+    // Hashes and Merkle trees of the shared files, as of the last time they were indexed
+    private ContentIndex contentIndex;
+
+    // Directory with the files to share, and the hash of each file shared (by canonical path)
+    private File sharingDirectory;
+    private Map<String, String> sharedFileHashes;
+
+    // Map a direct neighbour's MAC to its IP, so PDUs with a single next hop can be unicast to it
+    private NeighbourTable neighbourTable;
+
+    // Map a file hash to the state of its download (what was asked for and is yet to arrive)
+    private FileDownloadTable fileDownloadTable;
+
+    // Hashes of the files whose download was left incomplete when the node last stopped, until they're resumed
+    private Set<String> interruptedDownloads;
+
+    // Map a node to the smallest MTU along the path to it, so fragments coming from it fit a single datagram
+    private PathMtuTable pathMtuTable;
+
+    // Map a neighbour to how long it takes to answer pings, the starting point of download timers
+    private RoundTripTimeTable roundTripTimeTable;
+
+    // Map a file hash to how often it's asked for, to this node or through it, and from which neighbour
+    private RequestRateTable requestRateTable;
+
+    // Map a file hash to the neighbours downloading it at the same time, and the fragments of it multicast lately
+    private DistributionSessionTable distributionSessionTable;
+
+    // Hot files offered to neighbours, and files offered by them taken (replicas), within the replica budget
+    private ReplicaManager replicaManager;
+
     public MobileNode(File sharingDirectory) throws IOException{
+        this(sharingDirectory, new BinaryMobileNetworkPDUCodec());
+    }
+
+    /**
+     * Constructor
+     * @param sharingDirectory Directory with the files to share with the network
+     * @param pduCodec Wire format to use when sending and receiving PDUs
+     * @throws IOException When the sharing directory doesn't exist
+     */
+    public MobileNode(File sharingDirectory, MobileNetworkPDUCodec pduCodec) throws IOException{
         if (! (sharingDirectory.exists() && sharingDirectory.isDirectory())) {
             throw new IOException("No such directory");
         }
 
+        this.pduCodec = pduCodec;
+        this.sendBuffer = ByteBuffer.allocate(MAX_DATAGRAM_SIZE_BYTES);
+        this.receiveBufferPool = new ByteBufferPool(MAX_DATAGRAM_SIZE_BYTES, MAX_DATAGRAMS_PER_WAKEUP);
+        this.receivedDatagrams = new ByteBuffer[MAX_DATAGRAMS_PER_WAKEUP];
+        this.receivedDatagramSenders = new InetSocketAddress[MAX_DATAGRAMS_PER_WAKEUP];
+        this.receivedHeader = new MobileNetworkPDUHeader();
+        this.numberOfEarlyDroppedDatagrams = 0;
+
         try {
             // Setting up needed instance variables
             NetworkInterface eth0 = NetworkInterface.getByName("eth0");
             //NetworkInterface eth0 = NetworkInterface.getNetworkInterfaces().nextElement();
             group = InetAddress.getByName(AddressType.NETWORK_MULTICAST.toString());
             port = Integer.parseInt(AddressType.LISTENING_PORT.toString());
-            macAddr = Utils.macByteArrToString(eth0.getHardwareAddress());
+            macAddrBytes = eth0.getHardwareAddress();
+            macAddr = Utils.macByteArrToString(macAddrBytes);
+            interfaceMtu = eth0.getMTU();
 
             // Setting up logger by importing log4j.xml config file
             System.setProperty("logfile.name", macAddr + "_MobileNodeLog.xml");
             DOMConfigurator.configure("log4j.xml");
 
             LOGGER.info("Sharing directory: " + sharingDirectory.getCanonicalPath());
+            this.sharingDirectory = sharingDirectory;
+            this.sharedFileHashes = new HashMap<>();
 
             // Populating content sharing table with all files inside the sharing directory folder passed by argument
             contentRoutingTable = new RoutingTable(this.macAddr);
 
             // Saving files in a cache that splits them into pieces
-            cacheOfFragmentedFiles = new FileFragmentTable<>();
+            // Fragments relayed are kept too, the ones asked for most often outliving one-off downloads going through
+            RelayCache<String> relayCache = new RelayCache<>(RELAY_CACHE_SIZE_BYTES, FILE_CHUNK_SIZE_BYTES,
+                    new WTinyLfuEvictionPolicy<>(RELAY_CACHE_SIZE_BYTES / FILE_CHUNK_SIZE_BYTES));
+            // Fragments overheard (multicast to neighbours downloading a file) are only kept in promiscuous mode, apart from those relayed
+            RelayCache<String> overheardCache = new RelayCache<>(OVERHEARD_CACHE_SIZE_BYTES, FILE_CHUNK_SIZE_BYTES,
+                    new WTinyLfuEvictionPolicy<>(OVERHEARD_CACHE_SIZE_BYTES / FILE_CHUNK_SIZE_BYTES));
+            cacheOfFragmentedFiles = new FileFragmentTable<>(FILE_CHUNK_SIZE_BYTES, relayCache, overheardCache);
+
+            // What was hashed on previous runs, so that only new or changed files are hashed again
+            File contentIndexFile = new File(CONTENT_INDEX_FILE_NAME);
+            try {
+                contentIndex = ContentIndex.load(contentIndexFile);
+            } catch (IOException e) {
+                LOGGER.warn("Couldn't read the content index, every file will be hashed: " + e.getMessage());
+                contentIndex = ContentIndex.empty(contentIndexFile);
+            }
 
+            // Files are indexed in parallel, one per core, each read only once (for both its hash and its Merkle tree)
             List<File> filesInPath = Utils.getFilesInsidePath(sharingDirectory);
-            filesInPath.forEach(( file ->  {
+            ForkJoinPool indexingPool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+
+            for (File file : filesInPath) {
+                indexingPool.execute(() -> shareFile(file));
+            }
+
+            indexingPool.shutdown();
+            indexingPool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+
+            // No downloads are in progress when starting
+            fileDownloadTable = new FileDownloadTable(DOWNLOAD_WINDOW_SIZE, DOWNLOAD_REFILL_BATCH_SIZE, MAX_FRAGMENT_RETRANSMISSIONS, MAX_SOURCES_PER_DOWNLOAD, FILE_CHUNK_SIZE_BYTES);
+
+            // Requests are counted as they're answered or forwarded
+            requestRateTable = new RequestRateTable(REQUEST_RATE_DECAY_TIME_MS);
+            replicaManager = new ReplicaManager(this, requestRateTable, cacheOfFragmentedFiles, fileDownloadTable, contentIndex,
+                    HOT_FILE_MIN_REQUESTS_PER_MINUTE, REPLICA_OFFER_INTERVAL_MS, REPLICA_STORAGE_BUDGET_BYTES, MERKLE_TREE_LEVELS_ON_DISK);
+
+            // Replicas taken on previous runs are shared again, and take their room in the budget
+            shareIndexedReplicas();
+
+            synchronized (contentIndex) {
+                try {
+                    contentIndex.retainAll(filesInPath);
+                    contentIndex.save();
+                } catch (IOException e) {
+                    LOGGER.error("Couldn't save the content index: " + e.getMessage());
+                }
+            }
+
+            // Downloads left incomplete when the node last stopped are carried on, once someone holding them is known
+            interruptedDownloads = new HashSet<>();
+            for (PartialFile partialFile : PartialFile.resumeAll(new File("."))) {
+                LOGGER.info("Found incomplete download: " + partialFile.toString());
+
+                synchronized (cacheOfFragmentedFiles) {
+                    cacheOfFragmentedFiles.insertPartialFile(partialFile.getFileHash(), partialFile);
+                }
+
+                interruptedDownloads.add(partialFile.getFileHash());
+            }
+
+            // Setting up the table to help keep count of what peers did not prove they're alive
+            // Max number of times they can fail to prove they're alive in a row before being removed: 3
+            peerKeepaliveTable = new PeerKeepaliveTable<>("n/a", 3);
+
+            // Setting up to table to help keep track of the hash of the last content table that we used (so we dont keep updating information we already know of)
+            hashOfPeersMostRecentContentTable = new HashMap<>();
+
+            // Neighbours are learned as they introduce themselves
+            neighbourTable = new NeighbourTable();
+
+            // Paths are probed as downloads need them
+            pathMtuTable = new PathMtuTable(PATH_MTU_EXPIRY_MS, PATH_MTU_PROBE_INTERVAL_MS);
+
+            // Round trip times are measured as neighbours answer pings
+            roundTripTimeTable = new RoundTripTimeTable();
+
+            // Sessions start as soon as enough neighbours ask for the same file
+            distributionSessionTable = new DistributionSessionTable(DISTRIBUTION_MIN_RECEIVERS, DISTRIBUTION_RECEIVER_TIMEOUT_MS, MULTICAST_REPEAT_SUPPRESSION_MS);
+
+            // Setting up sockets, needed for UDP communication
+            receiveChannel = DatagramChannel.open(StandardProtocolFamily.INET)
+                    .setOption(StandardSocketOptions.SO_REUSEADDR, true)
+                    .bind(new InetSocketAddress(port));
+            // Listening channel joins the multicast group associated with the mobile network
+            receiveChannel.join(group, eth0);
+            receiveChannel.configureBlocking(false);
+            receiveSelector = Selector.open();
+            receiveChannel.register(receiveSelector, SelectionKey.OP_READ);
+            sendServerSocket = new MulticastSocket();
+
+            scanner = new Scanner(System.in);
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Index a file of the sharing directory: hash it and build its Merkle tree (unless the content index
+     * already has them), and add it to the tables
+     * @param file File to share
+     * @return Entry of the file in the routing table, or null if it couldn't be indexed
+     */
+    private RoutingTableEntry shareFile(File file) {
+        if (isTooBigToShare(file)) {
+            return null;
+        }
+
+        try {
+            ContentIndex.IndexedFile indexedFile;
+            synchronized (contentIndex) {
+                indexedFile = contentIndex.lookup(file, FILE_CHUNK_SIZE_BYTES);
+            }
+
+            String key = null;
+            MerkleTree merkleTree = null;
+            List<ContentChunk> contentChunks = null;
+
+            if (indexedFile != null) {
+                // Unchanged since it was last hashed
+                try {
+                    key = indexedFile.getFileHash();
+                    merkleTree = indexedFile.getMerkleTree();
+                    contentChunks = indexedFile.getContentChunks();
+                } catch (IllegalArgumentException | IOException e) {
+                    LOGGER.warn("Indexed tree of " + file.getName() + " can't be read or doesn't fit the file, hashing it again");
+                    merkleTree = null;
+                }
+            }
+
+            if (merkleTree == null) {
                 LOGGER.info("Indexing file: " + file.getName());
+
+                // Streamed once, through the file digest, the tree (whose root goes along with the hash) and the chunker
+                MessageDigest fileDigest = MessageDigest.getInstance("md5");
+                ContentChunker contentChunker = new ContentChunker();
+                merkleTree = MerkleTree.build(file, FILE_CHUNK_SIZE_BYTES, fileDigest, contentChunker);
+
+                key = Utils.bytesToHexString(fileDigest.digest());
+                contentChunks = contentChunker.finish();
+
                 try {
+                    synchronized (contentIndex) {
+                        indexedFile = contentIndex.put(file, key, merkleTree, contentChunks);
+                    }
+                } catch (IOException e) {
+                    LOGGER.warn("Couldn't add " + file.getName() + " to the content index, its whole tree is kept in memory: " + e.getMessage());
+                    indexedFile = null;
+                }
+            }
+
+            if (indexedFile != null) {
+                merkleTree.dropLowerLevels(MERKLE_TREE_LEVELS_ON_DISK, indexedFile);
+            }
+
+            RoutingTableEntry ownedEntry;
+            synchronized (contentRoutingTable) {
+                // Add to my routing table the entry that i know, 0 hops away, my own file
+                ownedEntry = contentRoutingTable.addOwnedReference(key, file, Utils.bytesToHexString(merkleTree.getRoot()));
+            }
+
+            synchronized (cacheOfFragmentedFiles) {
+                // Add to cache my local file, fragments of it are read from disk as they're asked for
+                cacheOfFragmentedFiles.insertFile(key, file, merkleTree, contentChunks);
+            }
+
+            synchronized (sharedFileHashes) {
+                sharedFileHashes.put(file.getCanonicalPath(), key);
+            }
+
+            return ownedEntry;
+        } catch (Exception e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    // Share the replicas in the content index (those that are gone, or changed since, are forgotten)
+    private void shareIndexedReplicas() {
+        Map<String, ContentIndex.IndexedFile> replicas;
+        synchronized (contentIndex) {
+            replicas = contentIndex.getReplicas();
+        }
 
-                    String key = Utils.hashFile(file, "md5");
+        for (Map.Entry<String, ContentIndex.IndexedFile> replica : replicas.entrySet()) {
+            File file = new File(replica.getKey());
+            ContentIndex.IndexedFile indexedFile = replica.getValue();
+            String key = indexedFile.getFileHash();
 
-                    synchronized (contentRoutingTable) {
-                        // Add to my routing table the entry that i know, 0 hops away, my own file
-                        contentRoutingTable.addOwnedReference(key, file);
+            if (isTooBigToShare(file)) {
+                continue;
+            }
+
+            try {
+                synchronized (contentIndex) {
+                    if (contentIndex.lookup(file, FILE_CHUNK_SIZE_BYTES) != indexedFile) {
+                        LOGGER.info("Replica " + indexedFile.getReplicaName() + " is gone or changed, forgetting it");
+                        contentIndex.remove(file);
+                        continue;
                     }
+                }
+
+                MerkleTree merkleTree = indexedFile.getMerkleTree();
+                merkleTree.dropLowerLevels(MERKLE_TREE_LEVELS_ON_DISK, indexedFile);
+
+                synchronized (contentRoutingTable) {
+                    contentRoutingTable.addOwnedReference(key, indexedFile.getReplicaName(), Utils.bytesToHexString(merkleTree.getRoot()));
+                }
+
+                synchronized (cacheOfFragmentedFiles) {
+                    cacheOfFragmentedFiles.insertFile(key, file, indexedFile.getReplicaName(), merkleTree, indexedFile.getContentChunks());
+                }
+
+                replicaManager.addIndexedReplica(key, (int) file.length());
+
+                LOGGER.info("Sharing replica: " + indexedFile.getReplicaName() + " (" + key + ")");
+            } catch (IOException | IllegalArgumentException e) {
+                LOGGER.warn("Couldn't share replica " + indexedFile.getReplicaName() + ": " + e.getMessage());
+            }
+        }
+    }
+
+    // Fragments only have room for 32-bit offsets and sizes, so bigger files aren't shared at all (rather than wrongly)
+    private boolean isTooBigToShare(File file) {
+        if (file.length() > MappedFile.MAX_SIZE_BYTES) {
+            LOGGER.error("Can't share " + file.getName() + ", it's bigger than " + MappedFile.MAX_SIZE_BYTES + " bytes");
+            return true;
+        }
 
-                    synchronized (cacheOfFragmentedFiles) {
-                        // Add to cache the fragmented pieces of my local file
-                        cacheOfFragmentedFiles.insertFile(key, file, FILE_CHUNK_SIZE_BYTES);
+        return false;
+    }
+
+    /**
+     * Share a file of the sharing directory that was created or changed whilst the node was running,
+     * and let the neighbours know (with an update of the entries that changed, not the whole table)
+     * @param file File created or changed
+     */
+    public void shareChangedFile(File file) {
+        String canonicalPath;
+        String previousHash;
+        try {
+            canonicalPath = file.getCanonicalPath();
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
+
+        synchronized (sharedFileHashes) {
+            previousHash = sharedFileHashes.get(canonicalPath);
+        }
+
+        String versionBeforeChange = getTableVersion();
+
+        RoutingTableEntry ownedEntry = shareFile(file);
+
+        if (ownedEntry == null) {
+            if (previousHash != null) {
+                // Its old content is gone, whether or not the new one could be shared
+                unshareFile(file);
+            }
+
+            return;
+        }
+
+        String fileHash;
+        synchronized (sharedFileHashes) {
+            fileHash = sharedFileHashes.get(canonicalPath);
+        }
+
+        if (fileHash.equals(previousHash)) {
+            // Touched, but its content is the same
+            return;
+        }
+
+        if (previousHash != null) {
+            // Its old content is gone
+            announceRemovedFile(previousHash, file.getName(), versionBeforeChange);
+            versionBeforeChange = getTableVersion();
+        }
+
+        LOGGER.info("Sharing new content: " + file.getName() + " (" + fileHash + ")");
+
+        Map<String, Set<RoutingTableEntry>> insertedPaths = new HashMap<>();
+        insertedPaths.put(fileHash, new TreeSet<>(Collections.singleton(ownedEntry)));
+
+        RoutingTable insertInstruction = new RoutingTable(macAddr, insertedPaths);
+        insertInstruction.setPreviousVersion(versionBeforeChange);
+        insertInstruction.setVersion(getTableVersion());
+
+        sendInsertUpdate(insertInstruction, getTimestampOfNow());
+    }
+
+    /**
+     * Share a file this node just finished downloading, and let the neighbours know, so whoever asks for
+     * it next can get it from here too (only if every byte of it checked out against its Merkle tree)
+     * @param fileHash Hash of the file downloaded
+     */
+    public void seedDownloadedFile(String fileHash) {
+        String fileName;
+        byte[] merkleRoot;
+        synchronized (cacheOfFragmentedFiles) {
+            fileName = cacheOfFragmentedFiles.getOwnedFileName(fileHash);
+            merkleRoot = cacheOfFragmentedFiles.getOwnedMerkleRoot(fileHash);
+        }
+
+        if (fileName == null || merkleRoot == null) {
+            LOGGER.info("Not sharing " + fileHash + ", it couldn't be checked against a Merkle tree");
+            return;
+        }
+
+        // Replicas are kept in the content index, so they're shared again on the next run
+        replicaManager.indexReplica(fileHash, fileName);
+
+        String versionBeforeChange = getTableVersion();
+
+        RoutingTableEntry ownedEntry;
+        synchronized (contentRoutingTable) {
+            ownedEntry = contentRoutingTable.addOwnedReference(fileHash, fileName, Utils.bytesToHexString(merkleRoot));
+        }
+
+        LOGGER.info("Sharing downloaded content: " + fileName + " (" + fileHash + ")");
+
+        Map<String, Set<RoutingTableEntry>> insertedPaths = new HashMap<>();
+        insertedPaths.put(fileHash, new TreeSet<>(Collections.singleton(ownedEntry)));
+
+        RoutingTable insertInstruction = new RoutingTable(macAddr, insertedPaths);
+        insertInstruction.setPreviousVersion(versionBeforeChange);
+        insertInstruction.setVersion(getTableVersion());
+
+        sendInsertUpdate(insertInstruction, getTimestampOfNow());
+    }
+
+    /**
+     * Count the fragments asked for by a request answered or forwarded, as coming from the neighbour it came through
+     * @param requestPDU Request of a file
+     * @param numberOfFragments Number of fragments it asked for (or was answered with)
+     */
+    public void countFileRequests(DataRequestMobileNetworkPDU requestPDU, int numberOfFragments) {
+        replicaManager.countFileRequests(requestPDU, numberOfFragments);
+    }
+
+    /**
+     * Offer each hot file this node holds whole to the neighbour most requests for it come through
+     */
+    public void offerHotFiles() {
+        replicaManager.offerHotFiles();
+    }
+
+    /**
+     * Take a file offered by a neighbour, if there's room for it in the replica budget (or colder replicas to evict)
+     * @param fileHash Hash of the file offered
+     * @param totalSizeBytes Size of the file
+     * @param offererMAC Neighbour that offered it
+     */
+    public void acceptReplicaOffer(String fileHash, int totalSizeBytes, String offererMAC) {
+        replicaManager.acceptReplicaOffer(fileHash, totalSizeBytes, offererMAC);
+    }
+
+    /**
+     * Give the room a replica took in the budget back (its download was given up on)
+     * @param fileHash Hash of the file
+     */
+    public void releaseReplica(String fileHash) {
+        replicaManager.releaseReplica(fileHash);
+    }
+
+    /**
+     * Stop sharing a file held outside the sharing directory (e.g. a replica evicted), and let the neighbours know
+     * @param fileHash Hash of the file
+     * @param fileName Name it's shared by
+     */
+    public void unshareOwnedFile(String fileHash, String fileName) {
+        announceRemovedFile(fileHash, fileName, getTableVersion());
+    }
+
+    /**
+     * Stop sharing a file (or every file in a directory) that was deleted from the sharing directory whilst
+     * the node was running, and let the neighbours know
+     * @param path File or directory deleted
+     */
+    public void unshareFile(File path) {
+        Map<String, String> removedFiles = new HashMap<>();
+
+        try {
+            String removedPath = path.getCanonicalPath();
+
+            synchronized (sharedFileHashes) {
+                Iterator<Map.Entry<String, String>> it = sharedFileHashes.entrySet().iterator();
+
+                while (it.hasNext()) {
+                    Map.Entry<String, String> sharedFile = it.next();
+
+                    if (sharedFile.getKey().equals(removedPath) || sharedFile.getKey().startsWith(removedPath + File.separator)) {
+                        removedFiles.put(sharedFile.getKey(), sharedFile.getValue());
+                        it.remove();
                     }
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
+
+        for (Map.Entry<String, String> removedFile : removedFiles.entrySet()) {
+            File file = new File(removedFile.getKey());
 
-                } catch (Exception e) {
-                    e.printStackTrace();
+            try {
+                synchronized (contentIndex) {
+                    contentIndex.remove(file);
                 }
-            } ));
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
 
-            // Setting up the table to help keep count of what peers did not prove they're alive
-            // Max number of times they can fail to prove they're alive in a row before being removed: 3
-            peerKeepaliveTable = new PeerKeepaliveTable<>("n/a", 3);
+            announceRemovedFile(removedFile.getValue(), file.getName(), getTableVersion());
+        }
+    }
+
+    /**
+     * Save the content index, so the files indexed so far aren't hashed again on the next run
+     */
+    public void saveContentIndex() {
+        synchronized (contentIndex) {
+            try {
+                contentIndex.save();
+            } catch (IOException e) {
+                LOGGER.error("Couldn't save the content index: " + e.getMessage());
+            }
+        }
+    }
+
+    // Remove the entry of a file no longer shared, and send the removal out to the neighbours
+    private void announceRemovedFile(String fileHash, String fileName, String versionBeforeChange) {
+        Set<RoutingTableEntry> removedPaths;
+        synchronized (contentRoutingTable) {
+            removedPaths = contentRoutingTable.removeOwnedReference(fileHash, fileName);
+        }
+
+        // Another copy of the same content may still be shared, from another path
+        String otherCopy = null;
+        synchronized (sharedFileHashes) {
+            for (Map.Entry<String, String> sharedFile : sharedFileHashes.entrySet()) {
+                if (sharedFile.getValue().equals(fileHash)) {
+                    otherCopy = sharedFile.getKey();
+                    break;
+                }
+            }
+        }
+
+        if (otherCopy != null) {
+            shareFile(new File(otherCopy));
+        } else {
+            synchronized (cacheOfFragmentedFiles) {
+                cacheOfFragmentedFiles.removeFile(fileHash);
+            }
+        }
+
+        if (removedPaths.isEmpty()) {
+            return;
+        }
+
+        LOGGER.info("No longer sharing: " + fileName + " (" + fileHash + ")");
+
+        Map<String, Set<RoutingTableEntry>> pathsRemoved = new HashMap<>();
+        pathsRemoved.put(fileHash, removedPaths);
+
+        RoutingTable removeInstruction = new RoutingTable(macAddr, pathsRemoved);
+        removeInstruction.setPreviousVersion(versionBeforeChange);
+        removeInstruction.setVersion(getTableVersion());
+
+        sendRemoveUpdate(removeInstruction, getTimestampOfNow());
+    }
+
+    private String getTableVersion() {
+        synchronized (contentRoutingTable) {
+            return contentRoutingTable.getVersion();
+        }
+    }
+
+    public Logger getLogger() {
+        return LOGGER;
+    }
+
+    public File getSharingDirectory() {
+        return sharingDirectory;
+    }
+
+    /**
+     * @return Files shared from the sharing directory
+     */
+    public List<File> getSharedFiles() {
+        List<File> sharedFiles = new ArrayList<>();
+
+        synchronized (sharedFileHashes) {
+            for (String path : sharedFileHashes.keySet()) {
+                sharedFiles.add(new File(path));
+            }
+        }
+
+        return sharedFiles;
+    }
+
+    public String getMacAddr() {
+        return macAddr;
+    }
+
+    public RoutingTable getRoutingTable() {
+        return contentRoutingTable;
+    }
+
+    public PeerKeepaliveTable<String, String> getPeerKeepaliveTable() {
+        return peerKeepaliveTable;
+    }
+
+    public Map<String, String> getHashOfPeersMostRecentContentTable() {
+        return hashOfPeersMostRecentContentTable;
+    }
+
+    public FileFragmentTable<String> getCachefFragmentedFiles() {
+        return cacheOfFragmentedFiles;
+    }
+
+    public NeighbourTable getNeighbourTable() {
+        return neighbourTable;
+    }
+
+    public FileDownloadTable getFileDownloadTable() {
+        return fileDownloadTable;
+    }
+
+    public PathMtuTable getPathMtuTable() {
+        return pathMtuTable;
+    }
+
+    public RoundTripTimeTable getRoundTripTimeTable() {
+        return roundTripTimeTable;
+    }
+
+    public RequestRateTable getRequestRateTable() {
+        return requestRateTable;
+    }
+
+    public DistributionSessionTable getDistributionSessionTable() {
+        return distributionSessionTable;
+    }
+
+    public int getFileChunkSizeBytes() {
+        return FILE_CHUNK_SIZE_BYTES;
+    }
+
+    public int getInterfaceMtu() {
+        return interfaceMtu;
+    }
+
+    public boolean isPromiscuous() {
+        return isPromiscuous;
+    }
+
+    /**
+     * Keep (or stop keeping) the file fragments multicast to the neighbours downloading a file (see
+     * DistributionSessionTable) when this node isn't downloading it. They're checked like relayed ones, and
+     * answered for when asked for here. Fragments unicast to other nodes are never decoded, let alone kept
+     * @param isPromiscuous True to keep them
+     */
+    public void setPromiscuous(boolean isPromiscuous) {
+        this.isPromiscuous = isPromiscuous;
+    }
+
+    /**
+     * Execute the node's behaviour and present the user with a textual interface.
+     * The behaviour stops when the user signals to quit
+     * @throws InterruptedException When one or more of the daemon threads get interrupted
+     */
+    public void autonomousStart() throws InterruptedException {
+        LOGGER.debug("Starting mobile node process");
+
+        // Initialize into the network by announcing everyone your presence
+        sendHelloMessage(AddressType.LINK_MULTICAST.toString(), getTimestampOfNow());
+
+        // Listens for incoming messages
+        MobileNodeListeningDaemon mobileNodeListeningDaemon = new MobileNodeListeningDaemon(this);
+        // Periodically query peers if they're alive
+        MobileNodeKeepaliveDaemon mobileNodeKeepaliveDaemon = new MobileNodeKeepaliveDaemon(this);
+        // Ask again for fragments that were lost along the way
+        MobileNodeTransferDaemon mobileNodeTransferDaemon = new MobileNodeTransferDaemon(this);
+        // Share files as they're added to (or changed in, or deleted from) the sharing directory
+        MobileNodeDirectoryWatchDaemon mobileNodeDirectoryWatchDaemon = new MobileNodeDirectoryWatchDaemon(this);
+
+        // Start the threads
+        Thread mobileNodeListeningDaemonThread = new Thread(mobileNodeListeningDaemon);
+        Thread mobileNodeKeepAliveDaemonThread = new Thread(mobileNodeKeepaliveDaemon);
+        Thread mobileNodeTransferDaemonThread = new Thread(mobileNodeTransferDaemon);
+        Thread mobileNodeDirectoryWatchDaemonThread = new Thread(mobileNodeDirectoryWatchDaemon);
+
+        mobileNodeListeningDaemonThread.start();
+        mobileNodeKeepAliveDaemonThread.start();
+        mobileNodeTransferDaemonThread.start();
+        mobileNodeDirectoryWatchDaemonThread.start();
+
+        // Start the user interaction flow, where menus are shown and input is read
+        mainUserInteraction();
+
+        // If the interaction flow ended, the entire program can end
+        // Signal the daemons to gracefully end and clean up
+        mobileNodeKeepaliveDaemon.finish();
+        mobileNodeListeningDaemon.finish();
+        mobileNodeTransferDaemon.finish();
+        mobileNodeDirectoryWatchDaemon.finish();
+
+        // Wait for threads to be finished
+        mobileNodeListeningDaemonThread.join();
+        mobileNodeKeepAliveDaemonThread.join();
+        mobileNodeTransferDaemonThread.join();
+        mobileNodeDirectoryWatchDaemonThread.join();
+
+        LOGGER.debug("Finished mobile node process");
+        LOGGER.debug(getStatistics());
+
+        // Inform user on where the log files can be reached
+        System.out.println("Info logged in " + macAddr + "_MobileNodeLog.xml");
+    }
+
+    private void mainUserInteraction() {
+        Menu menu = new StaticMainView().getMenu();
+        String option;
+        do {
+            menu.show();
+            option = scanner.nextLine().toUpperCase();
+            switch(option) {
+                case "D" : downloadInteraction(false);
+                    break;
+                case "C" : downloadInteraction(true);
+                    break;
+                case "E": System.out.println("Leaving...");
+                    break;
+                default: break;
+            }
+        } while(!option.equals("E"));
+    }
+
+    /**
+     * Let the user look for a file and download it
+     * @param isCoded True to download it as coded symbols (better suited for lossy links)
+     */
+    private void downloadInteraction(boolean isCoded) {
+        // First ask for user to input a query string (much like a search engine)
+        System.out.print("Type names to query for(Enter for all):");
+        String queryString = scanner.nextLine();
+
+        // search in local routing table for files with similar name
+        Map<String,Set<RoutingTableEntry>> matchingEntriesMap;
+        synchronized (contentRoutingTable) {
+            matchingEntriesMap = contentRoutingTable.similarFileNameSearch(queryString);
+        }
+
+        // Auxiliary structure that maps a name to the corresponding filehash
+        Map<String, String> fileHashMap = new HashMap<>();
+
+        // Parse into a single list, where each entry is a line in user menu
+        List<RoutingTableEntry> matchingEntriesInList = new ArrayList<>();
+
+        // Populate the previous two auxiliary structures
+        for (Map.Entry<String, Set<RoutingTableEntry>> entry : matchingEntriesMap.entrySet()) {
+            String fileHash = entry.getKey();
+            Set<RoutingTableEntry> knownPathsForHash = entry.getValue();
+            knownPathsForHash.forEach(path -> fileHashMap.put(path.getFileName(), fileHash));
+            matchingEntriesInList.addAll(knownPathsForHash);
+        }
+
+        // show user the results and ask him to search for one
+        DynamicContentSearchResultsView contentSearchResultsView = new DynamicContentSearchResultsView();
+
+        // Interface gives visibility priority to content less hops away
+        matchingEntriesInList.sort(RoutingTableEntry::compareTo);
+
+        matchingEntriesInList.stream().forEach(contentSearchResultsView::addOption);
+
+        Menu menu = contentSearchResultsView.getMenu();
+        boolean fileItemChosen = false;
+        String option;
+        int optionInt;
+        do {
+            menu.show();
+            option = scanner.nextLine().toUpperCase();
+
+            // Check if a number was added as input
+            if ((option.matches("(0|\\d+)")) && ((optionInt = Integer.parseInt(option)) < matchingEntriesInList.size())) {
+
+                String requestedFileName = matchingEntriesInList.get(optionInt).getFileName();
+                String requestedFileHash = fileHashMap.get(requestedFileName);
+
+                startDownload(requestedFileHash, isCoded);
+
+                fileItemChosen = true;
+            }
+
+        } while(!option.equals("E") && !fileItemChosen);
+    }
+
+    public void startDownload(String requestedFileHash) {
+        startDownload(requestedFileHash, false);
+    }
+
+    /**
+     * Start downloading a file, asking for its first fragment. The rest of the file is asked for
+     * as fragments arrive, to every node known to hold it. If part of the file is already stored,
+     * only what's missing is asked for
+     * @param requestedFileHash Hash of the file to download
+     * @param isCoded True to ask for the file as coded symbols, so lost ones don't have to be asked for again
+     */
+    public void startDownload(String requestedFileHash, boolean isCoded) {
+        List<RoutingTableEntry> paths;
+        synchronized (contentRoutingTable) {
+            paths = contentRoutingTable.getBestEntryPerDestination(requestedFileHash);
+        }
+
+        if (paths.isEmpty()) {
+            // Either no one has it, or I'm the one who has it
+            LOGGER.error("Couldn't find path for requested file");
+            return;
+        }
+
+        FileDownload download;
+        synchronized (fileDownloadTable) {
+            download = fileDownloadTable.startDownload(requestedFileHash, isCoded);
+
+            if (download == null) {
+                System.out.println("File is already being downloaded");
+                return;
+            }
+        }
+
+        // Fragments are checked against the root of the file's Merkle tree, as advertised by the closest node holding it
+        byte[] merkleRoot = null;
+        for (RoutingTableEntry path : paths) {
+            if (path.getMerkleRoot() != null) {
+                try {
+                    merkleRoot = Utils.hexStringToBytes(path.getMerkleRoot());
+                    break;
+                } catch (NumberFormatException e) {
+                    LOGGER.error("Malformed Merkle root advertised by " + path.getDstMAC() + ": " + path.getMerkleRoot());
+                }
+            }
+        }
+
+        if (merkleRoot == null) {
+            LOGGER.warn("No Merkle root known for " + requestedFileHash + ", its fragments won't be checked");
+        }
+
+        int totalSizeBytes;
+        List<ByteRange> missingRanges;
+        Set<String> knownSources;
+        synchronized (cacheOfFragmentedFiles) {
+            if (merkleRoot != null) {
+                cacheOfFragmentedFiles.expectMerkleRoot(requestedFileHash, merkleRoot);
+            }
+
+            totalSizeBytes = cacheOfFragmentedFiles.getTotalSizeBytes(requestedFileHash);
+            missingRanges = cacheOfFragmentedFiles.getMissingRanges(requestedFileHash);
+            knownSources = cacheOfFragmentedFiles.getKnownSources(requestedFileHash);
+        }
+
+        if (missingRanges != null) {
+            LOGGER.info("Resuming download of " + requestedFileHash + ", missing " + missingRanges.toString());
+
+            synchronized (fileDownloadTable) {
+                download.resume(totalSizeBytes, missingRanges, knownSources);
+            }
+        }
+
+        boolean holdsOtherFiles;
+        synchronized (cacheOfFragmentedFiles) {
+            holdsOtherFiles = cacheOfFragmentedFiles.hasContentChunks();
+        }
+
+        if (merkleRoot != null && holdsOtherFiles) {
+            // Parts of it may be in files already held, they're copied (rather than downloaded) once the closest owner maps the file
+            RoutingTableEntry closestPath = paths.get(0);
+
+            int pathMtu;
+            synchronized (pathMtuTable) {
+                pathMtu = pathMtuTable.getPathMtu(closestPath.getDstMAC(), System.currentTimeMillis());
+            }
+
+            synchronized (fileDownloadTable) {
+                download.awaitChunkMap(System.currentTimeMillis() + CHUNK_MAP_TIMEOUT_MS);
+            }
+
+            // Its size isn't known yet, the rest of the map is asked for once the first range arrives
+            int maxFragmentSize = getMaxFragmentSize(pathMtu, closestPath, requestedFileHash);
+            ByteRange firstRange = new ByteRange(0, ChunkMap.getMaxRangeLength(maxFragmentSize, FILE_CHUNK_SIZE_BYTES));
+            sendRequestChunkMapMessage(closestPath.getDstMAC(), closestPath.getNextHopMAC(), getTimestampOfNow(), requestedFileHash, Collections.singletonList(firstRange));
+            return;
+        }
+
+        requestNextFragments(requestedFileHash);
+    }
+
+    /**
+     * Take in the map of a range of a file being downloaded. What of the range is already held in other
+     * files is copied, and once the whole file is mapped only the rest is asked for
+     * @param fileHash Hash of the file being downloaded
+     * @param chunkMap Map of a range of the file
+     * @param responderMAC Node that sent the map
+     */
+    public void addChunkMap(String fileHash, ChunkMap chunkMap, String responderMAC) {
+        synchronized (fileDownloadTable) {
+            FileDownload download = fileDownloadTable.getDownload(fileHash);
+
+            if (download == null || !download.isAwaitingChunkMap(System.currentTimeMillis())) {
+                // Too late, the file is being asked for already
+                return;
+            }
+        }
+
+        int res;
+        int copiedBytes = 0;
+        try {
+            synchronized (cacheOfFragmentedFiles) {
+                res = cacheOfFragmentedFiles.putChunkMap(fileHash, chunkMap);
+
+                if (res != -2) {
+                    copiedBytes = cacheOfFragmentedFiles.copyLocalChunks(fileHash, chunkMap);
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
+
+        if (res == -2) {
+            LOGGER.error("Map of " + fileHash + " from " + responderMAC + " didn't check out against its Merkle root");
+        }
+
+        if (copiedBytes < 0) {
+            LOGGER.info("Every chunk of " + fileHash + " was held in other files");
+            System.out.println("Requested file received fully");
+
+            synchronized (fileDownloadTable) {
+                fileDownloadTable.finishDownload(fileHash);
+            }
+
+            seedDownloadedFile(fileHash);
+            return;
+        }
+
+        if (copiedBytes > 0) {
+            LOGGER.info("Copied " + copiedBytes + " bytes of " + fileHash + " from files already held");
+        }
+
+        int totalSizeBytes;
+        List<ByteRange> missingRanges;
+        Set<String> knownSources;
+        synchronized (cacheOfFragmentedFiles) {
+            totalSizeBytes = cacheOfFragmentedFiles.getTotalSizeBytes(fileHash);
+            missingRanges = cacheOfFragmentedFiles.getMissingRanges(fileHash);
+            knownSources = cacheOfFragmentedFiles.getKnownSources(fileHash);
+        }
+
+        synchronized (fileDownloadTable) {
+            FileDownload download = fileDownloadTable.getDownload(fileHash);
+
+            if (download == null) {
+                return;
+            }
+
+            if (missingRanges != null) {
+                download.resume(totalSizeBytes, missingRanges, knownSources);
+            }
+
+            if (res != 0) {
+                // Mapped whole (or the map can't be trusted), there's no point waiting any longer
+                download.onChunkMapArrived();
+            }
+        }
+
+        if (res != 0) {
+            requestNextFragments(fileHash);
+        } else if (chunkMap.getInitByte() == 0) {
+            // Now that its size is known, the rest is asked for at once (in ranges as big as the first)
+            requestRestOfChunkMap(fileHash, responderMAC, chunkMap.getLength(), chunkMap.getTotalSizeBytes());
+        }
+    }
+
+    /**
+     * Ask for every range of the map of a file after the first one
+     * @param fileHash Hash of the file being downloaded
+     * @param dstMAC Node that mapped the first range
+     * @param rangeLength Length of each range
+     * @param totalSizeBytes Size of the file
+     */
+    private void requestRestOfChunkMap(String fileHash, String dstMAC, int rangeLength, int totalSizeBytes) {
+        RoutingTableEntry path = null;
+        synchronized (contentRoutingTable) {
+            for (RoutingTableEntry entry : contentRoutingTable.getBestEntryPerDestination(fileHash)) {
+                if (entry.getDstMAC().equals(dstMAC)) {
+                    path = entry;
+                }
+            }
+        }
+
+        if (path == null || rangeLength <= 0) {
+            // No longer reachable, the download goes ahead once it's done waiting for the map
+            return;
+        }
+
+        List<ByteRange> ranges = new ArrayList<>();
+
+        for (int initByte = rangeLength; initByte < totalSizeBytes; initByte += rangeLength) {
+            ranges.add(new ByteRange(initByte, rangeLength));
+
+            if (ranges.size() == MAX_FRAGMENTS_PER_REQUEST || initByte + rangeLength >= totalSizeBytes) {
+                sendRequestChunkMapMessage(path.getDstMAC(), path.getNextHopMAC(), getTimestampOfNow(), fileHash, ranges);
+                ranges = new ArrayList<>();
+            }
+        }
+    }
+
+    /**
+     * Carry on with the downloads that were left incomplete when the node last stopped, as soon as
+     * the routing table learns of a node that holds each of them
+     */
+    public void resumeInterruptedDownloads() {
+        List<String> fileHashes;
+        synchronized (interruptedDownloads) {
+            fileHashes = new ArrayList<>(interruptedDownloads);
+        }
+
+        for (String fileHash : fileHashes) {
+            boolean isReachable;
+            synchronized (contentRoutingTable) {
+                isReachable = !contentRoutingTable.getBestEntryPerDestination(fileHash).isEmpty();
+            }
 
-            // Setting up to table to help keep track of the hash of the last content table that we used (so we dont keep updating information we already know of)
-            hashOfPeersMostRecentContentTable = new HashMap<>();
+            if (!isReachable) {
+                continue;
+            }
 
-            // Setting up sockets, needed for UDP communication
-            receiveServerSocket = new MulticastSocket(port);
-            // Listening socket joins the multicast group associated with the mobile network
-            receiveServerSocket.joinGroup(new InetSocketAddress(group, port), eth0);
-            sendServerSocket = new MulticastSocket(port);
+            synchronized (interruptedDownloads) {
+                interruptedDownloads.remove(fileHash);
+            }
 
-            scanner = new Scanner(System.in);
-        } catch (Exception e) {
-            e.printStackTrace();
+            System.out.println("Resuming an incomplete download");
+            startDownload(fileHash);
         }
     }
 
-    public Logger getLogger() {
-        return LOGGER;
-    }
+    /**
+     * Fill up the window of a download, asking for as many fragments as it has room for,
+     * spread across the nodes that hold the file
+     * @param fileHash Hash of the file being downloaded
+     */
+    public void requestNextFragments(String fileHash) {
+        List<RoutingTableEntry> paths;
+        synchronized (contentRoutingTable) {
+            paths = contentRoutingTable.getBestEntryPerDestination(fileHash);
+        }
 
-    public String getMacAddr() {
-        return macAddr;
-    }
+        // Fragments are cut to fit the path to each source (probing the paths that are yet unknown)
+        Map<String, Integer> maxFragmentSizes = new HashMap<>();
+        Map<String, Double> expectedRtts = new HashMap<>();
+        long now = System.currentTimeMillis();
 
-    public RoutingTable getRoutingTable() {
-        return contentRoutingTable;
-    }
+        for (RoutingTableEntry path : paths) {
+            // Until fragments are timed, expect each hop to take as long as the first one takes to answer pings
+            double nextHopRtt;
+            synchronized (roundTripTimeTable) {
+                nextHopRtt = roundTripTimeTable.getSmoothedRtt(path.getNextHopMAC());
+            }
 
-    public PeerKeepaliveTable<String, String> getPeerKeepaliveTable() {
-        return peerKeepaliveTable;
-    }
+            if (nextHopRtt >= 0) {
+                expectedRtts.put(path.getDstMAC(), nextHopRtt * Math.max(1, path.getHopCount()));
+            }
 
-    public Map<String, String> getHashOfPeersMostRecentContentTable() {
-        return hashOfPeersMostRecentContentTable;
-    }
+            int pathMtu;
+            boolean shouldProbe;
+            synchronized (pathMtuTable) {
+                pathMtu = pathMtuTable.getPathMtu(path.getDstMAC(), now);
+                shouldProbe = pathMtuTable.shouldProbe(path.getDstMAC(), now);
+            }
 
-    public FileFragmentTable<String> getCachefFragmentedFiles() {
-        return cacheOfFragmentedFiles;
+            if (shouldProbe) {
+                sendPathMtuProbe(path.getDstMAC(), path.getNextHopMAC(), getTimestampOfNow());
+            }
+
+            maxFragmentSizes.put(path.getDstMAC(), getMaxFragmentSize(pathMtu, path, fileHash));
+        }
+
+        List<FragmentRequest> requests;
+        synchronized (fileDownloadTable) {
+            FileDownload download = fileDownloadTable.getDownload(fileHash);
+
+            if (download == null) {
+                return;
+            }
+
+            download.updateSources(paths, maxFragmentSizes, expectedRtts);
+            requests = download.nextRequests(System.currentTimeMillis());
+        }
+
+        sendFragmentRequests(fileHash, requests);
     }
 
     /**
-     * Execute the node's behaviour and present the user with a textual interface.
-     * The behaviour stops when the user signals to quit
-     * @throws InterruptedException When one or more of the daemon threads get interrupted
+     * Send the requests of a download, each to the source it was assigned to
+     * @param fileHash Hash of the file being downloaded
+     * @param requests Requests to send
      */
-    public void autonomousStart() throws InterruptedException {
-        LOGGER.debug("Starting mobile node process");
+    public void sendFragmentRequests(String fileHash, List<FragmentRequest> requests) {
+        // Requests going to the same source are batched, so each PDU asks for several fragments
+        Map<TransferSource, List<FragmentRequest>> requestsPerSource = new LinkedHashMap<>();
 
-        // Initialize into the network by announcing everyone your presence
-        sendHelloMessage(AddressType.LINK_MULTICAST.toString(), getTimestampOfNow());
+        for (FragmentRequest request : requests) {
+            requestsPerSource.computeIfAbsent(request.getSource(), source -> new ArrayList<>()).add(request);
+        }
 
-        // Listens for incoming messages
-        MobileNodeListeningDaemon mobileNodeListeningDaemon = new MobileNodeListeningDaemon(this);
-        // Periodically query peers if they're alive
-        MobileNodeKeepaliveDaemon mobileNodeKeepaliveDaemon = new MobileNodeKeepaliveDaemon(this);
+        for (Map.Entry<TransferSource, List<FragmentRequest>> batch : requestsPerSource.entrySet()) {
+            TransferSource source = batch.getKey();
+            List<FragmentRequest> requestsToSource = batch.getValue();
 
-        // Start the threads
-        Thread mobileNodeListeningDaemonThread = new Thread(mobileNodeListeningDaemon);
-        Thread mobileNodeKeepAliveDaemonThread = new Thread(mobileNodeKeepaliveDaemon);
+            for (int i = 0; i < requestsToSource.size(); i += MAX_FRAGMENTS_PER_REQUEST) {
+                List<ByteRange> ranges = new ArrayList<>();
+                List<CodedSymbolRange> symbolRanges = new ArrayList<>();
 
-        mobileNodeListeningDaemonThread.start();
-        mobileNodeKeepAliveDaemonThread.start();
+                synchronized (cacheOfFragmentedFiles) {
+                    for (FragmentRequest request : requestsToSource.subList(i, Math.min(requestsToSource.size(), i + MAX_FRAGMENTS_PER_REQUEST))) {
+                        // Ask for a proof anchored at the lowest node already known, so it's as short as it can be
+                        int proofLevel = cacheOfFragmentedFiles.getProofLevel(fileHash, request.getInitByte(), request.getLength());
 
-        // Start the user interaction flow, where menus are shown and input is read
-        mainUserInteraction();
+                        if (request.isCoded()) {
+                            symbolRanges.add(request.getSymbolRange().withProofLevel(proofLevel));
+                        } else {
+                            ranges.add(request.getRange().withProofLevel(proofLevel));
+                        }
+                    }
+                }
 
-        // If the interaction flow ended, the entire program can end
-        // Signal the daemons to gracefully end and clean up
-        mobileNodeKeepaliveDaemon.finish();
-        mobileNodeListeningDaemon.finish();
+                if (!ranges.isEmpty()) {
+                    sendRequestContentMessage(source.getDstMAC(), source.getNextHopMAC(), getTimestampOfNow(), fileHash, ranges);
+                }
 
-        // Wait for threads to be finished
-        mobileNodeListeningDaemonThread.join();
-        mobileNodeKeepAliveDaemonThread.join();
+                if (!symbolRanges.isEmpty()) {
+                    sendRequestCodedContentMessage(source.getDstMAC(), source.getNextHopMAC(), getTimestampOfNow(), fileHash, symbolRanges);
+                }
+            }
+        }
+    }
 
-        LOGGER.debug("Finished mobile node process");
-        LOGGER.debug(getStatistics());
+    /**
+     * Biggest fragment of a file whose response fits in a single datagram (so it's never fragmented by IP) on a path
+     * @param pathMtu Smallest MTU along the path, or -1 if it's unknown
+     * @param path Path to the node the fragment is asked from
+     * @param fileHash Hash of the file
+     * @return Size, as a multiple of the chunk size. Never smaller than one chunk (fragments are checked a chunk
+     *         at a time), even if the response of a single chunk doesn't fit
+     */
+    private int getMaxFragmentSize(int pathMtu, RoutingTableEntry path, String fileHash) {
+        if (pathMtu <= 0) {
+            return FILE_CHUNK_SIZE_BYTES;
+        }
 
-        // Inform user on where the log files can be reached
-        System.out.println("Info logged in " + macAddr + "_MobileNodeLog.xml");
-    }
+        int roomForChunk = Math.min(pathMtu, MAX_DATAGRAM_SIZE_BYTES) - IP_UDP_HEADER_BYTES - getEmptyFileResponseSize(path, fileHash);
 
-    private void mainUserInteraction() {
-        Menu menu = new StaticMainView().getMenu();
-        String option;
-        do {
-            menu.show();
-            option = scanner.nextLine().toUpperCase();
-            switch(option) {
-                case "D" : downloadInteraction();
-                    break;
-                case "E": System.out.println("Leaving...");
-                    break;
-                default: break;
-            }
-        } while(!option.equals("E"));
+        return Math.max(1, roomForChunk / FILE_CHUNK_SIZE_BYTES) * FILE_CHUNK_SIZE_BYTES;
     }
 
-    private void downloadInteraction() {
-        // First ask for user to input a query string (much like a search engine)
-        System.out.print("Type names to query for(Enter for all):");
-        String queryString = scanner.nextLine();
-
-        // search in local routing table for files with similar name
-        Map<String,Set<RoutingTableEntry>> matchingEntriesMap;
-        synchronized (contentRoutingTable) {
-            matchingEntriesMap = contentRoutingTable.similarFileNameSearch(queryString);
+    // Size of a response to a fragment of a file, as encoded by the codec in use, with everything but the chunk: the
+    // longest node path, params, session ID and proof it may have, and the file's name as the path knows it
+    private int getEmptyFileResponseSize(RoutingTableEntry path, String fileHash) {
+        int totalSizeBytes;
+        synchronized (cacheOfFragmentedFiles) {
+            totalSizeBytes = cacheOfFragmentedFiles.getTotalSizeBytes(fileHash);
         }
 
-        // Auxiliary structure that maps a name to the corresponding filehash
-        Map<String, String> fileHashMap = new HashMap<>();
+        // Until the size of the file is known, its tree is taken as tall as it gets
+        long sizeBytes = totalSizeBytes >= 0 ? totalSizeBytes : MappedFile.MAX_SIZE_BYTES;
+        int numberOfLeaves = (int) Math.max(1, (sizeBytes + FILE_CHUNK_SIZE_BYTES - 1) / FILE_CHUNK_SIZE_BYTES);
+        int treeHeight = 32 - Integer.numberOfLeadingZeros(numberOfLeaves - 1);
 
-        // Parse into a single list, where each entry is a line in user menu
-        List<RoutingTableEntry> matchingEntriesInList = new ArrayList<>();
+        // A range of chunks anchored at the root (as multicast fragments are) is proven by up to two nodes per level
+        FileFragment emptyFragment = new FileFragment(new byte[0], Integer.MAX_VALUE, totalSizeBytes, path.getFileName());
+        emptyFragment.setProof(new MerkleProof(MerkleTree.ROOT_LEVEL, new byte[2 * treeHeight * MerkleTree.HASH_SIZE_BYTES]));
 
-        // Populate the previous two auxiliary structures
-        for (Map.Entry<String, Set<RoutingTableEntry>> entry : matchingEntriesMap.entrySet()) {
-            String fileHash = entry.getKey();
-            Set<RoutingTableEntry> knownPathsForHash = entry.getValue();
-            knownPathsForHash.forEach(path -> fileHashMap.put(path.getFileName(), fileHash));
-            matchingEntriesInList.addAll(knownPathsForHash);
+        // Unicast responses go back along the path, multicast ones carry the file hash as their session ID
+        Stack<String> nodePath = new Stack<>();
+        for (int i = 0; i < Math.max(2, path.getHopCount() + 1); i++) {
+            nodePath.push(macAddr);
         }
 
-        // show user the results and ask him to search for one
-        DynamicContentSearchResultsView contentSearchResultsView = new DynamicContentSearchResultsView();
+        String timestamp = getTimestampOfNow();
+        String sessionID = fileHash.length() > timestamp.length() ? fileHash : timestamp;
+        String[] params = { fileHash, String.valueOf(Integer.MAX_VALUE) };
 
-        // Interface gives visibility priority to content less hops away
-        matchingEntriesInList.sort(RoutingTableEntry::compareTo);
+        MobileNetworkPDU emptyResponse = new DataResponseMobileNetworkPDU(macAddr, path.getDstMAC(), VALID, STANDARD_TTL,
+                sessionID, nodePath, FILE, params, emptyFragment);
 
-        matchingEntriesInList.stream().forEach(contentSearchResultsView::addOption);
+        try {
+            ByteBuffer buffer = ByteBuffer.allocate(MAX_DATAGRAM_SIZE_BYTES);
+            pduCodec.encode(emptyResponse, buffer);
+            return buffer.position();
+        } catch (IOException | BufferOverflowException e) {
+            // It doesn't fit any datagram, fragments are as small as they get
+            return MAX_DATAGRAM_SIZE_BYTES;
+        }
+    }
 
-        Menu menu = contentSearchResultsView.getMenu();
-        boolean fileItemChosen = false;
-        String option;
-        int optionInt;
-        do {
-            menu.show();
-            option = scanner.nextLine().toUpperCase();
+    /**
+     * Take note of the MTU of the path to a node, as found by a probe
+     * @param dstMAC Node at the end of the path
+     * @param pathMtu Smallest MTU along the path
+     */
+    public void updatePathMtu(String dstMAC, int pathMtu) {
+        LOGGER.info("Path MTU to " + dstMAC + " is " + pathMtu);
 
-            // Check if a number was added as input
-            if ((option.matches("(0|\\d+)")) && ((optionInt = Integer.parseInt(option)) < matchingEntriesInList.size())) {
+        synchronized (pathMtuTable) {
+            pathMtuTable.setPathMtu(dstMAC, pathMtu, System.currentTimeMillis());
+        }
+    }
 
-                String requestedFileName = matchingEntriesInList.get(optionInt).getFileName();
-                String requestedFileHash = fileHashMap.get(requestedFileName);
+    /**
+     * Wait for incoming datagrams and decode them. Every datagram already waiting in the channel
+     * is read in one go (up to a limit), so a burst of traffic costs a single wakeup
+     * @return PDUs that were received (datagrams that couldn't be decoded are logged and left out)
+     * @throws IOException When the channel fails, or was closed whilst waiting
+     */
+    public List<MobileNetworkPDU> capturePDUs() throws IOException {
+        try {
+            // Block until there's at least one datagram to read
+            receiveSelector.select();
+            receiveSelector.selectedKeys().clear();
+        } catch (ClosedSelectorException e) {
+            throw new ClosedChannelException();
+        }
 
-                // Asking for the first time, request byte 0
-                requestContentFromSingleNode(requestedFileHash, 0);
+        if (!receiveSelector.isOpen()) {
+            throw new ClosedChannelException();
+        }
 
-                fileItemChosen = true;
+        // Drain the channel into pooled buffers
+        int numberOfDatagrams = 0;
+        while (numberOfDatagrams < MAX_DATAGRAMS_PER_WAKEUP) {
+            ByteBuffer buffer = receiveBufferPool.acquire();
+            SocketAddress sender = receiveChannel.receive(buffer);
+
+            if (sender == null) {
+                // Nothing else waiting
+                receiveBufferPool.release(buffer);
+                break;
             }
 
-        } while(!option.equals("E") && !fileItemChosen);
-    }
+            receivedDatagrams[numberOfDatagrams] = buffer;
+            receivedDatagramSenders[numberOfDatagrams] = (InetSocketAddress) sender;
+            numberOfDatagrams++;
+        }
 
-    public void requestContentFromSingleNode(String requestedFileHash, int initByteToAsk) {
-        RoutingTableEntry path;
+        List<MobileNetworkPDU> pdus = new ArrayList<>(numberOfDatagrams);
+
+        // Only the listening daemon captures packets, so the array of received datagrams can be reused
+        for (int i = 0; i < numberOfDatagrams; i++) {
+            ByteBuffer buffer = receivedDatagrams[i];
+            InetSocketAddress sender = receivedDatagramSenders[i];
+            receivedDatagrams[i] = null;
+            receivedDatagramSenders[i] = null;
+            buffer.flip();
+
+            // Most traffic is multicast to everyone, drop what doesn't concern me before decoding it
+            if (pduCodec.peekHeader(buffer, receivedHeader) && !isWorthDecoding(receivedHeader)) {
+                numberOfEarlyDroppedDatagrams++;
+                receiveBufferPool.release(buffer);
+                continue;
+            }
 
-        synchronized(contentRoutingTable) {
             try {
-                path = contentRoutingTable.getBestHopCountEntry(requestedFileHash);
-            } catch ( NullPointerException e) {
-                LOGGER.error("Couldn't find path for requested file");
-                return;
+                MobileNetworkPDU pdu = pduCodec.decode(buffer);
+                learnNeighbourAddress(pdu, sender.getAddress());
+                pdus.add(pdu);
+            } catch (ClassNotFoundException e) {
+                LOGGER.error("Object captured in socket was not of type MobileNetworkPDU");
+            } catch (IOException e) {
+                LOGGER.error("Discarding datagram that could not be decoded: " + e.getMessage());
+            } finally {
+                receiveBufferPool.release(buffer);
             }
         }
 
-        if (path.getHopCount() == 0) {
-            // Don't download a file we have stored locally...
-
-            return;
-        }
+        return pdus;
+    }
 
-        String destination = path.getDstMAC();
-        String nextHop = path.getNextHopMAC();
+    /**
+     * Hellos, hello requests, pings and pongs are single-hop: whoever created them is also
+     * who sent the datagram. Use them to learn how to reach that neighbour directly
+     * @param pdu Received PDU
+     * @param senderAddress Address the datagram came from
+     */
+    private void learnNeighbourAddress(MobileNetworkPDU pdu, InetAddress senderAddress) {
+        MobileNetworkPDU.ContentType contentType = ((DataMobileNetworkPDU) pdu).getContentType();
+        boolean isSingleHop = (contentType == ROUTING_TABLE || contentType == ROUTING_TABLE_VERSION);
 
-        sendRequestContentMessage(destination, nextHop, getTimestampOfNow(), requestedFileHash, initByteToAsk);
+        if (isSingleHop && !pdu.getSrcMAC().equals(macAddr)) {
+            synchronized (neighbourTable) {
+                neighbourTable.learn(pdu.getSrcMAC(), senderAddress);
+            }
+        }
     }
 
-    public MobileNetworkPDU capturePDU() throws IOException, ClassNotFoundException {
-        DatagramPacket receivePacket = new DatagramPacket(new byte[10000], 10000);
-        receiveServerSocket.receive(receivePacket);
-        byte[] data = receivePacket.getData();
-        ByteArrayInputStream in = new ByteArrayInputStream(data);
-        ObjectInputStream objectInputStream = new ObjectInputStream(in);
-        MobileNetworkPDU pdu = (MobileNetworkPDU) objectInputStream.readObject();
+    /**
+     * Decide, from the header alone, if the listening daemon would do anything with a PDU.
+     * Mirrors the checks made when parsing a packet, but errs on the side of decoding
+     * @param header Peeked header of the PDU
+     * @return False if the PDU can be safely dropped
+     */
+    private boolean isWorthDecoding(MobileNetworkPDUHeader header) {
+        // Multicast messages get forwarded back to me
+        if (header.isSource(macAddrBytes)) {
+            return false;
+        }
+
+        // I'm the next hop (or it's a single-hop message to everyone), so I either consume or forward it
+        if (header.isNextHop(macAddrBytes) || header.isNextHop(LINK_BROADCAST_BYTES)) {
+            return true;
+        }
 
-        return pdu;
+        if (header.getMessageType() == REQUEST_CONTENT) {
+            // I may be able to answer a file request in behalf of the destination,
+            // but that depends on the params. Requests are small anyway
+            return header.getContentType() == FILE;
+        } else {
+            // Fragments unicast to someone else are dropped, only multicast ones are overheard
+            return header.isDestination(macAddrBytes) || header.isDestination(LINK_BROADCAST_BYTES);
+        }
     }
 
     public void sendHelloMessage(String dstMac, String timestamp) {
@@ -471,15 +1673,38 @@ public class MobileNode {
         sendPDU(removeUpdatePacket);
     }
 
-    public void sendRequestContentMessage(String dstMac, String nextHopMAC, String timestamp, String fileHash, int initByte) {
+    public void sendRequestContentMessage(String dstMac, String nextHopMAC, String timestamp, String fileHash, List<ByteRange> ranges) {
+        // A single request can ask for several fragments
+        String[] params = DataRequestMobileNetworkPDU.fileRequestParams(fileHash, ranges);
+
+        sendFileRequest(dstMac, nextHopMAC, timestamp, FILE, params);
+    }
+
+    public void sendRequestCodedContentMessage(String dstMac, String nextHopMAC, String timestamp, String fileHash, List<CodedSymbolRange> symbolRanges) {
+        // A single request can ask for symbols of several generations
+        String[] params = DataRequestMobileNetworkPDU.fileRequestParams(fileHash, symbolRanges);
+
+        sendFileRequest(dstMac, nextHopMAC, timestamp, CODED_FILE, params);
+    }
+
+    public void sendReplicaOfferMessage(String neighbourMAC, String timestamp, String fileHash, int totalSizeBytes) {
+        String[] params = { fileHash, String.valueOf(totalSizeBytes) };
+
+        sendFileRequest(neighbourMAC, neighbourMAC, timestamp, REPLICA, params);
+    }
+
+    public void sendRequestChunkMapMessage(String dstMac, String nextHopMAC, String timestamp, String fileHash, List<ByteRange> ranges) {
+        // A single request can ask for the map of several ranges
+        String[] params = DataRequestMobileNetworkPDU.fileRequestParams(fileHash, ranges);
+
+        sendFileRequest(dstMac, nextHopMAC, timestamp, CHUNK_MAP, params);
+    }
+
+    private void sendFileRequest(String dstMac, String nextHopMAC, String timestamp, MobileNetworkPDU.ContentType contentType, String[] params) {
         Stack<String> nodePath = new Stack<>();
         nodePath.push(macAddr);
         nodePath.push(nextHopMAC);
 
-        String[] params = new String[2];
-        params[0] = fileHash;
-        params[1] = String.valueOf(initByte);
-
         MobileNetworkPDU requestContentPacket = new DataRequestMobileNetworkPDU(
                 macAddr,
                 dstMac,
@@ -487,17 +1712,60 @@ public class MobileNode {
                 STANDARD_TTL,
                 timestamp,
                 nodePath,
-                FILE,
+                contentType,
                 params);
 
-        LOGGER.debug("Sending(REQ_FILE): " + requestContentPacket.toString());
+        LOGGER.debug("Sending(REQ_" + contentType + "): " + requestContentPacket.toString());
 
         sendPDU(requestContentPacket);
     }
 
     public void sendResponseFileMessage(DataRequestMobileNetworkPDU requestItRespondsTo, FileFragment fragment, String[] params) {
+        sendFileResponse(requestItRespondsTo, FILE, params, fragment);
+    }
+
+    /**
+     * Multicast a fragment to every neighbour downloading its file, in the file's distribution session
+     * @param fileHash Hash of the file (the session is the file's)
+     * @param fragment Fragment to send, with a proof anchored at the root (every neighbour knows that much)
+     * @param params Params of the response
+     */
+    public void sendMulticastFileMessage(String fileHash, FileFragment fragment, String[] params) {
+        // Single-hop, to everyone in range
+        Stack<String> nodePath = new Stack<>();
+        nodePath.push(macAddr);
+        nodePath.push(LINK_BROADCAST.toString());
+
+        MobileNetworkPDU multicastFileMessage = new DataResponseMobileNetworkPDU(
+                macAddr,
+                LINK_BROADCAST.toString(),
+                VALID,
+                STANDARD_TTL,
+                fileHash,
+                nodePath,
+                FILE,
+                params,
+                fragment);
+
+        LOGGER.debug("Sending(MULTICAST_FILE): " + multicastFileMessage.toString());
+
+        sendPDU(multicastFileMessage);
+    }
+
+    public void sendResponseCodedFileMessage(DataRequestMobileNetworkPDU requestItRespondsTo, CodedSymbol symbol, String[] params) {
+        sendFileResponse(requestItRespondsTo, CODED_FILE, params, symbol);
+    }
+
+    public void sendResponseChunkMapMessage(DataRequestMobileNetworkPDU requestItRespondsTo, ChunkMap chunkMap, String[] params) {
+        sendFileResponse(requestItRespondsTo, CHUNK_MAP, params, chunkMap);
+    }
+
+    private void sendFileResponse(DataRequestMobileNetworkPDU requestItRespondsTo, MobileNetworkPDU.ContentType contentType, String[] params, Object content) {
         String requestSessionID = requestItRespondsTo.getSessionID();
-        Stack<String> nodePath = requestItRespondsTo.getNodePath();
+
+        // A request may be answered by several responses, so its node path is left untouched
+        Stack<String> nodePath = new Stack<>();
+        nodePath.addAll(requestItRespondsTo.getNodePath());
         String peerIDOfRequester = nodePath.get(0);
 
         // A node path was made whilst the request message was routed
@@ -511,15 +1779,62 @@ public class MobileNode {
                 STANDARD_TTL,
                 requestSessionID,
                 nodePath,
-                FILE,
+                contentType,
                 params,
-                fragment);
+                content);
 
-        LOGGER.debug("Sending(RESPONSE_FILE): " + responseFileMessage.toString());
+        LOGGER.debug("Sending(RESPONSE_" + contentType + "): " + responseFileMessage.toString());
 
         sendPDU(responseFileMessage);
     }
 
+    public void sendPathMtuProbe(String dstMac, String nextHopMAC, String timestamp) {
+        Stack<String> nodePath = new Stack<>();
+        nodePath.push(macAddr);
+        nodePath.push(nextHopMAC);
+
+        // Every hop lowers the MTU to the one of its own link, starting with mine
+        String[] params = { String.valueOf(interfaceMtu) };
+
+        MobileNetworkPDU probePacket = new DataRequestMobileNetworkPDU(
+                macAddr,
+                dstMac,
+                VALID,
+                STANDARD_TTL,
+                timestamp,
+                nodePath,
+                PATH_MTU,
+                params);
+
+        LOGGER.debug("Sending(REQ_PATH_MTU): " + probePacket.toString());
+
+        sendPDU(probePacket);
+    }
+
+    public void sendPathMtuResponse(DataRequestMobileNetworkPDU probeItRespondsTo, int pathMtu) {
+        // Same as any response, goes back through the path the probe came from
+        Stack<String> nodePath = new Stack<>();
+        nodePath.addAll(probeItRespondsTo.getNodePath());
+        nodePath.pop();
+
+        String[] params = { String.valueOf(pathMtu) };
+
+        MobileNetworkPDU responsePacket = new DataResponseMobileNetworkPDU(
+                macAddr,
+                probeItRespondsTo.getSrcMAC(),
+                VALID,
+                STANDARD_TTL,
+                probeItRespondsTo.getSessionID(),
+                nodePath,
+                PATH_MTU,
+                params,
+                null); // The MTU goes in the params
+
+        LOGGER.debug("Sending(RESPONSE_PATH_MTU): " + responsePacket.toString());
+
+        sendPDU(responsePacket);
+    }
+
     public void sendHelloRequest(String dstMac, String timestamp) {
         Stack<String> nodePath = new Stack<>();
         nodePath.push(macAddr);
@@ -562,6 +1877,19 @@ public class MobileNode {
         if (nextHop != null) {
             Stack<String> nodePath = requestPDU.getNodePath();
 
+            if (requestPDU.getContentType() == FILE || requestPDU.getContentType() == CODED_FILE) {
+                // Requests going through count as much as those answered, hot files are offered along their path
+                try {
+                    int numberOfFragments = requestPDU.getContentType() == FILE
+                            ? requestPDU.getRequestedRanges().size()
+                            : requestPDU.getRequestedSymbolRanges().size();
+
+                    countFileRequests(requestPDU, numberOfFragments);
+                } catch (NumberFormatException e) {
+                    LOGGER.error("Malformed file request: " + requestPDU.toString());
+                }
+            }
+
             // Look to the first empty value in array and push the new next hop
             nodePath.push(nextHop);
 
@@ -576,33 +1904,66 @@ public class MobileNode {
 
     public void sendPDU(MobileNetworkPDU pdu) {
         // Send the pdu as a byte array
-        try {
-            ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-            ObjectOutputStream os = new ObjectOutputStream(outputStream);
+        // Several threads send packets, so the encoding buffer is guarded
+        synchronized (sendBuffer) {
+            try {
+                sendBuffer.clear();
+                pduCodec.encode(pdu, sendBuffer);
+
+                DatagramPacket sendPacket = new DatagramPacket(sendBuffer.array(), sendBuffer.position(), resolveDatagramDestination(pdu), port);
+                sendServerSocket.send(sendPacket);
+            } catch (BufferOverflowException e) {
+                LOGGER.error("PDU does not fit in a single datagram: " + pdu.toString());
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
 
-            os.writeObject(pdu);
-            os.flush();
+    /**
+     * PDUs addressed to a single next hop (file requests and responses, errors, ...) go straight to
+     * that neighbour if its address is known. Everything else (hellos, pings, pongs, routing updates)
+     * is meant for every neighbour in range, and so is multicast
+     * @param pdu PDU about to be sent
+     * @return Address to send the datagram to
+     */
+    private InetAddress resolveDatagramDestination(MobileNetworkPDU pdu) {
+        Stack<String> nodePath = pdu.getNodePath();
 
-            byte[] buffer = outputStream.toByteArray();
+        if (nodePath.isEmpty() || nodePath.peek().equals(LINK_BROADCAST.toString())) {
+            return group;
+        }
 
-            DatagramPacket sendPacket = new DatagramPacket(buffer, buffer.length, group, port);
-            sendPacket.setData(buffer);
-            sendServerSocket.send(sendPacket);
-        } catch (IOException e) {
-            e.printStackTrace();
+        InetAddress nextHopAddress;
+        synchronized (neighbourTable) {
+            nextHopAddress = neighbourTable.getAddress(nodePath.peek());
         }
+
+        return nextHopAddress != null ? nextHopAddress : group;
     }
 
     private String getStatistics() {
-        String nodeInfo = String.format("STATISTICS: \n-Mac address: %s \n-Routing table \n %s \n-Peer Keepalive table\n %s",
+        String nodeInfo = String.format("STATISTICS: \n-Mac address: %s \n-Routing table \n %s \n-Peer Keepalive table\n %s \n-Neighbour table\n %s \n-Path MTU table\n %s \n-Round trip time table\n %s \n-Request rate table\n %s \n-Distribution sessions\n %s \n-Datagrams dropped before decoding: %d",
                 macAddr,
                 contentRoutingTable.toString(),
-                peerKeepaliveTable.toString());
+                peerKeepaliveTable.toString(),
+                neighbourTable.toString(),
+                pathMtuTable.toString(),
+                roundTripTimeTable.toString(),
+                requestRateTable.toString(),
+                distributionSessionTable.toString(),
+                numberOfEarlyDroppedDatagrams);
 
         return nodeInfo;
     }
 
     public void closeReceiveSocket() {
-        this.receiveServerSocket.close();
+        try {
+            // Closing the selector first wakes up the listener if it's blocked waiting for datagrams
+            this.receiveSelector.close();
+            this.receiveChannel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
     }
 }
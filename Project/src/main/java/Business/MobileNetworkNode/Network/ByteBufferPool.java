@@ -0,0 +1,64 @@
+package Business.MobileNetworkNode.Network;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * Pool of equally sized direct buffers, so receiving datagrams doesn't allocate a new buffer every time.
+ *
+ * Direct buffers are expensive to create but let the socket write straight into them, so they're
+ * created once and recycled. If the pool runs dry a new buffer is created, and it's kept only if
+ * there's room for it when released back
+ */
+public class ByteBufferPool {
+
+    // Size of each buffer in the pool
+    private final int BUFFER_SIZE_BYTES;
+
+    // Max number of idle buffers kept around
+    private final int MAX_POOLED_BUFFERS;
+
+    // Buffers ready to be handed out
+    private Deque<ByteBuffer> idleBuffers;
+
+    /**
+     * Constructor
+     * @param bufferSizeBytes Size of each buffer
+     * @param maxPooledBuffers Number of buffers allocated up front (and max number of idle buffers kept)
+     */
+    public ByteBufferPool(int bufferSizeBytes, int maxPooledBuffers) {
+        this.BUFFER_SIZE_BYTES = bufferSizeBytes;
+        this.MAX_POOLED_BUFFERS = maxPooledBuffers;
+        this.idleBuffers = new ArrayDeque<>(maxPooledBuffers);
+
+        for (int i = 0; i < maxPooledBuffers; i++) {
+            idleBuffers.push(ByteBuffer.allocateDirect(bufferSizeBytes));
+        }
+    }
+
+    /**
+     * Take a cleared buffer from the pool
+     * @return Buffer ready to be written into
+     */
+    public synchronized ByteBuffer acquire() {
+        ByteBuffer buffer = idleBuffers.poll();
+
+        if (buffer == null) {
+            buffer = ByteBuffer.allocateDirect(BUFFER_SIZE_BYTES);
+        }
+
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Give a buffer back to the pool. The buffer must not be used afterwards
+     * @param buffer Buffer previously acquired from this pool
+     */
+    public synchronized void release(ByteBuffer buffer) {
+        if (idleBuffers.size() < MAX_POOLED_BUFFERS) {
+            idleBuffers.push(buffer);
+        }
+    }
+}
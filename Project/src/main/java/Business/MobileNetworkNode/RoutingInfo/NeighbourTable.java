@@ -0,0 +1,48 @@
+package Business.MobileNetworkNode.RoutingInfo;
+
+import java.net.InetAddress;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Maps the link address (MAC) of a direct neighbour to the network address (IP) it sends from.
+ *
+ * Peers are only known by their MAC inside the protocol, but to send a datagram to a single
+ * neighbour (instead of multicasting it to everyone in range) its IP is needed. The table is
+ * learned from single-hop traffic, where the source of the PDU is also the sender of the datagram
+ */
+public class NeighbourTable {
+
+    // Map a neighbour's MAC to the address its datagrams come from
+    private Map<String, InetAddress> neighbourAddresses;
+
+    public NeighbourTable() {
+        this.neighbourAddresses = new HashMap<>();
+    }
+
+    /**
+     * Remember (or refresh) the address of a neighbour
+     * @param peerID MAC of the neighbour
+     * @param address Address the neighbour was seen sending from
+     */
+    public void learn(String peerID, InetAddress address) {
+        neighbourAddresses.put(peerID, address);
+    }
+
+    /**
+     * @param peerID MAC of the neighbour
+     * @return Address of the neighbour, or null if it's unknown (or not a direct neighbour)
+     */
+    public InetAddress getAddress(String peerID) {
+        return neighbourAddresses.get(peerID);
+    }
+
+    public void removeNeighbour(String peerID) {
+        neighbourAddresses.remove(peerID);
+    }
+
+    @Override
+    public String toString() {
+        return neighbourAddresses.toString();
+    }
+}
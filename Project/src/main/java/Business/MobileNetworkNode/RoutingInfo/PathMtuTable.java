@@ -0,0 +1,95 @@
+package Business.MobileNetworkNode.RoutingInfo;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Maps a destination (MAC) to the smallest MTU found along the path to it.
+ *
+ * The path MTU is found by sending a probe to the destination, whose value every hop lowers to the
+ * MTU of its own interface. This isn't real path MTU discovery (nothing is sent at that size, and
+ * links between nodes that don't run this code, or lie about it, go unnoticed): it's the smallest
+ * MTU the nodes along the path report. Paths change as routes change, so what was found is only
+ * trusted for a while, after which the destination should be probed again
+ */
+public class PathMtuTable {
+
+    // Time a discovered path MTU is trusted for
+    private final long EXPIRY_MS;
+
+    // Min time between two probes to the same destination
+    private final long PROBE_INTERVAL_MS;
+
+    // Map a destination to the MTU of the path to it, and when it was discovered
+    private Map<String, Integer> pathMtus;
+    private Map<String, Long> discoveredAtMs;
+
+    // Map a destination to the moment it was last probed
+    private Map<String, Long> probedAtMs;
+
+    /**
+     * Constructor
+     * @param expiryMs Time a discovered path MTU is trusted for
+     * @param probeIntervalMs Min time between two probes to the same destination
+     */
+    public PathMtuTable(long expiryMs, long probeIntervalMs) {
+        this.EXPIRY_MS = expiryMs;
+        this.PROBE_INTERVAL_MS = probeIntervalMs;
+        this.pathMtus = new HashMap<>();
+        this.discoveredAtMs = new HashMap<>();
+        this.probedAtMs = new HashMap<>();
+    }
+
+    /**
+     * @param dstMAC Destination
+     * @param now Current time (ms)
+     * @return MTU of the path to the destination, or -1 if it's unknown (or no longer trusted)
+     */
+    public int getPathMtu(String dstMAC, long now) {
+        Long discoveredAt = discoveredAtMs.get(dstMAC);
+
+        if (discoveredAt == null || now - discoveredAt > EXPIRY_MS) {
+            return -1;
+        }
+
+        return pathMtus.get(dstMAC);
+    }
+
+    public void setPathMtu(String dstMAC, int mtu, long now) {
+        pathMtus.put(dstMAC, mtu);
+        discoveredAtMs.put(dstMAC, now);
+    }
+
+    /**
+     * Check if a destination should be probed, and if so take note that it's about to be
+     * @param dstMAC Destination
+     * @param now Current time (ms)
+     * @return True if the path MTU is unknown and no probe was sent recently
+     */
+    public boolean shouldProbe(String dstMAC, long now) {
+        if (getPathMtu(dstMAC, now) > 0) {
+            return false;
+        }
+
+        Long probedAt = probedAtMs.get(dstMAC);
+
+        if (probedAt != null && now - probedAt < PROBE_INTERVAL_MS) {
+            return false;
+        }
+
+        probedAtMs.put(dstMAC, now);
+
+        return true;
+    }
+
+    public void removeDestination(String dstMAC) {
+        pathMtus.remove(dstMAC);
+        discoveredAtMs.remove(dstMAC);
+        probedAtMs.remove(dstMAC);
+    }
+
+    @Override
+    public String toString() {
+        return pathMtus.toString();
+    }
+}
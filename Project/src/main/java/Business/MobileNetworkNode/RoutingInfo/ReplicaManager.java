@@ -0,0 +1,340 @@
+package Business.MobileNetworkNode.RoutingInfo;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+import Business.MobileNetworkNode.DataCache.ContentChunk;
+import Business.MobileNetworkNode.DataCache.ContentIndex;
+import Business.MobileNetworkNode.DataCache.FileFragmentTable;
+import Business.MobileNetworkNode.DataCache.MerkleTree;
+import Business.MobileNetworkNode.MobileNode;
+import Business.MobileNetworkNode.Transfer.FileDownloadTable;
+import Business.PDU.DataRequestMobileNetworkPDU;
+import org.apache.log4j.Logger;
+import static Business.Utils.getTimestampOfNow;
+
+/**
+ * Moves files closer to whoever keeps asking for them. Hot files held whole are offered to the neighbour
+ * most requests for them come through, and files offered by neighbours are taken (replicas), downloaded
+ * and shared like any other, as long as they fit in a storage budget.
+ *
+ * When a replica doesn't fit, colder replicas are evicted to make room for it. Replicas are kept in the
+ * content index, so they're shared again (and counted in the budget) on the next run
+ */
+public class ReplicaManager {
+
+    // Fragments of a file asked for per minute for the file to be hot
+    private final double HOT_FILE_MIN_REQUESTS_PER_MINUTE;
+
+    // Min time between offers of the same file (whether the neighbour took it or not)
+    private final long OFFER_INTERVAL_MS;
+
+    // Max number of bytes of replicas held (downloads asked for by the user don't count)
+    private final long STORAGE_BUDGET_BYTES;
+
+    // Levels of a replica's Merkle tree kept in memory once it's indexed (the lower ones are read from disk)
+    private final int MERKLE_TREE_LEVELS_ON_DISK;
+
+    // Node the replicas are downloaded, shared and unshared by
+    private final MobileNode representativeNode;
+
+    private final RequestRateTable requestRateTable;
+    private final FileFragmentTable<String> cacheOfFragmentedFiles;
+    private final FileDownloadTable fileDownloadTable;
+    private final ContentIndex contentIndex;
+
+    private final Logger LOGGER;
+
+    // Map a hot file to the last time it was offered to a neighbour
+    private final Map<String, Long> lastOffers;
+
+    // Map the hash of each replica (taken, whether it's downloaded yet or not) to its size
+    private final Map<String, Integer> replicaSizes;
+
+    /**
+     * Constructor
+     * @param mobileNode Node the replicas are downloaded and shared by
+     * @param requestRateTable How often each file is asked for, and from which neighbour
+     * @param cacheOfFragmentedFiles Files held by the node
+     * @param fileDownloadTable Downloads in progress
+     * @param contentIndex Index replicas are kept in between runs
+     * @param hotFileMinRequestsPerMinute Fragments of a file asked for per minute for it to be hot
+     * @param offerIntervalMs Min time between offers of the same file
+     * @param storageBudgetBytes Max number of bytes of replicas held
+     * @param merkleTreeLevelsOnDisk Levels of a replica's Merkle tree left on disk once indexed
+     */
+    public ReplicaManager(MobileNode mobileNode, RequestRateTable requestRateTable, FileFragmentTable<String> cacheOfFragmentedFiles,
+                          FileDownloadTable fileDownloadTable, ContentIndex contentIndex, double hotFileMinRequestsPerMinute,
+                          long offerIntervalMs, long storageBudgetBytes, int merkleTreeLevelsOnDisk) {
+        this.representativeNode = mobileNode;
+        this.requestRateTable = requestRateTable;
+        this.cacheOfFragmentedFiles = cacheOfFragmentedFiles;
+        this.fileDownloadTable = fileDownloadTable;
+        this.contentIndex = contentIndex;
+        this.HOT_FILE_MIN_REQUESTS_PER_MINUTE = hotFileMinRequestsPerMinute;
+        this.OFFER_INTERVAL_MS = offerIntervalMs;
+        this.STORAGE_BUDGET_BYTES = storageBudgetBytes;
+        this.MERKLE_TREE_LEVELS_ON_DISK = merkleTreeLevelsOnDisk;
+        this.LOGGER = mobileNode.getLogger();
+        this.lastOffers = new HashMap<>();
+        this.replicaSizes = new HashMap<>();
+    }
+
+    /**
+     * Count a replica taken on a previous run (and shared again) in the budget
+     * @param fileHash Hash of the replica
+     * @param sizeBytes Size of the replica
+     */
+    public void addIndexedReplica(String fileHash, int sizeBytes) {
+        synchronized (replicaSizes) {
+            replicaSizes.put(fileHash, sizeBytes);
+        }
+    }
+
+    /**
+     * Add a file just downloaded to the content index if it's a replica (so it's shared again on the next run),
+     * and keep only the upper levels of its tree in memory from then on, as for the files of the sharing directory
+     * @param fileHash Hash of the file downloaded
+     * @param fileName Name it's shared by
+     */
+    public void indexReplica(String fileHash, String fileName) {
+        synchronized (replicaSizes) {
+            if (!replicaSizes.containsKey(fileHash)) {
+                return;
+            }
+        }
+
+        synchronized (cacheOfFragmentedFiles) {
+            File file = cacheOfFragmentedFiles.getOwnedFile(fileHash);
+            MerkleTree merkleTree = cacheOfFragmentedFiles.getOwnedMerkleTree(fileHash);
+            List<ContentChunk> contentChunks = cacheOfFragmentedFiles.getOwnedContentChunks(fileHash);
+
+            if (file == null || merkleTree == null) {
+                return;
+            }
+
+            try {
+                ContentIndex.IndexedFile indexedFile;
+                synchronized (contentIndex) {
+                    indexedFile = contentIndex.put(file, fileHash, merkleTree, contentChunks != null ? contentChunks : new ArrayList<>(), fileName);
+                    contentIndex.save();
+                }
+
+                merkleTree.dropLowerLevels(MERKLE_TREE_LEVELS_ON_DISK, indexedFile);
+            } catch (IOException e) {
+                LOGGER.warn("Couldn't add replica " + fileName + " to the content index: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Count the fragments asked for by a request answered or forwarded, as coming from the neighbour it came through
+     * @param requestPDU Request of a file
+     * @param numberOfFragments Number of fragments it asked for (or was answered with)
+     */
+    public void countFileRequests(DataRequestMobileNetworkPDU requestPDU, int numberOfFragments) {
+        Stack<String> nodePath = requestPDU.getNodePath();
+
+        if (nodePath.size() < 2 || numberOfFragments <= 0) {
+            // Asked for by this node itself
+            return;
+        }
+
+        // The path ends with this node, the one before it is who the request came through
+        String previousHop = nodePath.get(nodePath.size() - 2);
+
+        synchronized (requestRateTable) {
+            requestRateTable.addRequests(requestPDU.getRequestedFileHash(), previousHop, numberOfFragments, System.currentTimeMillis());
+        }
+    }
+
+    /**
+     * Offer each hot file the node holds whole to the neighbour most requests for it come through, so it's
+     * downloaded and shared a hop closer to whoever keeps asking for it
+     */
+    public void offerHotFiles() {
+        long now = System.currentTimeMillis();
+
+        List<String> hotFiles;
+        synchronized (requestRateTable) {
+            hotFiles = requestRateTable.getHotFiles(HOT_FILE_MIN_REQUESTS_PER_MINUTE, now);
+        }
+
+        for (String fileHash : hotFiles) {
+            int totalSizeBytes;
+            synchronized (cacheOfFragmentedFiles) {
+                // Only files held whole are offered, the others are up to whoever holds them
+                totalSizeBytes = cacheOfFragmentedFiles.getOwnedFileName(fileHash) != null
+                        ? cacheOfFragmentedFiles.getTotalSizeBytes(fileHash)
+                        : -1;
+            }
+
+            if (totalSizeBytes < 0) {
+                continue;
+            }
+
+            String busiestNeighbour;
+            synchronized (requestRateTable) {
+                busiestNeighbour = requestRateTable.getBusiestNeighbour(fileHash, now);
+            }
+
+            synchronized (lastOffers) {
+                Long lastOffer = lastOffers.get(fileHash);
+
+                if (busiestNeighbour == null || (lastOffer != null && now - lastOffer < OFFER_INTERVAL_MS)) {
+                    continue;
+                }
+
+                lastOffers.put(fileHash, now);
+            }
+
+            LOGGER.info("Offering hot file " + fileHash + " to " + busiestNeighbour);
+            representativeNode.sendReplicaOfferMessage(busiestNeighbour, getTimestampOfNow(), fileHash, totalSizeBytes);
+        }
+    }
+
+    /**
+     * Take a file offered by a neighbour (it's asked for a lot through here), as long as there's room for it in
+     * the budget, evicting the coldest replicas (those asked for less than it) if there isn't. It's
+     * downloaded like any other, and shared once complete
+     * @param fileHash Hash of the file offered
+     * @param totalSizeBytes Size of the file
+     * @param offererMAC Neighbour that offered it
+     */
+    public void acceptReplicaOffer(String fileHash, int totalSizeBytes, String offererMAC) {
+        boolean isHeld;
+        synchronized (cacheOfFragmentedFiles) {
+            isHeld = cacheOfFragmentedFiles.getOwnedFileName(fileHash) != null;
+        }
+
+        boolean isBeingDownloaded;
+        synchronized (fileDownloadTable) {
+            isBeingDownloaded = fileDownloadTable.getDownload(fileHash) != null;
+        }
+
+        if (isHeld || isBeingDownloaded || totalSizeBytes < 0) {
+            return;
+        }
+
+        List<String> evictedReplicas;
+        synchronized (replicaSizes) {
+            if (replicaSizes.containsKey(fileHash)) {
+                return;
+            }
+
+            long usedBytes = 0;
+            for (int replicaSize : replicaSizes.values()) {
+                usedBytes += replicaSize;
+            }
+
+            evictedReplicas = pickColdReplicas(fileHash, usedBytes + totalSizeBytes - STORAGE_BUDGET_BYTES);
+
+            if (evictedReplicas == null) {
+                LOGGER.info("Declining replica of " + fileHash + " offered by " + offererMAC + ", out of room");
+                return;
+            }
+
+            replicaSizes.keySet().removeAll(evictedReplicas);
+            replicaSizes.put(fileHash, totalSizeBytes);
+        }
+
+        for (String evictedReplica : evictedReplicas) {
+            evictReplica(evictedReplica);
+        }
+
+        LOGGER.info("Replicating " + fileHash + ", offered by " + offererMAC);
+        representativeNode.startDownload(fileHash);
+
+        synchronized (fileDownloadTable) {
+            isBeingDownloaded = fileDownloadTable.getDownload(fileHash) != null;
+        }
+
+        if (!isBeingDownloaded) {
+            // No path to it after all
+            releaseReplica(fileHash);
+        }
+    }
+
+    /**
+     * Give the room a replica took in the budget back (its download was given up on)
+     * @param fileHash Hash of the file
+     */
+    public void releaseReplica(String fileHash) {
+        synchronized (replicaSizes) {
+            replicaSizes.remove(fileHash);
+        }
+    }
+
+    // Replicas held whole to evict to free some bytes of the budget, the coldest first, and only those asked for
+    // less often than the file they make room for. Null if they wouldn't free enough (called holding replicaSizes)
+    private List<String> pickColdReplicas(String fileHash, long bytesToFree) {
+        List<String> coldReplicas = new ArrayList<>();
+
+        if (bytesToFree <= 0) {
+            return coldReplicas;
+        }
+
+        long now = System.currentTimeMillis();
+        Map<String, Double> replicaRates = new HashMap<>();
+        double offeredRate;
+
+        synchronized (requestRateTable) {
+            offeredRate = requestRateTable.getRatePerMinute(fileHash, now);
+
+            for (String replica : replicaSizes.keySet()) {
+                replicaRates.put(replica, requestRateTable.getRatePerMinute(replica, now));
+            }
+        }
+
+        synchronized (cacheOfFragmentedFiles) {
+            // Replicas still being downloaded aren't evicted
+            replicaRates.keySet().removeIf(replica -> cacheOfFragmentedFiles.getOwnedFileName(replica) == null);
+        }
+
+        List<String> replicas = new ArrayList<>(replicaRates.keySet());
+        replicas.sort(Comparator.comparingDouble(replicaRates::get));
+
+        long freedBytes = 0;
+        for (String replica : replicas) {
+            if (freedBytes >= bytesToFree || replicaRates.get(replica) >= offeredRate) {
+                break;
+            }
+
+            coldReplicas.add(replica);
+            freedBytes += replicaSizes.get(replica);
+        }
+
+        return freedBytes >= bytesToFree ? coldReplicas : null;
+    }
+
+    // Stop sharing a replica (letting the neighbours know), forget it and delete it
+    private void evictReplica(String fileHash) {
+        File file;
+        String fileName;
+        synchronized (cacheOfFragmentedFiles) {
+            file = cacheOfFragmentedFiles.getOwnedFile(fileHash);
+            fileName = cacheOfFragmentedFiles.getOwnedFileName(fileHash);
+        }
+
+        if (file == null) {
+            return;
+        }
+
+        LOGGER.info("Evicting replica " + fileName + " (" + fileHash + ") to make room for a hotter one");
+
+        synchronized (contentIndex) {
+            try {
+                contentIndex.remove(file);
+                contentIndex.save();
+            } catch (IOException e) {
+                LOGGER.error("Couldn't save the content index: " + e.getMessage());
+            }
+        }
+
+        representativeNode.unshareOwnedFile(fileHash, fileName);
+
+        if (!file.delete()) {
+            LOGGER.warn("Couldn't delete replica " + file.getPath());
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package Business.MobileNetworkNode.RoutingInfo;
+
+import java.util.*;
+
+/**
+ * Maps a file hash to how often its fragments are asked for, be it to this node or through it, and
+ * which neighbour the requests come from.
+ *
+ * Every neighbour's count of requests decays exponentially, so a file asked for a lot a while ago
+ * cools down on its own. The rate of requests is the count over the time it takes to decay, which is
+ * what the count settles to when requests come in at a steady pace
+ */
+public class RequestRateTable {
+
+    // Time it takes a count to decay to about a third (the rate is averaged over roughly this long)
+    private final long DECAY_TIME_MS;
+
+    // Counts that decayed below this are forgotten
+    private static final double MIN_COUNT = 0.5;
+
+    // Map a file hash to the (decaying) count of requests from each neighbour
+    private Map<String, Map<String, DecayingCount>> requestCounts;
+
+    /**
+     * Constructor
+     * @param decayTimeMs Time over which the rate of requests is averaged
+     */
+    public RequestRateTable(long decayTimeMs) {
+        this.DECAY_TIME_MS = decayTimeMs;
+        this.requestCounts = new HashMap<>();
+    }
+
+    /**
+     * Count requests for a file
+     * @param fileHash Hash of the file asked for
+     * @param neighbourMAC Neighbour the requests came from
+     * @param numberOfFragments Number of fragments asked for
+     * @param now Current time (ms)
+     */
+    public void addRequests(String fileHash, String neighbourMAC, int numberOfFragments, long now) {
+        requestCounts.computeIfAbsent(fileHash, hash -> new HashMap<>())
+                .computeIfAbsent(neighbourMAC, mac -> new DecayingCount(now))
+                .add(numberOfFragments, now);
+    }
+
+    /**
+     * @param fileHash Hash of a file
+     * @param now Current time (ms)
+     * @return Fragments of the file asked for per minute, from every neighbour
+     */
+    public double getRatePerMinute(String fileHash, long now) {
+        double count = 0;
+
+        for (DecayingCount neighbourCount : requestCounts.getOrDefault(fileHash, Collections.emptyMap()).values()) {
+            count += neighbourCount.get(now);
+        }
+
+        return count * 60000 / DECAY_TIME_MS;
+    }
+
+    /**
+     * @param fileHash Hash of a file
+     * @param now Current time (ms)
+     * @return Neighbour the most requests for the file come from, or null if none do
+     */
+    public String getBusiestNeighbour(String fileHash, long now) {
+        String busiestNeighbour = null;
+        double busiestCount = 0;
+
+        for (Map.Entry<String, DecayingCount> neighbourCount : requestCounts.getOrDefault(fileHash, Collections.emptyMap()).entrySet()) {
+            double count = neighbourCount.getValue().get(now);
+
+            if (count > busiestCount) {
+                busiestNeighbour = neighbourCount.getKey();
+                busiestCount = count;
+            }
+        }
+
+        return busiestNeighbour;
+    }
+
+    /**
+     * Files asked for at least at some rate, forgetting those that cooled down altogether
+     * @param minRatePerMinute Fragments asked for per minute for a file to be hot
+     * @param now Current time (ms)
+     * @return Hashes of the hot files, the most asked for first
+     */
+    public List<String> getHotFiles(double minRatePerMinute, long now) {
+        Map<String, Double> hotFiles = new HashMap<>();
+
+        Iterator<Map.Entry<String, Map<String, DecayingCount>>> it = requestCounts.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, Map<String, DecayingCount>> fileCounts = it.next();
+
+            fileCounts.getValue().values().removeIf(neighbourCount -> neighbourCount.get(now) < MIN_COUNT);
+
+            if (fileCounts.getValue().isEmpty()) {
+                it.remove();
+                continue;
+            }
+
+            double rate = getRatePerMinute(fileCounts.getKey(), now);
+
+            if (rate >= minRatePerMinute) {
+                hotFiles.put(fileCounts.getKey(), rate);
+            }
+        }
+
+        List<String> hotFileHashes = new ArrayList<>(hotFiles.keySet());
+        hotFileHashes.sort((a, b) -> Double.compare(hotFiles.get(b), hotFiles.get(a)));
+
+        return hotFileHashes;
+    }
+
+    public void removePeer(String neighbourMAC) {
+        for (Map<String, DecayingCount> fileCounts : requestCounts.values()) {
+            fileCounts.remove(neighbourMAC);
+        }
+
+        requestCounts.values().removeIf(Map::isEmpty);
+    }
+
+    @Override
+    public String toString() {
+        long now = System.currentTimeMillis();
+        StringBuilder sb = new StringBuilder("{");
+
+        for (String fileHash : requestCounts.keySet()) {
+            sb.append(String.format("(%s: %.1f/min, busiest=%s)", fileHash, getRatePerMinute(fileHash, now), getBusiestNeighbour(fileHash, now)));
+        }
+
+        return sb.append("}").toString();
+    }
+
+    // Count that decays exponentially with time
+    private class DecayingCount {
+        private double count;
+        private long lastUpdateMs;
+
+        DecayingCount(long now) {
+            this.count = 0;
+            this.lastUpdateMs = now;
+        }
+
+        void add(double amount, long now) {
+            count = get(now) + amount;
+            lastUpdateMs = Math.max(lastUpdateMs, now);
+        }
+
+        double get(long now) {
+            return count * Math.exp(-Math.max(0, now - lastUpdateMs) / (double) DECAY_TIME_MS);
+        }
+    }
+}
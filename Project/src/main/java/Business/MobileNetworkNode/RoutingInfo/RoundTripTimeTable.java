@@ -0,0 +1,51 @@
+package Business.MobileNetworkNode.RoutingInfo;
+
+import Business.MobileNetworkNode.Transfer.RoundTripTimeEstimator;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Maps a direct neighbour (MAC) to how long it takes to answer a ping.
+ *
+ * Keepalive pings are sent regardless of downloads, so by the time a download starts the round trip
+ * time to the neighbours is usually known already. It's what a download's timers start from, until
+ * the fragments themselves give better measurements
+ */
+public class RoundTripTimeTable {
+
+    // Map a neighbour to the estimate of its round trip time
+    private Map<String, RoundTripTimeEstimator> estimators;
+
+    public RoundTripTimeTable() {
+        this.estimators = new HashMap<>();
+    }
+
+    /**
+     * Take a new measurement of a neighbour's round trip time into account
+     * @param peerID Neighbour that answered
+     * @param rttMs Time it took to answer
+     */
+    public void addSample(String peerID, long rttMs) {
+        estimators.computeIfAbsent(peerID, id -> new RoundTripTimeEstimator()).addSample(rttMs);
+    }
+
+    /**
+     * @param peerID Neighbour
+     * @return Smoothed round trip time to the neighbour (ms), or -1 if it was never measured
+     */
+    public double getSmoothedRtt(String peerID) {
+        RoundTripTimeEstimator estimator = estimators.get(peerID);
+
+        return estimator != null ? estimator.getSmoothedRtt() : -1;
+    }
+
+    public void removePeer(String peerID) {
+        estimators.remove(peerID);
+    }
+
+    @Override
+    public String toString() {
+        return estimators.toString();
+    }
+}
@@ -78,8 +78,20 @@ public class RoutingTable implements Map<String, Set<RoutingTableEntry>>, Serial
     /**
      * Add a reference to a file that the node owns locally
      * @param file File to add
+     * @param merkleRoot Root of the Merkle tree over the file's chunks (hex)
+     * @return Entry of the file (stored locally, 0 hops away)
      */
-    public void addOwnedReference(String fileHash, File file) {
+    public RoutingTableEntry addOwnedReference(String fileHash, File file, String merkleRoot) {
+        return addOwnedReference(fileHash, file.getName(), merkleRoot);
+    }
+
+    /**
+     * Add a reference to a file that the node owns locally
+     * @param fileName Name the file is shared under (plus extension)
+     * @param merkleRoot Root of the Merkle tree over the file's chunks (hex)
+     * @return Entry of the file (stored locally, 0 hops away)
+     */
+    public RoutingTableEntry addOwnedReference(String fileHash, String fileName, String merkleRoot) {
         boolean tableChanged = false;
 
         Set<RoutingTableEntry> knownPaths;
@@ -95,11 +107,12 @@ public class RoutingTable implements Map<String, Set<RoutingTableEntry>>, Serial
         members.add(this.ownerID);
 
         RoutingTableEntry localTableEntry =
-                new RoutingTableEntry(file.getName(),
+                new RoutingTableEntry(fileName,
                         ownerID,
                         NULL_ENTRY.toString(), // there is no next hop, since the file is stored locally
                         0,
-                        members); // There are no hops to take, since the file is stored locally
+                        members, // There are no hops to take, since the file is stored locally
+                        merkleRoot);
 
         tableChanged |= knownPaths.add(localTableEntry);
 
@@ -108,6 +121,41 @@ public class RoutingTable implements Map<String, Set<RoutingTableEntry>>, Serial
         if (tableChanged) {
             updateVersion();
         }
+
+        return localTableEntry;
+    }
+
+    /**
+     * Remove the reference to a file that the node no longer owns locally
+     * @param fileHash Hash of the file
+     * @param fileName Name of the file (plus extension)
+     * @return Entries removed (empty if the file wasn't owned)
+     */
+    public Set<RoutingTableEntry> removeOwnedReference(String fileHash, String fileName) {
+        Set<RoutingTableEntry> removedPaths = new TreeSet<>();
+        Set<RoutingTableEntry> knownPaths = contentRoutingTable.get(fileHash);
+
+        if (knownPaths == null) {
+            return removedPaths;
+        }
+
+        for (RoutingTableEntry path : knownPaths) {
+            if (path.getHopCount() == 0 && path.getDstMAC().equals(ownerID) && path.getFileName().equals(fileName)) {
+                removedPaths.add(path);
+            }
+        }
+
+        knownPaths.removeAll(removedPaths);
+
+        if (knownPaths.isEmpty()) {
+            contentRoutingTable.remove(fileHash);
+        }
+
+        if (!removedPaths.isEmpty()) {
+            updateVersion();
+        }
+
+        return removedPaths;
     }
 
     public boolean addEntries(RoutingTable pathsToAdd) {
@@ -152,6 +200,47 @@ public class RoutingTable implements Map<String, Set<RoutingTableEntry>>, Serial
                 .orElseThrow(NullPointerException::new);
     }
 
+    /**
+     * Get, for each remote node that holds a file, the shortest known path to it
+     * @param fileHash Hash of the file
+     * @return One entry per node holding the file (excluding myself), closest nodes first
+     */
+    public List<RoutingTableEntry> getBestEntryPerDestination(String fileHash) {
+        Map<String, RoutingTableEntry> bestEntryPerDestination = new HashMap<>();
+
+        for (RoutingTableEntry entry : contentRoutingTable.getOrDefault(fileHash, Collections.emptySet())) {
+            if (entry.getHopCount() == 0) {
+                // Stored locally
+                continue;
+            }
+
+            RoutingTableEntry best = bestEntryPerDestination.get(entry.getDstMAC());
+            if (best == null || entry.getHopCount() < best.getHopCount()) {
+                bestEntryPerDestination.put(entry.getDstMAC(), entry);
+            }
+        }
+
+        List<RoutingTableEntry> bestEntries = new ArrayList<>(bestEntryPerDestination.values());
+        bestEntries.sort(Comparator.comparingInt(RoutingTableEntry::getHopCount));
+
+        return bestEntries;
+    }
+
+    /**
+     * Root of the Merkle tree of a file, as advertised by whoever holds it
+     * @param fileHash Hash of the file
+     * @return Root (hex), or null if no path to the file comes with one
+     */
+    public String getMerkleRoot(String fileHash) {
+        for (RoutingTableEntry entry : contentRoutingTable.getOrDefault(fileHash, Collections.emptySet())) {
+            if (entry.getMerkleRoot() != null) {
+                return entry.getMerkleRoot();
+            }
+        }
+
+        return null;
+    }
+
     public String getNextPeerHop(String destination) {
         for (Set<RoutingTableEntry> entries : contentRoutingTable.values()) {
             for (RoutingTableEntry entry : entries) {
@@ -280,7 +369,10 @@ public class RoutingTable implements Map<String, Set<RoutingTableEntry>>, Serial
         for (Map.Entry<String, Set<RoutingTableEntry>> paths : removingPaths.entrySet()) {
             String fileHash = paths.getKey();
 
-            boolean removedExistingContent = contentRoutingTable.get(fileHash).removeAll(paths.getValue());
+            Set<RoutingTableEntry> knownPaths = contentRoutingTable.get(fileHash);
+
+            // Nothing to remove of a file never heard of
+            boolean removedExistingContent = knownPaths != null && knownPaths.removeAll(paths.getValue());
 
             tableChanged |= removedExistingContent;
         }
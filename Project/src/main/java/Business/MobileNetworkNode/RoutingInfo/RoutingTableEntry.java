@@ -29,6 +29,9 @@ public class RoutingTableEntry implements Serializable , Comparable<RoutingTable
     // All the nodes that participate in allowing this path
     private Set<String> participants;
 
+    // Root of the Merkle tree over the file's chunks (hex), to check fragments of it as they arrive
+    private String merkleRoot;
+
     /**
      * More columns can be added here, depending on the project's needs
      * for example: connection time, connection quality...
@@ -41,13 +44,15 @@ public class RoutingTableEntry implements Serializable , Comparable<RoutingTable
      * @param dstMAC Address of final node
      * @param nextHopMAC Address of immediate node
      * @param hopCount Number of hops to destinaion
+     * @param merkleRoot Root of the Merkle tree over the file's chunks (hex)
      */
-    public RoutingTableEntry(String fileName, String dstMAC, String nextHopMAC, int hopCount, Set<String> participants) {
+    public RoutingTableEntry(String fileName, String dstMAC, String nextHopMAC, int hopCount, Set<String> participants, String merkleRoot) {
         this.fileName = fileName;
         this.dstMAC = dstMAC;
         this.nextHopMAC = nextHopMAC;
         this.hopCount = hopCount;
         this.participants = participants;
+        this.merkleRoot = merkleRoot;
     }
 
     public String getFileName() {
@@ -90,6 +95,14 @@ public class RoutingTableEntry implements Serializable , Comparable<RoutingTable
         this.participants = participants;
     }
 
+    public String getMerkleRoot() {
+        return merkleRoot;
+    }
+
+    public void setMerkleRoot(String merkleRoot) {
+        this.merkleRoot = merkleRoot;
+    }
+
     /**
      * Say your neighbour shares his table entry, and it says:
      *
@@ -104,6 +117,7 @@ public class RoutingTableEntry implements Serializable , Comparable<RoutingTable
     public void transformNeighbourEntryIntoMine(String peerID, String myID) {
         // Filename stays the same
         // Destination stays the same
+        // Merkle root stays the same
 
         // Next hop is now the peer that gave me the entry
         this.nextHopMAC = peerID;
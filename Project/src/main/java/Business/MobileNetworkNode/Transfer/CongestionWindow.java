@@ -0,0 +1,95 @@
+package Business.MobileNetworkNode.Transfer;
+
+/**
+ * Number of requests a download is allowed to keep in flight, adapted to what the paths can take
+ * (additive increase, multiplicative decrease).
+ *
+ * The window starts small and doubles every round trip (slow start) until the first sign of
+ * congestion, then grows by one request per round trip. It's halved when a request is lost, and
+ * also when fragments start taking much longer than the fastest seen from the same source (queues
+ * building up along the path), so the download backs off before other traffic, such as keepalives, is starved.
+ * The window reacts at most once per round trip, so a burst of losses only halves it once
+ */
+public class CongestionWindow {
+
+    // Window the download starts with, and the smallest it can shrink to
+    private static final int INITIAL_WINDOW = 4;
+    private static final int MIN_WINDOW = 2;
+
+    // Round trip times beyond this many times the fastest one (plus some slack for jitter) mean queues are building up
+    private static final double RTT_INFLATION_FACTOR = 2.0;
+    private static final long RTT_INFLATION_SLACK_MS = 20;
+
+    // Biggest the window can grow to
+    private final int maxWindow;
+
+    // Window size (fractional, since it grows by 1/window on every delivery)
+    private double window;
+
+    // Below this, the window grows exponentially
+    private double slowStartThreshold;
+
+    // Moment the window was last shrunk. Requests sent before it can't shrink it again
+    private long lastDecreaseAtMs;
+
+    public CongestionWindow(int maxWindow) {
+        this.maxWindow = Math.max(MIN_WINDOW, maxWindow);
+        this.window = Math.min(INITIAL_WINDOW, this.maxWindow);
+        this.slowStartThreshold = this.maxWindow;
+        this.lastDecreaseAtMs = Long.MIN_VALUE;
+    }
+
+    /**
+     * @return Number of requests that can be in flight at the same time
+     */
+    public int getSize() {
+        return (int) Math.max(MIN_WINDOW, Math.min(maxWindow, Math.floor(window)));
+    }
+
+    /**
+     * A requested fragment arrived
+     * @param rttMs (Smoothed) time fragments from the same source take to arrive, or negative if this one can't be trusted (it was asked for more than once)
+     * @param minRttMs Fastest time a fragment took to arrive from the same source
+     * @param sentAtMs Moment the fragment was asked for
+     * @param now Current time (ms)
+     */
+    public void onFragmentDelivered(long rttMs, long minRttMs, long sentAtMs, long now) {
+        if (rttMs >= 0 && minRttMs >= 0 && rttMs > minRttMs * RTT_INFLATION_FACTOR + RTT_INFLATION_SLACK_MS) {
+            decrease(sentAtMs, now);
+            return;
+        }
+
+        if (window < slowStartThreshold) {
+            window += 1;
+        } else {
+            window += 1 / window;
+        }
+
+        window = Math.min(window, maxWindow);
+    }
+
+    /**
+     * A requested fragment was not delivered in time
+     * @param sentAtMs Moment the fragment was (last) asked for
+     * @param now Current time (ms)
+     */
+    public void onRequestLost(long sentAtMs, long now) {
+        decrease(sentAtMs, now);
+    }
+
+    private void decrease(long sentAtMs, long now) {
+        if (sentAtMs < lastDecreaseAtMs) {
+            // Already reacted to the round trip this request belongs to
+            return;
+        }
+
+        slowStartThreshold = Math.max(MIN_WINDOW, window / 2);
+        window = slowStartThreshold;
+        lastDecreaseAtMs = now;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("(cwnd=%.1f,ssthresh=%.1f)", window, slowStartThreshold);
+    }
+}
@@ -0,0 +1,143 @@
+package Business.MobileNetworkNode.Transfer;
+
+import Business.MobileNetworkNode.DataCache.ByteRange;
+
+import java.util.*;
+
+/**
+ * Multicast distribution sessions of the files this node serves, one per file hash. When several
+ * neighbours download the same file at the same time, each fragment they ask for is multicast once
+ * to all of them, rather than sent to each one on its own.
+ *
+ * Neighbours downloading a file keep whatever fragments of it they hear, asked for or not, and never
+ * ask for those. So a neighbour that's behind (or joined late) only asks for what it's still missing,
+ * its requests are as good as NACKs, and each fragment takes the air about once however many
+ * neighbours download the file. A neighbour that asks for a fragment right after it was multicast, and
+ * hadn't asked for it before, asked before the multicast got there, so it isn't sent twice. A neighbour
+ * that asks for it again did miss it (e.g. a fast retransmission), and always gets it sent again
+ */
+public class DistributionSessionTable {
+
+    // Min number of neighbours downloading a file at the same time for it to be multicast
+    private final int MIN_RECEIVERS;
+
+    // Time a neighbour is still counted as downloading a file after its last request for it
+    private final long RECEIVER_TIMEOUT_MS;
+
+    // Time after a fragment is multicast during which a neighbour that hadn't asked for it yet asking for it
+    // is taken as a request that crossed it on the way (and isn't answered)
+    private final long REPEAT_SUPPRESSION_MS;
+
+    // Map a file hash to its session
+    private Map<String, DistributionSession> sessions;
+
+    /**
+     * Constructor
+     * @param minReceivers Min number of neighbours downloading a file at the same time for it to be multicast
+     * @param receiverTimeoutMs Time a neighbour is counted as downloading a file after its last request
+     * @param repeatSuppressionMs Time after a fragment is multicast during which requests that crossed it aren't answered
+     */
+    public DistributionSessionTable(int minReceivers, long receiverTimeoutMs, long repeatSuppressionMs) {
+        this.MIN_RECEIVERS = minReceivers;
+        this.RECEIVER_TIMEOUT_MS = receiverTimeoutMs;
+        this.REPEAT_SUPPRESSION_MS = repeatSuppressionMs;
+        this.sessions = new HashMap<>();
+    }
+
+    /**
+     * Take note that a neighbour asked for fragments of a file, forgetting the sessions no one asked for in a while
+     * @param fileHash Hash of the file asked for
+     * @param neighbourMAC Neighbour that asked (straight to this node)
+     * @param now Current time (ms)
+     * @return True if the file is multicast (enough neighbours are downloading it)
+     */
+    public boolean addReceiver(String fileHash, String neighbourMAC, long now) {
+        sessions.values().removeIf(session -> session.removeIdleReceivers(now));
+
+        DistributionSession session = sessions.computeIfAbsent(fileHash, hash -> new DistributionSession());
+        session.receivers.put(neighbourMAC, now);
+
+        return session.receivers.size() >= MIN_RECEIVERS;
+    }
+
+    /**
+     * Take note that a fragment is about to be multicast, unless it just was and the neighbour asking for it
+     * hadn't asked for it yet (its request crossed the multicast on the way)
+     * @param fileHash Hash of the file
+     * @param range Bytes of the fragment
+     * @param neighbourMAC Neighbour that asked for it
+     * @param now Current time (ms)
+     * @return True if it's to be multicast, false if the neighbour's request crossed it moments ago
+     */
+    public boolean markAsSent(String fileHash, ByteRange range, String neighbourMAC, long now) {
+        DistributionSession session = sessions.get(fileHash);
+
+        if (session == null) {
+            return true;
+        }
+
+        // Oldest first, so the ones sent long enough ago are at the head
+        Iterator<MulticastFragment> it = session.lastSent.values().iterator();
+        while (it.hasNext() && now - it.next().sentMs >= REPEAT_SUPPRESSION_MS) {
+            it.remove();
+        }
+
+        MulticastFragment lastSent = session.lastSent.get(range);
+
+        if (lastSent != null && lastSent.askedBy.add(neighbourMAC)) {
+            return false;
+        }
+
+        // Never sent lately, or asked for again by a neighbour that missed it
+        session.lastSent.remove(range);
+        session.lastSent.put(range, new MulticastFragment(neighbourMAC, now));
+
+        return true;
+    }
+
+    public void removePeer(String neighbourMAC) {
+        for (DistributionSession session : sessions.values()) {
+            session.receivers.remove(neighbourMAC);
+        }
+
+        sessions.values().removeIf(session -> session.receivers.isEmpty());
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("{");
+
+        for (Map.Entry<String, DistributionSession> session : sessions.entrySet()) {
+            sb.append(String.format("(%s: receivers=%s)", session.getKey(), session.getValue().receivers.keySet()));
+        }
+
+        return sb.append("}").toString();
+    }
+
+    // Neighbours downloading a file, and the fragments of it multicast lately
+    private class DistributionSession {
+        // Map a neighbour to the last time it asked for fragments of the file
+        private Map<String, Long> receivers = new HashMap<>();
+
+        // Map the bytes of a fragment multicast lately to when it was, in the order they were sent
+        private LinkedHashMap<ByteRange, MulticastFragment> lastSent = new LinkedHashMap<>();
+
+        // True if no neighbour is left
+        boolean removeIdleReceivers(long now) {
+            receivers.values().removeIf(lastRequestMs -> now - lastRequestMs > RECEIVER_TIMEOUT_MS);
+
+            return receivers.isEmpty();
+        }
+    }
+
+    // When a fragment was multicast, and the neighbours that asked for it since (or made it go out)
+    private class MulticastFragment {
+        private final long sentMs;
+        private Set<String> askedBy = new HashSet<>();
+
+        MulticastFragment(String neighbourMAC, long sentMs) {
+            this.sentMs = sentMs;
+            this.askedBy.add(neighbourMAC);
+        }
+    }
+}
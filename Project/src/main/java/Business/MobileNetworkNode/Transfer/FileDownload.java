@@ -0,0 +1,748 @@
+package Business.MobileNetworkNode.Transfer;
+
+import Business.MobileNetworkNode.DataCache.ByteRange;
+import Business.MobileNetworkNode.DataCache.CodedSymbol;
+import Business.MobileNetworkNode.DataCache.FileFragment;
+import Business.MobileNetworkNode.DataCache.FountainCode;
+import Business.MobileNetworkNode.DataCache.GenerationDecoder;
+import Business.MobileNetworkNode.DataCache.MerkleProof;
+import Business.MobileNetworkNode.RoutingInfo.RoutingTableEntry;
+
+import java.util.*;
+
+/**
+ * State of a file being downloaded: which fragments were asked for and not received yet, which is
+ * the next fragment to ask for, and which nodes the fragments can be asked to.
+ *
+ * Instead of asking for a fragment only when the previous one arrives (one round trip per fragment),
+ * up to a window of requests is kept in flight at the same time. Requests that take longer to be
+ * answered than their source's retransmission timeout are considered lost and handed back to be
+ * asked again. A fragment that is asked for too many times makes the whole download give up.
+ *
+ * When several nodes hold the file, requests are spread across all of them (a swarm), giving more
+ * work to the ones that deliver faster and moving work away from the ones that stop answering.
+ *
+ * How many requests can be in flight is not fixed, it's a congestion window that grows while fragments
+ * arrive on time and shrinks on losses or when they start taking longer, so a download doesn't flood
+ * a multi-hop path at the expense of everyone else using it.
+ *
+ * Each source is asked for fragments of its own size (the biggest that fits the path to it), so the
+ * ranges asked for are cut as they're handed out, rather than the file being split up front.
+ *
+ * A download can also be coded: the file is asked for a generation (a fixed number of blocks) at a
+ * time, as coded symbols with seeds never asked for before, a few more than the generation has blocks.
+ * Any of them is as good as any other, from whichever source, so lost symbols are made up for by the
+ * extra ones rather than asked for again. A generation is only asked for again if too few arrived, and
+ * then only for as many (new) symbols as it's still missing.
+ *
+ * A download can be resumed from what's already stored (from before the node restarted, or from an
+ * earlier attempt), in which case only the ranges still missing are asked for.
+ *
+ * A download can also wait, for a while, for the map of the file (see ChunkMap) before asking for
+ * anything, so that what's already held in other files is copied rather than asked for
+ */
+public class FileDownload {
+
+    // Hash of the file being downloaded
+    private final String fileHash;
+
+    // Number of requests in flight at the same time, adapted to how congested the paths are
+    private final CongestionWindow congestionWindow;
+
+    // Min number of free places in the window before asking for more, so requests can be batched together
+    private final int REFILL_BATCH_SIZE;
+
+    // Max number of times a fragment is asked for again before giving up on the download
+    private final int MAX_RETRANSMISSIONS;
+
+    // Max number of nodes to download from at the same time (1 means a single source download)
+    private final int MAX_SOURCES;
+
+    // Fragment sizes are always a multiple of this, and fragments start at a multiple of it
+    private final int FRAGMENT_UNIT_BYTES;
+
+    // Unknown (-1) until the first fragment arrives, since fragments are what carry the file size
+    private int totalSizeBytes;
+
+    // Next byte that was never asked for
+    private int nextInitByteToRequest;
+
+    // Map the init byte of each range that has to be asked for to its end byte (null when it's the whole file)
+    private TreeMap<Integer, Integer> rangesToRequest;
+
+    // Nodes that sent fragments before the download was resumed, preferred over others
+    private Set<String> preferredSources;
+
+    // Map the init byte of a requested fragment to the request itself.
+    // Ordered by insertion, so the oldest requests come first
+    private LinkedHashMap<Integer, FragmentRequest> requestsInFlight;
+
+    // Number of later fragments from the same source that have to arrive before a missing one is considered
+    // lost, without waiting for its timeout (sources answer in the order they're asked, much like TCP's duplicate acks)
+    private static final int OVERTAKES_BEFORE_LOST = 3;
+
+    // Number of blocks (fragment units) in a generation of a coded download
+    private static final int GENERATION_SIZE_BLOCKS = 16;
+
+    // Extra coded symbols asked for, as a fraction of those missing (plus one), to make up for the ones lost on the way
+    private static final double CODED_REDUNDANCY = 0.25;
+
+    // Map the address of a node holding the file to how well it's been serving it
+    private Map<String, TransferSource> sources;
+
+    // True once a fragment was asked for too many times without arriving
+    private boolean isAborted;
+
+    // True if the file is asked for as coded symbols (see FountainCode)
+    private final boolean isCoded;
+
+    // Map the init byte of a generation not yet decoded to the next seed to ask for, and to the symbols received so far
+    private Map<Integer, Integer> nextSeedPerGeneration;
+    private Map<Integer, GenerationDecoder> decoders;
+
+    // Map the init byte of a generation being decoded to the Merkle proof that came along with its symbols
+    private Map<Integer, MerkleProof> generationProofs;
+
+    // Time until which nothing is asked for, whilst the map of the file is awaited (-1 if it isn't)
+    private long chunkMapDeadlineMs;
+
+    /**
+     * Constructor
+     * @param fileHash Hash of the file to download
+     * @param windowSize Max number of requests in flight at the same time (the congestion window never grows beyond it)
+     * @param refillBatchSize Min number of free places in the window before asking for more
+     * @param maxRetransmissions Max number of times a fragment is asked for again before giving up
+     * @param maxSources Max number of nodes to download from at the same time
+     * @param fragmentUnitBytes Fragment sizes are always a multiple of this
+     * @param isCoded True to ask for the file as coded symbols, rather than plain fragments
+     */
+    public FileDownload(String fileHash, int windowSize, int refillBatchSize, int maxRetransmissions, int maxSources, int fragmentUnitBytes, boolean isCoded) {
+        this.fileHash = fileHash;
+        // A coded request brings a whole generation, so fewer of them fit the window
+        this.congestionWindow = new CongestionWindow(isCoded ? windowSize / GENERATION_SIZE_BLOCKS : windowSize);
+        this.REFILL_BATCH_SIZE = Math.max(1, refillBatchSize);
+        this.MAX_RETRANSMISSIONS = maxRetransmissions;
+        this.MAX_SOURCES = maxSources > 0 ? maxSources : 1;
+        this.FRAGMENT_UNIT_BYTES = fragmentUnitBytes > 0 ? fragmentUnitBytes : 1;
+        this.totalSizeBytes = -1;
+        this.nextInitByteToRequest = 0;
+        this.rangesToRequest = null;
+        this.preferredSources = new HashSet<>();
+        this.requestsInFlight = new LinkedHashMap<>();
+        this.sources = new LinkedHashMap<>();
+        this.isAborted = false;
+        this.isCoded = isCoded;
+        this.nextSeedPerGeneration = new HashMap<>();
+        this.decoders = new HashMap<>();
+        this.generationProofs = new HashMap<>();
+        this.chunkMapDeadlineMs = -1;
+    }
+
+    public String getFileHash() {
+        return fileHash;
+    }
+
+    public int getTotalSizeBytes() {
+        return totalSizeBytes;
+    }
+
+    public int getNumberOfRequestsInFlight() {
+        return requestsInFlight.size();
+    }
+
+    public Collection<TransferSource> getSources() {
+        return sources.values();
+    }
+
+    public boolean isAborted() {
+        return isAborted;
+    }
+
+    public boolean isCoded() {
+        return isCoded;
+    }
+
+    /**
+     * Hold back every request until the map of the file arrives, or for a while at most
+     * @param deadlineMs Time after which the file is asked for anyway, mapped or not
+     */
+    public void awaitChunkMap(long deadlineMs) {
+        this.chunkMapDeadlineMs = deadlineMs;
+    }
+
+    /**
+     * Take note that the map of the file arrived (and whatever it could was copied), so the file can be asked for
+     */
+    public void onChunkMapArrived() {
+        this.chunkMapDeadlineMs = -1;
+    }
+
+    /**
+     * @param now Current time (ms)
+     * @return True if nothing is asked for yet, as the map of the file is still awaited
+     */
+    public boolean isAwaitingChunkMap(long now) {
+        return now < chunkMapDeadlineMs;
+    }
+
+    /**
+     * Carry on from what's already stored, so that only what's missing is asked for
+     * @param totalSizeBytes Size of the file
+     * @param missingRanges Ranges of the file that are still missing
+     * @param knownSources Nodes that sent fragments of the file before (preferred, if they can still be reached)
+     */
+    public void resume(int totalSizeBytes, List<ByteRange> missingRanges, Collection<String> knownSources) {
+        this.totalSizeBytes = totalSizeBytes;
+        this.rangesToRequest = new TreeMap<>();
+        this.preferredSources.addAll(knownSources);
+
+        for (ByteRange range : missingRanges) {
+            rangesToRequest.put(range.getInitByte(), range.getInitByte() + range.getLength());
+        }
+
+        this.nextInitByteToRequest = 0;
+        skipStoredBytes();
+    }
+
+    /**
+     * Refresh the nodes that can be asked for fragments, from what the routing table currently knows
+     * @param paths Best known path to each node holding the file, closest nodes first
+     * @param maxFragmentSizes Map a node to the biggest fragment that fits the path to it (one unit if missing)
+     * @param expectedRtts Map a node to the round trip time expected to it, if any (used until fragments tell better)
+     */
+    public void updateSources(List<RoutingTableEntry> paths, Map<String, Integer> maxFragmentSizes, Map<String, Double> expectedRtts) {
+        sources.values().forEach(TransferSource::markAsUnreachable);
+
+        if (!preferredSources.isEmpty()) {
+            // Nodes that already sent fragments get the places first (closest first otherwise, the sort is stable)
+            paths = new ArrayList<>(paths);
+            paths.sort(Comparator.comparing(path -> !preferredSources.contains(path.getDstMAC())));
+        }
+
+        for (RoutingTableEntry path : paths) {
+            TransferSource source = sources.get(path.getDstMAC());
+            int maxFragmentSize = maxFragmentSizes.getOrDefault(path.getDstMAC(), FRAGMENT_UNIT_BYTES);
+
+            if (source != null) {
+                source.updatePath(path.getNextHopMAC(), path.getHopCount(), maxFragmentSize);
+            } else if (sources.size() < MAX_SOURCES) {
+                source = new TransferSource(path.getDstMAC(), path.getNextHopMAC(), path.getHopCount(), FRAGMENT_UNIT_BYTES, maxFragmentSize);
+                sources.put(path.getDstMAC(), source);
+            }
+
+            Double expectedRtt = expectedRtts.get(path.getDstMAC());
+
+            if (source != null && expectedRtt != null) {
+                source.seedRoundTripTime(expectedRtt);
+            }
+        }
+    }
+
+    /**
+     * Pick the fragments to ask for next, so that the window is filled up, and mark them as in flight.
+     * Until the size of the file is known, only the first fragment is asked for. Afterwards, the window
+     * is only refilled once enough places are free (or what's left of the file fits), so fragments are
+     * asked for in batches rather than one by one
+     * @param now Current time (ms)
+     * @return Requests to send, in order (empty if there's no room in the window or no one to ask)
+     */
+    public List<FragmentRequest> nextRequests(long now) {
+        List<FragmentRequest> requestsToSend = new ArrayList<>();
+
+        if (isAborted || isAwaitingChunkMap(now)) {
+            return requestsToSend;
+        }
+
+        if (totalSizeBytes < 0) {
+            if (requestsInFlight.isEmpty()) {
+                TransferSource source = pickSource(null);
+
+                if (source != null) {
+                    requestsToSend.add(newRequest(0, getRequestSizeBytes(source), source, now));
+                }
+            }
+
+            return requestsToSend;
+        }
+
+        int windowSize = congestionWindow.getSize();
+        int freePlacesInWindow = windowSize - requestsInFlight.size();
+
+        // Fewer requests than a batch may be all that's left of the file (assuming the biggest fragments)
+        int biggestFragmentSize = FRAGMENT_UNIT_BYTES;
+        for (TransferSource source : sources.values()) {
+            biggestFragmentSize = Math.max(biggestFragmentSize, getRequestSizeBytes(source));
+        }
+
+        int fragmentsNeverAskedFor = (getBytesNeverAskedFor() + biggestFragmentSize - 1) / biggestFragmentSize;
+
+        // Small windows are refilled as soon as half of them is free
+        int refillBatchSize = Math.min(REFILL_BATCH_SIZE, Math.max(1, windowSize / 2));
+
+        if (freePlacesInWindow < Math.min(refillBatchSize, fragmentsNeverAskedFor)) {
+            return requestsToSend;
+        }
+
+        while (requestsInFlight.size() < windowSize && nextInitByteToRequest < totalSizeBytes) {
+            TransferSource source = pickSource(null);
+
+            if (source == null) {
+                break;
+            }
+
+            int length = Math.min(getRequestSizeBytes(source), getEndOfRangeToRequest() - nextInitByteToRequest);
+
+            requestsToSend.add(newRequest(nextInitByteToRequest, length, source, now));
+            skipStoredBytes();
+        }
+
+        return requestsToSend;
+    }
+
+    /**
+     * Take note that a fragment arrived, freeing its place in the window. A fragment may also
+     * hold the bytes of other requests (it was asked for at a bigger size, split into smaller
+     * requests after timing out, and then arrived late), which are no longer waited for either
+     * @param fragment Fragment that was received
+     * @param responderMAC Node that sent the fragment (not always the one it was asked to, nodes along the path may answer first)
+     * @param now Current time (ms)
+     * @return True if the fragment was being waited for, false if it's a duplicate or was never asked for
+     */
+    public boolean markAsReceived(FileFragment fragment, String responderMAC, long now) {
+        int fragmentInitByte = fragment.getInitbyte();
+        int fragmentEndByte = fragmentInitByte + fragment.getChunk().length;
+
+        if (totalSizeBytes < 0) {
+            // First fragment tells how big the file is
+            totalSizeBytes = fragment.getTotalSizeBytes();
+        }
+
+        // Fragments asked to the same source before this one (requests are kept in the order they were sent) were overtaken
+        FragmentRequest deliveredRequest = requestsInFlight.get(fragmentInitByte);
+
+        if (deliveredRequest != null && deliveredRequest.getSource().getDstMAC().equals(responderMAC)) {
+            for (FragmentRequest request : requestsInFlight.values()) {
+                if (request == deliveredRequest) {
+                    break;
+                }
+
+                if (request.getSource() == deliveredRequest.getSource()) {
+                    request.onOvertaken();
+                }
+            }
+        }
+
+        boolean wasWaitedFor = false;
+        Iterator<FragmentRequest> iterator = requestsInFlight.values().iterator();
+
+        while (iterator.hasNext()) {
+            FragmentRequest request = iterator.next();
+
+            if (request.getInitByte() >= totalSizeBytes) {
+                // Asked for before the size of the file was known, and it's past its end
+                iterator.remove();
+                request.getSource().onRequestWithdrawn();
+            } else if (request.getInitByte() >= fragmentInitByte && Math.min(request.getInitByte() + request.getLength(), totalSizeBytes) <= fragmentEndByte) {
+                iterator.remove();
+                wasWaitedFor = true;
+
+                if (request.getInitByte() == fragmentInitByte && request.getSource().getDstMAC().equals(responderMAC)) {
+                    TransferSource source = request.getSource();
+                    boolean wasAskedAgain = request.getRetransmissions() > 0;
+
+                    source.onFragmentDelivered(fragment.getChunk().length, now - request.getSentAtMs(), wasAskedAgain);
+
+                    // Compare smoothed times, a single late fragment is not a queue building up
+                    long rttMs = wasAskedAgain ? -1 : Math.round(source.getSmoothedRttMs());
+                    congestionWindow.onFragmentDelivered(rttMs, source.getMinRttMs(), request.getSentAtMs(), now);
+                } else {
+                    request.getSource().onRequestWithdrawn();
+                }
+            }
+        }
+
+        if (!isCoded) {
+            // It may never have been asked for (it was multicast to everyone downloading the file), nor will it be
+            skipReceivedBytes(fragmentInitByte, Math.min(fragmentEndByte, totalSizeBytes));
+        }
+
+        return wasWaitedFor;
+    }
+
+    /**
+     * Take a received coded symbol into account
+     * @param symbol Coded symbol that was received
+     * @return Fragment with the whole generation, if the symbol was the last one needed to decode it, null otherwise
+     */
+    public FileFragment addCodedSymbol(CodedSymbol symbol) {
+        int generationInitByte = symbol.getGenerationInitByte();
+
+        if (!isCoded || !nextSeedPerGeneration.containsKey(generationInitByte)) {
+            // Never asked for, or already decoded
+            return null;
+        }
+
+        if (totalSizeBytes < 0) {
+            totalSizeBytes = symbol.getTotalSizeBytes();
+        }
+
+        GenerationDecoder decoder = decoders.computeIfAbsent(generationInitByte,
+                initByte -> new GenerationDecoder(symbol.getGenerationLength(), symbol.getPayload().length));
+
+        decoder.addSymbol(symbol.getSeed(), symbol.getPayload());
+
+        if (symbol.getProof() != null) {
+            generationProofs.putIfAbsent(generationInitByte, symbol.getProof());
+        }
+
+        if (!decoder.isComplete()) {
+            return null;
+        }
+
+        decoders.remove(generationInitByte);
+        nextSeedPerGeneration.remove(generationInitByte);
+
+        FileFragment generation = new FileFragment(decoder.decode(), generationInitByte, symbol.getTotalSizeBytes(), symbol.getFileName());
+        generation.setProof(generationProofs.remove(generationInitByte));
+
+        return generation;
+    }
+
+    /**
+     * Take note that a fragment didn't check out against the Merkle tree of the file. The requests it
+     * answered are asked again at once, to another source if there's one, and the source they were
+     * asked to gets less work from then on
+     * @param fragment Fragment that was rejected
+     * @param now Current time (ms)
+     * @return Requests to send again
+     */
+    public List<FragmentRequest> onCorruptFragment(FileFragment fragment, long now) {
+        List<FragmentRequest> requestsToSend = new ArrayList<>();
+
+        if (isAborted) {
+            return requestsToSend;
+        }
+
+        int fragmentInitByte = fragment.getInitbyte();
+        int fragmentEndByte = fragmentInitByte + fragment.getChunk().length;
+
+        List<FragmentRequest> corruptRequests = new ArrayList<>();
+        for (FragmentRequest request : requestsInFlight.values()) {
+            if (request.getInitByte() >= fragmentInitByte && request.getInitByte() < fragmentEndByte) {
+                corruptRequests.add(request);
+            }
+        }
+
+        for (FragmentRequest request : corruptRequests) {
+            if (request.getRetransmissions() >= MAX_RETRANSMISSIONS) {
+                isAborted = true;
+                return new ArrayList<>();
+            }
+
+            TransferSource previousSource = request.getSource();
+            previousSource.onCorruptFragment();
+
+            TransferSource source = pickSource(previousSource);
+            if (source == null) {
+                source = previousSource;
+            }
+
+            requestsInFlight.remove(request.getInitByte());
+            request.resend(source, now);
+
+            if (isCoded) {
+                // The symbols of the generation can't be told apart, start it over with fresh ones
+                decoders.remove(request.getInitByte());
+                generationProofs.remove(request.getInitByte());
+                askForSymbols(request);
+            }
+
+            source.onRequestSent();
+            requestsInFlight.put(request.getInitByte(), request);
+            requestsToSend.add(request);
+        }
+
+        return requestsToSend;
+    }
+
+    /**
+     * Find requests that were not answered in time and hand them to another source (preferably),
+     * since they're about to be asked again. Requests overtaken by enough later ones are taken as
+     * lost without waiting for the timeout. Requests left with a source that died or went out of
+     * reach are handed over right away, rather than waiting for its (backed off) timeout.
+     * If any was already asked for too many times, the download is aborted instead
+     * @param now Current time (ms)
+     * @return Requests to send again
+     */
+    public List<FragmentRequest> expiredRequests(long now) {
+        List<FragmentRequest> expired = new ArrayList<>();
+        Set<FragmentRequest> timedOut = new HashSet<>();
+        Set<FragmentRequest> stranded = new HashSet<>();
+
+        for (FragmentRequest request : requestsInFlight.values()) {
+            TransferSource source = request.getSource();
+
+            if (now - request.getSentAtMs() >= source.getRetransmissionTimeoutMs()) {
+                expired.add(request);
+                timedOut.add(request);
+            } else if (request.getTimesOvertaken() >= OVERTAKES_BEFORE_LOST) {
+                expired.add(request);
+            } else if ((source.isDead() || !source.isReachable()) && hasLiveSourceOtherThan(source)) {
+                expired.add(request);
+                stranded.add(request);
+            }
+        }
+
+        List<FragmentRequest> requestsToSend = new ArrayList<>();
+
+        if (expired.isEmpty() || isAborted) {
+            return requestsToSend;
+        }
+
+        for (FragmentRequest request : expired) {
+            if (request.getRetransmissions() >= MAX_RETRANSMISSIONS) {
+                isAborted = true;
+                return requestsToSend;
+            }
+        }
+
+        // Timers are backed off once per source, however many of its requests timed out together
+        Set<TransferSource> sourcesToBackOff = new HashSet<>();
+
+        for (FragmentRequest request : expired) {
+            TransferSource previousSource = request.getSource();
+
+            if (stranded.contains(request)) {
+                previousSource.onRequestWithdrawn();
+            } else {
+                previousSource.onRequestTimedOut();
+                congestionWindow.onRequestLost(request.getSentAtMs(), now);
+
+                if (timedOut.contains(request)) {
+                    sourcesToBackOff.add(previousSource);
+                }
+            }
+
+            requestsInFlight.remove(request.getInitByte());
+
+            TransferSource source = pickSource(previousSource);
+            if (source == null) {
+                // No one to ask at the moment, keep the request waiting for a source to show up
+                request.resend(previousSource, now);
+                previousSource.onRequestSent();
+
+                // Re-inserting moves it to the end of the (time ordered) map
+                requestsInFlight.put(request.getInitByte(), request);
+                continue;
+            }
+
+            // The range may be too big for the new source (or for the old one, whose fragments just shrunk)
+            int pieceSize = source.getFragmentSizeBytes();
+
+            if (isCoded || request.getLength() <= pieceSize) {
+                request.resend(source, now);
+
+                if (isCoded) {
+                    // Only fresh symbols, any that got through the first time are still good
+                    askForSymbols(request);
+                }
+
+                source.onRequestSent();
+                requestsInFlight.put(request.getInitByte(), request);
+                requestsToSend.add(request);
+            } else {
+                int endByte = request.getInitByte() + request.getLength();
+
+                // The pieces count as asked again, the original may still arrive
+                for (int initByte = request.getInitByte(); initByte < endByte; initByte += pieceSize) {
+                    requestsToSend.add(newRequest(initByte, Math.min(pieceSize, endByte - initByte), source, now, request.getRetransmissions() + 1));
+                }
+            }
+        }
+
+        sourcesToBackOff.forEach(TransferSource::backOff);
+
+        return requestsToSend;
+    }
+
+    private boolean hasLiveSourceOtherThan(TransferSource sourceToIgnore) {
+        for (TransferSource source : sources.values()) {
+            if (source != sourceToIgnore && source.isReachable() && !source.isDead()) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    // Move the next byte to ask for past the ranges that are already stored
+    private void skipStoredBytes() {
+        if (rangesToRequest == null) {
+            return;
+        }
+
+        Map.Entry<Integer, Integer> range = rangesToRequest.floorEntry(nextInitByteToRequest);
+
+        if (range == null || nextInitByteToRequest >= range.getValue()) {
+            Integer nextRangeInitByte = rangesToRequest.ceilingKey(nextInitByteToRequest);
+            nextInitByteToRequest = nextRangeInitByte != null ? nextRangeInitByte : totalSizeBytes;
+        }
+    }
+
+    // Take bytes that arrived out of the ranges still to be asked for (those already asked for are up to their requests)
+    private void skipReceivedBytes(int initByte, int endByte) {
+        initByte = Math.max(initByte, nextInitByteToRequest);
+
+        if (initByte >= endByte) {
+            return;
+        }
+
+        if (rangesToRequest == null) {
+            rangesToRequest = new TreeMap<>();
+            rangesToRequest.put(nextInitByteToRequest, totalSizeBytes);
+        }
+
+        // Ranges don't overlap, so the ones cut are the last few that begin before the end byte
+        Map.Entry<Integer, Integer> range = rangesToRequest.lowerEntry(endByte);
+
+        while (range != null && range.getValue() > initByte) {
+            rangesToRequest.remove(range.getKey());
+
+            if (range.getKey() < initByte) {
+                rangesToRequest.put(range.getKey(), initByte);
+            }
+
+            if (range.getValue() > endByte) {
+                rangesToRequest.put(endByte, range.getValue());
+            }
+
+            range = rangesToRequest.lowerEntry(range.getKey());
+        }
+
+        skipStoredBytes();
+    }
+
+    // End of the range the next byte to ask for is in
+    private int getEndOfRangeToRequest() {
+        if (rangesToRequest == null) {
+            return totalSizeBytes;
+        }
+
+        Map.Entry<Integer, Integer> range = rangesToRequest.floorEntry(nextInitByteToRequest);
+
+        return range != null ? Math.min(range.getValue(), totalSizeBytes) : totalSizeBytes;
+    }
+
+    private int getBytesNeverAskedFor() {
+        if (rangesToRequest == null) {
+            return totalSizeBytes - nextInitByteToRequest;
+        }
+
+        int bytesNeverAskedFor = getEndOfRangeToRequest() - nextInitByteToRequest;
+
+        for (Map.Entry<Integer, Integer> range : rangesToRequest.tailMap(nextInitByteToRequest, false).entrySet()) {
+            bytesNeverAskedFor += range.getValue() - range.getKey();
+        }
+
+        return Math.max(0, bytesNeverAskedFor);
+    }
+
+    private FragmentRequest newRequest(int initByte, int length, TransferSource source, long now) {
+        return newRequest(initByte, length, source, now, 0);
+    }
+
+    private FragmentRequest newRequest(int initByte, int length, TransferSource source, long now, int retransmissions) {
+        FragmentRequest request = new FragmentRequest(initByte, length, source, now, retransmissions);
+        requestsInFlight.put(initByte, request);
+
+        if (isCoded) {
+            askForSymbols(request);
+        }
+
+        source.onRequestSent();
+
+        nextInitByteToRequest = Math.max(nextInitByteToRequest, initByte + length);
+
+        return request;
+    }
+
+    /**
+     * Size of the next fragment to ask a source for
+     * @param source Source to ask
+     * @return Biggest fragment that fits the path to it, or a whole generation if the download is coded
+     */
+    private int getRequestSizeBytes(TransferSource source) {
+        return isCoded ? GENERATION_SIZE_BLOCKS * FRAGMENT_UNIT_BYTES : source.getFragmentSizeBytes();
+    }
+
+    /**
+     * Pick the coded symbols a request (of a whole generation) asks for: as many as the generation
+     * is still missing, plus some to spare, with seeds that were never asked for
+     * @param request Request of a generation
+     */
+    private void askForSymbols(FragmentRequest request) {
+        int generationInitByte = request.getInitByte();
+        GenerationDecoder decoder = decoders.get(generationInitByte);
+
+        int missingSymbols = decoder != null
+                ? decoder.getMissingSymbols()
+                : FountainCode.numberOfBlocks(request.getLength(), FRAGMENT_UNIT_BYTES);
+        int numberOfSymbols = missingSymbols + (int) Math.ceil(missingSymbols * CODED_REDUNDANCY) + 1;
+
+        // The first seeds of a generation are its plain blocks
+        int firstSeed = nextSeedPerGeneration.getOrDefault(generationInitByte, 0);
+        nextSeedPerGeneration.put(generationInitByte, firstSeed + numberOfSymbols);
+
+        request.askForSymbols(firstSeed, numberOfSymbols);
+    }
+
+    /**
+     * Choose who to send the next request to. Requests are spread so each source gets work in
+     * proportion to its delivery rate (sources not tried yet are assumed to be as fast as the fastest)
+     * @param sourceToAvoid Source to leave out if there's any alternative (may be null)
+     * @return Source to ask, or null if none is reachable
+     */
+    private TransferSource pickSource(TransferSource sourceToAvoid) {
+        List<TransferSource> candidates = new ArrayList<>();
+
+        for (TransferSource source : sources.values()) {
+            if (source.isReachable() && !source.isDead() && source != sourceToAvoid) {
+                candidates.add(source);
+            }
+        }
+
+        if (candidates.isEmpty()) {
+            // Every source is either dead or to avoid, give them another chance rather than giving up
+            for (TransferSource source : sources.values()) {
+                if (source.isReachable()) {
+                    candidates.add(source);
+                }
+            }
+        }
+
+        double fastestRate = 1;
+        for (TransferSource source : candidates) {
+            fastestRate = Math.max(fastestRate, source.getDeliveryRate());
+        }
+
+        TransferSource bestSource = null;
+        double bestScore = -1;
+
+        for (TransferSource source : candidates) {
+            double rate = source.getDeliveryRate() < 0 ? fastestRate : source.getDeliveryRate();
+            double score = rate / (source.getRequestsInFlight() + 1);
+
+            if (score > bestScore) {
+                bestScore = score;
+                bestSource = source;
+            }
+        }
+
+        return bestSource;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("(%s: next=%d,total=%d,in_flight=%s,window=%s,sources=%s%s%s)", fileHash, nextInitByteToRequest, totalSizeBytes, requestsInFlight.values(), congestionWindow, sources.values(), isCoded ? ",coded" : "", isAborted ? ",aborted" : "");
+    }
+}
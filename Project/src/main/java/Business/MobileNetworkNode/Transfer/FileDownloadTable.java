@@ -0,0 +1,82 @@
+package Business.MobileNetworkNode.Transfer;
+
+import java.util.*;
+
+/**
+ * Keep track of every download currently in progress, mapped by the hash of the file being downloaded
+ */
+public class FileDownloadTable {
+
+    // Max number of fragment requests each download keeps in flight (however big its congestion window gets)
+    private final int WINDOW_SIZE;
+
+    // Min number of free places in the window before a download asks for more
+    private final int REFILL_BATCH_SIZE;
+
+    // Max number of times a download asks for a fragment again before giving up
+    private final int MAX_RETRANSMISSIONS;
+
+    // Max number of nodes each download fetches from at the same time
+    private final int MAX_SOURCES;
+
+    // Fragment sizes each download asks for are always a multiple of this
+    private final int FRAGMENT_UNIT_BYTES;
+
+    // Map a file hash to the state of its download
+    private Map<String, FileDownload> downloads;
+
+    /**
+     * Constructor
+     * @param windowSize Max number of fragment requests each download keeps in flight
+     * @param refillBatchSize Min number of free places in the window before a download asks for more
+     * @param maxRetransmissions Max number of times a download asks for a fragment again before giving up
+     * @param maxSources Max number of nodes each download fetches from at the same time (1 disables swarm downloads)
+     * @param fragmentUnitBytes Fragment sizes each download asks for are always a multiple of this
+     */
+    public FileDownloadTable(int windowSize, int refillBatchSize, int maxRetransmissions, int maxSources, int fragmentUnitBytes) {
+        this.WINDOW_SIZE = windowSize;
+        this.REFILL_BATCH_SIZE = refillBatchSize;
+        this.MAX_RETRANSMISSIONS = maxRetransmissions;
+        this.MAX_SOURCES = maxSources;
+        this.FRAGMENT_UNIT_BYTES = fragmentUnitBytes;
+        this.downloads = new HashMap<>();
+    }
+
+    /**
+     * Register a new download
+     * @param fileHash Hash of the file to download
+     * @param isCoded True to ask for the file as coded symbols, rather than plain fragments
+     * @return The new download, or null if that file is already being downloaded
+     */
+    public FileDownload startDownload(String fileHash, boolean isCoded) {
+        if (downloads.containsKey(fileHash)) {
+            return null;
+        }
+
+        FileDownload download = new FileDownload(fileHash, WINDOW_SIZE, REFILL_BATCH_SIZE, MAX_RETRANSMISSIONS, MAX_SOURCES, FRAGMENT_UNIT_BYTES, isCoded);
+        downloads.put(fileHash, download);
+
+        return download;
+    }
+
+    public FileDownload getDownload(String fileHash) {
+        return downloads.get(fileHash);
+    }
+
+    public boolean isDownloading(String fileHash) {
+        return downloads.containsKey(fileHash);
+    }
+
+    public FileDownload finishDownload(String fileHash) {
+        return downloads.remove(fileHash);
+    }
+
+    public Collection<FileDownload> getDownloads() {
+        return downloads.values();
+    }
+
+    @Override
+    public String toString() {
+        return downloads.values().toString();
+    }
+}
@@ -0,0 +1,101 @@
+package Business.MobileNetworkNode.Transfer;
+
+import Business.MobileNetworkNode.DataCache.ByteRange;
+import Business.MobileNetworkNode.DataCache.CodedSymbolRange;
+
+/**
+ * A fragment that was asked for and is yet to arrive.
+ * In coded downloads the fragment is a whole generation, asked for as a number of coded symbols
+ */
+public class FragmentRequest {
+
+    // Byte where the requested fragment starts, and its size
+    private final int initByte;
+    private final int length;
+
+    // Source the fragment was (last) asked to
+    private TransferSource source;
+
+    // Moment the fragment was (last) asked for (ms)
+    private long sentAtMs;
+
+    // Number of times the fragment was asked for again, after not arriving in time
+    private int retransmissions;
+
+    // Number of fragments asked to the same source after this one, that arrived while this one didn't
+    private int timesOvertaken;
+
+    // Coded symbols (last) asked for, if it's a coded request: seed of the first one, and how many (0 otherwise)
+    private int firstSeed;
+    private int numberOfSymbols;
+
+    FragmentRequest(int initByte, int length, TransferSource source, long sentAtMs, int retransmissions) {
+        this.initByte = initByte;
+        this.length = length;
+        this.source = source;
+        this.sentAtMs = sentAtMs;
+        this.retransmissions = retransmissions;
+        this.timesOvertaken = 0;
+        this.firstSeed = 0;
+        this.numberOfSymbols = 0;
+    }
+
+    public int getInitByte() {
+        return initByte;
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    public ByteRange getRange() {
+        return new ByteRange(initByte, length);
+    }
+
+    public boolean isCoded() {
+        return numberOfSymbols > 0;
+    }
+
+    public CodedSymbolRange getSymbolRange() {
+        return new CodedSymbolRange(getRange(), firstSeed, numberOfSymbols);
+    }
+
+    public TransferSource getSource() {
+        return source;
+    }
+
+    public long getSentAtMs() {
+        return sentAtMs;
+    }
+
+    public int getRetransmissions() {
+        return retransmissions;
+    }
+
+    public int getTimesOvertaken() {
+        return timesOvertaken;
+    }
+
+    void onOvertaken() {
+        this.timesOvertaken++;
+    }
+
+    void askForSymbols(int firstSeed, int numberOfSymbols) {
+        this.firstSeed = firstSeed;
+        this.numberOfSymbols = numberOfSymbols;
+    }
+
+    void resend(TransferSource source, long now) {
+        this.source = source;
+        this.sentAtMs = now;
+        this.retransmissions++;
+        this.timesOvertaken = 0;
+    }
+
+    @Override
+    public String toString() {
+        String symbols = isCoded() ? "[" + firstSeed + "+" + numberOfSymbols + "]" : "";
+
+        return initByte + ":" + length + symbols + "@" + source.getDstMAC();
+    }
+}
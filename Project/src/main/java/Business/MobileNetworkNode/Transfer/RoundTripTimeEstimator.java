@@ -0,0 +1,90 @@
+package Business.MobileNetworkNode.Transfer;
+
+/**
+ * Estimate how long a peer takes to answer, and from it how long to wait before a request is
+ * considered lost (retransmission timeout).
+ *
+ * Follows the same recipe as TCP (RFC 6298): a smoothed round trip time and its variance are
+ * kept, and the timeout is the smoothed time plus four times the variance. Every timeout doubles
+ * the time to wait (exponential backoff) until an answer to a request that was never repeated
+ * gives a new sample. Answers to repeated requests are never sampled, since there's no telling
+ * which of the copies they answer (Karn's algorithm)
+ */
+public class RoundTripTimeEstimator {
+
+    // Weights of the newest sample in the smoothed round trip time and in its variance
+    private static final double RTT_SMOOTHING_FACTOR = 0.125;
+    private static final double VARIANCE_SMOOTHING_FACTOR = 0.25;
+
+    // Timeout used before there's any sample
+    private static final long INITIAL_TIMEOUT_MS = 1000;
+
+    // Bounds of the timeout. The lower one is well below TCP's, since peers are at most a few wireless hops away
+    private static final long MIN_TIMEOUT_MS = 200;
+    private static final long MAX_TIMEOUT_MS = 30000;
+
+    // Smoothed round trip time and its variance (ms), negative until the first sample
+    private double smoothedRtt;
+    private double rttVariance;
+
+    // Number of times the timeout was doubled since the last sample
+    private int backoffs;
+
+    public RoundTripTimeEstimator() {
+        this.smoothedRtt = -1;
+        this.rttVariance = -1;
+        this.backoffs = 0;
+    }
+
+    public boolean hasSamples() {
+        return smoothedRtt >= 0;
+    }
+
+    public double getSmoothedRtt() {
+        return smoothedRtt;
+    }
+
+    /**
+     * Take a new measurement into account
+     * @param rttMs Time between asking and getting the answer (of a request that was asked only once)
+     */
+    public void addSample(long rttMs) {
+        double sample = Math.max(0, rttMs);
+
+        if (smoothedRtt < 0) {
+            smoothedRtt = sample;
+            rttVariance = sample / 2;
+        } else {
+            rttVariance = (1 - VARIANCE_SMOOTHING_FACTOR) * rttVariance + VARIANCE_SMOOTHING_FACTOR * Math.abs(smoothedRtt - sample);
+            smoothedRtt = (1 - RTT_SMOOTHING_FACTOR) * smoothedRtt + RTT_SMOOTHING_FACTOR * sample;
+        }
+
+        // A fresh sample is trusted over the backed off timeout
+        backoffs = 0;
+    }
+
+    /**
+     * A request timed out, wait twice as long for the next ones (up to the max timeout)
+     */
+    public void backOff() {
+        if (getTimeoutMs() < MAX_TIMEOUT_MS) {
+            backoffs++;
+        }
+    }
+
+    /**
+     * @return Time to wait for an answer before asking again (ms)
+     */
+    public long getTimeoutMs() {
+        long timeout = hasSamples()
+                ? Math.max(MIN_TIMEOUT_MS, (long) Math.ceil(smoothedRtt + 4 * rttVariance))
+                : INITIAL_TIMEOUT_MS;
+
+        return Math.min(MAX_TIMEOUT_MS, timeout << Math.min(backoffs, 16));
+    }
+
+    @Override
+    public String toString() {
+        return String.format("(srtt=%.0fms,rttvar=%.0fms,rto=%dms)", smoothedRtt, rttVariance, getTimeoutMs());
+    }
+}
@@ -0,0 +1,230 @@
+package Business.MobileNetworkNode.Transfer;
+
+/**
+ * A node a download can fetch fragments from, along with how well it has been serving them.
+ *
+ * Sources are scored by the rate at which they answer requests (bytes per second, smoothed over
+ * many fragments). Sources that stop answering altogether are considered dead and left alone,
+ * until they prove otherwise.
+ *
+ * Fragments are asked to each source at the biggest size that fits a single datagram on the path
+ * to it. On timeouts that size is halved (lossy links lose big datagrams more often), and it grows
+ * back as fragments keep arriving.
+ *
+ * Each source also has its own round trip time estimate, which dictates how long its requests are
+ * waited for before being considered lost
+ */
+public class TransferSource {
+
+    // Weight of the newest sample in the smoothed delivery rate
+    private static final double RATE_SMOOTHING_FACTOR = 0.25;
+
+    // Number of timeouts in a row (each counted once, however many requests expired together) before a source is no longer given requests
+    private static final int MAX_CONSECUTIVE_TIMEOUTS = 3;
+
+    // Number of fragments that didn't check out against the file's Merkle tree before a source is no longer given requests
+    private static final int MAX_CORRUPT_FRAGMENTS = 3;
+
+    // Number of fragments in a row that have to arrive before the fragment size is doubled
+    private static final int DELIVERIES_BEFORE_GROWING = 8;
+
+    // Node holding the file
+    private final String dstMAC;
+
+    // Neighbour to route requests through (may change as routes change)
+    private String nextHopMAC;
+    private int hopCount;
+
+    // Smoothed delivery rate (bytes per second), negative until the first fragment arrives
+    private double deliveryRate;
+
+    // How long requests to this source take to be answered, and the fastest it ever answered (negative until it does)
+    private RoundTripTimeEstimator rttEstimator;
+    private long minRttMs;
+
+    private int requestsInFlight;
+    private long bytesDelivered;
+    private int consecutiveTimeouts;
+    private int consecutiveDeliveries;
+    private int corruptFragments;
+
+    // Fragment sizes are always a multiple of this (and never smaller)
+    private final int fragmentUnitBytes;
+
+    // Biggest fragment that fits a datagram on the path to this source, and size currently asked for
+    private int maxFragmentSizeBytes;
+    private int fragmentSizeBytes;
+
+    // False when the routing table no longer has a path to this source
+    private boolean isReachable;
+
+    public TransferSource(String dstMAC, String nextHopMAC, int hopCount, int fragmentUnitBytes, int maxFragmentSizeBytes) {
+        this.dstMAC = dstMAC;
+        this.nextHopMAC = nextHopMAC;
+        this.hopCount = hopCount;
+        this.deliveryRate = -1;
+        this.rttEstimator = new RoundTripTimeEstimator();
+        this.minRttMs = -1;
+        this.requestsInFlight = 0;
+        this.bytesDelivered = 0;
+        this.consecutiveTimeouts = 0;
+        this.consecutiveDeliveries = 0;
+        this.corruptFragments = 0;
+        this.fragmentUnitBytes = fragmentUnitBytes;
+        this.maxFragmentSizeBytes = Math.max(fragmentUnitBytes, maxFragmentSizeBytes);
+        this.fragmentSizeBytes = this.maxFragmentSizeBytes;
+        this.isReachable = true;
+    }
+
+    public String getDstMAC() {
+        return dstMAC;
+    }
+
+    public String getNextHopMAC() {
+        return nextHopMAC;
+    }
+
+    public int getHopCount() {
+        return hopCount;
+    }
+
+    public double getDeliveryRate() {
+        return deliveryRate;
+    }
+
+    public int getRequestsInFlight() {
+        return requestsInFlight;
+    }
+
+    public long getBytesDelivered() {
+        return bytesDelivered;
+    }
+
+    /**
+     * @return Time to wait for a fragment before asking for it again (ms)
+     */
+    public long getRetransmissionTimeoutMs() {
+        return rttEstimator.getTimeoutMs();
+    }
+
+    public double getSmoothedRttMs() {
+        return rttEstimator.getSmoothedRtt();
+    }
+
+    public long getMinRttMs() {
+        return minRttMs;
+    }
+
+    public int getFragmentSizeBytes() {
+        return fragmentSizeBytes;
+    }
+
+    public boolean isReachable() {
+        return isReachable;
+    }
+
+    public boolean isDead() {
+        return consecutiveTimeouts >= MAX_CONSECUTIVE_TIMEOUTS || corruptFragments >= MAX_CORRUPT_FRAGMENTS;
+    }
+
+    void updatePath(String nextHopMAC, int hopCount, int maxFragmentSizeBytes) {
+        this.nextHopMAC = nextHopMAC;
+        this.hopCount = hopCount;
+        this.isReachable = true;
+
+        // A bigger max is only grown into as fragments keep arriving, a smaller one applies right away
+        this.maxFragmentSizeBytes = Math.max(fragmentUnitBytes, maxFragmentSizeBytes);
+        this.fragmentSizeBytes = Math.min(fragmentSizeBytes, this.maxFragmentSizeBytes);
+    }
+
+    void markAsUnreachable() {
+        this.isReachable = false;
+    }
+
+    /**
+     * Give the round trip time estimate a starting point, if fragments didn't give it one yet
+     * @param rttMs Expected round trip time to this source (e.g. from pinging the next hop)
+     */
+    void seedRoundTripTime(double rttMs) {
+        if (!rttEstimator.hasSamples()) {
+            rttEstimator.addSample(Math.round(rttMs));
+        }
+    }
+
+    /**
+     * Requests to this source timed out, wait longer for the next ones
+     */
+    void backOff() {
+        consecutiveTimeouts++;
+        rttEstimator.backOff();
+    }
+
+    void onRequestSent() {
+        requestsInFlight++;
+    }
+
+    /**
+     * A fragment asked to this source arrived
+     * @param bytes Size of the fragment
+     * @param elapsedMs Time between (last) asking and receiving it
+     * @param wasAskedAgain True if the fragment was asked for more than once, so the time can't be trusted
+     */
+    void onFragmentDelivered(int bytes, long elapsedMs, boolean wasAskedAgain) {
+        requestsInFlight = Math.max(0, requestsInFlight - 1);
+        bytesDelivered += bytes;
+        consecutiveTimeouts = 0;
+
+        if (++consecutiveDeliveries >= DELIVERIES_BEFORE_GROWING && fragmentSizeBytes < maxFragmentSizeBytes) {
+            fragmentSizeBytes = Math.min(fragmentSizeBytes * 2, maxFragmentSizeBytes);
+            consecutiveDeliveries = 0;
+        }
+
+        if (wasAskedAgain) {
+            return;
+        }
+
+        rttEstimator.addSample(elapsedMs);
+        minRttMs = minRttMs < 0 ? elapsedMs : Math.min(minRttMs, elapsedMs);
+
+        double sample = bytes * 1000.0 / Math.max(1, elapsedMs);
+        deliveryRate = deliveryRate < 0 ? sample : (1 - RATE_SMOOTHING_FACTOR) * deliveryRate + RATE_SMOOTHING_FACTOR * sample;
+    }
+
+    /**
+     * A fragment asked to this source never arrived (it timed out, or later ones arrived before it)
+     */
+    void onRequestTimedOut() {
+        requestsInFlight = Math.max(0, requestsInFlight - 1);
+        consecutiveDeliveries = 0;
+
+        // Smaller datagrams are less likely to be lost (still a multiple of the unit)
+        fragmentSizeBytes = Math.max(fragmentUnitBytes, (fragmentSizeBytes / 2) / fragmentUnitBytes * fragmentUnitBytes);
+
+        // Penalize the source, so less work is sent its way (one that never delivered is no longer assumed to be fast)
+        deliveryRate = deliveryRate > 0 ? deliveryRate / 2 : 0;
+    }
+
+    /**
+     * A fragment asked to this source didn't check out against the file's Merkle tree. The source
+     * is no longer trusted to be fast, and after a few of these it's no longer trusted at all
+     */
+    void onCorruptFragment() {
+        requestsInFlight = Math.max(0, requestsInFlight - 1);
+        consecutiveDeliveries = 0;
+        corruptFragments++;
+        deliveryRate = 0;
+    }
+
+    /**
+     * A request that was given to this source was answered by someone else, or handed to another source
+     */
+    void onRequestWithdrawn() {
+        requestsInFlight = Math.max(0, requestsInFlight - 1);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("(%s: next=%s,hops=%d,rate=%.0fB/s,rtt=%s,fragment=%dB,in_flight=%d,delivered=%d%s)",
+                dstMAC, nextHopMAC, hopCount, deliveryRate, rttEstimator, fragmentSizeBytes, requestsInFlight, bytesDelivered, isDead() ? ",dead" : "");
+    }
+}
@@ -0,0 +1,493 @@
+package Business.PDU;
+
+import Business.MobileNetworkNode.DataCache.ChunkMap;
+import Business.MobileNetworkNode.DataCache.CodedSymbol;
+import Business.MobileNetworkNode.DataCache.ContentChunk;
+import Business.MobileNetworkNode.DataCache.FileFragment;
+import Business.MobileNetworkNode.DataCache.MerkleProof;
+import Business.MobileNetworkNode.DataCache.MerkleTree;
+import Business.MobileNetworkNode.RoutingInfo.RoutingTable;
+import Business.MobileNetworkNode.RoutingInfo.RoutingTableEntry;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+import static Business.MobileNetworkNode.RoutingInfo.RoutingTableEntry.EntryTypes.NULL_ENTRY;
+import static Business.PDU.MobileNetworkPDU.MobileNetworkMessageType.REQUEST_CONTENT;
+
+/**
+ * Compact, hand-rolled, wire format for PDUs.
+ *
+ * Layout of a datagram (numbers are sizes in bytes, strings are a 2 byte length followed by UTF-8):
+ *
+ *  Fixed header, always at the same offsets:
+ *  | magic 1 | version 1 | message type 1 | content type 1 | error code 1 | TTL 1 | src MAC 6 | dst MAC 6 | next hop MAC 6 |
+ *
+ *  Variable part:
+ *  | session ID string | node path: count 1 + MAC 6 each (bottom to top) | params: count 1 + string each |
+ *  | content: present 1 + content body (layout depends on the content type) |
+ *
+ * MAC addresses travel as their 6 raw bytes. The placeholder used for entries with no next hop
+ * travels as the all zeroes address. The next hop is a copy of the top of the node path, placed in
+ * the fixed header so receivers can tell if a datagram concerns them before decoding it.
+ */
+public class BinaryMobileNetworkPDUCodec implements MobileNetworkPDUCodec {
+
+    // First byte of every datagram, to quickly discard whatever isn't ours
+    public static final byte MAGIC = (byte) 0xAE;
+
+    // Bump whenever the layout changes, nodes refuse datagrams from a different version
+    public static final byte VERSION = 5;
+
+    private static final int MAC_SIZE_BYTES = MobileNetworkPDUHeader.MAC_SIZE_BYTES;
+
+    // Offsets of the fixed header fields
+    private static final int VERSION_OFFSET = 1;
+    private static final int MESSAGE_TYPE_OFFSET = 2;
+    private static final int CONTENT_TYPE_OFFSET = 3;
+    private static final int SRC_MAC_OFFSET = 6;
+    private static final int DST_MAC_OFFSET = SRC_MAC_OFFSET + MAC_SIZE_BYTES;
+    private static final int NEXT_HOP_MAC_OFFSET = DST_MAC_OFFSET + MAC_SIZE_BYTES;
+    private static final int HEADER_SIZE_BYTES = NEXT_HOP_MAC_OFFSET + MAC_SIZE_BYTES;
+
+    private static final byte[] NULL_MAC = new byte[MAC_SIZE_BYTES];
+
+    // Anchor level written in place of a Merkle proof when a fragment has none
+    private static final byte NO_MERKLE_PROOF = (byte) 0xFF;
+
+    private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+
+    private static final MobileNetworkPDU.MobileNetworkMessageType[] MESSAGE_TYPES = MobileNetworkPDU.MobileNetworkMessageType.values();
+    private static final MobileNetworkPDU.ContentType[] CONTENT_TYPES = MobileNetworkPDU.ContentType.values();
+    private static final MobileNetworkPDU.MobileNetworkErrorType[] ERROR_TYPES = MobileNetworkPDU.MobileNetworkErrorType.values();
+
+    @Override
+    public void encode(MobileNetworkPDU pdu, ByteBuffer out) throws IOException {
+        DataMobileNetworkPDU dataPDU = (DataMobileNetworkPDU) pdu;
+
+        out.put(MAGIC);
+        out.put(VERSION);
+        out.put((byte) pdu.getMessageType().ordinal());
+        out.put((byte) dataPDU.getContentType().ordinal());
+        out.put((byte) pdu.getErrorCode().ordinal());
+        out.put((byte) pdu.getTTL());
+        putMac(out, pdu.getSrcMAC());
+        putMac(out, pdu.getDstMAC());
+
+        Stack<String> nodePath = pdu.getNodePath();
+        putMac(out, nodePath.isEmpty() ? NULL_ENTRY.toString() : nodePath.peek());
+
+        putString(out, pdu.getSessionID());
+
+        out.put((byte) nodePath.size());
+        for (String hop : nodePath) {
+            putMac(out, hop);
+        }
+
+        String[] params = dataPDU.getParams();
+        out.put((byte) params.length);
+        for (String param : params) {
+            putString(out, param);
+        }
+
+        if (pdu.getMessageType() == REQUEST_CONTENT) {
+            // Requests carry no content
+            return;
+        }
+
+        Object content = ((DataResponseMobileNetworkPDU) pdu).getContent();
+
+        if (content == null) {
+            out.put((byte) 0);
+            return;
+        }
+
+        out.put((byte) 1);
+
+        switch (dataPDU.getContentType()) {
+            case ROUTING_TABLE:
+            case ROUTING_TABLE_INSERTION_UPDATE:
+            case ROUTING_TABLE_DELETION_UPDATE:
+                putRoutingTable(out, (RoutingTable) content);
+                break;
+            case ROUTING_TABLE_VERSION:
+                putString(out, (String) content);
+                break;
+            case FILE:
+                putFileFragment(out, (FileFragment) content);
+                break;
+            case CODED_FILE:
+                putCodedSymbol(out, (CodedSymbol) content);
+                break;
+            case CHUNK_MAP:
+                putChunkMap(out, (ChunkMap) content);
+                break;
+            default:
+                throw new IOException("No binary representation for content of type " + dataPDU.getContentType());
+        }
+    }
+
+    @Override
+    public MobileNetworkPDU decode(ByteBuffer in) throws IOException {
+        try {
+            if (in.get() != MAGIC) {
+                throw new IOException("Datagram is not a mobile network PDU");
+            }
+
+            byte version = in.get();
+            if (version != VERSION) {
+                throw new IOException("Unsupported PDU version " + version);
+            }
+
+            MobileNetworkPDU.MobileNetworkMessageType messageType = MESSAGE_TYPES[in.get()];
+            MobileNetworkPDU.ContentType contentType = CONTENT_TYPES[in.get()];
+            MobileNetworkPDU.MobileNetworkErrorType errorCode = ERROR_TYPES[in.get()];
+            int TTL = in.get() & 0xFF;
+            String srcMAC = getMac(in);
+            String dstMAC = getMac(in);
+
+            // Next hop is repeated in the node path
+            in.position(in.position() + MAC_SIZE_BYTES);
+
+            String sessionID = getString(in);
+
+            int nodePathSize = in.get() & 0xFF;
+            Stack<String> nodePath = new Stack<>();
+            for (int i = 0; i < nodePathSize; i++) {
+                nodePath.push(getMac(in));
+            }
+
+            String[] params = new String[in.get() & 0xFF];
+            for (int i = 0; i < params.length; i++) {
+                params[i] = getString(in);
+            }
+
+            if (messageType == REQUEST_CONTENT) {
+                return new DataRequestMobileNetworkPDU(srcMAC, dstMAC, errorCode, TTL, sessionID, nodePath, contentType, params);
+            }
+
+            Object content = null;
+
+            if (in.get() != 0) {
+                switch (contentType) {
+                    case ROUTING_TABLE:
+                    case ROUTING_TABLE_INSERTION_UPDATE:
+                    case ROUTING_TABLE_DELETION_UPDATE:
+                        content = getRoutingTable(in);
+                        break;
+                    case ROUTING_TABLE_VERSION:
+                        content = getString(in);
+                        break;
+                    case FILE:
+                        content = getFileFragment(in);
+                        break;
+                    case CODED_FILE:
+                        content = getCodedSymbol(in);
+                        break;
+                    case CHUNK_MAP:
+                        content = getChunkMap(in);
+                        break;
+                    default:
+                        throw new IOException("No binary representation for content of type " + contentType);
+                }
+            }
+
+            return new DataResponseMobileNetworkPDU(srcMAC, dstMAC, errorCode, TTL, sessionID, nodePath, contentType, params, content);
+        } catch (RuntimeException e) {
+            // Truncated datagrams (BufferUnderflowException) and out of range enums
+            throw new IOException("Malformed PDU", e);
+        }
+    }
+
+    @Override
+    public boolean peekHeader(ByteBuffer in, MobileNetworkPDUHeader header) {
+        int start = in.position();
+
+        if (in.remaining() < HEADER_SIZE_BYTES
+                || in.get(start) != MAGIC
+                || in.get(start + VERSION_OFFSET) != VERSION) {
+            return false;
+        }
+
+        int messageType = in.get(start + MESSAGE_TYPE_OFFSET);
+        int contentType = in.get(start + CONTENT_TYPE_OFFSET);
+
+        if (messageType < 0 || messageType >= MESSAGE_TYPES.length
+                || contentType < 0 || contentType >= CONTENT_TYPES.length) {
+            return false;
+        }
+
+        header.setMessageType(MESSAGE_TYPES[messageType]);
+        header.setContentType(CONTENT_TYPES[contentType]);
+
+        byte[] srcMAC = header.getSrcMACBytes();
+        byte[] dstMAC = header.getDstMACBytes();
+        byte[] nextHopMAC = header.getNextHopMACBytes();
+
+        for (int i = 0; i < MAC_SIZE_BYTES; i++) {
+            srcMAC[i] = in.get(start + SRC_MAC_OFFSET + i);
+            dstMAC[i] = in.get(start + DST_MAC_OFFSET + i);
+            nextHopMAC[i] = in.get(start + NEXT_HOP_MAC_OFFSET + i);
+        }
+
+        return true;
+    }
+
+    /**
+     * =================== Content bodies
+     */
+
+    private static void putRoutingTable(ByteBuffer out, RoutingTable table) {
+        putMac(out, table.getOwnerID());
+        putString(out, table.getPreviousVersion());
+        putString(out, table.getVersion());
+
+        out.putInt(table.size());
+        for (Map.Entry<String, Set<RoutingTableEntry>> paths : table.entrySet()) {
+            putString(out, paths.getKey());
+
+            Set<RoutingTableEntry> entries = paths.getValue();
+            out.putShort((short) entries.size());
+            for (RoutingTableEntry entry : entries) {
+                putString(out, entry.getFileName());
+                putMac(out, entry.getDstMAC());
+                putMac(out, entry.getNextHopMAC());
+                out.put((byte) entry.getHopCount());
+
+                Set<String> participants = entry.getParticipants();
+                out.put((byte) participants.size());
+                for (String participant : participants) {
+                    putMac(out, participant);
+                }
+
+                putString(out, entry.getMerkleRoot() != null ? entry.getMerkleRoot() : "");
+            }
+        }
+    }
+
+    private static RoutingTable getRoutingTable(ByteBuffer in) {
+        String ownerID = getMac(in);
+        String previousVersion = getString(in);
+        String version = getString(in);
+
+        int numberOfFiles = in.getInt();
+        Map<String, Set<RoutingTableEntry>> table = new HashMap<>();
+        for (int i = 0; i < numberOfFiles; i++) {
+            String fileHash = getString(in);
+
+            int numberOfEntries = in.getShort() & 0xFFFF;
+            Set<RoutingTableEntry> entries = new TreeSet<>();
+            for (int j = 0; j < numberOfEntries; j++) {
+                String fileName = getString(in);
+                String dstMAC = getMac(in);
+                String nextHopMAC = getMac(in);
+                int hopCount = in.get() & 0xFF;
+
+                int numberOfParticipants = in.get() & 0xFF;
+                Set<String> participants = new HashSet<>();
+                for (int k = 0; k < numberOfParticipants; k++) {
+                    participants.add(getMac(in));
+                }
+
+                String merkleRoot = getString(in);
+
+                entries.add(new RoutingTableEntry(fileName, dstMAC, nextHopMAC, hopCount, participants, merkleRoot.isEmpty() ? null : merkleRoot));
+            }
+
+            table.put(fileHash, entries);
+        }
+
+        RoutingTable routingTable = new RoutingTable(ownerID, table);
+        routingTable.setPreviousVersion(previousVersion);
+        routingTable.setVersion(version);
+
+        return routingTable;
+    }
+
+    private static void putFileFragment(ByteBuffer out, FileFragment fragment) {
+        byte[] chunk = fragment.getChunk();
+
+        out.putInt(fragment.getInitbyte());
+        out.putInt(fragment.getTotalSizeBytes());
+        putString(out, fragment.getFileName());
+        out.putInt(chunk.length);
+        out.put(chunk);
+        putMerkleProof(out, fragment.getProof());
+    }
+
+    private static FileFragment getFileFragment(ByteBuffer in) {
+        int initByte = in.getInt();
+        int totalSizeBytes = in.getInt();
+        String fileName = getString(in);
+
+        byte[] chunk = new byte[in.getInt()];
+        in.get(chunk);
+
+        FileFragment fragment = new FileFragment(chunk, initByte, totalSizeBytes, fileName);
+        fragment.setProof(getMerkleProof(in));
+
+        return fragment;
+    }
+
+    private static void putCodedSymbol(ByteBuffer out, CodedSymbol symbol) {
+        byte[] payload = symbol.getPayload();
+
+        out.putInt(symbol.getGenerationInitByte());
+        out.putInt(symbol.getGenerationLength());
+        out.putInt(symbol.getSeed());
+        out.putInt(symbol.getTotalSizeBytes());
+        putString(out, symbol.getFileName());
+        out.putInt(payload.length);
+        out.put(payload);
+        putMerkleProof(out, symbol.getProof());
+    }
+
+    private static CodedSymbol getCodedSymbol(ByteBuffer in) {
+        int generationInitByte = in.getInt();
+        int generationLength = in.getInt();
+        int seed = in.getInt();
+        int totalSizeBytes = in.getInt();
+        String fileName = getString(in);
+
+        byte[] payload = new byte[in.getInt()];
+        in.get(payload);
+
+        CodedSymbol symbol = new CodedSymbol(payload, generationInitByte, generationLength, seed, totalSizeBytes, fileName);
+        symbol.setProof(getMerkleProof(in));
+
+        return symbol;
+    }
+
+    // Leaves: count 4 + hashes. Content-defined chunks: count 4 + (init byte 4, length 4, hash) each
+    private static void putChunkMap(ByteBuffer out, ChunkMap chunkMap) {
+        byte[] leaves = chunkMap.getLeaves();
+        List<ContentChunk> contentChunks = chunkMap.getContentChunks();
+
+        out.putInt(chunkMap.getInitByte());
+        out.putInt(chunkMap.getLength());
+        out.putInt(chunkMap.getTotalSizeBytes());
+        putString(out, chunkMap.getFileName());
+
+        out.putInt(leaves.length / MerkleTree.HASH_SIZE_BYTES);
+        out.put(leaves);
+
+        out.putInt(contentChunks.size());
+        for (ContentChunk chunk : contentChunks) {
+            out.putInt(chunk.getInitByte());
+            out.putInt(chunk.getLength());
+            out.put(chunk.getHash());
+        }
+
+        putMerkleProof(out, chunkMap.getProof());
+    }
+
+    private static ChunkMap getChunkMap(ByteBuffer in) {
+        int initByte = in.getInt();
+        int length = in.getInt();
+        int totalSizeBytes = in.getInt();
+        String fileName = getString(in);
+
+        byte[] leaves = new byte[in.getInt() * MerkleTree.HASH_SIZE_BYTES];
+        in.get(leaves);
+
+        int numberOfContentChunks = in.getInt();
+        List<ContentChunk> contentChunks = new ArrayList<>();
+        for (int i = 0; i < numberOfContentChunks; i++) {
+            int chunkInitByte = in.getInt();
+            int chunkLength = in.getInt();
+            byte[] hash = new byte[MerkleTree.HASH_SIZE_BYTES];
+            in.get(hash);
+
+            contentChunks.add(new ContentChunk(chunkInitByte, chunkLength, hash));
+        }
+
+        ChunkMap chunkMap = new ChunkMap(initByte, length, totalSizeBytes, fileName, leaves, contentChunks);
+        chunkMap.setProof(getMerkleProof(in));
+
+        return chunkMap;
+    }
+
+    // Anchor level 1 (NO_MERKLE_PROOF if there's none, and nothing else follows) + count 2 + hashes
+    private static void putMerkleProof(ByteBuffer out, MerkleProof proof) {
+        if (proof == null) {
+            out.put(NO_MERKLE_PROOF);
+            return;
+        }
+
+        out.put((byte) proof.getAnchorLevel());
+        out.putShort((short) proof.getNumberOfHashes());
+        out.put(proof.getHashes());
+    }
+
+    private static MerkleProof getMerkleProof(ByteBuffer in) {
+        byte anchorLevel = in.get();
+
+        if (anchorLevel == NO_MERKLE_PROOF) {
+            return null;
+        }
+
+        byte[] hashes = new byte[(in.getShort() & 0xFFFF) * MerkleTree.HASH_SIZE_BYTES];
+        in.get(hashes);
+
+        return new MerkleProof(anchorLevel, hashes);
+    }
+
+    /**
+     * =================== Primitives
+     */
+
+    private static void putString(ByteBuffer out, String str) {
+        byte[] bytes = str.getBytes(StandardCharsets.UTF_8);
+        out.putShort((short) bytes.length);
+        out.put(bytes);
+    }
+
+    private static String getString(ByteBuffer in) {
+        int length = in.getShort() & 0xFFFF;
+
+        String str;
+        if (in.hasArray()) {
+            // Read straight from the backing array, no intermediate copy
+            str = new String(in.array(), in.arrayOffset() + in.position(), length, StandardCharsets.UTF_8);
+            in.position(in.position() + length);
+        } else {
+            byte[] bytes = new byte[length];
+            in.get(bytes);
+            str = new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        return str;
+    }
+
+    private static void putMac(ByteBuffer out, String mac) {
+        if (mac.equals(NULL_ENTRY.toString())) {
+            out.put(NULL_MAC);
+            return;
+        }
+
+        // "AA:BB:CC:DD:EE:FF", each byte is 2 hex digits followed by a colon
+        for (int i = 0; i < MAC_SIZE_BYTES; i++) {
+            out.put((byte) Integer.parseInt(mac.substring(i * 3, i * 3 + 2), 16));
+        }
+    }
+
+    private static String getMac(ByteBuffer in) {
+        char[] mac = new char[MAC_SIZE_BYTES * 3 - 1];
+        boolean isNullMac = true;
+
+        for (int i = 0; i < MAC_SIZE_BYTES; i++) {
+            int b = in.get() & 0xFF;
+            isNullMac &= (b == 0);
+
+            mac[i * 3] = HEX_DIGITS[b >>> 4];
+            mac[i * 3 + 1] = HEX_DIGITS[b & 0x0F];
+            if (i < MAC_SIZE_BYTES - 1) {
+                mac[i * 3 + 2] = ':';
+            }
+        }
+
+        return isNullMac ? NULL_ENTRY.toString() : new String(mac);
+    }
+}
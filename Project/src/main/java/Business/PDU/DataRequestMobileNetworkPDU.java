@@ -1,6 +1,11 @@
 package Business.PDU;
 
+import Business.MobileNetworkNode.DataCache.ByteRange;
+import Business.MobileNetworkNode.DataCache.CodedSymbolRange;
+
 import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Stack;
 
 import static Business.PDU.MobileNetworkPDU.MobileNetworkMessageType.REQUEST_CONTENT;
@@ -17,4 +22,66 @@ public class DataRequestMobileNetworkPDU extends DataMobileNetworkPDU implements
     public String getRequestedFileHash() {
         return this.getParams()[0];
     }
+
+    /**
+     * A file request can ask for several fragments at once, by listing their ranges ("init:length") after the file hash.
+     * If no range is listed, the first fragment is the one being asked for
+     * @return Ranges of the requested fragments (lengths may be left unspecified)
+     */
+    public List<ByteRange> getRequestedRanges() {
+        String[] params = this.getParams();
+        List<ByteRange> ranges = new ArrayList<>();
+
+        for (int i = 1; i < params.length; i++) {
+            ranges.add(ByteRange.parse(params[i]));
+        }
+
+        if (ranges.isEmpty()) {
+            ranges.add(new ByteRange(0, ByteRange.UNSPECIFIED_LENGTH));
+        }
+
+        return ranges;
+    }
+
+    /**
+     * A coded file request asks for a number of coded symbols of each generation listed after the file hash
+     * @return Ranges of the requested symbols
+     */
+    public List<CodedSymbolRange> getRequestedSymbolRanges() {
+        String[] params = this.getParams();
+        List<CodedSymbolRange> ranges = new ArrayList<>();
+
+        for (int i = 1; i < params.length; i++) {
+            ranges.add(CodedSymbolRange.parse(params[i]));
+        }
+
+        return ranges;
+    }
+
+    /**
+     * Copy of this (file) request, asking only for some of the fragments
+     * @param ranges Ranges of the fragments to ask for
+     * @return New request, identical to this one in everything else
+     */
+    public DataRequestMobileNetworkPDU withRequestedRanges(List<ByteRange> ranges) {
+        return new DataRequestMobileNetworkPDU(getSrcMAC(), getDstMAC(), getErrorCode(), getTTL(), getSessionID(),
+                getNodePath(), getContentType(), fileRequestParams(getRequestedFileHash(), ranges));
+    }
+
+    /**
+     * Build the params of a file request
+     * @param fileHash Hash of the requested file
+     * @param ranges Ranges of the requested fragments (or of the requested symbols, if it's a coded file request)
+     * @return Params, the file hash followed by each range
+     */
+    public static String[] fileRequestParams(String fileHash, List<?> ranges) {
+        String[] params = new String[ranges.size() + 1];
+        params[0] = fileHash;
+
+        for (int i = 0; i < ranges.size(); i++) {
+            params[i + 1] = ranges.get(i).toString();
+        }
+
+        return params;
+    }
 }
@@ -36,7 +36,11 @@ public abstract class MobileNetworkPDU implements Serializable {
         ROUTING_TABLE_INSERTION_UPDATE,
         ROUTING_TABLE_DELETION_UPDATE,
         FILE, // Anything that can be converted to a byte array
-        ERROR // Nothing goes in here because something went wrong along the way
+        ERROR, // Nothing goes in here because something went wrong along the way
+        PATH_MTU, // Probe for the smallest MTU along a path, carried in the params and lowered by every hop
+        CODED_FILE, // Coded symbols of a file, any sufficient set of which rebuilds the file (see FountainCode)
+        CHUNK_MAP, // Leaves of a file's Merkle tree and its content-defined chunks, over a range (see ChunkMap)
+        REPLICA // Offer of a file asked for a lot, for a neighbour to download and share too (nothing goes in here, the offer is in the params)
     }
 
     public static final int STANDARD_TTL = 62;
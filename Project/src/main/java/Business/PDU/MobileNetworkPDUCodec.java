@@ -0,0 +1,41 @@
+package Business.PDU;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Turns a PDU into the bytes that travel inside a datagram, and back.
+ *
+ * Every node in the network must agree on the codec being used, since the receiving side
+ * has no other way of knowing how the bytes it captured were written
+ */
+public interface MobileNetworkPDUCodec {
+
+    /**
+     * Write a PDU into a buffer, starting at the buffer's current position
+     * @param pdu PDU to encode
+     * @param out Buffer to write into (its position is advanced past the written bytes)
+     * @throws IOException When the PDU (or its content) can't be represented by this codec
+     * @throws java.nio.BufferOverflowException When the PDU doesn't fit in the buffer
+     */
+    void encode(MobileNetworkPDU pdu, ByteBuffer out) throws IOException;
+
+    /**
+     * Read a PDU from a buffer, from its current position up to its limit
+     * @param in Buffer holding a single encoded PDU
+     * @return Decoded PDU
+     * @throws IOException When the bytes are not a valid PDU for this codec
+     * @throws ClassNotFoundException When the bytes reference a class that is unknown to this node
+     */
+    MobileNetworkPDU decode(ByteBuffer in) throws IOException, ClassNotFoundException;
+
+    /**
+     * Read only the routing related fields of an encoded PDU, without decoding the rest of it.
+     * The buffer's position is left untouched, so it can be decoded afterwards
+     * @param in Buffer holding a single encoded PDU
+     * @param header Header to fill in
+     * @return True if the header was filled, false if this codec has no fixed layout to peek at
+     *         (or the datagram is not a valid PDU), in which case the whole PDU must be decoded
+     */
+    boolean peekHeader(ByteBuffer in, MobileNetworkPDUHeader header);
+}
@@ -0,0 +1,63 @@
+package Business.PDU;
+
+import java.util.Arrays;
+
+/**
+ * The few fields of an encoded PDU that decide whether a node cares about it at all,
+ * read without decoding the rest of the datagram.
+ *
+ * Instances are meant to be reused (filled over and over by MobileNetworkPDUCodec.peekHeader),
+ * so peeking a datagram doesn't allocate anything
+ */
+public class MobileNetworkPDUHeader {
+
+    public static final int MAC_SIZE_BYTES = 6;
+
+    private MobileNetworkPDU.MobileNetworkMessageType messageType;
+    private MobileNetworkPDU.ContentType contentType;
+
+    // Raw addresses, as they travel in the datagram
+    private final byte[] srcMAC = new byte[MAC_SIZE_BYTES];
+    private final byte[] dstMAC = new byte[MAC_SIZE_BYTES];
+    private final byte[] nextHopMAC = new byte[MAC_SIZE_BYTES];
+
+    public MobileNetworkPDU.MobileNetworkMessageType getMessageType() {
+        return messageType;
+    }
+
+    public MobileNetworkPDU.ContentType getContentType() {
+        return contentType;
+    }
+
+    void setMessageType(MobileNetworkPDU.MobileNetworkMessageType messageType) {
+        this.messageType = messageType;
+    }
+
+    void setContentType(MobileNetworkPDU.ContentType contentType) {
+        this.contentType = contentType;
+    }
+
+    byte[] getSrcMACBytes() {
+        return srcMAC;
+    }
+
+    byte[] getDstMACBytes() {
+        return dstMAC;
+    }
+
+    byte[] getNextHopMACBytes() {
+        return nextHopMAC;
+    }
+
+    public boolean isSource(byte[] mac) {
+        return Arrays.equals(srcMAC, mac);
+    }
+
+    public boolean isDestination(byte[] mac) {
+        return Arrays.equals(dstMAC, mac);
+    }
+
+    public boolean isNextHop(byte[] mac) {
+        return Arrays.equals(nextHopMAC, mac);
+    }
+}
@@ -0,0 +1,40 @@
+package Business.PDU;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+
+/**
+ * Codec that relies on java's built-in object serialization.
+ *
+ * It's the original wire format of the network. Kept around so nodes can still talk to
+ * older peers, but it's heavy: every datagram carries class descriptors and boxed objects
+ */
+public class SerializedMobileNetworkPDUCodec implements MobileNetworkPDUCodec {
+
+    @Override
+    public void encode(MobileNetworkPDU pdu, ByteBuffer out) throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        ObjectOutputStream os = new ObjectOutputStream(outputStream);
+
+        os.writeObject(pdu);
+        os.flush();
+
+        out.put(outputStream.toByteArray());
+    }
+
+    @Override
+    public MobileNetworkPDU decode(ByteBuffer in) throws IOException, ClassNotFoundException {
+        byte[] data = new byte[in.remaining()];
+        in.get(data);
+
+        ObjectInputStream objectInputStream = new ObjectInputStream(new ByteArrayInputStream(data));
+
+        return (MobileNetworkPDU) objectInputStream.readObject();
+    }
+
+    @Override
+    public boolean peekHeader(ByteBuffer in, MobileNetworkPDUHeader header) {
+        // Fields of a serialized object have no fixed position
+        return false;
+    }
+}
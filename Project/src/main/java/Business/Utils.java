@@ -15,6 +15,9 @@ import java.util.*;
  */
 public class Utils {
 
+    // Size of the buffer files are read through when hashed
+    private static final int HASH_BUFFER_SIZE_BYTES = 64 * 1024;
+
     /**
      * Format a byte array into the standard, human-readable, MAC address
      *
@@ -31,6 +34,22 @@ public class Utils {
         return sb.toString();
     }
 
+    /**
+     * Parse a human-readable MAC address back into a byte array
+     *
+     * @param mac Mac address formatted as in macByteArrToString
+     * @return Mac address as a byte array
+     */
+    public static byte[] macStringToByteArr(String mac) {
+        String[] hexBytes = mac.split(":");
+        byte[] bytes = new byte[hexBytes.length];
+        for (int i = 0; i < hexBytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(hexBytes[i], 16);
+        }
+
+        return bytes;
+    }
+
     /**
      * Format a file into a byte array. Helpful to serialize objects
      *
@@ -57,18 +76,55 @@ public class Utils {
      * @throws NoSuchAlgorithmException When choosing hash passed as argument
      */
     public static String hashFile(File file, String hashType) throws IOException, NoSuchAlgorithmException {
-        byte[] fileInBytes = fileToByteStream(file);
         MessageDigest md = MessageDigest.getInstance(hashType);
-        byte[] hashInBytes = md.digest(fileInBytes);
 
+        // Streamed through a small buffer, so files bigger than the heap can be hashed too
+        try (FileInputStream inputStream = new FileInputStream(file)) {
+            byte[] buffer = new byte[HASH_BUFFER_SIZE_BYTES];
+            int bytesRead;
+
+            while ((bytesRead = inputStream.read(buffer)) != -1) {
+                md.update(buffer, 0, bytesRead);
+            }
+        }
+
+        return bytesToHexString(md.digest());
+    }
+
+    /**
+     * Format bytes (e.g. a hash) as a lowercase hex string
+     *
+     * @param bytes Bytes to format
+     * @return Two hex digits per byte
+     */
+    public static String bytesToHexString(byte[] bytes) {
         StringBuilder sb = new StringBuilder();
-        for (byte b : hashInBytes) {
+        for (byte b : bytes) {
             sb.append(String.format("%02x", b));
         }
 
         return sb.toString();
     }
 
+    /**
+     * Parse a hex string back into bytes
+     *
+     * @param hex Hex string, as formatted in bytesToHexString
+     * @return Bytes (NumberFormatException if malformed)
+     */
+    public static byte[] hexStringToBytes(String hex) {
+        if (hex.length() % 2 != 0) {
+            throw new NumberFormatException("Odd number of hex digits: " + hex);
+        }
+
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+        }
+
+        return bytes;
+    }
+
     /**
      * Retrieve all the files in a path applying recursion
      * The param may be of type File, but it must be a diretory!
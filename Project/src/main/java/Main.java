@@ -6,18 +6,24 @@ import java.io.IOException;
 public class Main {
     public static void main(String[] args) {
         // Parse arguments
-        if (args.length != 1) {
-            System.out.println("Usage: java -jar MobileTransfer.jar <directory of content to share>");
+        boolean promiscuous = args.length == 2 && args[0].equals("--promiscuous");
+
+        if (args.length != 1 && !promiscuous) {
+            System.out.println("Usage: java -jar MobileTransfer.jar [--promiscuous] <directory of content to share>");
+            System.out.println("  --promiscuous  keep the fragments multicast to neighbours downloading a file (see");
+            System.out.println("                 DistributionSessionTable), to answer for them later. Fragments");
+            System.out.println("                 unicast to other nodes are never overheard");
             System.exit(0);
         }
 
-        // First argument is the path where the files the user wants to share are
-        File sharingDirectory = new File(args[0]).getAbsoluteFile();
+        // Last argument is the path where the files the user wants to share are
+        File sharingDirectory = new File(args[args.length - 1]).getAbsoluteFile();
 
         System.out.println("- Starting main");
 
         try {
             MobileNode node = new MobileNode(sharingDirectory);
+            node.setPromiscuous(promiscuous);
             node.autonomousStart();
         } catch (IOException | InterruptedException e) {
             e.printStackTrace();
@@ -14,6 +14,7 @@ public class StaticMainView implements StaticTextualView {
             new Menu("Main menu",
                     Arrays.asList(
                             new Option("Download file", "D"),
+                            new Option("Download file, coded (for lossy links)", "C"),
                             new Option("Exit", "E")
                     ));
 